@@ -1,6 +1,8 @@
 package calibur.directconnect;
 
+import calibur.directconnect.config.ModConfig;
 import calibur.directconnect.join.JoinManager;
+import calibur.directconnect.network.LanDiscovery;
 import net.fabricmc.api.ClientModInitializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +20,11 @@ public class DirectConnectClient implements ClientModInitializer {
 		// Pre-initialize JoinManager
 		JoinManager.getInstance();
 
+		// Listen for LAN hosts so joining them needs no registry lookup
+		if (ModConfig.getInstance().isLanDiscovery()) {
+			LanDiscovery.getInstance().start();
+		}
+
 		LOGGER.info("[DirectConnect] Client ready. Use p2p.share-code to connect.");
 	}
 }
\ No newline at end of file
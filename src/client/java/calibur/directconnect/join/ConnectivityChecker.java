@@ -0,0 +1,494 @@
+package calibur.directconnect.join;
+
+import calibur.directconnect.network.Candidates;
+import calibur.directconnect.network.NetworkUtils;
+import calibur.directconnect.network.ReliableUdp;
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs ICE-style connectivity checks against a host's candidates.
+ *
+ * Local interfaces are paired with the host's candidates, pairs are sorted
+ * by ICE pair priority and started one per pacing interval, and each check
+ * retransmits its HELLO until answered. Once the first check succeeds, the
+ * others get a short window to answer and the pair with the lowest
+ * handshake RTT is chosen rather than simply the first to respond.
+ *
+ * Pairs with the same local address share one socket, so checks cost one
+ * socket per local interface rather than one per pair, and the host sees
+ * every check from the port the session will use. The socket for pairs
+ * that let the routing table pick the interface is opened before the
+ * lookup (see {@link LocalCandidates}), so it is the one the host punches.
+ *
+ * Candidates learned after the checks started (a fresh lookup racing
+ * cached ones) are added with {@link #addCandidates} and checked the same
+ * way.
+ *
+ * IPv6 and IPv4 pairs are interleaved with IPv6 first and IPv6 wins
+ * nomination unless it is clearly slower, following Happy Eyeballs
+ * (RFC 8305): native IPv6 needs no NAT traversal and tends to route more
+ * directly, but a broken IPv6 setup never delays the IPv4 fallback.
+ */
+class ConnectivityChecker {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    // Ta: interval between starting consecutive checks (RFC 8445 section 14.2)
+    private static final long PACING_MS = 50;
+    static final long[] HELLO_RETRY_MS = { 250, 500, 1000, 2000, 4000 }; // After the first HELLO
+
+    // How long other checks may still answer after the first success
+    private static final long MIN_NOMINATION_WINDOW_MS = 30;
+    private static final long MAX_NOMINATION_WINDOW_MS = 250;
+
+    // Happy Eyeballs: how long an IPv4 success waits for pending IPv6 checks
+    // (RFC 8305 Connection Attempt Delay), and how much slower IPv6 may be
+    // and still be preferred
+    private static final long IPV6_WAIT_MS = 250;
+    private static final long IPV6_SLACK_MS = 10;
+
+    /**
+     * The chosen path.
+     */
+    static class Result {
+        final ReliableUdp udp;
+        final Endpoint endpoint;
+        final long rttMs;
+        final List<Endpoint> candidates; // Every host candidate known at nomination
+
+        Result(ReliableUdp udp, Endpoint endpoint, long rttMs, List<Endpoint> candidates) {
+            this.udp = udp;
+            this.endpoint = endpoint;
+            this.rttMs = rttMs;
+            this.candidates = candidates;
+        }
+    }
+
+    /**
+     * A local/remote candidate pair and its check state.
+     */
+    private static class Pair {
+        final InetSocketAddress local;
+        final Endpoint remote;
+        final long priority;
+        ReliableUdp udp;
+        InetSocketAddress answeredFrom; // May be a predicted port, not remote's
+        long lastHelloAt;
+        long rttMs = -1;
+        boolean failed;
+
+        boolean isIpv6() {
+            return NetworkUtils.isIpv6(remote.ip);
+        }
+
+        boolean isRelay() {
+            return Candidates.TYPE_RELAY.equals(remote.type);
+        }
+
+        Pair(InetSocketAddress local, Endpoint remote, long priority) {
+            this.local = local;
+            this.remote = remote;
+            this.priority = priority;
+        }
+
+        InetSocketAddress remoteAddress() {
+            return new InetSocketAddress(remote.ip, remote.port);
+        }
+
+        @Override
+        public String toString() {
+            return (local.getAddress().isAnyLocalAddress() ? "*" : local.getAddress().getHostAddress())
+                    + " -> " + remote;
+        }
+    }
+
+    private final List<Pair> pairs = new ArrayList<>();
+    private final List<Pair> succeeded = new ArrayList<>();
+    private final List<Endpoint> remotes = new ArrayList<>();
+    private final List<String> localIps;
+    private final Map<InetSocketAddress, ReliableUdp> sockets = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final CompletableFuture<Result> result = new CompletableFuture<>();
+    private boolean finished = false;
+    private boolean moreCandidates = false;
+    private boolean directAnswered = false;
+    private volatile BiConsumer<ReliableUdp, InetSocketAddress> onDirectAnswer;
+
+    /**
+     * @param local The joiner's check socket to take over, or null to open
+     *              one when needed
+     */
+    ConnectivityChecker(List<Endpoint> remoteCandidates, ScheduledExecutorService scheduler, LocalCandidates local) {
+        this.scheduler = scheduler;
+        this.localIps = NetworkUtils.getAllLocalIps(true);
+        ReliableUdp socket = local != null ? local.claim() : null;
+        if (socket != null) {
+            socket.setOnHelloAck((sender, rtt) -> onAnswer(socket, sender, rtt));
+            sockets.put(LocalCandidates.WILDCARD, socket);
+        }
+        pairs.addAll(pairsFor(remoteCandidates));
+    }
+
+    /**
+     * Pairs local interfaces with new remote candidates, in check order.
+     */
+    private List<Pair> pairsFor(List<Endpoint> remoteCandidates) {
+        List<Pair> created = new ArrayList<>();
+        int wildcardPriority = Candidates.priority(Candidates.TYPE_LAN, 0);
+
+        for (Endpoint remote : remoteCandidates) {
+            if (remotes.stream().anyMatch(known -> known.ip.equals(remote.ip) && known.port == remote.port)) {
+                continue;
+            }
+            remotes.add(remote);
+
+            boolean ipv6 = NetworkUtils.isIpv6(remote.ip);
+            List<String> sameFamily = localIps.stream().filter(ip -> NetworkUtils.isIpv6(ip) == ipv6).toList();
+
+            if (Candidates.TYPE_LAN.equals(remote.type) && !sameFamily.isEmpty()) {
+                // Host candidates: check from every local interface of the same family
+                int localPref = 65535;
+                for (String ip : sameFamily) {
+                    int localPriority = Candidates.priority(Candidates.TYPE_LAN, localPref);
+                    created.add(new Pair(new InetSocketAddress(ip, 0), remote,
+                            Candidates.pairPriority(localPriority, remote.priority)));
+                    localPref = Math.max(0, localPref - 1000);
+                }
+            } else if (ipv6 && sameFamily.isEmpty()) {
+                LOGGER.debug("[DirectConnect] Skipping {}, no local IPv6 address", remote);
+            } else {
+                // Reflexive/relayed: let the routing table pick the interface
+                created.add(new Pair(LocalCandidates.WILDCARD, remote,
+                        Candidates.pairPriority(wildcardPriority, remote.priority)));
+            }
+        }
+
+        created.sort(Comparator.comparingLong((Pair p) -> p.priority).reversed());
+        return interleaveFamilies(created);
+    }
+
+    /**
+     * Reorders pairs to alternate address families, IPv6 first, keeping
+     * priority order within each family (RFC 8305 section 4).
+     */
+    private static List<Pair> interleaveFamilies(List<Pair> sorted) {
+        List<Pair> ipv6 = new ArrayList<>();
+        List<Pair> ipv4 = new ArrayList<>();
+        for (Pair pair : sorted) {
+            (pair.isIpv6() ? ipv6 : ipv4).add(pair);
+        }
+
+        List<Pair> interleaved = new ArrayList<>();
+        for (int i = 0; i < Math.max(ipv6.size(), ipv4.size()); i++) {
+            if (i < ipv6.size())
+                interleaved.add(ipv6.get(i));
+            if (i < ipv4.size())
+                interleaved.add(ipv4.get(i));
+        }
+        return interleaved;
+    }
+
+    /**
+     * Keeps the checks going even if every pair fails, until
+     * {@link #endOfCandidates} is called. Must be called before {@link #run}.
+     */
+    synchronized void expectMoreCandidates() {
+        moreCandidates = true;
+    }
+
+    /**
+     * Called once, before nomination, with the socket and host address of
+     * the first direct pair to answer, so work that needs a path to the
+     * host can overlap the nomination window. Must be set before
+     * {@link #run}.
+     */
+    void setOnDirectAnswer(BiConsumer<ReliableUdp, InetSocketAddress> handler) {
+        this.onDirectAnswer = handler;
+    }
+
+    /**
+     * Adds candidates learned after the checks started. Ones already known
+     * are ignored; the rest are paired and checked in priority order.
+     */
+    void addCandidates(List<Endpoint> remoteCandidates) {
+        List<Pair> added;
+        synchronized (this) {
+            if (finished)
+                return;
+            added = pairsFor(remoteCandidates);
+            pairs.addAll(added);
+        }
+        if (added.isEmpty())
+            return;
+
+        LOGGER.info("[DirectConnect] Checking {} more candidate pairs", added.size());
+        for (int i = 0; i < added.size(); i++) {
+            Pair pair = added.get(i);
+            scheduler.schedule(() -> startCheck(pair), i * PACING_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Signals that no more candidates will be added.
+     */
+    void endOfCandidates() {
+        synchronized (this) {
+            moreCandidates = false;
+            if (finished || !pairs.stream().allMatch(p -> p.failed))
+                return;
+            finished = true;
+            stopAll(null);
+        }
+        result.completeExceptionally(new IOException("Connection failed"));
+    }
+
+    /**
+     * Abandons the checks if no pair has answered yet.
+     *
+     * @return true if the checks were abandoned
+     */
+    synchronized boolean cancelIfUnanswered() {
+        if (finished || !succeeded.isEmpty())
+            return false;
+        finished = true;
+        stopAll(null);
+        return true;
+    }
+
+    /**
+     * Starts the checks.
+     *
+     * @param timeoutMs Overall deadline for finding a working pair
+     * @return Future with the chosen path
+     */
+    CompletableFuture<Result> run(long timeoutMs) {
+        LOGGER.info("[DirectConnect] Checking {} candidate pairs", pairs.size());
+
+        for (int i = 0; i < pairs.size(); i++) {
+            Pair pair = pairs.get(i);
+            scheduler.schedule(() -> startCheck(pair), i * PACING_MS, TimeUnit.MILLISECONDS);
+        }
+
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                if (finished)
+                    return;
+                if (!succeeded.isEmpty()) {
+                    nominate();
+                    return;
+                }
+                finished = true;
+                stopAll(null);
+            }
+            result.completeExceptionally(new IOException("Connection timeout"));
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        return result;
+    }
+
+    /**
+     * Abandons all checks.
+     */
+    synchronized void cancel() {
+        finished = true;
+        stopAll(null);
+    }
+
+    private void startCheck(Pair pair) {
+        ReliableUdp udp;
+        synchronized (this) {
+            if (finished)
+                return;
+            udp = sockets.get(pair.local);
+            if (udp == null) {
+                udp = new ReliableUdp();
+                ReliableUdp socket = udp;
+                socket.setOnHelloAck((sender, rtt) -> onAnswer(socket, sender, rtt));
+                if (!socket.openForChecks(pair.local)) {
+                    udp = null;
+                } else {
+                    sockets.put(pair.local, socket);
+                }
+            }
+            pair.udp = udp;
+            pair.lastHelloAt = System.nanoTime();
+        }
+        if (udp == null) {
+            onFailure(pair);
+            return;
+        }
+
+        LOGGER.debug("[DirectConnect] Checking pair {}", pair);
+        List<InetSocketAddress> targets = helloTargets(pair);
+        if (targets.size() > 1) {
+            LOGGER.info("[DirectConnect] Host behind hard NAT ({}), spraying {} ports",
+                    pair.remote.nat, targets.size() - 1);
+        }
+        udp.sprayHello(targets);
+
+        for (long delay : HELLO_RETRY_MS) {
+            scheduler.schedule(() -> retryHello(pair), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void retryHello(Pair pair) {
+        synchronized (this) {
+            if (finished || pair.failed || pair.rttMs >= 0)
+                return;
+            pair.lastHelloAt = System.nanoTime();
+        }
+        pair.udp.sprayHello(helloTargets(pair));
+    }
+
+    /**
+     * The pair's remote address, then the ports a host behind a hard NAT
+     * is predicted to use. Retries spray them again: the host only maps its
+     * port towards us once the punch request reached it, which may be after
+     * the first attempt.
+     */
+    private static List<InetSocketAddress> helloTargets(Pair pair) {
+        List<InetSocketAddress> targets = new ArrayList<>();
+        targets.add(pair.remoteAddress());
+        if (pair.remote.nat != null && pair.remote.nat.isHard()) {
+            for (int port : pair.remote.nat.predictPorts(pair.remote.port)) {
+                if (port != pair.remote.port) {
+                    targets.add(new InetSocketAddress(pair.remote.ip, port));
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Matches an answer on a shared socket to its pair: the one checking that
+     * address, else one spraying predicted ports of that host.
+     */
+    private void onAnswer(ReliableUdp udp, InetSocketAddress sender, long rttNanos) {
+        Pair match = null;
+        synchronized (this) {
+            for (Pair pair : pairs) {
+                if (pair.udp != udp || pair.rttMs >= 0 || pair.failed) {
+                    continue;
+                }
+                if (pair.remoteAddress().equals(sender)) {
+                    match = pair;
+                    break;
+                }
+                if (match == null && pair.remote.nat != null && pair.remote.nat.isHard()
+                        && pair.remoteAddress().getAddress().equals(sender.getAddress())) {
+                    match = pair;
+                }
+            }
+            if (match == null) {
+                return;
+            }
+            match.answeredFrom = sender;
+        }
+        onSuccess(match, rttNanos);
+    }
+
+    private void onSuccess(Pair pair, long rttNanos) {
+        boolean firstDirect;
+        synchronized (this) {
+            if (finished)
+                return; // Already stopped by stopAll
+            firstDirect = !pair.isRelay() && !directAnswered;
+            directAnswered |= firstDirect;
+
+            // Hosts echo the HELLO's timestamp; older ones do not, so fall
+            // back to the time since the last HELLO sent
+            pair.rttMs = rttNanos >= 0 ? rttNanos / 1_000_000
+                    : Math.max(0, (System.nanoTime() - pair.lastHelloAt) / 1_000_000);
+            succeeded.add(pair);
+            LOGGER.info("[DirectConnect] Pair {} succeeded, rtt={}ms", pair, pair.rttMs);
+
+            if (succeeded.size() == 1) {
+                long window = Math.max(MIN_NOMINATION_WINDOW_MS, Math.min(MAX_NOMINATION_WINDOW_MS, 2 * pair.rttMs));
+                if (!pair.isIpv6() && pairs.stream().anyMatch(p -> p.isIpv6() && !p.failed)) {
+                    window = Math.max(window, IPV6_WAIT_MS);
+                }
+                scheduler.schedule(() -> {
+                    synchronized (this) {
+                        if (!finished) {
+                            nominate();
+                        }
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        BiConsumer<ReliableUdp, InetSocketAddress> handler = onDirectAnswer;
+        if (firstDirect && handler != null) {
+            handler.accept(pair.udp, pair.answeredFrom);
+        }
+    }
+
+    private void onFailure(Pair pair) {
+        boolean allFailed;
+        synchronized (this) {
+            pair.failed = true;
+            if (finished)
+                return;
+            allFailed = !moreCandidates && pairs.stream().allMatch(p -> p.failed);
+            if (allFailed) {
+                finished = true;
+                stopAll(null);
+            }
+        }
+        if (allFailed) {
+            result.completeExceptionally(new IOException("Connection failed"));
+        }
+    }
+
+    /**
+     * Picks the lowest-RTT successful pair, preferring direct paths over
+     * relays and IPv6 unless it is clearly slower, and stops the rest. Must
+     * hold the lock.
+     */
+    private void nominate() {
+        finished = true;
+        // A relay only carries the session when nothing direct works
+        boolean direct = succeeded.stream().anyMatch(p -> !p.isRelay());
+        List<Pair> eligible = succeeded.stream().filter(p -> !direct || !p.isRelay()).toList();
+
+        Comparator<Pair> byRtt = Comparator.comparingLong((Pair p) -> p.rttMs);
+        Pair best6 = eligible.stream().filter(Pair::isIpv6).min(byRtt).orElse(null);
+        Pair best4 = eligible.stream().filter(p -> !p.isIpv6()).min(byRtt).orElse(null);
+
+        Pair best;
+        if (best6 == null) {
+            best = best4;
+        } else if (best4 == null) {
+            best = best6;
+        } else {
+            best = best6.rttMs <= best4.rttMs * 5 / 4 + IPV6_SLACK_MS ? best6 : best4;
+        }
+        best.udp.select(best.answeredFrom);
+        stopAll(best);
+
+        LOGGER.info("[DirectConnect] Selected pair {} (rtt={}ms, {} of {} pairs succeeded)",
+                best, best.rttMs, succeeded.size(), pairs.size());
+        result.complete(new Result(best.udp, best.remote, best.rttMs, List.copyOf(remotes)));
+    }
+
+    private void stopAll(Pair keep) {
+        for (ReliableUdp udp : sockets.values()) {
+            if (keep == null || udp != keep.udp) {
+                udp.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package calibur.directconnect.join;
+
+import calibur.directconnect.network.Candidates;
+import calibur.directconnect.network.NatBehavior;
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import calibur.directconnect.network.RegistryClient.Lookup;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import net.fabricmc.loader.api.FabricLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the candidates of hosts joined before, keyed by share code, so
+ * a rejoin can start checks without waiting for the registry.
+ *
+ * Found hosts are kept for the configured TTL and saved to disk, so they
+ * survive game restarts. Codes the registry did not know are remembered
+ * briefly (not on disk), so retrying a mistyped code fails at once.
+ */
+class HostCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+    private static final Gson GSON = new Gson();
+
+    private static final String CACHE_FILE = "directconnect-hosts.json";
+    static final long NOT_FOUND_TTL_MS = 10_000; // A host may just be starting up
+    static final int MAX_ENTRIES = 64;
+
+    private record Entry(List<Endpoint> endpoints, long expiresAt) {
+        boolean isNotFound() {
+            return endpoints.isEmpty();
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final long ttlMs;
+    private final Path path;
+    private boolean loaded = false;
+
+    /**
+     * @param ttlMs How long found hosts are kept, 0 to disable the cache
+     */
+    HostCache(long ttlMs) {
+        this(ttlMs, FabricLoader.getInstance().getConfigDir().resolve(CACHE_FILE));
+    }
+
+    /**
+     * @param path File the found hosts are saved to
+     */
+    HostCache(long ttlMs, Path path) {
+        this.ttlMs = ttlMs;
+        this.path = path;
+    }
+
+    /**
+     * Cached candidates for a share code.
+     *
+     * @return The candidates, an empty list if the code was recently not
+     *         found, or null if nothing is known
+     */
+    List<Endpoint> get(String code) {
+        return get(code, System.currentTimeMillis());
+    }
+
+    synchronized List<Endpoint> get(String code, long now) {
+        if (ttlMs <= 0) {
+            return null;
+        }
+        load(now);
+        String key = code.toLowerCase();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= now) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.endpoints;
+    }
+
+    /**
+     * Records the outcome of a lookup: the host's current candidates, or
+     * that the registry does not know the code. Failed lookups are ignored.
+     */
+    void put(String code, Lookup lookup) {
+        update(Map.of(code, lookup));
+    }
+
+    /**
+     * Records the outcomes of several lookups, saving once.
+     */
+    void update(Map<String, Lookup> lookups) {
+        update(lookups, System.currentTimeMillis());
+    }
+
+    void update(Map<String, Lookup> lookups, long now) {
+        if (ttlMs <= 0) {
+            return;
+        }
+        boolean changed = false;
+        synchronized (this) {
+            load(now);
+            for (Map.Entry<String, Lookup> e : lookups.entrySet()) {
+                String key = e.getKey().toLowerCase();
+                Lookup lookup = e.getValue();
+                if (lookup.notFound()) {
+                    // Drops anything cached for the code
+                    Entry old = entries.put(key, new Entry(List.of(), now + NOT_FOUND_TTL_MS));
+                    changed |= old != null && !old.isNotFound();
+                } else if (!lookup.endpoints().isEmpty()) {
+                    entries.remove(key); // Re-insert as the newest
+                    entries.put(key, new Entry(List.copyOf(lookup.endpoints()), now + ttlMs));
+                    changed = true;
+                }
+            }
+            while (entries.size() > MAX_ENTRIES) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    // --- Persistence ---
+
+    private void load(long now) {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            JsonObject root = GSON.fromJson(Files.readString(path), JsonObject.class);
+            List<Map.Entry<String, Entry>> found = new ArrayList<>();
+            for (String code : root.keySet()) {
+                JsonObject obj = root.getAsJsonObject(code);
+                long expiresAt = obj.get("expires_at").getAsLong();
+                if (expiresAt > now) {
+                    List<Endpoint> endpoints = Candidates.fromJson(obj.getAsJsonArray("candidates"),
+                            NatBehavior.readFrom(obj, ""));
+                    found.add(Map.entry(code, new Entry(endpoints, expiresAt)));
+                }
+            }
+            // Oldest first, so eviction order survives the restart
+            found.sort(Comparator.comparingLong(e -> e.getValue().expiresAt));
+            found.forEach(e -> entries.put(e.getKey(), e.getValue()));
+            LOGGER.debug("[DirectConnect] Loaded {} cached hosts", entries.size());
+        } catch (Exception e) {
+            LOGGER.warn("[DirectConnect] Failed to load host cache: {}", e.getMessage());
+        }
+    }
+
+    private synchronized void save() {
+        JsonObject root = new JsonObject();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.isNotFound()) {
+                continue;
+            }
+            JsonObject obj = new JsonObject();
+            obj.addProperty("expires_at", entry.expiresAt);
+            obj.add("candidates", Candidates.toJson(entry.endpoints));
+            entry.endpoints.stream()
+                    .filter(ep -> ep.nat != null)
+                    .findFirst()
+                    .ifPresent(ep -> ep.nat.writeTo(obj, ""));
+            root.add(e.getKey(), obj);
+        }
+
+        try {
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, GSON.toJson(root));
+        } catch (IOException e) {
+            LOGGER.warn("[DirectConnect] Failed to save host cache: {}", e.getMessage());
+        }
+    }
+}
@@ -2,9 +2,15 @@ package calibur.directconnect.join;
 
 import calibur.directconnect.config.ModConfig;
 import calibur.directconnect.network.ReliableUdp;
+import calibur.directconnect.network.Candidates;
+import calibur.directconnect.network.LanDiscovery;
 import calibur.directconnect.network.NetworkUtils;
+import calibur.directconnect.network.PathProber;
 import calibur.directconnect.network.RegistryClient;
 import calibur.directconnect.network.RegistryClient.Endpoint;
+import calibur.directconnect.network.RegistryClient.Lookup;
+import calibur.directconnect.network.SessionStats;
+import calibur.directconnect.network.TcpPunch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,12 +20,20 @@ import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
@@ -29,14 +43,39 @@ import java.util.function.Consumer;
 public class JoinManager {
     private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
 
+    private static final long LAN_LOOKUP_TIMEOUT_MS = 150;
+    private static final int LAN_FAST_PATH_TIMEOUT_MS = 250;
+    private static final long TCP_PUNCH_TIMEOUT_MS = 1500;
+    // How long a punch still going at nomination may take: its handshake
+    // echo needs about one round trip, later than that it is no faster
+    private static final long TCP_GRACE_MAX_MS = 100;
+    private static final int TCP_OFFER_REPEATS = 3;
+    private static final long EMBEDDED_GRACE_MS = 500;
+
     private static JoinManager instance;
 
     private final ModConfig config;
     private final RegistryClient registry;
     private final ExecutorService executor;
 
+    private final ScheduledExecutorService scheduler;
+
     private ReliableUdp udp;
-    private ServerSocket proxyServer;
+    private volatile ConnectivityChecker checker;
+    private volatile PathProber pathProber;
+    private volatile InetSocketAddress lanFastPath;
+    private volatile Socket directTcp; // Punched TCP connection carrying the game, if any
+    private volatile TcpAttempt tcpAttempt; // Punch running next to the checks, if any
+    private final JoinTimings timings = new JoinTimings();
+    private volatile long joinStartedAt;
+    private volatile long lookupDoneAt;
+    private volatile boolean joinWarm; // Whether the current join reuses a warm tunnel
+    private final JoinTimings warmTimings = new JoinTimings();
+    private final HostCache hostCache;
+    private final StatusTunnels statusTunnels;
+    // The server list's batch lookup, which status pings wait for
+    private volatile CompletableFuture<?> hostRefresh = CompletableFuture.completedFuture(null);
+    private volatile ServerSocket proxyServer;
     private Socket minecraftConnection;
 
     private final AtomicBoolean connecting = new AtomicBoolean(false);
@@ -45,15 +84,23 @@ public class JoinManager {
     private Consumer<String> onStatusChange;
     private Consumer<Integer> onProxyReady;
     private Consumer<String> onError;
+    private BiConsumer<InetSocketAddress, InetSocketAddress> onMigrate;
 
     private JoinManager() {
         this.config = ModConfig.getInstance();
         this.registry = new RegistryClient();
+        this.hostCache = new HostCache(config.getLookupCacheTtl() * 1000L);
         this.executor = Executors.newCachedThreadPool(r -> {
             Thread t = new Thread(r, "DirectConnect-Join");
             t.setDaemon(true);
             return t;
         });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DirectConnect-Checks");
+            t.setDaemon(true);
+            return t;
+        });
+        this.statusTunnels = new StatusTunnels(executor, scheduler);
     }
 
     public static synchronized JoinManager getInstance() {
@@ -76,6 +123,8 @@ public class JoinManager {
         }
 
         connecting.set(true);
+        lanFastPath = null;
+        joinStartedAt = System.nanoTime();
         updateStatus("Looking up host...");
 
         CompletableFuture<Integer> result = new CompletableFuture<>();
@@ -89,36 +138,46 @@ public class JoinManager {
         }
 
         LOGGER.info("[DirectConnect] Joining: {}", shareCode);
+        List<Endpoint> embedded = NetworkUtils.parseShareEndpoints(p2pAddress);
 
         // 2. Start local proxy server
         try {
-            proxyServer = new ServerSocket(0); // Random available port
-            int proxyPort = proxyServer.getLocalPort();
+            ServerSocket proxy = new ServerSocket(0); // Random available port
+            proxyServer = proxy;
+            int proxyPort = proxy.getLocalPort();
             LOGGER.info("[DirectConnect] Local proxy started on port {}", proxyPort);
 
             // Start accepting connections in background
-            executor.submit(() -> acceptMinecraftConnection(result));
-
-            // 3. Lookup endpoints from registry
-            registry.lookup(shareCode, proxyPort)
-                    .thenAccept(endpoints -> {
-                        if (endpoints.isEmpty()) {
-                            updateStatus("Host not found");
-                            triggerError("Host not found: " + shareCode);
-                            cleanup();
-                            result.completeExceptionally(new IOException("Host not found"));
-                        } else {
-                            updateStatus("Connecting to host...");
-                            raceEndpoints(endpoints, result);
-                        }
-                    })
-                    .exceptionally(e -> {
-                        updateStatus("Lookup failed");
-                        triggerError("Registry lookup failed: " + e.getMessage());
-                        cleanup();
-                        result.completeExceptionally(e);
-                        return null;
-                    });
+            executor.submit(() -> acceptMinecraftConnection(proxy, result));
+
+            // 3. Reuse the socket of a recent status ping or speculative
+            // connection, whose NAT mappings are still open, or find the host
+            // from scratch
+            CompletableFuture<ConnectivityChecker.Result> warm = statusTunnels.claim(shareCode);
+            joinWarm = warm != null;
+            CompletableFuture<ConnectivityChecker.Result> path;
+            if (warm != null) {
+                LOGGER.info("[DirectConnect] Reusing warm tunnel to p2p.{}", shareCode);
+                lookupDoneAt = System.nanoTime();
+                updateStatus("Connecting to host...");
+                path = warm.thenCompose(idle -> {
+                    startTcpPunch(idle.udp, idle.udp.getRemoteAddress());
+                    return statusTunnels.reopen(idle);
+                }).exceptionallyCompose(e -> {
+                    joinWarm = false; // Found from scratch after all
+                    return findHost(shareCode, embedded, false, this::onChecksStarted);
+                });
+            } else {
+                path = findHost(shareCode, embedded, false, this::onChecksStarted);
+            }
+            path.whenComplete((winner, error) -> {
+                checker = null;
+                if (error != null) {
+                    joinFailed(shareCode, error, result);
+                } else {
+                    onHostFound(winner, result);
+                }
+            });
 
         } catch (IOException e) {
             LOGGER.error("[DirectConnect] Failed to start proxy: {}", e.getMessage());
@@ -130,76 +189,586 @@ public class JoinManager {
     }
 
     /**
-     * Races multiple endpoints to find the fastest path.
+     * Finds a path to a host: endpoints carried by the share code or cached
+     * from an earlier join are raced while the host is looked up again, so
+     * those joins skip the lookup round trip; otherwise the lookup comes
+     * first.
+     *
+     * The socket checks run from is opened and mapped up front, and its
+     * candidates and our NAT behavior are sent with the lookup, so the host
+     * punches towards the socket that will carry the session.
+     *
+     * In the background (server list pings and prewarming) the lookup, and
+     * with it the punch request, is only sent if known endpoints do not
+     * answer soon: the server list refresh already looked every entry up in
+     * one batch.
+     *
+     * @param embedded   Endpoints carried by an extended share code, if any
+     * @param background Whether nobody is waiting on a join
+     * @param onChecks   Called with the checker once checks start
+     * @return Future with the winning path, failed with
+     *         {@link HostNotFoundException} if the registry does not know the
+     *         code
      */
-    private void raceEndpoints(List<Endpoint> endpoints, CompletableFuture<Integer> result) {
-        LOGGER.info("[DirectConnect] Racing {} endpoints", endpoints.size());
+    private CompletableFuture<ConnectivityChecker.Result> findHost(String shareCode, List<Endpoint> embedded,
+            boolean background, Consumer<ConnectivityChecker> onChecks) {
+        CompletableFuture<ConnectivityChecker.Result> found = new CompletableFuture<>();
+        LocalCandidates.classifyNat(executor);
+        LocalCandidates local = LocalCandidates.open();
+        List<Endpoint> cached = embedded.isEmpty() ? hostCache.get(shareCode) : null;
+        if (cached != null && cached.isEmpty()) {
+            local.close();
+            found.completeExceptionally(new HostNotFoundException(shareCode));
+        } else if (!embedded.isEmpty() || (cached != null && background)) {
+            List<Endpoint> known = embedded.isEmpty() ? cached : embedded;
+            LOGGER.info("[DirectConnect] Using {} endpoints from the {} for p2p.{}", known.size(),
+                    embedded.isEmpty() ? "cache" : "share code", shareCode);
+            ConnectivityChecker checker = raceEndpoints(known, true, local, onChecks, found);
+            // Only go to the registry, which also asks the host to punch
+            // towards us, if the known endpoints do not answer soon
+            scheduler.schedule(() -> {
+                if (found.isDone()) {
+                    checker.endOfCandidates();
+                    return;
+                }
+                lookupHost(shareCode, local).whenComplete((lookup, e) -> {
+                    if (lookup != null) {
+                        checker.addCandidates(lookup.endpoints());
+                    }
+                    checker.endOfCandidates();
+                });
+            }, EMBEDDED_GRACE_MS, TimeUnit.MILLISECONDS);
+        } else if (cached != null) {
+            LOGGER.info("[DirectConnect] Using {} cached endpoints for p2p.{}", cached.size(), shareCode);
+            ConnectivityChecker checker = raceEndpoints(cached, true, local, onChecks, found);
+            // The lookup also asks the host to punch towards us
+            lookupHost(shareCode, local).whenComplete((lookup, e) -> {
+                if (lookup != null && lookup.notFound() && checker.cancelIfUnanswered()) {
+                    found.completeExceptionally(new HostNotFoundException(shareCode));
+                    return;
+                }
+                if (lookup != null) {
+                    checker.addCandidates(lookup.endpoints());
+                }
+                checker.endOfCandidates();
+            });
+        } else {
+            // Otherwise look it up on the LAN, then from the registry
+            lookupHost(shareCode, local).whenComplete((lookup, e) -> {
+                if (e != null) {
+                    local.close();
+                    found.completeExceptionally(e);
+                } else if (lookup.endpoints().isEmpty()) {
+                    local.close();
+                    found.completeExceptionally(new HostNotFoundException(shareCode));
+                } else {
+                    raceEndpoints(lookup.endpoints(), false, local, onChecks, found);
+                }
+            });
+        }
+        return found;
+    }
 
-        AtomicBoolean found = new AtomicBoolean(false);
-        AtomicInteger pendingAttempts = new AtomicInteger(endpoints.size());
+    private void onChecksStarted(ConnectivityChecker checker) {
+        this.checker = checker;
+        checker.setOnDirectAnswer(this::startTcpPunch);
+        lookupDoneAt = System.nanoTime();
+        updateStatus("Connecting to host...");
+    }
 
-        // Try all endpoints simultaneously
-        for (Endpoint endpoint : endpoints) {
-            executor.submit(() -> {
-                LOGGER.debug("[DirectConnect] Trying endpoint: {}", endpoint);
+    /**
+     * Finds a host's endpoints: from LAN announcements when the host is on
+     * the same network, otherwise from the registry. Both are asked at
+     * once, so a host elsewhere is not held up by the LAN query; a LAN
+     * answer wins if it comes first. The answer is cached for later
+     * rejoins.
+     */
+    private CompletableFuture<Lookup> lookupHost(String shareCode, LocalCandidates local) {
+        CompletableFuture<Lookup> lookup;
+        if (!config.isLanDiscovery()) {
+            lookup = resolve(shareCode, local);
+        } else {
+            CompletableFuture<List<Endpoint>> lan = LanDiscovery.getInstance().lookup(shareCode,
+                    LAN_LOOKUP_TIMEOUT_MS);
+            CompletableFuture<Lookup> remote = resolve(shareCode, local);
+            CompletableFuture<Lookup> first = new CompletableFuture<>();
+            lan.thenAccept(found -> {
+                if (!found.isEmpty() && first.complete(new Lookup(found, false))) {
+                    LOGGER.info("[DirectConnect] Found p2p.{} on the LAN", shareCode);
+                }
+            });
+            remote.whenComplete((found, e) -> {
+                if (e == null && !found.endpoints().isEmpty()) {
+                    first.complete(found);
+                    return;
+                }
+                // Not known to the registry, or unreachable: up to the LAN
+                lan.thenAccept(onLan -> {
+                    if (onLan.isEmpty()) {
+                        if (e != null) {
+                            first.completeExceptionally(e);
+                        } else {
+                            first.complete(found);
+                        }
+                    }
+                });
+            });
+            lookup = first;
+        }
+        return lookup.thenApply(found -> {
+            hostCache.put(shareCode, found);
+            return found;
+        });
+    }
+
+    /**
+     * Asks the registry once the check socket is mapped, so the host is told
+     * our public port rather than the one behind the NAT.
+     */
+    private CompletableFuture<Lookup> resolve(String shareCode, LocalCandidates local) {
+        return local.gathered().thenCompose(gathered ->
+                registry.resolve(shareCode, gathered.publicPort(), LocalCandidates.nat(), gathered.candidates()));
+    }
+
+    /**
+     * Looks up many hosts at once when the server list is shown, and
+     * caches what is found so pinging or joining any of them skips the
+     * lookup.
+     *
+     * @param p2pAddresses p2p. addresses; invalid ones are skipped
+     * @return Future with a lookup per share code, never failed
+     */
+    public CompletableFuture<Map<String, Lookup>> refreshHosts(Collection<String> p2pAddresses) {
+        List<String> codes = p2pAddresses.stream()
+                .map(NetworkUtils::parseShareCode)
+                .filter(code -> code != null)
+                .toList();
+        if (codes.isEmpty()) {
+            return CompletableFuture.completedFuture(Map.of());
+        }
+        CompletableFuture<Map<String, Lookup>> refresh = registry.lookupBatch(codes).thenApply(lookups -> {
+            hostCache.update(lookups);
+            return lookups;
+        });
+        hostRefresh = refresh;
+        return refresh;
+    }
+
+    /**
+     * Opens a short tunnel to a host for a server list status ping. It runs
+     * next to any join, and a join of the same host right after reuses its
+     * socket.
+     *
+     * @param p2pAddress The p2p. address of the server list entry
+     * @return Future with the loopback address to ping instead
+     */
+    public CompletableFuture<InetSocketAddress> openStatusTunnel(String p2pAddress) {
+        String shareCode = NetworkUtils.parseShareCode(p2pAddress);
+        if (shareCode == null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Invalid P2P address: " + p2pAddress));
+        }
+        List<Endpoint> embedded = NetworkUtils.parseShareEndpoints(p2pAddress);
+        // Wait for the server list's batch lookup rather than looking the
+        // entry up on its own
+        return hostRefresh.handle((lookups, e) -> null)
+                .thenCompose(v -> statusTunnels.open(shareCode, () -> findHost(shareCode, embedded, true, checker -> {
+                })));
+    }
 
-                ReliableUdp testUdp = new ReliableUdp();
+    /**
+     * Connects to a host ahead of a likely join, e.g. when its server list
+     * entry is selected, and keeps the socket warm for a while. A join of
+     * the host then only needs a handshake on it.
+     *
+     * @param p2pAddress The p2p. address of the host
+     */
+    public void preconnect(String p2pAddress) {
+        String shareCode = NetworkUtils.parseShareCode(p2pAddress);
+        if (shareCode == null || !config.isSpeculativeConnect() || connecting.get() || connected.get()) {
+            return;
+        }
+        List<Endpoint> embedded = NetworkUtils.parseShareEndpoints(p2pAddress);
+        statusTunnels.prewarm(shareCode, () -> findHost(shareCode, embedded, true, checker -> {
+        }));
+    }
 
-                testUdp.setOnConnect(sender -> {
-                    if (found.compareAndSet(false, true)) {
-                        LOGGER.info("[DirectConnect] Connected via {}", endpoint);
+    private void joinFailed(String shareCode, Throwable error, CompletableFuture<Integer> result) {
+        if (!connecting.get()) {
+            return; // Cancelled
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+        if (cause instanceof HostNotFoundException) {
+            updateStatus("Host not found");
+            triggerError("Host not found: " + shareCode);
+        } else if (cause instanceof IOException) {
+            LOGGER.warn("[DirectConnect] Connection failed: {}", cause.getMessage());
+            updateStatus("Connection timeout");
+            triggerError("Connection timed out - host may have strict NAT");
+        } else {
+            updateStatus("Lookup failed");
+            triggerError("Registry lookup failed: " + cause.getMessage());
+        }
+        cleanup();
+        result.completeExceptionally(cause);
+    }
 
-                        // Use this UDP connection
-                        udp = testUdp;
-                        connected.set(true);
-                        connecting.set(false);
-                        updateStatus("Connected!");
+    /**
+     * Runs prioritized connectivity checks and keeps the best path.
+     *
+     * @param moreCandidates Whether more endpoints will be added to the
+     *                       returned checker (cached ones are being raced)
+     * @param local          The check socket the lookup announced
+     */
+    private ConnectivityChecker raceEndpoints(List<Endpoint> endpoints, boolean moreCandidates,
+            LocalCandidates local, Consumer<ConnectivityChecker> onChecks,
+            CompletableFuture<ConnectivityChecker.Result> found) {
+        LOGGER.info("[DirectConnect] Racing {} endpoints", endpoints.size());
 
-                        // Setup data handler
-                        setupDataHandler();
+        ConnectivityChecker checker = new ConnectivityChecker(endpoints, scheduler, local);
+        if (moreCandidates) {
+            checker.expectMoreCandidates();
+        }
+        onChecks.accept(checker);
 
-                        // Complete the future with proxy port - this signals mixin to redirect
-                        if (!result.isDone()) {
-                            result.complete(proxyServer.getLocalPort());
-                        }
+        checker.run(config.getConnectionTimeout()).whenComplete((winner, error) -> {
+            if (error != null) {
+                found.completeExceptionally(error);
+            } else if (!found.complete(winner)) {
+                winner.udp.stop(); // The host turned out to be gone
+            }
+        });
+        return checker;
+    }
 
-                        // Also trigger callback if set (for backwards compatibility)
-                        if (onProxyReady != null) {
-                            onProxyReady.accept(proxyServer.getLocalPort());
-                        }
-                    } else {
-                        // Another endpoint won, close this one
-                        testUdp.stop();
-                    }
-                });
+    /**
+     * Picks how to carry the game once a path to the host is up.
+     */
+    private void onHostFound(ConnectivityChecker.Result winner, CompletableFuture<Integer> result) {
+        if (!connecting.get()) {
+            winner.udp.stop();
+            return;
+        }
+
+        LOGGER.info("[DirectConnect] Connected via {} (rtt={}ms)", winner.endpoint, winner.rttMs);
 
-                if (!testUdp.connect(endpoint.ip, endpoint.port)) {
-                    int remaining = pendingAttempts.decrementAndGet();
-                    if (remaining == 0 && !found.get()) {
-                        triggerError("Failed to connect to any endpoint");
-                        cleanup();
-                        result.completeExceptionally(new IOException("Connection failed"));
+        InetSocketAddress direct = findLanFastPath(winner);
+        if (direct != null) {
+            useLanFastPath(winner.udp, direct, result);
+            return;
+        }
+
+        TcpAttempt tcp = tcpAttempt;
+        tcpAttempt = null;
+        if (tcp != null && (tcp.udp != winner.udp || !tcp.host.equals(winner.udp.getRemoteAddress())
+                || Candidates.TYPE_RELAY.equals(winner.endpoint.type))) {
+            tcp.abandon(); // Punched along a path that was not nominated
+            tcp = null;
+        }
+        if (tcp != null) {
+            updateStatus("Trying TCP...");
+            settleTcp(tcp, winner).whenComplete((socket, e) -> {
+                if (!connecting.get()) {
+                    if (socket != null) {
+                        TcpPunch.closeQuietly(socket);
                     }
+                    winner.udp.stop();
+                    return;
+                }
+                if (socket != null) {
+                    directTcp = socket;
+                    winner.udp.stop(); // The host has already moved the bridge
+                    proxyReady(result, "Connected (TCP)");
+                } else {
+                    useTunnel(winner, winner.candidates, result);
                 }
             });
+            return;
         }
 
-        // Timeout after configured duration
-        executor.submit(() -> {
-            try {
-                Thread.sleep(config.getConnectionTimeout());
-                if (!found.get() && connecting.get()) {
-                    LOGGER.warn("[DirectConnect] Connection timeout");
-                    updateStatus("Connection timeout");
-                    triggerError("Connection timed out - host may have strict NAT");
-                    cleanup();
-                    if (!result.isDone()) {
-                        result.completeExceptionally(new IOException("Connection timeout"));
+        useTunnel(winner, winner.candidates, result);
+    }
+
+    /**
+     * Carries the game over the winning UDP tunnel.
+     */
+    private void useTunnel(ConnectivityChecker.Result winner, List<Endpoint> endpoints,
+            CompletableFuture<Integer> result) {
+        // Use this UDP connection
+        udp = winner.udp;
+
+        // Setup data handler
+        setupDataHandler();
+        startPathProbing(endpoints, winner.udp);
+        proxyReady(result, "Connected!");
+    }
+
+    private void proxyReady(CompletableFuture<Integer> result, String status) {
+        connected.set(true);
+        connecting.set(false);
+        updateStatus(status);
+        recordJoinTime();
+
+        // Complete the future with proxy port - this signals mixin to redirect
+        if (!result.isDone()) {
+            result.complete(proxyServer.getLocalPort());
+        }
+
+        // Also trigger callback if set (for backwards compatibility)
+        if (onProxyReady != null) {
+            onProxyReady.accept(proxyServer.getLocalPort());
+        }
+    }
+
+    /**
+     * A punched TCP connection being set up next to the UDP checks.
+     */
+    private record TcpAttempt(ReliableUdp udp, InetSocketAddress host, CompletableFuture<Punched> punched) {
+        /**
+         * Closes the connection if it comes through after all.
+         */
+        void abandon() {
+            punched.thenAccept(p -> {
+                if (p != null) {
+                    TcpPunch.closeQuietly(p.socket);
+                }
+            });
+        }
+    }
+
+    private record Punched(Socket socket, long rttMs) {
+    }
+
+    /**
+     * Offers the host a punched TCP connection as soon as a check reached
+     * it, so the punch and its handshake overlap the rest of the checks.
+     * Only the first direct answer of a join starts one.
+     *
+     * @param udp  The socket that reached the host; TCP punches from its port
+     * @param host The host address that answered
+     */
+    private void startTcpPunch(ReliableUdp udp, InetSocketAddress host) {
+        if (!config.isTcpPunch() || host == null || !udp.peerSupports(host, ReliableUdp.FEATURE_TCP_PUNCH)) {
+            return;
+        }
+        byte[] nonce = TcpPunch.newNonce();
+        byte[] offer = TcpPunch.offer(nonce);
+        for (int i = 0; i < TCP_OFFER_REPEATS; i++) {
+            udp.schedule(() -> udp.sendControl(host, offer), (long) i * 100);
+        }
+
+        CompletableFuture<Punched> punched = TcpPunch.open(udp.getLocalPort(), host, TCP_PUNCH_TIMEOUT_MS, executor)
+                .thenApply(socket -> {
+                    if (socket == null) {
+                        return null;
+                    }
+                    try {
+                        return new Punched(socket, TcpPunch.handshake(socket, nonce));
+                    } catch (IOException e) {
+                        LOGGER.info("[DirectConnect] TCP punch handshake failed: {}", e.getMessage());
+                        TcpPunch.closeQuietly(socket);
+                        return null;
                     }
+                }).exceptionally(e -> null);
+        TcpAttempt previous = tcpAttempt;
+        tcpAttempt = new TcpAttempt(udp, host, punched);
+        if (previous != null) {
+            previous.abandon(); // A warm tunnel that did not answer
+        }
+    }
+
+    /**
+     * Decides between the punched TCP connection and the nominated tunnel.
+     * A punch still going gets about one more round trip; after that the
+     * tunnel carries the game and a late connection is closed.
+     *
+     * @return Future with the committed socket, or null to stay on UDP
+     */
+    private CompletableFuture<Socket> settleTcp(TcpAttempt tcp, ConnectivityChecker.Result winner) {
+        CompletableFuture<Socket> choice = new CompletableFuture<>();
+        AtomicBoolean decided = new AtomicBoolean(false);
+        scheduler.schedule(() -> {
+            if (decided.compareAndSet(false, true)) {
+                LOGGER.info("[DirectConnect] TCP punch not through at nomination, using UDP");
+                choice.complete(null);
+            }
+        }, Math.min(winner.rttMs, TCP_GRACE_MAX_MS), TimeUnit.MILLISECONDS);
+
+        tcp.punched.whenCompleteAsync((punched, error) -> {
+            if (!decided.compareAndSet(false, true)) {
+                if (punched != null) {
+                    TcpPunch.closeQuietly(punched.socket); // Too late, the tunnel carries the game
+                }
+                return;
+            }
+            if (punched == null) {
+                choice.complete(null);
+                return;
+            }
+            try {
+                // Ties go to TCP: the kernel stack costs less per packet
+                boolean useTcp = punched.rttMs <= winner.rttMs;
+                LOGGER.info("[DirectConnect] TCP rtt={}ms vs UDP rtt={}ms, using {}", punched.rttMs, winner.rttMs,
+                        useTcp ? "TCP" : "UDP");
+                if (TcpPunch.commit(punched.socket, useTcp)) {
+                    choice.complete(punched.socket);
+                    return;
                 }
-            } catch (InterruptedException ignored) {
+            } catch (IOException e) {
+                LOGGER.info("[DirectConnect] TCP punch commit failed: {}", e.getMessage());
+            }
+            TcpPunch.closeQuietly(punched.socket);
+            choice.complete(null);
+        }, executor);
+        return choice;
+    }
+
+    /**
+     * Checks whether the game can skip the tunnel: the winning path is a LAN
+     * candidate and the host's game port accepts TCP from here.
+     *
+     * @return The host's game address, or null to use the tunnel
+     */
+    private InetSocketAddress findLanFastPath(ConnectivityChecker.Result winner) {
+        int gamePort = winner.udp.getPeerTcpPort();
+        if (!config.isLanFastPath() || gamePort <= 0 || !Candidates.TYPE_LAN.equals(winner.endpoint.type)
+                || !NetworkUtils.isLocalNetwork(winner.endpoint.ip)) {
+            return null;
+        }
+
+        InetSocketAddress game = new InetSocketAddress(winner.endpoint.ip, gamePort);
+        try (Socket probe = new Socket()) {
+            probe.connect(game, LAN_FAST_PATH_TIMEOUT_MS);
+            return game;
+        } catch (IOException e) {
+            LOGGER.info("[DirectConnect] Host game port {} not reachable over TCP, using tunnel", game);
+            return null;
+        }
+    }
+
+    /**
+     * Hands the connection to a plain TCP connection to the host's game
+     * port; the tunnel is closed and the host releases its bridge.
+     */
+    private void useLanFastPath(ReliableUdp tunnel, InetSocketAddress game, CompletableFuture<Integer> result) {
+        LOGGER.info("[DirectConnect] Host is on this LAN, connecting directly to {}", game);
+        lanFastPath = game;
+        tunnel.stop();
+        connecting.set(false);
+        updateStatus("Connected (LAN)");
+        recordJoinTime();
+
+        int proxyPort = proxyServer != null ? proxyServer.getLocalPort() : -1;
+        if (!result.isDone()) {
+            result.complete(proxyPort);
+        }
+        // Nothing will connect to the proxy now
+        cleanup();
+    }
+
+    private void recordJoinTime() {
+        long now = System.nanoTime();
+        long total = (now - joinStartedAt) / 1_000_000;
+        long lookup = (lookupDoneAt - joinStartedAt) / 1_000_000;
+        JoinTimings recorded = joinWarm ? warmTimings : timings;
+        recorded.record(lookup, total);
+        LOGGER.info("[DirectConnect] Joined in {} ms (lookup {} ms{}); {}", total, lookup,
+                joinWarm ? ", warm tunnel" : "", recorded);
+    }
+
+    /**
+     * Join times of this session, for comparing connection settings. Joins
+     * over a warm tunnel are kept apart, see {@link #getWarmJoinTimings}.
+     */
+    public JoinTimings getJoinTimings() {
+        return timings;
+    }
+
+    /**
+     * Join times of joins that reused a tunnel warmed by a status ping or
+     * speculative connection.
+     */
+    public JoinTimings getWarmJoinTimings() {
+        return warmTimings;
+    }
+
+    /**
+     * The host's game address when the last join bypassed the tunnel, in
+     * which case Minecraft should connect there instead of to the proxy.
+     */
+    public InetSocketAddress getLanFastPath() {
+        return lanFastPath;
+    }
+
+    /**
+     * Keeps probing the host's other candidates so the session can move to a
+     * better path that opens up later, or uses them all at once in multipath
+     * mode.
+     */
+    private void startPathProbing(List<Endpoint> endpoints, ReliableUdp session) {
+        if (config.isMultipath() && session.peerSupports(ReliableUdp.FEATURE_MULTIPATH)) {
+            startMultipath(endpoints, session);
+            return;
+        }
+        if (config.getPathProbeInterval() <= 0 || !session.peerSupports(ReliableUdp.FEATURE_MIGRATION)) {
+            return;
+        }
+
+        List<InetSocketAddress> candidates = new ArrayList<>();
+        Set<InetSocketAddress> relays = new HashSet<>();
+        for (Endpoint endpoint : endpoints) {
+            InetSocketAddress address = new InetSocketAddress(endpoint.ip, endpoint.port);
+            candidates.add(address);
+            if (Candidates.TYPE_RELAY.equals(endpoint.type)) {
+                relays.add(address);
+            }
+        }
+        // The active address may be a predicted port rather than a candidate
+        if (!candidates.contains(session.getRemoteAddress())) {
+            candidates.add(session.getRemoteAddress());
+        }
+
+        PathProber prober = new PathProber(session, candidates, relays);
+        prober.setOnMigrate((from, to) -> {
+            LOGGER.info("[DirectConnect] Switched path {} -> {}", from, to);
+            if (onMigrate != null) {
+                onMigrate.accept(from, to);
             }
         });
+        prober.start(config.getPathProbeInterval());
+        pathProber = prober;
+    }
+
+    /**
+     * Adds every direct candidate of the host as a path of the session.
+     * Relays stay out: they are shared capacity meant as a last resort.
+     */
+    private void startMultipath(List<Endpoint> endpoints, ReliableUdp session) {
+        List<InetSocketAddress> paths = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (Candidates.TYPE_RELAY.equals(endpoint.type)
+                    || (NetworkUtils.isIpv6(endpoint.ip) && !session.isDualStack())) {
+                continue;
+            }
+            paths.add(new InetSocketAddress(endpoint.ip, endpoint.port));
+        }
+        session.setDuplicateSmall(config.isMultipathDuplicate());
+        session.enableMultipath(paths);
+    }
+
+    /**
+     * Per-path statistics for the current session, empty when not
+     * connected.
+     */
+    public Map<InetSocketAddress, SessionStats> getPathStats() {
+        PathProber prober = pathProber;
+        if (prober != null) {
+            return prober.getPathStats();
+        }
+        ReliableUdp session = udp;
+        return session != null ? session.getPathStats() : Map.of();
     }
 
     /**
@@ -231,15 +800,24 @@ public class JoinManager {
     /**
      * Accepts the Minecraft client connection to the local proxy.
      */
-    private void acceptMinecraftConnection(CompletableFuture<Integer> result) {
+    private void acceptMinecraftConnection(ServerSocket proxy, CompletableFuture<Integer> result) {
         try {
             LOGGER.debug("[DirectConnect] Waiting for MC client connection...");
-            minecraftConnection = proxyServer.accept();
+            minecraftConnection = proxy.accept();
             minecraftConnection.setTcpNoDelay(true);
             LOGGER.info("[DirectConnect] MC client connected to proxy");
 
             // Note: result.complete() is called in raceEndpoints when UDP connects
 
+            // Punched TCP: plain socket splice in both directions
+            Socket tcp = directTcp;
+            if (tcp != null) {
+                Socket mc = minecraftConnection;
+                executor.submit(() -> pipe(tcp, mc));
+                pipe(mc, tcp);
+                return;
+            }
+
             // Forward MC -> UDP
             InputStream in = minecraftConnection.getInputStream();
             byte[] buffer = new byte[4096];
@@ -259,6 +837,30 @@ public class JoinManager {
             if (connected.get()) {
                 LOGGER.error("[DirectConnect] Proxy error: {}", e.getMessage());
             }
+        } finally {
+            // After a disconnect, a rejoin may already have its own proxy
+            if (proxyServer == proxy) {
+                cleanup();
+            }
+        }
+    }
+
+    /**
+     * Copies one socket into another until either side closes.
+     */
+    private void pipe(Socket from, Socket to) {
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while (connected.get() && (read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            if (connected.get()) {
+                LOGGER.debug("[DirectConnect] TCP pipe closed: {}", e.getMessage());
+            }
         } finally {
             cleanup();
         }
@@ -276,11 +878,35 @@ public class JoinManager {
         connecting.set(false);
         connected.set(false);
 
+        PathProber prober = pathProber;
+        if (prober != null) {
+            prober.stop();
+            pathProber = null;
+        }
+
+        ConnectivityChecker pending = checker;
+        if (pending != null) {
+            pending.cancel();
+            checker = null;
+        }
+
         if (udp != null) {
             udp.stop();
             udp = null;
         }
 
+        TcpAttempt attempt = tcpAttempt;
+        if (attempt != null) {
+            attempt.abandon();
+            tcpAttempt = null;
+        }
+
+        Socket tcp = directTcp;
+        if (tcp != null) {
+            TcpPunch.closeQuietly(tcp);
+            directTcp = null;
+        }
+
         if (minecraftConnection != null) {
             try {
                 minecraftConnection.close();
@@ -298,6 +924,15 @@ public class JoinManager {
         }
     }
 
+    /**
+     * Thrown when the registry does not know a share code.
+     */
+    private static class HostNotFoundException extends IOException {
+        HostNotFoundException(String shareCode) {
+            super("Host not found: " + shareCode);
+        }
+    }
+
     public boolean isConnecting() {
         return connecting.get();
     }
@@ -318,6 +953,13 @@ public class JoinManager {
         this.onError = handler;
     }
 
+    /**
+     * Called with (old, new) when the session moves to a better path.
+     */
+    public void setOnMigrate(BiConsumer<InetSocketAddress, InetSocketAddress> handler) {
+        this.onMigrate = handler;
+    }
+
     private void updateStatus(String status) {
         if (onStatusChange != null) {
             onStatusChange.accept(status);
@@ -0,0 +1,64 @@
+package calibur.directconnect.join;
+
+import java.util.Arrays;
+
+/**
+ * Join-time samples for this session, kept so connection changes can be
+ * judged by their percentiles rather than by one lucky join.
+ */
+public class JoinTimings {
+    private static final int CAPACITY = 256;
+
+    private final long[] totalMs = new long[CAPACITY];
+    private final long[] lookupMs = new long[CAPACITY];
+    private int count = 0;
+
+    /**
+     * Records one successful join.
+     *
+     * @param lookup Time until the host's candidates were known
+     * @param total  Time until the game could connect
+     */
+    synchronized void record(long lookup, long total) {
+        int slot = count % CAPACITY;
+        lookupMs[slot] = lookup;
+        totalMs[slot] = total;
+        count++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Percentile of the total join time over the recent joins.
+     *
+     * @param p Percentile, 0-100
+     * @return Milliseconds, or -1 without samples
+     */
+    public synchronized long getTotalPercentile(double p) {
+        return percentile(totalMs, p);
+    }
+
+    public synchronized long getLookupPercentile(double p) {
+        return percentile(lookupMs, p);
+    }
+
+    private long percentile(long[] samples, double p) {
+        int n = Math.min(count, CAPACITY);
+        if (n == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100.0 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, index))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("p50=%dms p90=%dms p99=%dms (lookup p50=%dms) over %d joins",
+                getTotalPercentile(50), getTotalPercentile(90), getTotalPercentile(99),
+                getLookupPercentile(50), Math.min(count, CAPACITY));
+    }
+}
@@ -0,0 +1,196 @@
+package calibur.directconnect.join;
+
+import calibur.directconnect.network.Candidates;
+import calibur.directconnect.network.NatBehavior;
+import calibur.directconnect.network.NetworkUtils;
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import calibur.directconnect.network.ReliableUdp;
+import calibur.directconnect.network.StunClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The joiner's side of the candidate exchange.
+ *
+ * The socket that checks to reflexive and relayed host candidates run from
+ * is opened before the lookup and mapped through STUN. Its local, IPv6 and
+ * server-reflexive addresses go with the lookup, so the host punches
+ * towards each of them. The connectivity checker then takes it over.
+ * Joiners gather no relayed candidates: the host's relayed ones already
+ * work whatever our NAT does.
+ *
+ * The joiner's NAT is classified once in the background, like the host's,
+ * and sent with every lookup until it goes stale, so a host can spray
+ * predicted ports towards a joiner behind a hard NAT.
+ */
+class LocalCandidates {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    // Local address of checks that let the routing table pick the interface
+    static final InetSocketAddress WILDCARD = new InetSocketAddress(0);
+
+    // How long the lookup waits for the check socket's public mapping
+    private static final long GATHER_TIMEOUT_MS = 300;
+    // How long a classification is reused; NATs rarely change underneath us
+    private static final long NAT_TTL_MS = 10 * 60 * 1000;
+
+    private static volatile NatBehavior nat;
+    private static volatile long natClassifiedAt;
+    private static CompletableFuture<NatBehavior> classifying; // Guarded by LocalCandidates.class
+
+    private final ReliableUdp socket;
+    private final StunClient stun;
+    private final CompletableFuture<InetSocketAddress> mapping;
+    private boolean claimed;
+
+    private LocalCandidates(ReliableUdp socket, StunClient stun, CompletableFuture<InetSocketAddress> mapping) {
+        this.socket = socket;
+        this.stun = stun;
+        this.mapping = mapping;
+    }
+
+    /**
+     * Opens the check socket and starts mapping it.
+     *
+     * @return The candidates; without a socket if it could not be opened, in
+     *         which case the checker opens its own
+     */
+    static LocalCandidates open() {
+        return open(NetworkUtils.STUN_SERVERS);
+    }
+
+    /**
+     * @param stunServers Servers to map the socket through, as in
+     *                    {@link NetworkUtils#STUN_SERVERS}
+     */
+    static LocalCandidates open(String[][] stunServers) {
+        ReliableUdp socket = new ReliableUdp();
+        if (!socket.openForChecks(WILDCARD)) {
+            LOGGER.warn("[DirectConnect] Could not open check socket before lookup");
+            return new LocalCandidates(null, null,
+                    CompletableFuture.failedFuture(new IllegalStateException("No check socket")));
+        }
+        StunClient stun = new StunClient(socket, stunServers);
+        stun.start(0);
+        return new LocalCandidates(socket, stun, stun.discover());
+    }
+
+    /**
+     * Completes once the public mapping is known, or after a short wait if
+     * STUN is slow, so the lookup is held up by one STUN round trip at most.
+     */
+    CompletableFuture<LocalCandidates> gathered() {
+        return mapping.handle((mapped, e) -> this)
+                .completeOnTimeout(this, GATHER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The UDP port checks run from, or 0 if there is no socket.
+     */
+    int port() {
+        return socket != null ? socket.getLocalPort() : 0;
+    }
+
+    /**
+     * The check socket's public mapping, or null if not (yet) known.
+     */
+    InetSocketAddress reflexive() {
+        return mapping.isDone() && !mapping.isCompletedExceptionally() ? mapping.join() : null;
+    }
+
+    /**
+     * The port the host should punch towards: the public one if known, else
+     * the bound one (no NAT, or a NAT that keeps ports).
+     */
+    int publicPort() {
+        InetSocketAddress mapped = reflexive();
+        return mapped != null ? mapped.getPort() : port();
+    }
+
+    /**
+     * The candidates to send with the lookup, highest priority first; empty
+     * without a socket.
+     */
+    List<Endpoint> candidates() {
+        if (socket == null) {
+            return List.of();
+        }
+        List<Endpoint> candidates = Candidates.gather(port(), NetworkUtils.getLocalIp(), reflexive(),
+                stun.getCachedMapping6(), null, List.of(), nat(), socket.isDualStack());
+        LOGGER.info("[DirectConnect] Gathered {} local candidates: {}", candidates.size(), candidates);
+        return candidates;
+    }
+
+    /**
+     * Hands the socket to a checker; only the first call gets it.
+     *
+     * @return The socket, or null if already claimed, closed or never opened
+     */
+    synchronized ReliableUdp claim() {
+        if (claimed) {
+            return null;
+        }
+        claimed = true;
+        return socket;
+    }
+
+    /**
+     * Closes the socket unless a checker took it over.
+     */
+    void close() {
+        ReliableUdp unused = claim();
+        if (unused != null) {
+            stun.stop();
+            unused.stop();
+        }
+    }
+
+    /**
+     * The joiner's NAT behavior, or null if it was not classified recently.
+     */
+    static NatBehavior nat() {
+        NatBehavior current = nat;
+        return current != null && System.currentTimeMillis() - natClassifiedAt < NAT_TTL_MS ? current : null;
+    }
+
+    /**
+     * Classifies the joiner's NAT in the background unless a recent result
+     * exists or a classification is running. Uses its own socket, as the
+     * tests take a few seconds and must not depend on a join's lifetime.
+     */
+    static synchronized void classifyNat(Executor executor) {
+        if (nat() != null || (classifying != null && !classifying.isDone())) {
+            return;
+        }
+        classifying = CompletableFuture.supplyAsync(LocalCandidates::classify, executor);
+    }
+
+    private static NatBehavior classify() {
+        ReliableUdp udp = new ReliableUdp();
+        if (!udp.openForChecks(WILDCARD)) {
+            return null;
+        }
+        StunClient stun = new StunClient(udp, NetworkUtils.STUN_SERVERS);
+        stun.start(0);
+        try {
+            InetSocketAddress mapped = stun.discover().exceptionally(e -> null).join();
+            NatBehavior behavior = NatBehavior.classify(udp, NetworkUtils.getLocalIp(), mapped,
+                    stun.getMappingServer()).join();
+            // An unknown result is retried on the next join rather than cached
+            if (behavior.mapping != NatBehavior.Mapping.UNKNOWN) {
+                nat = behavior;
+                natClassifiedAt = System.currentTimeMillis();
+            }
+            return behavior;
+        } finally {
+            stun.stop();
+            udp.stop();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package calibur.directconnect.join;
+
+import calibur.directconnect.network.ReliableUdp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Short P2P sessions for pinging p2p. entries of the server list.
+ *
+ * Each entry gets its own tunnel and a loopback proxy that accepts a single
+ * connection, so the game's status pinger talks to the host as it would to
+ * any server and its ping is the round trip over the tunnel. Any number of
+ * them run next to each other and next to a join.
+ *
+ * When the ping is done the session is closed but its socket is kept for a
+ * while: the NAT mappings are open and the best path is known, so joining
+ * the host right after only needs a new handshake on it. Tunnels can also
+ * be warmed up without a ping, when the player is likely to join next.
+ */
+class StatusTunnels {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    private static final long IDLE_TTL_MS = 30_000; // Well within common NAT mapping timeouts
+    private static final long REOPEN_TIMEOUT_MS = 1000;
+    private static final int ACCEPT_TIMEOUT_MS = 5000;
+
+    private static class Tunnel {
+        final ConnectivityChecker.Result path;
+        volatile boolean busy = true;
+        volatile ScheduledFuture<?> expiry;
+
+        Tunnel(ConnectivityChecker.Result path) {
+            this.path = path;
+        }
+    }
+
+    private final Map<String, Tunnel> tunnels = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<ConnectivityChecker.Result>> warming = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    StatusTunnels(ExecutorService executor, ScheduledExecutorService scheduler) {
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Opens a tunnel to a host for one status ping, reusing an idle one when
+     * there is one.
+     *
+     * @param findHost Finds a new path to the host otherwise
+     * @return Future with the loopback address to ping
+     */
+    CompletableFuture<InetSocketAddress> open(String shareCode,
+            Supplier<CompletableFuture<ConnectivityChecker.Result>> findHost) {
+        ConnectivityChecker.Result idle = take(shareCode);
+        CompletableFuture<ConnectivityChecker.Result> path = idle != null
+                ? reopen(idle).exceptionallyCompose(e -> findHost.get())
+                : findHost.get();
+        return path.thenApply(found -> serve(shareCode, found));
+    }
+
+    /**
+     * Finds a path to a host ahead of a likely join and keeps its socket
+     * warm. Does nothing if there already is a tunnel to the host.
+     *
+     * @param findHost Finds the path to the host
+     */
+    void prewarm(String shareCode, Supplier<CompletableFuture<ConnectivityChecker.Result>> findHost) {
+        String key = shareCode.toLowerCase();
+        CompletableFuture<ConnectivityChecker.Result> warmed = new CompletableFuture<>();
+        if (tunnels.containsKey(key) || warming.putIfAbsent(key, warmed) != null) {
+            return;
+        }
+        LOGGER.debug("[DirectConnect] Warming up a tunnel to p2p.{}", shareCode);
+
+        findHost.get().whenComplete((found, e) -> {
+            if (found != null) {
+                found.udp.closeSession(); // The host would hold a game connection open otherwise
+            }
+            boolean unclaimed = warming.remove(key, warmed);
+            if (e != null) {
+                warmed.completeExceptionally(e);
+            } else if (!unclaimed) {
+                warmed.complete(found);
+            } else {
+                Tunnel tunnel = new Tunnel(found);
+                if (tunnels.putIfAbsent(key, tunnel) != null) {
+                    found.udp.stop();
+                } else {
+                    park(key, tunnel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Claims the warm tunnel to a host for a join, including one still being
+     * set up.
+     *
+     * @return Future with its path with the session closed, or null if there
+     *         is none
+     */
+    CompletableFuture<ConnectivityChecker.Result> claim(String shareCode) {
+        ConnectivityChecker.Result idle = take(shareCode);
+        if (idle != null) {
+            return CompletableFuture.completedFuture(idle);
+        }
+        return warming.remove(shareCode.toLowerCase());
+    }
+
+    /**
+     * Takes the idle tunnel to a host.
+     *
+     * @return Its path with the session closed, or null if there is none
+     */
+    ConnectivityChecker.Result take(String shareCode) {
+        String key = shareCode.toLowerCase();
+        Tunnel tunnel = tunnels.get(key);
+        if (tunnel == null || tunnel.busy || !tunnels.remove(key, tunnel)) {
+            return null;
+        }
+        ScheduledFuture<?> expiry = tunnel.expiry;
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        return tunnel.path;
+    }
+
+    /**
+     * Opens a new session on the socket of an idle tunnel.
+     *
+     * @return Future with the path, failed if the host does not answer
+     */
+    CompletableFuture<ConnectivityChecker.Result> reopen(ConnectivityChecker.Result idle) {
+        CompletableFuture<ConnectivityChecker.Result> reopened = new CompletableFuture<>();
+        ReliableUdp session = idle.udp;
+        session.setOnConnect(sender -> {
+            long rttMs = Math.round(session.getStats().getSmoothedRttMs());
+            reopened.complete(new ConnectivityChecker.Result(session, idle.endpoint, rttMs, idle.candidates));
+        });
+        if (!session.reconnect()) {
+            session.stop();
+            return CompletableFuture.failedFuture(new IOException("Tunnel closed"));
+        }
+        scheduler.schedule(() -> {
+            if (reopened.completeExceptionally(new IOException("Tunnel expired"))) {
+                session.stop();
+            }
+        }, REOPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return reopened;
+    }
+
+    private InetSocketAddress serve(String shareCode, ConnectivityChecker.Result path) {
+        ServerSocket proxy;
+        try {
+            proxy = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            proxy.setSoTimeout(ACCEPT_TIMEOUT_MS);
+        } catch (IOException e) {
+            path.udp.stop();
+            throw new RuntimeException(e);
+        }
+
+        String key = shareCode.toLowerCase();
+        Tunnel tunnel = new Tunnel(path);
+        Tunnel old = tunnels.put(key, tunnel);
+        if (old != null && !old.busy) {
+            old.path.udp.stop();
+        }
+        LOGGER.debug("[DirectConnect] Status tunnel to p2p.{} via {} (rtt={}ms)", shareCode, path.endpoint,
+                path.rttMs);
+
+        executor.submit(() -> bridge(key, tunnel, proxy));
+        return new InetSocketAddress(proxy.getInetAddress(), proxy.getLocalPort());
+    }
+
+    /**
+     * Carries the pinger's connection over the tunnel, then keeps the socket
+     * warm for a while.
+     */
+    private void bridge(String key, Tunnel tunnel, ServerSocket proxy) {
+        ReliableUdp session = tunnel.path.udp;
+        try (proxy; Socket pinger = proxy.accept()) {
+            pinger.setTcpNoDelay(true);
+            OutputStream out = pinger.getOutputStream();
+            session.setOnData((sender, data) -> {
+                try {
+                    out.write(data);
+                    out.flush();
+                } catch (IOException ignored) {
+                    // The pinger has gone, the read below ends too
+                }
+            });
+            session.setOnDisconnect(sender -> closeQuietly(pinger));
+
+            InputStream in = pinger.getInputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while (session.isConnected() && (read = in.read(buffer)) != -1) {
+                byte[] data = new byte[read];
+                System.arraycopy(buffer, 0, data, 0, read);
+                session.send(data);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("[DirectConnect] Status tunnel closed: {}", e.getMessage());
+        }
+
+        session.setOnData(null);
+        session.setOnDisconnect(null);
+        session.closeSession();
+        park(key, tunnel);
+    }
+
+    /**
+     * Keeps an idle tunnel until it is taken or expires.
+     */
+    private void park(String key, Tunnel tunnel) {
+        ReliableUdp session = tunnel.path.udp;
+        tunnel.busy = false;
+        if (tunnels.get(key) != tunnel) {
+            session.stop(); // Replaced by a newer ping
+            return;
+        }
+        tunnel.expiry = scheduler.schedule(() -> {
+            if (tunnels.remove(key, tunnel)) {
+                LOGGER.debug("[DirectConnect] Released idle tunnel to p2p.{}", key);
+                session.stop();
+            }
+        }, IDLE_TTL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -16,6 +16,8 @@ import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
+import java.net.InetSocketAddress;
+
 /**
  * Mixin to intercept server connection attempts and redirect p2p. addresses.
  */
@@ -77,11 +79,15 @@ public class DirectConnectMixin {
                     // First, clear any existing screen to reset connection state
                     minecraft.setScreen(null);
 
-                    // Create proxy server data
-                    ServerAddress proxyAddress = new ServerAddress("127.0.0.1", proxyPort);
+                    // Create proxy server data, or point straight at the
+                    // host when it is on the LAN
+                    InetSocketAddress direct = joinManager.getLanFastPath();
+                    String host = direct != null ? direct.getHostString() : "127.0.0.1";
+                    int port = direct != null ? direct.getPort() : proxyPort;
+                    ServerAddress proxyAddress = new ServerAddress(host, port);
                     ServerData proxyServerData = new ServerData(
-                            serverData.name + " (P2P)",
-                            "127.0.0.1:" + proxyPort,
+                            serverData.name + (direct != null ? " (LAN)" : " (P2P)"),
+                            (NetworkUtils.isIpv6(host) ? "[" + host + "]" : host) + ":" + port,
                             serverData.type());
 
                     // Set flag to prevent re-interception
@@ -0,0 +1,55 @@
+package calibur.directconnect.mixin.client;
+
+import calibur.directconnect.join.JoinManager;
+import calibur.directconnect.network.NetworkUtils;
+import net.minecraft.client.gui.screens.multiplayer.JoinMultiplayerScreen;
+import net.minecraft.client.gui.screens.multiplayer.ServerSelectionList;
+import net.minecraft.client.multiplayer.ServerData;
+import net.minecraft.client.multiplayer.ServerList;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mixin to look up all p2p. servers of the list at once when it is shown,
+ * and to start connecting to one as soon as its entry is selected, before
+ * the player clicks Join.
+ */
+@Mixin(JoinMultiplayerScreen.class)
+public class JoinMultiplayerScreenMixin {
+    @Shadow
+    private ServerList servers;
+
+    /**
+     * Runs before the entries are first rendered, which is when their status
+     * pings start; the pings then use the batch's answers.
+     */
+    @Inject(method = "init", at = @At("TAIL"))
+    private void directconnect$refreshHosts(CallbackInfo ci) {
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < servers.size(); i++) {
+            ServerData data = servers.get(i);
+            if (data != null && NetworkUtils.isP2pAddress(data.ip)) {
+                addresses.add(data.ip);
+            }
+        }
+        if (!addresses.isEmpty()) {
+            JoinManager.getInstance().refreshHosts(addresses);
+        }
+    }
+
+    @Inject(method = "setSelected", at = @At("TAIL"))
+    private void directconnect$preconnect(ServerSelectionList.Entry entry, CallbackInfo ci) {
+        if (entry instanceof ServerSelectionList.OnlineServerEntry online) {
+            ServerData data = online.getServerData();
+            if (data != null && NetworkUtils.isP2pAddress(data.ip)) {
+                JoinManager.getInstance().preconnect(data.ip);
+            }
+        }
+    }
+}
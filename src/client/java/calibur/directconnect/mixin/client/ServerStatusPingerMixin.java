@@ -0,0 +1,44 @@
+package calibur.directconnect.mixin.client;
+
+import calibur.directconnect.config.ModConfig;
+import calibur.directconnect.join.JoinManager;
+import calibur.directconnect.network.NetworkUtils;
+import net.minecraft.client.multiplayer.ServerStatusPinger;
+import net.minecraft.client.multiplayer.resolver.ServerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Redirect;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mixin to ping p2p. server list entries through a tunnel, so they show
+ * their MOTD, player count and ping like any other server.
+ */
+@Mixin(ServerStatusPinger.class)
+public class ServerStatusPingerMixin {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    /**
+     * Points the pinger at a loopback proxy for the host. Runs on the
+     * server list's pinger threads, so waiting for the tunnel is fine.
+     */
+    @Redirect(method = "pingServer", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/multiplayer/resolver/ServerAddress;parseString(Ljava/lang/String;)Lnet/minecraft/client/multiplayer/resolver/ServerAddress;"))
+    private ServerAddress directconnect$pingThroughTunnel(String address) {
+        if (!NetworkUtils.isP2pAddress(address) || !ModConfig.getInstance().isServerListPing()) {
+            return ServerAddress.parseString(address);
+        }
+        try {
+            InetSocketAddress proxy = JoinManager.getInstance().openStatusTunnel(address)
+                    .get(ModConfig.getInstance().getConnectionTimeout() + 2000L, TimeUnit.MILLISECONDS);
+            return new ServerAddress(proxy.getHostString(), proxy.getPort());
+        } catch (Exception e) {
+            LOGGER.debug("[DirectConnect] Cannot ping {}: {}", address, e.getMessage());
+            // Fails to resolve, so the entry shows as unreachable
+            return ServerAddress.parseString(address);
+        }
+    }
+}
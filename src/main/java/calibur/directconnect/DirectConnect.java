@@ -3,6 +3,8 @@ package calibur.directconnect;
 import calibur.directconnect.command.HostCommand;
 import calibur.directconnect.config.ModConfig;
 import calibur.directconnect.host.HostManager;
+import calibur.directconnect.network.RelayServer;
+import calibur.directconnect.network.WarmUp;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
@@ -25,7 +27,13 @@ public class DirectConnect implements ModInitializer {
 
         // Load configuration
         ModConfig config = ModConfig.getInstance();
-        LOGGER.info("[DirectConnect] Config loaded: registry={}", config.getRegistryUrl());
+        LOGGER.info("[DirectConnect] Config loaded: registries={}", config.getRegistryUrls());
+
+        // Warm up the transport in the background. This entrypoint runs on
+        // clients and dedicated servers alike.
+        if (config.isWarmUp()) {
+            WarmUp.start();
+        }
 
         // Register commands
         CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> {
@@ -37,6 +45,11 @@ public class DirectConnect implements ModInitializer {
         ServerLifecycleEvents.SERVER_STARTED.register(server -> {
             // Check if this is a dedicated server (not integrated/singleplayer)
             if (server.isDedicatedServer()) {
+                if (config.isRelayEnabled()) {
+                    RelayServer.getInstance().start(config.getRelayPort(), config.getRelayMaxHosts(),
+                            config.getRelayBandwidthLimit(), config.getRelayHostBandwidthLimit());
+                }
+
                 LOGGER.info("[DirectConnect] Dedicated server detected, auto-starting P2P host...");
 
                 HostManager host = HostManager.getInstance();
@@ -52,6 +65,11 @@ public class DirectConnect implements ModInitializer {
 
         // Cleanup on server stop
         ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+            RelayServer relay = RelayServer.getInstance();
+            if (relay.isRunning()) {
+                relay.stop();
+            }
+
             HostManager host = HostManager.getInstance();
             if (host.isRunning()) {
                 LOGGER.info("[DirectConnect] Server stopping, cleaning up P2P host...");
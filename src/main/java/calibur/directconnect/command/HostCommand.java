@@ -7,6 +7,8 @@ import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
 import net.minecraft.network.chat.Component;
 
+import java.util.List;
+
 /**
  * Command handler for /host command.
  * Starts P2P hosting for singleplayer worlds.
@@ -21,6 +23,8 @@ public class HostCommand {
                                 .executes(HostCommand::executeStop))
                         .then(Commands.literal("status")
                                 .executes(HostCommand::executeStatus))
+                        .then(Commands.literal("stats")
+                                .executes(HostCommand::executeStats))
                         .then(Commands.literal("regenerate")
                                 .executes(HostCommand::executeRegenerate)));
     }
@@ -84,6 +88,28 @@ public class HostCommand {
         return 1;
     }
 
+    private static int executeStats(CommandContext<CommandSourceStack> context) {
+        CommandSourceStack source = context.getSource();
+        HostManager host = HostManager.getInstance();
+
+        if (!host.isRunning()) {
+            source.sendFailure(Component.literal(
+                    "§cNot currently hosting."));
+            return 0;
+        }
+
+        List<String> tunnels = host.getTunnelSummaries();
+        if (tunnels.isEmpty()) {
+            source.sendSuccess(() -> Component.literal(
+                    "§7No P2P players connected."), false);
+            return 1;
+        }
+
+        source.sendSuccess(() -> Component.literal(
+                "§aP2P tunnels:\n§7" + String.join("\n", tunnels)), false);
+        return tunnels.size();
+    }
+
     private static int executeRegenerate(CommandContext<CommandSourceStack> context) {
         CommandSourceStack source = context.getSource();
         HostManager host = HostManager.getInstance();
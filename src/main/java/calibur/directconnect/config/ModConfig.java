@@ -9,6 +9,8 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -25,11 +27,36 @@ public class ModConfig {
 
     // Configuration fields
     private String registryUrl = "https://p2p-server-production-2953.up.railway.app";
+    private List<String> registryUrls = new ArrayList<>(); // More registries, the fastest is used first
+    private int registryRedundancy = 2; // Registries a host registers with at once
     private String shareCode = null;
     private int udpPort = 0; // 0 means random
     private boolean debug = false;
     private int connectionTimeout = 10000; // 10 seconds
     private int heartbeatInterval = 30000; // 30 seconds
+    private boolean adaptiveChunkRate = true; // Limit chunk sending to tunnel capacity
+    private boolean adaptiveViewDistance = false; // Lower view distance on slow tunnels
+    private int minTunnelViewDistance = 4;
+    private boolean adaptiveCompression = true; // Per-tunnel compression threshold
+    private int stunRefreshInterval = 60000; // 60 seconds
+    private boolean portMapping = true; // Ask the router for a port via UPnP/NAT-PMP/PCP
+    private List<String> relayServers = new ArrayList<>(); // "host:port" relays to allocate on when hosting
+    private boolean relayEnabled = false; // Act as a relay (dedicated servers only)
+    private int relayPort = 3479;
+    private int relayMaxHosts = 32;
+    private int relayBandwidthLimit = 0; // KiB/s across all relayed traffic, 0 = unlimited
+    private int relayHostBandwidthLimit = 0; // KiB/s per relayed host, 0 = unlimited
+    private int pathProbeInterval = 1000; // Probe alternate paths every second, 0 = never migrate
+    private boolean multipath = false; // Use every working path to the host at once
+    private boolean multipathDuplicate = true; // Send small packets on two paths when multipath
+    private boolean lanDiscovery = true; // Announce/find hosts on the local network via multicast
+    private boolean lanFastPath = true; // Connect straight to the game port on the same LAN, no tunnel
+    private boolean tcpPunch = false; // Also try a punched TCP connection and keep it if faster
+    private int lookupCacheTtl = 86400; // Seconds to remember a host's endpoints for rejoins, 0 = off
+    private boolean serverListPing = true; // Ping p2p. server list entries through a tunnel
+    private boolean speculativeConnect = true; // Connect to a p2p. server list entry once it is selected
+    private boolean warmUp = true; // Start event loops, registry connection and STUN in the background at startup
+    private boolean embedEndpoints = false; // Put stable host endpoints in the share code so joins skip the registry
 
     // Word lists for share code generation
     private static final String[] ADJECTIVES = {
@@ -168,6 +195,33 @@ public class ModConfig {
         save();
     }
 
+    /**
+     * Every configured registry: registryUrl followed by registryUrls.
+     */
+    public List<String> getRegistryUrls() {
+        List<String> urls = new ArrayList<>();
+        if (registryUrl != null && !registryUrl.isEmpty()) {
+            urls.add(registryUrl);
+        }
+        if (registryUrls != null) {
+            for (String url : registryUrls) {
+                if (url != null && !url.isEmpty() && !urls.contains(url)) {
+                    urls.add(url);
+                }
+            }
+        }
+        return urls;
+    }
+
+    public void setRegistryUrls(List<String> urls) {
+        this.registryUrls = new ArrayList<>(urls);
+        save();
+    }
+
+    public int getRegistryRedundancy() {
+        return registryRedundancy;
+    }
+
     public int getUdpPort() {
         if (udpPort == 0) {
             // Generate random port in range 51900-51999
@@ -199,6 +253,98 @@ public class ModConfig {
         return heartbeatInterval;
     }
 
+    public boolean isAdaptiveChunkRate() {
+        return adaptiveChunkRate;
+    }
+
+    public boolean isAdaptiveViewDistance() {
+        return adaptiveViewDistance;
+    }
+
+    public int getMinTunnelViewDistance() {
+        return minTunnelViewDistance;
+    }
+
+    public boolean isAdaptiveCompression() {
+        return adaptiveCompression;
+    }
+
+    public int getStunRefreshInterval() {
+        return stunRefreshInterval;
+    }
+
+    public boolean isPortMapping() {
+        return portMapping;
+    }
+
+    public List<String> getRelayServers() {
+        return relayServers != null ? relayServers : List.of();
+    }
+
+    public boolean isRelayEnabled() {
+        return relayEnabled;
+    }
+
+    public int getRelayPort() {
+        return relayPort;
+    }
+
+    public int getRelayMaxHosts() {
+        return relayMaxHosts;
+    }
+
+    public int getRelayBandwidthLimit() {
+        return relayBandwidthLimit;
+    }
+
+    public int getRelayHostBandwidthLimit() {
+        return relayHostBandwidthLimit;
+    }
+
+    public int getPathProbeInterval() {
+        return pathProbeInterval;
+    }
+
+    public boolean isMultipath() {
+        return multipath;
+    }
+
+    public boolean isMultipathDuplicate() {
+        return multipathDuplicate;
+    }
+
+    public boolean isLanDiscovery() {
+        return lanDiscovery;
+    }
+
+    public boolean isLanFastPath() {
+        return lanFastPath;
+    }
+
+    public boolean isTcpPunch() {
+        return tcpPunch;
+    }
+
+    public int getLookupCacheTtl() {
+        return lookupCacheTtl;
+    }
+
+    public boolean isServerListPing() {
+        return serverListPing;
+    }
+
+    public boolean isSpeculativeConnect() {
+        return speculativeConnect;
+    }
+
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    public boolean isEmbedEndpoints() {
+        return embedEndpoints;
+    }
+
     /**
      * Returns the full p2p. address for this server.
      */
@@ -0,0 +1,122 @@
+package calibur.directconnect.host;
+
+import calibur.directconnect.config.ModConfig;
+import calibur.directconnect.network.SessionStats;
+
+import java.net.SocketAddress;
+
+/**
+ * Picks a Minecraft compression threshold for each tunnelled connection.
+ *
+ * The vanilla threshold is global, so a LAN peer pays deflate CPU on both
+ * ends for nothing while a peer on a slow uplink would gain from compressing
+ * smaller packets too. The choice is made once during login, when it is
+ * announced to the client, from the path type and RTT of the ReliableUdp
+ * session. Login moves too little data to measure the session's own
+ * delivery rate, so the host's other WAN tunnels stand in for it: they
+ * share the host's uplink, which is what compression saves.
+ */
+public class CompressionPolicy {
+    // Below this the tunnel is slow enough that compressing small packets pays off
+    private static final double SLOW_TUNNEL_BYTES_PER_SEC = 512 * 1024; // ~4 Mbit/s
+    // Above this deflate costs more than the bandwidth it saves
+    private static final double FAST_TUNNEL_BYTES_PER_SEC = 6 * 1024 * 1024; // ~50 Mbit/s
+    // RTT that only a same-network path achieves (e.g. via hairpin NAT)
+    private static final double LAN_RTT_MS = 3.0;
+    // Need this much acked data before trusting the delivery rate
+    private static final long MIN_MEASURED_BYTES = 16 * 1024;
+
+    private static final int SLOW_TUNNEL_THRESHOLD = 64;
+    private static final int DISABLED = -1;
+
+    private CompressionPolicy() {
+    }
+
+    /**
+     * Chooses and records the compression threshold for a new connection.
+     *
+     * @param gameRemoteAddress The remote address the MC server sees
+     * @param serverThreshold   The server's global threshold
+     * @return The threshold to use for this connection
+     */
+    public static int chooseThreshold(SocketAddress gameRemoteAddress, int serverThreshold) {
+        HostManager host = HostManager.getInstance();
+        if (!ModConfig.getInstance().isAdaptiveCompression() || !host.isRunning()) {
+            return serverThreshold;
+        }
+
+        CompressionStats existing = host.getCompressionStats(gameRemoteAddress);
+        if (existing != null) {
+            return existing.getThreshold();
+        }
+
+        SessionStats stats = host.getTunnelStats(gameRemoteAddress);
+        if (stats == null) {
+            return serverThreshold;
+        }
+
+        int threshold = pickThreshold(stats, serverThreshold, uplinkRate(host));
+        host.setCompressionStats(gameRemoteAddress, new CompressionStats(threshold));
+        return threshold;
+    }
+
+    /**
+     * The metrics to record a connection's compression into: those of a
+     * tunnelled player on the host, null for any other connection and
+     * anywhere but on a host. Looked up once per encoder, which is only
+     * installed after login chose the threshold.
+     */
+    public static CompressionStats statsFor(SocketAddress gameRemoteAddress) {
+        if (!HostManager.isHosting()) {
+            return null; // Clients and singleplayer never touch the host
+        }
+        return HostManager.getInstance().getCompressionStats(gameRemoteAddress);
+    }
+
+    /**
+     * The best delivery rate measured on the host's WAN tunnels, or 0 if
+     * none has carried enough yet. The host's uplink carries at least that.
+     */
+    private static double uplinkRate(HostManager host) {
+        double best = 0;
+        for (SessionStats tunnel : host.getAllTunnelStats()) {
+            if (tunnel.getPathType() == SessionStats.PathType.WAN && tunnel.getBytesAcked() >= MIN_MEASURED_BYTES) {
+                best = Math.max(best, tunnel.getDeliveryRate());
+            }
+        }
+        return best;
+    }
+
+    static int pickThreshold(SessionStats stats, int serverThreshold, double uplinkRate) {
+        // Compression disabled server-wide stays disabled
+        if (serverThreshold < 0) {
+            return serverThreshold;
+        }
+
+        if (stats.getPathType() != SessionStats.PathType.WAN) {
+            return DISABLED;
+        }
+
+        double minRtt = stats.getMinRttMs();
+        if (minRtt >= 0 && minRtt < LAN_RTT_MS) {
+            return DISABLED;
+        }
+
+        if (stats.getBytesAcked() < MIN_MEASURED_BYTES) {
+            // Tunnels sharing the uplink all ran slow, so this one will too;
+            // fast ones say nothing about this player's downlink
+            return uplinkRate > 0 && uplinkRate < SLOW_TUNNEL_BYTES_PER_SEC
+                    ? Math.min(serverThreshold, SLOW_TUNNEL_THRESHOLD)
+                    : serverThreshold;
+        }
+
+        double rate = stats.getDeliveryRate();
+        if (rate >= FAST_TUNNEL_BYTES_PER_SEC) {
+            return DISABLED;
+        }
+        if (rate < SLOW_TUNNEL_BYTES_PER_SEC) {
+            return Math.min(serverThreshold, SLOW_TUNNEL_THRESHOLD);
+        }
+        return serverThreshold;
+    }
+}
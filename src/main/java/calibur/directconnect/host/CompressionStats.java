@@ -0,0 +1,67 @@
+package calibur.directconnect.host;
+
+/**
+ * Compression metrics for one tunnelled Minecraft connection.
+ * Records the threshold chosen at login and what deflate cost and saved.
+ */
+public class CompressionStats {
+    private final int threshold;
+
+    private long packets = 0;
+    private long rawBytes = 0;
+    private long wireBytes = 0;
+    private long encodeNanos = 0;
+
+    public CompressionStats(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public synchronized void record(int raw, int wire, long nanos) {
+        packets++;
+        rawBytes += raw;
+        wireBytes += wire;
+        encodeNanos += nanos;
+    }
+
+    /**
+     * The compression threshold in use, or -1 if compression is disabled.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public synchronized long getPackets() {
+        return packets;
+    }
+
+    public synchronized long getRawBytes() {
+        return rawBytes;
+    }
+
+    public synchronized long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * Bytes kept off the tunnel by compression.
+     */
+    public synchronized long getBytesSaved() {
+        return rawBytes - wireBytes;
+    }
+
+    /**
+     * CPU time spent in the compression encoder, in milliseconds.
+     */
+    public synchronized double getEncodeMillis() {
+        return encodeNanos / 1_000_000.0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (threshold < 0) {
+            return "compression=off";
+        }
+        return String.format("compression=%d saved=%dKB cpu=%.1fms",
+                threshold, getBytesSaved() / 1024, getEncodeMillis());
+    }
+}
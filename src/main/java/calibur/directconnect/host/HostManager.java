@@ -1,24 +1,42 @@
 package calibur.directconnect.host;
 
 import calibur.directconnect.config.ModConfig;
+import calibur.directconnect.network.Candidates;
+import calibur.directconnect.network.LanDiscovery;
+import calibur.directconnect.network.NatBehavior;
 import calibur.directconnect.network.ReliableUdp;
 import calibur.directconnect.network.NetworkUtils;
+import calibur.directconnect.network.PortMapper;
 import calibur.directconnect.network.RegistryClient;
+import calibur.directconnect.network.RegistrySet;
+import calibur.directconnect.network.RelayClient;
+import calibur.directconnect.network.SessionStats;
+import calibur.directconnect.network.ShareCodes;
+import calibur.directconnect.network.StunClient;
+import calibur.directconnect.network.TcpPunch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
  * Manages hosting a Minecraft server over P2P.
@@ -28,6 +46,9 @@ import java.util.function.Consumer;
 public class HostManager {
     private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
     private static final int MC_SERVER_PORT = 25565; // Internal MC server port
+    private static final long PORT_MAPPING_TIMEOUT_MS = 3000;
+    private static final long RELAY_TIMEOUT_MS = 3000;
+    private static final long TCP_PUNCH_TIMEOUT_MS = 2000;
 
     private static HostManager instance;
 
@@ -35,11 +56,31 @@ public class HostManager {
     private final RegistryClient registry;
     private final ReliableUdp udp;
     private final ExecutorService executor;
+    private StunClient stunClient;
+    private RelayClient relayClient;
+    private PortMapper portMapper;
+    private volatile List<RegistryClient.Endpoint> lanCandidates = List.of();
+    private volatile List<InetSocketAddress> stableEndpoints = List.of(); // Carried by extended share codes
+    // Gathered once at start, reused when candidates are refreshed
+    private volatile InetSocketAddress forwardedAddress;
+    private volatile List<InetSocketAddress> relayedAddresses = List.of();
+    private volatile NatBehavior hostNat; // Null until classified
+    // Registrations with more registries, following the primary's code
+    private final List<RegistryClient> mirrors = new CopyOnWriteArrayList<>();
+    private volatile String mirroredCode;
+    private final Set<ByteBuffer> tcpOffers = ConcurrentHashMap.newKeySet();
 
-    private DatagramSocket punchSocket;
     private final ConcurrentHashMap<InetSocketAddress, TcpBridge> bridges = new ConcurrentHashMap<>();
+    // Bridges indexed by the local port of their TCP socket, which is the
+    // remote port the MC server sees for the tunnelled player
+    private final ConcurrentHashMap<Integer, TcpBridge> bridgesByGamePort = new ConcurrentHashMap<>();
     private final AtomicBoolean running = new AtomicBoolean(false);
+    // Mirrors running, for per-packet hooks that must not take the
+    // getInstance() lock
+    private static volatile boolean hosting = false;
     private final AtomicInteger connectionIdCounter = new AtomicInteger(0);
+    // Bumped by stop(), so a start still gathering candidates gives up
+    private final AtomicInteger startGeneration = new AtomicInteger(0);
 
     private Consumer<String> onStatusChange;
     private String currentStatus = "Not hosting";
@@ -64,29 +105,114 @@ public class HostManager {
         return instance;
     }
 
-    private void setupEventHandlers() {
-        // Handle punch requests from registry
-        registry.setOnPunchRequest(punch -> {
-            LOGGER.info("[DirectConnect] Punch request from {}:{}", punch.clientIp, punch.clientPort);
+    private void onPunchRequest(RegistryClient.PunchRequest punch) {
+        LOGGER.info("[DirectConnect] Punch request from {}:{}", punch.clientIp, punch.clientPort);
+
+        // Send dummy UDP packets from the server socket to punch hole,
+        // spraying predicted ports if the client is behind a hard NAT
+        NetworkUtils.punchPredicted(udp, punch.clientIp, punch.clientPort, punch.clientNat);
+
+        // Then towards the client's own candidates: its IPv6 addresses get
+        // through our firewall only once we sent to them, and its LAN ones
+        // matter when we share its NAT
+        boolean sameNat = sharesPublicIp(punch.clientIp);
+        for (RegistryClient.Endpoint candidate : punch.clientCandidates) {
+            boolean ipv6 = NetworkUtils.isIpv6(candidate.ip);
+            if (Candidates.TYPE_RELAY.equals(candidate.type)
+                    || (candidate.ip.equals(punch.clientIp) && candidate.port == punch.clientPort)
+                    || (ipv6 && !udp.isDualStack())
+                    || (!ipv6 && NetworkUtils.isLocalNetwork(candidate.ip) && !sameNat)) {
+                continue;
+            }
+            NetworkUtils.punchPredicted(udp, candidate.ip, candidate.port, candidate.nat);
+        }
+    }
 
-            // Send dummy UDP packets to punch hole
-            if (punchSocket != null && !punchSocket.isClosed()) {
-                executor.submit(() -> {
-                    NetworkUtils.punchHole(punchSocket, punch.clientIp, punch.clientPort, 5);
-                });
+    /**
+     * Whether a client reaches the registry from our own public IPv4
+     * address, i.e. sits behind the same NAT.
+     */
+    private boolean sharesPublicIp(String clientIp) {
+        for (RegistryClient.Endpoint candidate : lanCandidates) {
+            if (Candidates.TYPE_WAN.equals(candidate.type) && candidate.ip.equals(clientIp)) {
+                return true;
             }
-        });
+        }
+        return false;
+    }
+
+    /**
+     * Picks the registry for a registration: the best one no other of our
+     * registrations uses, so a failover does not end up next to a mirror.
+     */
+    private String pickRegistry(RegistryClient client) {
+        Set<String> taken = new HashSet<>();
+        if (client != registry && registry.getRegistryUrl() != null) {
+            taken.add(registry.getRegistryUrl());
+        }
+        for (RegistryClient mirror : mirrors) {
+            if (mirror != client && mirror.getRegistryUrl() != null) {
+                taken.add(mirror.getRegistryUrl());
+            }
+        }
+        return RegistrySet.getInstance().ordered().stream()
+                .filter(url -> !taken.contains(url))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Registers with the best registry, moving on to the next one if it
+     * cannot be reached.
+     */
+    private CompletableFuture<Boolean> registerPrimary(RegistryClient.Registration reg, int attemptsLeft) {
+        return registry.register(reg.localIp(), reg.port(), config.getShareCode(), reg.wanIp(), reg.wanPort(),
+                reg.nat(), reg.candidates()).thenCompose(success -> {
+                    if (success || attemptsLeft <= 1) {
+                        return CompletableFuture.completedFuture(success);
+                    }
+                    return registerPrimary(reg, attemptsLeft - 1);
+                });
+    }
+
+    /**
+     * Registers the same code with more registries, so joiners whose lookup
+     * fails over find the host there.
+     */
+    private void registerMirrors(RegistryClient.Registration reg) {
+        mirroredCode = config.getShareCode();
+        int count = Math.min(config.getRegistryRedundancy(), config.getRegistryUrls().size()) - 1;
+        for (int i = 0; i < count; i++) {
+            RegistryClient mirror = new RegistryClient(true);
+            mirror.setOnPunchRequest(this::onPunchRequest);
+            mirror.setRegistrySelector(() -> pickRegistry(mirror));
+            mirror.setRegistrationRefresher(this::refreshRegistration);
+            mirrors.add(mirror);
+            mirror.register(reg.localIp(), reg.port(), config.getShareCode(), reg.wanIp(), reg.wanPort(),
+                    reg.nat(), reg.candidates());
+        }
+    }
+
+    private void setupEventHandlers() {
+        // Handle punch requests from registry
+        registry.setOnPunchRequest(this::onPunchRequest);
+        registry.setRegistrySelector(() -> pickRegistry(registry));
 
-        // Handle code assignment
+        // Handle code assignment; mirrors follow a new code
         registry.setOnCodeAssigned(code -> {
-            updateStatus("Hosting: p2p." + code);
+            updateStatus("Hosting: " + getFullUri());
+            if (!code.equals(mirroredCode)) {
+                mirroredCode = code;
+                mirrors.forEach(RegistryClient::reregister);
+            }
         });
 
-        // Handle registry disconnect
+        // Handle registry disconnect; the client reconnects by itself
         registry.setOnDisconnect(reason -> {
             LOGGER.warn("[DirectConnect] Registry disconnected: {}", reason);
-            updateStatus("Registry disconnected");
+            updateStatus("Registry disconnected, reconnecting...");
         });
+        registry.setRegistrationRefresher(this::refreshRegistration);
 
         // Handle UDP connections
         udp.setOnConnect(sender -> {
@@ -98,6 +224,7 @@ public class HostManager {
                     int connId = connectionIdCounter.incrementAndGet();
                     TcpBridge bridge = new TcpBridge(connId, sender, "127.0.0.1", MC_SERVER_PORT);
                     bridges.put(sender, bridge);
+                    bridgesByGamePort.put(bridge.getGamePort(), bridge);
                     bridge.start();
                 } catch (Exception e) {
                     LOGGER.error("[DirectConnect] Failed to create bridge: {}", e.getMessage());
@@ -113,6 +240,26 @@ public class HostManager {
             }
         });
 
+        // Follow sessions that move to a better path
+        udp.setOnMigrate((from, to) -> {
+            TcpBridge bridge = bridges.remove(from);
+            if (bridge != null) {
+                bridge.remoteAddress = to;
+                bridges.put(to, bridge);
+                LOGGER.info("[DirectConnect] Tunnel #{} moved to {}", bridge.connectionId, to);
+            }
+        });
+
+        // Joiners offering a punched TCP connection instead of the tunnel
+        udp.setOnControl((sender, payload) -> {
+            byte[] nonce = TcpPunch.parseOffer(payload);
+            TcpBridge bridge = bridges.get(sender);
+            if (nonce != null && config.isTcpPunch() && !udp.isRelayed(sender)
+                    && (bridge == null || !bridge.hasStreamed()) && tcpOffers.add(ByteBuffer.wrap(nonce))) {
+                acceptTcpOffer(sender, nonce);
+            }
+        });
+
         // Handle UDP disconnect
         udp.setOnDisconnect(sender -> {
             LOGGER.info("[DirectConnect] Client disconnected: {}", sender);
@@ -136,52 +283,138 @@ public class HostManager {
 
         LOGGER.info("[DirectConnect] Starting P2P host...");
         updateStatus("Starting...");
+        int generation = startGeneration.get();
 
         try {
             // 1. Get UDP port
             int port = config.getUdpPort();
 
-            // 2. Create separate socket for hole punching
-            punchSocket = NetworkUtils.createUdpSocket();
-            LOGGER.info("[DirectConnect] Punch socket on port {}", punchSocket.getLocalPort());
-
-            // 3. Start reliable UDP server
+            // 2. Start reliable UDP server (also used for STUN and punching)
+            int features = ReliableUdp.FEATURE_MIGRATION | ReliableUdp.FEATURE_MULTIPATH;
+            if (config.isTcpPunch()) {
+                features |= ReliableUdp.FEATURE_TCP_PUNCH; // Joiners skip the offer otherwise
+            }
+            udp.setFeatures(features);
             if (!udp.startServer(port)) {
                 throw new IOException("Failed to start UDP server");
             }
             LOGGER.info("[DirectConnect] UDP server started on port {}", port);
+            // Joiners decide whether to use multipath; duplicate back when they do
+            udp.setDuplicateSmall(config.isMultipathDuplicate());
 
-            // 4. Get local and public IP
+            // 3. Get local IP
             String localIp = NetworkUtils.getLocalIp();
 
-            // Use STUN to detect public WAN IP (works behind CGNAT)
-            java.net.InetSocketAddress publicAddr = NetworkUtils.getPublicAddress(punchSocket);
-            String wanIp = publicAddr != null ? publicAddr.getAddress().getHostAddress() : null;
-            int wanPort = publicAddr != null ? publicAddr.getPort() : port;
+            // Offer LAN joiners a direct TCP connection if the game port
+            // is reachable from the network
+            if (config.isLanFastPath()) {
+                executor.submit(() -> advertiseGamePort(localIp));
+            }
+
+            // Announce on the LAN right away; LAN joiners need nothing else
+            if (config.isLanDiscovery()) {
+                lanCandidates = Candidates.gather(port, localIp, null, null, null, List.of(), null,
+                        udp.isDualStack());
+                LanDiscovery.getInstance().announce(config::getShareCode, () -> lanCandidates);
+            }
 
-            if (wanIp != null) {
-                LOGGER.info("[DirectConnect] STUN detected WAN: {}:{}", wanIp, wanPort);
+            // 4. Ask the router to forward the port, in parallel with STUN
+            CompletableFuture<InetSocketAddress> forwarded;
+            if (config.isPortMapping()) {
+                portMapper = new PortMapper(port, localIp);
+                forwarded = portMapper.start(PORT_MAPPING_TIMEOUT_MS);
             } else {
-                LOGGER.warn("[DirectConnect] STUN failed, using local IP only");
+                forwarded = CompletableFuture.completedFuture(null);
             }
 
-            // 5. Register with registry (send both local and WAN IP)
-            String shareCode = config.getShareCode();
+            // 5. Allocate fallback ports on any configured relays
+            relayClient = new RelayClient(udp);
+            CompletableFuture<List<InetSocketAddress>> relayed = relayClient
+                    .allocateAll(config.getRelayServers(), RELAY_TIMEOUT_MS)
+                    .exceptionally(e -> List.of());
+
+            // 6. Query all STUN servers at once on the server socket to detect
+            // its public WAN mapping. Runs asynchronously so the server
+            // thread is not held up.
+            stunClient = new StunClient(udp, NetworkUtils.STUN_SERVERS);
+            stunClient.start(config.getStunRefreshInterval());
+            CompletableFuture<InetSocketAddress> discovered = stunClient.discover().exceptionally(e -> null);
+
+            // Classify the NAT in front of it meanwhile; the class follows
+            // in an update, so slow tests do not hold registration back
+            CompletableFuture<NatBehavior> classified = discovered.thenCompose(publicAddr -> NatBehavior
+                    .classify(udp, localIp, publicAddr, stunClient.getMappingServer()));
+
+            discovered
+                    .thenCombine(forwarded.exceptionally(e -> null), (publicAddr, fwd) -> {
+                        String wanIp = publicAddr != null ? publicAddr.getAddress().getHostAddress() : null;
+                        int wanPort = publicAddr != null ? publicAddr.getPort() : port;
+
+                        if (wanIp != null) {
+                            LOGGER.info("[DirectConnect] STUN detected WAN: {}:{}", wanIp, wanPort);
+                        } else {
+                            LOGGER.warn("[DirectConnect] STUN failed, using local IP only");
+                        }
 
-            registry.register(localIp, port, shareCode, wanIp, wanPort)
+                        return relayed.thenCompose(relays -> {
+                            if (generation != startGeneration.get()) {
+                                return CompletableFuture.completedFuture(false); // Stopped meanwhile
+                            }
+
+                            // 7. Gather candidates on every interface plus the
+                            // forwarded, reflexive and relayed ones
+                            NatBehavior nat = classified.getNow(null); // Usually still classifying
+                            hostNat = nat;
+                            List<RegistryClient.Endpoint> candidates = Candidates.gather(port, localIp, publicAddr,
+                                    stunClient.getCachedMapping6(), fwd, relays, nat, udp.isDualStack());
+                            LOGGER.info("[DirectConnect] Gathered {} candidates: {}", candidates.size(), candidates);
+                            lanCandidates = candidates;
+                            stableEndpoints = stableEndpoints(fwd, stunClient.getCachedMapping6());
+                            forwardedAddress = fwd;
+                            relayedAddresses = relays;
+
+                            // 8. Register with the best registry, then mirror
+                            // the code to more of them
+                            RegistryClient.Registration reg = new RegistryClient.Registration(localIp, port,
+                                    wanIp, wanPort, nat, candidates);
+                            return registerPrimary(reg, config.getRegistryUrls().size()).thenApply(success -> {
+                                if (success) {
+                                    registerMirrors(reg);
+                                }
+                                if (nat == null) {
+                                    classified.thenAccept(behavior -> publishNat(generation, behavior));
+                                }
+                                return success;
+                            });
+                        });
+                    })
+                    .thenCompose(registration -> registration)
                     .thenAccept(success -> {
+                        if (generation != startGeneration.get()) {
+                            return; // Stopped while starting, already torn down
+                        }
                         if (success) {
                             running.set(true);
-                            updateStatus("Hosting: p2p." + config.getShareCode());
-                            LOGGER.info("[DirectConnect] Hosting started: p2p.{}", config.getShareCode());
+                            hosting = true;
+                            updateStatus("Hosting: " + getFullUri());
+                            LOGGER.info("[DirectConnect] Hosting started: {}", getFullUri());
+                        } else if (config.isLanDiscovery() && LanDiscovery.getInstance().isRunning()) {
+                            // No registry (e.g. offline): still reachable on the LAN
+                            running.set(true);
+                            hosting = true;
+                            updateStatus("Hosting on LAN only: p2p." + config.getShareCode());
+                            LOGGER.warn("[DirectConnect] Registry unreachable, hosting on LAN only: p2p.{}",
+                                    config.getShareCode());
                         } else {
                             LOGGER.error("[DirectConnect] Failed to register with registry");
                             stop();
                         }
                     })
                     .exceptionally(e -> {
-                        LOGGER.error("[DirectConnect] Registration failed: {}", e.getMessage());
-                        stop();
+                        if (generation == startGeneration.get()) {
+                            LOGGER.error("[DirectConnect] Registration failed: {}", e.getMessage());
+                            stop();
+                        }
                         return null;
                     });
 
@@ -193,33 +426,99 @@ public class HostManager {
         }
     }
 
+    /**
+     * Punches TCP towards a joiner that offered it and, if the joiner picks
+     * it, moves the joiner's bridge from the tunnel onto that connection.
+     */
+    private void acceptTcpOffer(InetSocketAddress sender, byte[] nonce) {
+        InetSocketAddress target = new InetSocketAddress(sender.getAddress(), sender.getPort());
+        TcpPunch.open(udp.getLocalPort(), target, TCP_PUNCH_TIMEOUT_MS, executor).thenAcceptAsync(socket -> {
+            tcpOffers.remove(ByteBuffer.wrap(nonce));
+            if (socket == null) {
+                return;
+            }
+            try {
+                TcpBridge bridge = bridges.get(sender);
+                if (bridge != null && TcpPunch.accept(socket, nonce) && TcpPunch.awaitCommit(socket)
+                        && bridge.useDirect(socket)) {
+                    TcpPunch.confirm(socket);
+                    return;
+                }
+            } catch (IOException e) {
+                LOGGER.debug("[DirectConnect] TCP punch handshake with {} failed: {}", sender, e.getMessage());
+            }
+            TcpPunch.closeQuietly(socket);
+        }, executor);
+    }
+
+    /**
+     * Advertises the game port to joiners if it accepts connections on the
+     * LAN address, not just on loopback.
+     */
+    private void advertiseGamePort(String localIp) {
+        try (Socket probe = new Socket()) {
+            probe.connect(new InetSocketAddress(localIp, MC_SERVER_PORT), 500);
+            udp.setAdvertisedTcpPort(MC_SERVER_PORT);
+            LOGGER.info("[DirectConnect] Game port {} reachable on the LAN, offering direct connections",
+                    MC_SERVER_PORT);
+        } catch (IOException e) {
+            LOGGER.info("[DirectConnect] Game port {} not reachable on {}, LAN joiners will use the tunnel",
+                    MC_SERVER_PORT, localIp);
+        }
+    }
+
     /**
      * Stops hosting the server.
+     *
+     * Tears everything down whether or not hosting ever came up: a start
+     * that failed or is still registering has already opened the socket,
+     * STUN, relays and the registry connection with its reconnect loop.
+     * Every step is safe to repeat, so stopping twice is harmless.
      */
-    public void stop() {
-        if (!running.getAndSet(false)) {
-            return;
+    public synchronized void stop() {
+        startGeneration.incrementAndGet();
+        boolean wasRunning = running.getAndSet(false);
+        hosting = false;
+        if (wasRunning) {
+            LOGGER.info("[DirectConnect] Stopping P2P host...");
         }
 
-        LOGGER.info("[DirectConnect] Stopping P2P host...");
+        // Release the router port mapping, even if registration never finished
+        if (portMapper != null) {
+            portMapper.stop();
+            portMapper = null;
+        }
+        LanDiscovery.getInstance().stopAnnouncing();
 
         // Close all bridges
         bridges.values().forEach(TcpBridge::close);
         bridges.clear();
+        bridgesByGamePort.clear();
 
-        // Stop UDP
-        udp.stop();
-
-        // Close punch socket
-        if (punchSocket != null && !punchSocket.isClosed()) {
-            punchSocket.close();
+        // Stop STUN and relay refreshes, then UDP
+        if (relayClient != null) {
+            relayClient.stop();
+            relayClient = null;
+        }
+        stableEndpoints = List.of();
+        forwardedAddress = null;
+        relayedAddresses = List.of();
+        hostNat = null;
+        if (stunClient != null) {
+            stunClient.stop();
+            stunClient = null;
         }
+        udp.stop();
 
-        // Disconnect from registry
+        // Disconnect from registries
         registry.disconnect();
+        mirrors.forEach(RegistryClient::disconnect);
+        mirrors.clear();
 
         updateStatus("Not hosting");
-        LOGGER.info("[DirectConnect] Hosting stopped");
+        if (wasRunning) {
+            LOGGER.info("[DirectConnect] Hosting stopped");
+        }
     }
 
     /**
@@ -240,12 +539,164 @@ public class HostManager {
         return running.get();
     }
 
+    /**
+     * Whether this game is hosting, without creating the host.
+     */
+    public static boolean isHosting() {
+        return hosting;
+    }
+
     public String getShareCode() {
         return config.getShareCode();
     }
 
+    /**
+     * The address joiners enter. With endpoint embedding on and a stable
+     * endpoint known, it is an extended share code that lets them connect
+     * without a registry lookup.
+     */
     public String getFullUri() {
-        return config.getFullShareUri();
+        List<InetSocketAddress> stable = stableEndpoints;
+        if (!config.isEmbedEndpoints() || stable.isEmpty()) {
+            return config.getFullShareUri();
+        }
+        return "p2p." + ShareCodes.encode(config.getShareCode(), stable);
+    }
+
+    /**
+     * Sends the NAT class to the registries once classified. Joiners
+     * looking the host up before then punch without port prediction.
+     */
+    private void publishNat(int generation, NatBehavior nat) {
+        if (generation != startGeneration.get() || nat.mapping == NatBehavior.Mapping.UNKNOWN) {
+            return;
+        }
+        hostNat = nat;
+        UnaryOperator<RegistryClient.Registration> withNat = reg -> withNat(reg, nat);
+        registry.update(withNat);
+        mirrors.forEach(mirror -> mirror.update(withNat));
+    }
+
+    private RegistryClient.Registration withNat(RegistryClient.Registration reg, NatBehavior nat) {
+        List<RegistryClient.Endpoint> candidates = new ArrayList<>();
+        for (RegistryClient.Endpoint candidate : reg.candidates()) {
+            // Only the reflexive candidate carries it, as Candidates.gather
+            boolean reflexive = reg.wanIp() != null && candidate.ip.equals(reg.wanIp())
+                    && candidate.port == reg.wanPort() && Candidates.TYPE_WAN.equals(candidate.type);
+            candidates.add(reflexive
+                    ? new RegistryClient.Endpoint(candidate.ip, candidate.port, candidate.type, nat, candidate.priority)
+                    : candidate);
+        }
+        lanCandidates = candidates;
+        return new RegistryClient.Registration(reg.localIp(), reg.port(), reg.wanIp(), reg.wanPort(), nat,
+                candidates);
+    }
+
+    /**
+     * Refreshes the WAN mapping before registering again after the registry
+     * connection dropped; it may have changed while the connection was down
+     * (e.g. a router reboot).
+     */
+    private CompletableFuture<RegistryClient.Registration> refreshRegistration(RegistryClient.Registration last) {
+        StunClient stun = stunClient;
+        if (stun == null) {
+            return CompletableFuture.completedFuture(last);
+        }
+        return stun.discover().exceptionally(e -> null).thenApply(mapped -> {
+            if (mapped == null) {
+                return last; // STUN unreachable: keep the last known mapping
+            }
+            List<RegistryClient.Endpoint> candidates = Candidates.gather(last.port(), last.localIp(), mapped,
+                    stun.getCachedMapping6(), forwardedAddress, relayedAddresses, hostNat, udp.isDualStack());
+            lanCandidates = candidates;
+            return new RegistryClient.Registration(last.localIp(), last.port(),
+                    mapped.getAddress().getHostAddress(), mapped.getPort(), hostNat, candidates);
+        });
+    }
+
+    /**
+     * Endpoints that stay valid while hosting: a port mapped on the router
+     * and a global IPv6 address, which rarely sits behind NAT. STUN
+     * mappings of a NAT are left out, they depend on who sends.
+     */
+    private static List<InetSocketAddress> stableEndpoints(InetSocketAddress forwarded, InetSocketAddress mapped6) {
+        List<InetSocketAddress> stable = new ArrayList<>();
+        if (forwarded != null) {
+            stable.add(forwarded);
+        }
+        if (mapped6 != null) {
+            stable.add(mapped6);
+        }
+        return stable;
+    }
+
+    /**
+     * Looks up tunnel statistics for a Minecraft connection.
+     *
+     * @param gameRemoteAddress The remote address the MC server sees for a
+     *                          player (the bridge's loopback socket)
+     * @return Stats of the P2P tunnel carrying that player, or null if the
+     *         player is not connected through P2P
+     */
+    public SessionStats getTunnelStats(SocketAddress gameRemoteAddress) {
+        TcpBridge bridge = findBridge(gameRemoteAddress);
+        // Punched TCP is paced by the kernel, not by us
+        return bridge != null && bridge.direct == null ? udp.getStats(bridge.remoteAddress) : null;
+    }
+
+    /**
+     * Stats of every tunnel still carried over ReliableUdp.
+     */
+    public List<SessionStats> getAllTunnelStats() {
+        List<SessionStats> all = new ArrayList<>();
+        for (TcpBridge bridge : bridges.values()) {
+            SessionStats stats = bridge.direct == null ? udp.getStats(bridge.remoteAddress) : null;
+            if (stats != null) {
+                all.add(stats);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Gets compression metrics for a tunnelled Minecraft connection, or null
+     * if no threshold has been chosen for it.
+     */
+    public CompressionStats getCompressionStats(SocketAddress gameRemoteAddress) {
+        TcpBridge bridge = findBridge(gameRemoteAddress);
+        return bridge != null ? bridge.compression : null;
+    }
+
+    void setCompressionStats(SocketAddress gameRemoteAddress, CompressionStats stats) {
+        TcpBridge bridge = findBridge(gameRemoteAddress);
+        if (bridge != null) {
+            bridge.compression = stats;
+        }
+    }
+
+    /**
+     * Describes every active tunnel, one line each.
+     */
+    public List<String> getTunnelSummaries() {
+        List<String> lines = new ArrayList<>();
+        for (TcpBridge bridge : bridges.values()) {
+            SessionStats stats = udp.getStats(bridge.remoteAddress);
+            String line = "#" + bridge.connectionId + " "
+                    + (stats != null ? stats.toString() : bridge.remoteAddress.toString());
+            if (bridge.compression != null) {
+                line += " " + bridge.compression;
+            }
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private TcpBridge findBridge(SocketAddress gameRemoteAddress) {
+        if (!(gameRemoteAddress instanceof InetSocketAddress inet) || inet.getAddress() == null
+                || !inet.getAddress().isLoopbackAddress()) {
+            return null;
+        }
+        return bridgesByGamePort.get(inet.getPort());
     }
 
     public String getStatus() {
@@ -267,11 +718,15 @@ public class HostManager {
 
     private class TcpBridge {
         private final int connectionId;
-        private final InetSocketAddress remoteAddress;
+        private volatile InetSocketAddress remoteAddress; // Changes if the session migrates
         private Socket tcpSocket;
         private InputStream tcpIn;
         private OutputStream tcpOut;
         private volatile boolean active = false;
+        private volatile CompressionStats compression;
+        private volatile Socket direct; // Punched TCP connection replacing the tunnel
+        private OutputStream directOut;
+        private boolean streamed; // Whether game bytes went over the tunnel; guarded by this
 
         TcpBridge(int connectionId, InetSocketAddress remoteAddress, String host, int port) throws IOException {
             this.connectionId = connectionId;
@@ -294,6 +749,11 @@ public class HostManager {
                         if (read == -1)
                             break;
 
+                        if (!streamOverTunnel()) {
+                            directOut.write(buffer, 0, read);
+                            continue;
+                        }
+
                         byte[] data = new byte[read];
                         System.arraycopy(buffer, 0, data, 0, read);
 
@@ -309,8 +769,70 @@ public class HostManager {
             });
         }
 
+        /**
+         * Notes that game bytes go over the tunnel, after which the bridge
+         * stays on it.
+         *
+         * @return false if the bridge has moved to TCP instead
+         */
+        private synchronized boolean streamOverTunnel() {
+            if (direct != null) {
+                return false;
+            }
+            streamed = true;
+            return true;
+        }
+
+        synchronized boolean hasStreamed() {
+            return streamed;
+        }
+
+        /**
+         * Moves the bridge onto a punched TCP connection, unless game bytes
+         * already went over the tunnel: they could still be in flight there.
+         *
+         * @return false if the bridge stays on the tunnel
+         */
+        boolean useDirect(Socket socket) throws IOException {
+            synchronized (this) {
+                if (streamed) {
+                    LOGGER.info("[DirectConnect] Tunnel #{} already carries the game, staying on UDP", connectionId);
+                    return false;
+                }
+                directOut = socket.getOutputStream();
+                direct = socket;
+            }
+            if (bridges.remove(remoteAddress, this)) {
+                udp.forget(remoteAddress);
+            }
+            LOGGER.info("[DirectConnect] Tunnel #{} switched to TCP with {}", connectionId,
+                    socket.getRemoteSocketAddress());
+
+            executor.submit(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = socket.getInputStream();
+                    int read;
+                    while (active && (read = in.read(buffer)) != -1) {
+                        tcpOut.write(buffer, 0, read);
+                    }
+                } catch (IOException e) {
+                    if (active) {
+                        LOGGER.debug("[DirectConnect] Direct TCP read error: {}", e.getMessage());
+                    }
+                } finally {
+                    close();
+                }
+            });
+            return true;
+        }
+
+        int getGamePort() {
+            return tcpSocket.getLocalPort();
+        }
+
         void sendToTcp(byte[] data) {
-            if (!active || tcpSocket.isClosed())
+            if (!active || tcpSocket.isClosed() || !streamOverTunnel())
                 return;
 
             try {
@@ -324,12 +846,21 @@ public class HostManager {
 
         void close() {
             active = false;
+            if (bridges.remove(remoteAddress, this)) {
+                udp.forget(remoteAddress);
+            }
+            if (bridgesByGamePort.remove(tcpSocket.getLocalPort(), this) && compression != null) {
+                LOGGER.info("[DirectConnect] Tunnel #{} closed: {}", connectionId, compression);
+            }
             try {
                 if (tcpSocket != null && !tcpSocket.isClosed()) {
                     tcpSocket.close();
                 }
             } catch (IOException ignored) {
             }
+            if (direct != null) {
+                TcpPunch.closeQuietly(direct);
+            }
         }
     }
 }
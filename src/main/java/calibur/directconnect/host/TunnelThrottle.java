@@ -0,0 +1,154 @@
+package calibur.directconnect.host;
+
+import calibur.directconnect.config.ModConfig;
+import calibur.directconnect.network.SessionStats;
+import net.minecraft.server.level.ServerPlayer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Sizes chunk sending for players connected through a P2P tunnel.
+ *
+ * Vanilla paces chunks using the rate the client reports back, which only
+ * reflects how fast the client can process them. Over a slow tunnel the
+ * initial chunk flood queues up in ReliableUdp and gameplay packets wait
+ * behind it. This caps chunks per tick at what the tunnel has been measured
+ * to deliver, and can optionally lower the view distance to match.
+ */
+public class TunnelThrottle {
+    // Typical size of a compressed chunk packet with lighting data
+    private static final double AVG_CHUNK_BYTES = 6 * 1024;
+    private static final int TICKS_PER_SECOND = 20;
+
+    // Allow sending slightly above the measured rate so the estimate can grow
+    private static final double PROBE_GAIN = 1.25;
+    // Back off once RTT rises this far above the minimum (tunnel is queueing)
+    private static final double QUEUE_THRESHOLD = 1.5;
+
+    // Used before the tunnel has delivered enough to measure (~2 Mbit/s)
+    private static final float INITIAL_CHUNKS_PER_TICK = 2.0f;
+    private static final float MIN_CHUNKS_PER_TICK = 0.5f;
+
+    // Target time to load the full view area after joining
+    private static final double VIEW_LOAD_SECONDS = 10.0;
+    // A capped view distance changes at most this often, and goes up only
+    // once the tunnel has this much headroom, so it does not flap with the
+    // rate estimate
+    private static final long VIEW_HOLD_MS = 10_000;
+    private static final double VIEW_RAISE_HEADROOM = 1.25;
+
+    record ViewCap(int distance, long changedAt) {
+    }
+
+    // Weak keys: a player's cap goes away with the player
+    private static final Map<ServerPlayer, ViewCap> viewCaps = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private TunnelThrottle() {
+    }
+
+    /**
+     * Caps the chunk rate requested by a client to its tunnel capacity.
+     *
+     * @param player  The player receiving chunks
+     * @param desired Chunks per tick requested by the client
+     * @return The chunk rate to use
+     */
+    public static float capChunksPerTick(ServerPlayer player, float desired) {
+        if (!ModConfig.getInstance().isAdaptiveChunkRate()) {
+            return desired;
+        }
+
+        SessionStats stats = getStats(player);
+        if (stats == null) {
+            return desired;
+        }
+
+        return capChunksPerTick(desired, stats.getDeliveryRate(), stats.getQueueingFactor());
+    }
+
+    /**
+     * The chunk cap for a tunnel with the given measurements.
+     *
+     * @param rate     Measured delivery rate in bytes/second, 0 if unknown
+     * @param queueing Ratio of smoothed to minimum RTT
+     */
+    static float capChunksPerTick(float desired, double rate, double queueing) {
+        if (rate <= 0) {
+            return Math.min(desired, INITIAL_CHUNKS_PER_TICK);
+        }
+
+        double cap = rate * PROBE_GAIN / (AVG_CHUNK_BYTES * TICKS_PER_SECOND);
+        if (queueing > QUEUE_THRESHOLD) {
+            cap /= queueing;
+        }
+
+        return (float) Math.min(desired, Math.max(MIN_CHUNKS_PER_TICK, cap));
+    }
+
+    /**
+     * Lowers a player's view distance if their tunnel cannot load the full
+     * area in reasonable time.
+     *
+     * @param player   The player
+     * @param distance The view distance vanilla would use
+     * @return The view distance to use
+     */
+    public static int capViewDistance(ServerPlayer player, int distance) {
+        ModConfig config = ModConfig.getInstance();
+        if (!config.isAdaptiveViewDistance()) {
+            return distance;
+        }
+
+        SessionStats stats = getStats(player);
+        if (stats == null) {
+            return distance;
+        }
+
+        double rate = stats.getDeliveryRate();
+        if (rate <= 0) {
+            return distance;
+        }
+
+        ViewCap previous = viewCaps.get(player);
+        ViewCap cap = nextViewCap(previous, rate, config.getMinTunnelViewDistance(), System.currentTimeMillis());
+        if (cap != previous) {
+            viewCaps.put(player, cap);
+        }
+        return Math.min(distance, cap.distance);
+    }
+
+    /**
+     * Moves a view distance cap with the measured rate: down as soon as the
+     * hold time has passed, up only with headroom.
+     *
+     * @param cap The current cap, null on the first measurement
+     */
+    static ViewCap nextViewCap(ViewCap cap, double rate, int min, long now) {
+        int lowered = Math.max(min, supportedViewDistance(rate));
+        if (cap == null) {
+            return new ViewCap(lowered, now);
+        }
+        if (now - cap.changedAt < VIEW_HOLD_MS) {
+            return cap;
+        }
+        int raised = Math.max(min, supportedViewDistance(rate / VIEW_RAISE_HEADROOM));
+        int next = lowered < cap.distance ? lowered : Math.max(cap.distance, raised);
+        return next != cap.distance ? new ViewCap(next, now) : cap;
+    }
+
+    private static int supportedViewDistance(double rate) {
+        // A view distance d covers (2d + 1)^2 chunks
+        double chunks = rate / AVG_CHUNK_BYTES * VIEW_LOAD_SECONDS;
+        return (int) ((Math.sqrt(chunks) - 1) / 2);
+    }
+
+    private static SessionStats getStats(ServerPlayer player) {
+        HostManager host = HostManager.getInstance();
+        if (!host.isRunning() || player.connection == null) {
+            return null;
+        }
+        return host.getTunnelStats(player.connection.getRemoteAddress());
+    }
+}
@@ -0,0 +1,27 @@
+package calibur.directconnect.mixin;
+
+import calibur.directconnect.host.TunnelThrottle;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.network.ServerGamePacketListenerImpl;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.ModifyArg;
+
+/**
+ * Mixin to cap the chunk send rate of P2P players to their tunnel capacity.
+ */
+@Mixin(ServerGamePacketListenerImpl.class)
+public class ChunkSendRateMixin {
+    @Shadow
+    public ServerPlayer player;
+
+    /**
+     * Caps the desired chunks per tick reported by the client before it
+     * reaches the player's chunk sender.
+     */
+    @ModifyArg(method = "handleChunkBatchReceived", at = @At(value = "INVOKE", target = "Lnet/minecraft/server/network/PlayerChunkSender;onChunkBatchReceivedByClient(F)V"))
+    private float capDesiredChunksPerTick(float desiredChunksPerTick) {
+        return TunnelThrottle.capChunksPerTick(player, desiredChunksPerTick);
+    }
+}
@@ -0,0 +1,53 @@
+package calibur.directconnect.mixin;
+
+import calibur.directconnect.host.CompressionPolicy;
+import calibur.directconnect.host.CompressionStats;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import net.minecraft.network.CompressionEncoder;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Mixin to measure compression CPU time and bytes saved per tunnelled
+ * connection on the host. Each encoder belongs to one channel and runs on
+ * its event loop, so plain fields are enough to carry state from HEAD to
+ * RETURN. The metrics are looked up on the first packet; encoders of other
+ * connections then skip the measuring entirely.
+ */
+@Mixin(CompressionEncoder.class)
+public class CompressionMetricsMixin {
+    @Unique
+    private boolean statsLookedUp;
+    @Unique
+    private CompressionStats stats; // Null if this connection is not measured
+    @Unique
+    private long encodeStart;
+    @Unique
+    private int rawBytes;
+    @Unique
+    private int outStart;
+
+    @Inject(method = "encode(Lio/netty/channel/ChannelHandlerContext;Lio/netty/buffer/ByteBuf;Lio/netty/buffer/ByteBuf;)V", at = @At("HEAD"))
+    private void beforeEncode(ChannelHandlerContext ctx, ByteBuf from, ByteBuf to, CallbackInfo ci) {
+        if (!statsLookedUp) {
+            statsLookedUp = true;
+            stats = CompressionPolicy.statsFor(ctx.channel().remoteAddress());
+        }
+        if (stats != null) {
+            rawBytes = from.readableBytes();
+            outStart = to.writerIndex();
+            encodeStart = System.nanoTime();
+        }
+    }
+
+    @Inject(method = "encode(Lio/netty/channel/ChannelHandlerContext;Lio/netty/buffer/ByteBuf;Lio/netty/buffer/ByteBuf;)V", at = @At("RETURN"))
+    private void afterEncode(ChannelHandlerContext ctx, ByteBuf from, ByteBuf to, CallbackInfo ci) {
+        if (stats != null) {
+            stats.record(rawBytes, to.writerIndex() - outStart, System.nanoTime() - encodeStart);
+        }
+    }
+}
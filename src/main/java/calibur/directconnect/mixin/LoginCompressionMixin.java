@@ -0,0 +1,32 @@
+package calibur.directconnect.mixin;
+
+import calibur.directconnect.host.CompressionPolicy;
+import net.minecraft.network.Connection;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerLoginPacketListenerImpl;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Redirect;
+
+/**
+ * Mixin to pick the compression threshold per P2P tunnel during login.
+ * Login announces the same value it hands to the server's setupCompression,
+ * so this covers both ends without touching client connections.
+ */
+@Mixin(ServerLoginPacketListenerImpl.class)
+public class LoginCompressionMixin {
+    @Shadow
+    @Final
+    Connection connection;
+
+    /**
+     * Replaces the global threshold with the one chosen for this connection.
+     * Returning -1 skips the compression packet entirely.
+     */
+    @Redirect(method = "verifyLoginAndFinishConnectionSetup", at = @At(value = "INVOKE", target = "Lnet/minecraft/server/MinecraftServer;getCompressionThreshold()I"))
+    private int choosePerTunnelThreshold(MinecraftServer server) {
+        return CompressionPolicy.chooseThreshold(connection.getRemoteAddress(), server.getCompressionThreshold());
+    }
+}
@@ -0,0 +1,25 @@
+package calibur.directconnect.mixin;
+
+import calibur.directconnect.host.TunnelThrottle;
+import net.minecraft.server.level.ChunkMap;
+import net.minecraft.server.level.ServerPlayer;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+/**
+ * Mixin to lower the effective view distance of P2P players on slow tunnels.
+ */
+@Mixin(ChunkMap.class)
+public class TunnelViewDistanceMixin {
+
+    @Inject(method = "getPlayerViewDistance", at = @At("RETURN"), cancellable = true)
+    private void capTunnelViewDistance(ServerPlayer player, CallbackInfoReturnable<Integer> cir) {
+        int distance = cir.getReturnValue();
+        int capped = TunnelThrottle.capViewDistance(player, distance);
+        if (capped != distance) {
+            cir.setReturnValue(capped);
+        }
+    }
+}
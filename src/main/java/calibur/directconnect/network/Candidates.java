@@ -0,0 +1,181 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ICE-style candidate gathering and prioritization (RFC 8445, simplified).
+ *
+ * Candidates are the endpoints registered for a host: one per local
+ * interface, a port forwarded by the router, the server-reflexive mapping
+ * from STUN and, when available, relayed addresses. Each gets an ICE priority so joiners check the most
+ * promising paths first.
+ */
+public class Candidates {
+    // Endpoint types, as exchanged with the registry
+    public static final String TYPE_LAN = "LAN"; // Host candidate
+    public static final String TYPE_WAN = "WAN"; // Server-reflexive candidate
+    public static final String TYPE_RELAY = "RELAY"; // Relayed candidate
+
+    // RFC 8445 section 5.1.2.2 recommended type preferences
+    private static final int PREF_HOST = 126;
+    private static final int PREF_MAPPED = 126; // Router-forwarded port, as reliable as a host candidate
+    private static final int PREF_SRFLX = 100;
+    private static final int PREF_RELAY = 0;
+
+    private static final int MAX_LOCAL_PREF = 65535;
+    private static final int COMPONENT_ID = 1;
+
+    private Candidates() {
+    }
+
+    /**
+     * Computes an ICE candidate priority.
+     *
+     * @param type      Endpoint type
+     * @param localPref Preference among candidates of the same type (0-65535)
+     */
+    public static int priority(String type, int localPref) {
+        return (typePreference(type) << 24) | ((localPref & 0xFFFF) << 8) | (256 - COMPONENT_ID);
+    }
+
+    /**
+     * Default priority for an endpoint whose peer sent none.
+     */
+    public static int defaultPriority(String type) {
+        return priority(type, MAX_LOCAL_PREF);
+    }
+
+    private static int typePreference(String type) {
+        switch (type) {
+            case TYPE_LAN:
+                return PREF_HOST;
+            case TYPE_WAN:
+                return PREF_SRFLX;
+            case TYPE_RELAY:
+                return PREF_RELAY;
+            default:
+                return PREF_SRFLX;
+        }
+    }
+
+    /**
+     * Computes the priority of a candidate pair (RFC 8445 section 6.1.2.3).
+     *
+     * @param controlling Priority of the controlling agent's candidate (joiner)
+     * @param controlled  Priority of the controlled agent's candidate (host)
+     */
+    public static long pairPriority(int controlling, int controlled) {
+        long g = controlling & 0xFFFFFFFFL;
+        long d = controlled & 0xFFFFFFFFL;
+        return (Math.min(g, d) << 32) + 2 * Math.max(g, d) + (g > d ? 1 : 0);
+    }
+
+    /**
+     * Gathers the host's candidates.
+     *
+     * IPv6 host candidates rank above IPv4 ones of the same type (RFC 8421),
+     * so joiners with working IPv6 try it first.
+     *
+     * @param port      Port of the tunnel socket
+     * @param preferred Preferred local IPv4 address (ranked first among IPv4)
+     * @param mapped    Server-reflexive IPv4 mapping from STUN, or null
+     * @param mapped6   IPv6 address seen by STUN, or null
+     * @param forwarded Port mapping granted by the router, or null
+     * @param relayed   Ports allocated on relays
+     * @param nat       NAT behavior attached to the reflexive candidate
+     * @param ipv6      Whether the tunnel socket can carry IPv6
+     * @return Candidates, highest priority first
+     */
+    public static List<Endpoint> gather(int port, String preferred, InetSocketAddress mapped,
+            InetSocketAddress mapped6, InetSocketAddress forwarded, List<InetSocketAddress> relayed, NatBehavior nat,
+            boolean ipv6) {
+        List<Endpoint> candidates = new ArrayList<>();
+
+        // Reachable from anywhere without punching, so checked first
+        if (forwarded != null) {
+            candidates.add(new Endpoint(forwarded.getAddress().getHostAddress(), forwarded.getPort(),
+                    TYPE_WAN, null, (PREF_MAPPED << 24) | (MAX_LOCAL_PREF << 8) | (256 - COMPONENT_ID)));
+        }
+
+        List<String> localIps = NetworkUtils.getAllLocalIps(ipv6);
+        if (preferred != null && localIps.remove(preferred)) {
+            // Keep it after the IPv6 addresses, ahead of other IPv4 ones
+            int firstIpv4 = 0;
+            while (firstIpv4 < localIps.size() && NetworkUtils.isIpv6(localIps.get(firstIpv4))) {
+                firstIpv4++;
+            }
+            localIps.add(firstIpv4, preferred);
+        }
+
+        int localPref = MAX_LOCAL_PREF;
+        for (String ip : localIps) {
+            candidates.add(new Endpoint(ip, port, TYPE_LAN, null, priority(TYPE_LAN, localPref)));
+            localPref = Math.max(0, localPref - 1000);
+        }
+
+        // Only differs from a host candidate behind NPTv6 or a NAT66
+        if (mapped6 != null && ipv6 && !localIps.contains(mapped6.getAddress().getHostAddress())) {
+            candidates.add(new Endpoint(mapped6.getAddress().getHostAddress(), mapped6.getPort(),
+                    TYPE_WAN, null, defaultPriority(TYPE_WAN)));
+        }
+
+        if (mapped != null && !mapped.equals(forwarded)) {
+            candidates.add(new Endpoint(mapped.getAddress().getHostAddress(), mapped.getPort(),
+                    TYPE_WAN, nat, priority(TYPE_WAN, MAX_LOCAL_PREF - 1000)));
+        }
+
+        // Last resort, works whatever both NATs do
+        localPref = MAX_LOCAL_PREF;
+        for (InetSocketAddress relay : relayed) {
+            candidates.add(new Endpoint(relay.getAddress().getHostAddress(), relay.getPort(),
+                    TYPE_RELAY, null, priority(TYPE_RELAY, localPref)));
+            localPref = Math.max(0, localPref - 1000);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Serializes candidates for the registry.
+     */
+    public static JsonArray toJson(List<Endpoint> candidates) {
+        JsonArray arr = new JsonArray();
+        for (Endpoint candidate : candidates) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("ip", candidate.ip);
+            obj.addProperty("port", candidate.port);
+            obj.addProperty("type", candidate.type);
+            obj.addProperty("priority", candidate.priority);
+            arr.add(obj);
+        }
+        return arr;
+    }
+
+    /**
+     * Reads candidates serialized by {@link #toJson}.
+     *
+     * @param arr Candidate array
+     * @param nat Host NAT behavior to attach to WAN candidates, or null
+     */
+    public static List<Endpoint> fromJson(JsonArray arr, NatBehavior nat) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (int i = 0; i < arr.size(); i++) {
+            JsonObject ep = arr.get(i).getAsJsonObject();
+            String type = ep.get("type").getAsString();
+            int priority = ep.has("priority") ? ep.get("priority").getAsInt() : defaultPriority(type);
+            endpoints.add(new Endpoint(
+                    ep.get("ip").getAsString(),
+                    ep.get("port").getAsInt(),
+                    type,
+                    TYPE_WAN.equals(type) ? nat : null,
+                    priority));
+        }
+        return endpoints;
+    }
+}
@@ -0,0 +1,167 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Compact DATA/ACK header used between peers that agreed on protocol
+ * version 2.
+ *
+ * <pre>
+ * [flags 1][connection id 8]?[packet number 1-4]?[ack block]?[payload]
+ *
+ * flags: 1 D A C 0 0 L L
+ *   D  = carries data: packet number and payload follow
+ *   A  = carries an ack block
+ *   C  = connection ID present (reserved, skipped by receivers)
+ *   LL = packet number length - 1
+ *
+ * ack block: [varint largest][varint count - 1][varint gap]...
+ * </pre>
+ *
+ * Packet numbers are truncated to the fewest bytes the receiver can rebuild
+ * them from, given the highest number it has seen (as in QUIC, RFC 9000
+ * appendix A). Unlike QUIC's, they are 32-bit and wrap, so decoding and
+ * ack gaps use serial number arithmetic. Acks are listed in descending order, each as its distance
+ * from the previous one, so a burst of acks costs about a byte apiece
+ * instead of a 5-byte datagram each.
+ */
+final class CompactHeader {
+    static final int MARKER = 0x80; // Clear in every v1 type, relay and STUN message
+    static final int FLAG_DATA = 0x40;
+    static final int FLAG_ACK = 0x20;
+    static final int FLAG_CONNECTION_ID = 0x10;
+    static final int PN_LENGTH_MASK = 0x03;
+    static final int CONNECTION_ID_SIZE = 8;
+    static final int MAX_ACKS = 64;
+    static final int MAX_HEADER_SIZE = 1 + CONNECTION_ID_SIZE + 4 + 5 + 5 + MAX_ACKS * 5;
+
+    private CompactHeader() {
+    }
+
+    static boolean isCompact(byte first) {
+        return (first & MARKER) != 0;
+    }
+
+    /**
+     * Number of bytes to send a packet number in.
+     *
+     * @param range Largest distance between the packet number and any number
+     *              the receiver may have seen as its highest
+     */
+    static int packetNumberLength(long range) {
+        for (int length = 1; length < 4; length++) {
+            if (range < 1L << (8 * length - 1)) {
+                return length;
+            }
+        }
+        return 4;
+    }
+
+    static void writePacketNumber(ByteBuf buf, int packetNumber, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            buf.writeByte(packetNumber >>> (8 * i));
+        }
+    }
+
+    static long readPacketNumber(ByteBuf buf, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | buf.readUnsignedByte();
+        }
+        return value;
+    }
+
+    /**
+     * Rebuilds a full packet number as the one closest to the next expected,
+     * wrapping past 2^32 in either direction.
+     *
+     * @param highest   Highest packet number received so far
+     * @param truncated The truncated number as received
+     * @param length    Bytes it was sent in
+     */
+    static int decodePacketNumber(int highest, long truncated, int length) {
+        long expected = (highest & 0xFFFFFFFFL) + 1;
+        long window = 1L << (8 * length);
+        long halfWindow = window / 2;
+        long candidate = (expected & ~(window - 1)) | truncated;
+        if (candidate <= expected - halfWindow) {
+            return (int) (candidate + window);
+        }
+        if (candidate > expected + halfWindow) {
+            return (int) (candidate - window);
+        }
+        return (int) candidate;
+    }
+
+    /**
+     * Writes an ack block.
+     *
+     * @param acks  Packet numbers, descending in serial order (each one a
+     *              positive distance below the previous) without duplicates
+     * @param count How many of them to write (at least one)
+     */
+    static void writeAcks(ByteBuf buf, int[] acks, int count) {
+        writeVarint(buf, acks[0] & 0xFFFFFFFFL);
+        writeVarint(buf, count - 1);
+        for (int i = 1; i < count; i++) {
+            writeVarint(buf, acks[i - 1] - acks[i]);
+        }
+    }
+
+    /**
+     * Reads an ack block.
+     *
+     * @return false if the block is malformed
+     */
+    static boolean readAcks(ByteBuf buf, IntConsumer onAck) {
+        long largest = readVarint(buf);
+        long more = readVarint(buf);
+        if (largest < 0 || largest > 0xFFFFFFFFL || more < 0 || more >= MAX_ACKS) {
+            return false;
+        }
+        int ack = (int) largest;
+        onAck.accept(ack);
+        for (long i = 0; i < more; i++) {
+            long gap = readVarint(buf);
+            if (gap <= 0 || gap > Integer.MAX_VALUE) {
+                return false;
+            }
+            ack -= (int) gap;
+            onAck.accept(ack);
+        }
+        return true;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint (7 bits per byte).
+     */
+    static void writeVarint(ByteBuf buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte((int) value);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint of up to 5 bytes.
+     *
+     * @return The value, or -1 if it is truncated or too long
+     */
+    static long readVarint(ByteBuf buf) {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buf.isReadable()) {
+                return -1;
+            }
+            int b = buf.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,334 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Finds hosts on the local network without the registry.
+ *
+ * Hosts announce their share code and candidates on a site-local multicast
+ * group every few seconds and answer queries for their code right away.
+ * Joiners keep what they hear in a short-lived cache, so joining a host on
+ * the same LAN needs no internet round trip at all.
+ */
+public class LanDiscovery {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+    private static final Gson GSON = new Gson();
+
+    private static final String GROUP = "239.255.42.99"; // Organization-local scope (RFC 2365)
+    private static final int PORT = 4446;
+    private static final long ANNOUNCE_INTERVAL_MS = 2000;
+    private static final long ENTRY_TTL_MS = 3 * ANNOUNCE_INTERVAL_MS;
+    private static final int MAX_DATAGRAM = 4096;
+
+    private static LanDiscovery instance;
+
+    private MulticastSocket socket;
+    private InetSocketAddress group;
+    private final List<NetworkInterface> interfaces = new ArrayList<>();
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> announceTask;
+
+    private volatile Supplier<String> announcedCode;
+    private volatile Supplier<List<Endpoint>> announcedCandidates;
+
+    private final Map<String, CachedHost> cache = new ConcurrentHashMap<>();
+    private final Map<String, List<CompletableFuture<List<Endpoint>>>> waiting = new ConcurrentHashMap<>();
+
+    private record CachedHost(List<Endpoint> endpoints, long expiresAt) {
+    }
+
+    private LanDiscovery() {
+    }
+
+    public static synchronized LanDiscovery getInstance() {
+        if (instance == null) {
+            instance = new LanDiscovery();
+        }
+        return instance;
+    }
+
+    /**
+     * Joins the discovery group on every multicast-capable interface and
+     * starts listening. Safe to call more than once.
+     *
+     * @return true if listening
+     */
+    public synchronized boolean start() {
+        if (socket != null) {
+            return true;
+        }
+
+        try {
+            group = new InetSocketAddress(InetAddress.getByName(GROUP), PORT);
+            socket = new MulticastSocket(null);
+            socket.setReuseAddress(true); // Host and joiner may share a machine
+            socket.bind(new InetSocketAddress(PORT));
+            socket.setTimeToLive(1);
+
+            Enumeration<NetworkInterface> nis = NetworkInterface.getNetworkInterfaces();
+            while (nis != null && nis.hasMoreElements()) {
+                NetworkInterface ni = nis.nextElement();
+                try {
+                    if (ni.isUp() && ni.supportsMulticast() && hasIpv4(ni)) {
+                        socket.joinGroup(group, ni);
+                        interfaces.add(ni);
+                    }
+                } catch (Exception e) {
+                    LOGGER.debug("[DirectConnect] Cannot join LAN discovery on {}: {}", ni.getName(),
+                            e.getMessage());
+                }
+            }
+            if (interfaces.isEmpty()) {
+                throw new SocketException("no multicast-capable interface");
+            }
+
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "DirectConnect-LAN");
+                t.setDaemon(true);
+                return t;
+            });
+            Thread listener = new Thread(this::listen, "DirectConnect-LAN-Listener");
+            listener.setDaemon(true);
+            listener.start();
+
+            LOGGER.info("[DirectConnect] LAN discovery listening on {} ({} interfaces)", group, interfaces.size());
+            return true;
+        } catch (Exception e) {
+            LOGGER.warn("[DirectConnect] LAN discovery unavailable: {}", e.getMessage());
+            stop();
+            return false;
+        }
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        announceTask = null;
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+        interfaces.clear();
+        cache.clear();
+    }
+
+    public synchronized boolean isRunning() {
+        return socket != null;
+    }
+
+    private static boolean hasIpv4(NetworkInterface ni) {
+        return ni.inetAddresses().anyMatch(a -> a.getAddress().length == 4);
+    }
+
+    // --- Host side ---
+
+    /**
+     * Starts announcing a host. Both suppliers are read on every
+     * announcement, so a code reassigned by the registry or candidates
+     * gathered later are picked up.
+     */
+    public synchronized void announce(Supplier<String> code, Supplier<List<Endpoint>> candidates) {
+        if (!start()) {
+            return;
+        }
+        announcedCode = code;
+        announcedCandidates = candidates;
+        if (announceTask == null) {
+            announceTask = timer.scheduleAtFixedRate(this::sendAnnouncement, 0, ANNOUNCE_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops announcing and tells listeners to forget the host.
+     */
+    public synchronized void stopAnnouncing() {
+        if (announceTask != null) {
+            announceTask.cancel(false);
+            announceTask = null;
+        }
+        Supplier<String> code = announcedCode;
+        announcedCode = null;
+        announcedCandidates = null;
+        if (code != null && socket != null) {
+            JsonObject bye = new JsonObject();
+            bye.addProperty("type", "BYE");
+            bye.addProperty("code", code.get());
+            send(bye);
+        }
+    }
+
+    private void sendAnnouncement() {
+        Supplier<String> code = announcedCode;
+        Supplier<List<Endpoint>> candidates = announcedCandidates;
+        if (code == null || candidates == null) {
+            return;
+        }
+        List<Endpoint> endpoints = candidates.get();
+        if (endpoints.isEmpty()) {
+            return;
+        }
+
+        JsonObject msg = new JsonObject();
+        msg.addProperty("type", "ANNOUNCE");
+        msg.addProperty("code", code.get());
+        msg.add("candidates", Candidates.toJson(endpoints));
+        send(msg);
+    }
+
+    // --- Joiner side ---
+
+    /**
+     * Looks up a share code on the LAN.
+     *
+     * @param code      Share code without the p2p. prefix
+     * @param timeoutMs How long to wait for a host to answer a query when the
+     *                  code is not cached
+     * @return Future with the host's candidates, empty if no host answered
+     */
+    public CompletableFuture<List<Endpoint>> lookup(String code, long timeoutMs) {
+        String key = code.toLowerCase();
+        CachedHost cached = cache.get(key);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return CompletableFuture.completedFuture(cached.endpoints);
+        }
+        if (!start()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+
+        CompletableFuture<List<Endpoint>> result = new CompletableFuture<>();
+        waiting.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(result);
+
+        JsonObject query = new JsonObject();
+        query.addProperty("type", "QUERY");
+        query.addProperty("code", key);
+        send(query);
+
+        ScheduledExecutorService t = timer;
+        if (t != null) {
+            t.schedule(() -> {
+                List<CompletableFuture<List<Endpoint>>> pending = waiting.get(key);
+                if (pending != null) {
+                    pending.remove(result);
+                }
+                result.complete(List.of());
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    // --- Wire ---
+
+    private synchronized void send(JsonObject msg) {
+        if (socket == null) {
+            return;
+        }
+        byte[] data = GSON.toJson(msg).getBytes(StandardCharsets.UTF_8);
+        for (NetworkInterface ni : interfaces) {
+            try {
+                socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+                socket.send(new DatagramPacket(data, data.length, group));
+            } catch (Exception e) {
+                LOGGER.debug("[DirectConnect] LAN discovery send on {} failed: {}", ni.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private void listen() {
+        byte[] buf = new byte[MAX_DATAGRAM];
+        MulticastSocket s = socket;
+        while (s != null && !s.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                s.receive(packet);
+                handle(new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8),
+                        packet.getAddress());
+            } catch (Exception e) {
+                if (!s.isClosed()) {
+                    LOGGER.debug("[DirectConnect] LAN discovery receive failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(String json, InetAddress sender) {
+        JsonObject msg;
+        try {
+            msg = GSON.fromJson(json, JsonObject.class);
+        } catch (Exception e) {
+            return; // Not ours
+        }
+        if (msg == null || !msg.has("type") || !msg.has("code")) {
+            return;
+        }
+        String type = msg.get("type").getAsString();
+        String code = msg.get("code").getAsString().toLowerCase();
+
+        switch (type) {
+            case "QUERY": {
+                Supplier<String> ours = announcedCode;
+                if (ours != null && code.equals(ours.get().toLowerCase())) {
+                    sendAnnouncement();
+                }
+                break;
+            }
+
+            case "ANNOUNCE": {
+                List<Endpoint> endpoints;
+                try {
+                    endpoints = Candidates.fromJson(msg.getAsJsonArray("candidates"), null);
+                } catch (Exception e) {
+                    return;
+                }
+                // Only trust announcements sent from one of the host's own
+                // addresses
+                String from = sender.getHostAddress();
+                if (endpoints.isEmpty() || endpoints.stream().noneMatch(ep -> ep.ip.equals(from))) {
+                    return;
+                }
+
+                boolean isNew = cache.put(code, new CachedHost(endpoints,
+                        System.currentTimeMillis() + ENTRY_TTL_MS)) == null;
+                if (isNew) {
+                    LOGGER.debug("[DirectConnect] LAN host p2p.{} at {}", code, from);
+                }
+                List<CompletableFuture<List<Endpoint>>> pending = waiting.remove(code);
+                if (pending != null) {
+                    pending.forEach(f -> f.complete(endpoints));
+                }
+                break;
+            }
+
+            case "BYE":
+                cache.remove(code);
+                break;
+        }
+    }
+}
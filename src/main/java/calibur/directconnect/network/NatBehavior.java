@@ -0,0 +1,296 @@
+package calibur.directconnect.network;
+
+import com.google.gson.JsonObject;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * NAT mapping and filtering behavior, classified per RFC 5780.
+ *
+ * Hosts classify their NAT at startup and report it to the registry. When a
+ * peer's mapping depends on the destination, the port it reported is not the
+ * port it will use towards us, so punching sprays a set of predicted ports
+ * instead of a single one.
+ */
+public class NatBehavior {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    private static final long TEST_TIMEOUT_MS = 1000;
+
+    // How many ports on each side of the prediction to spray
+    private static final int PREDICTION_SPAN = 8;
+
+    public enum Mapping {
+        NO_NAT, ENDPOINT_INDEPENDENT, ADDRESS_DEPENDENT, ADDRESS_AND_PORT_DEPENDENT, UNKNOWN
+    }
+
+    public enum Filtering {
+        ENDPOINT_INDEPENDENT, ADDRESS_DEPENDENT, ADDRESS_AND_PORT_DEPENDENT, UNKNOWN
+    }
+
+    public final Mapping mapping;
+    public final Filtering filtering;
+    public final int portDelta; // Observed port increment between mappings, 0 if unknown
+    public final InetSocketAddress mappedAddress; // Public mapping seen by the first test
+
+    public NatBehavior(Mapping mapping, Filtering filtering, int portDelta, InetSocketAddress mappedAddress) {
+        this.mapping = mapping;
+        this.filtering = filtering;
+        this.portDelta = portDelta;
+        this.mappedAddress = mappedAddress;
+    }
+
+    /**
+     * A NAT is hard when its public port changes with the destination, so a
+     * port learned through the registry cannot be punched directly.
+     */
+    public boolean isHard() {
+        return mapping == Mapping.ADDRESS_DEPENDENT || mapping == Mapping.ADDRESS_AND_PORT_DEPENDENT;
+    }
+
+    /**
+     * Predicts the ports a peer behind this NAT is likely to use next.
+     * Sequential allocators are covered by stepping with the observed delta,
+     * others by a window around the reported port.
+     *
+     * @param reportedPort The peer's port as seen by the registry
+     * @return Candidate ports, most likely first
+     */
+    public List<Integer> predictPorts(int reportedPort) {
+        Set<Integer> ports = new LinkedHashSet<>();
+        ports.add(reportedPort);
+
+        if (isHard()) {
+            for (int k = 1; k <= PREDICTION_SPAN; k++) {
+                if (portDelta != 0) {
+                    ports.add(reportedPort + portDelta * k);
+                }
+                ports.add(reportedPort + k);
+                ports.add(reportedPort - k);
+            }
+        }
+
+        List<Integer> valid = new ArrayList<>();
+        for (int port : ports) {
+            if (port > 0 && port <= 65535) {
+                valid.add(port);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Serializes this behavior into registry fields with the given prefix.
+     */
+    public void writeTo(JsonObject json, String prefix) {
+        json.addProperty(prefix + "nat_mapping", mapping.name());
+        json.addProperty(prefix + "nat_filtering", filtering.name());
+        json.addProperty(prefix + "port_delta", portDelta);
+    }
+
+    /**
+     * Reads a behavior written by {@link #writeTo}, or null if absent.
+     */
+    public static NatBehavior readFrom(JsonObject json, String prefix) {
+        if (!json.has(prefix + "nat_mapping")) {
+            return null;
+        }
+
+        try {
+            Mapping mapping = Mapping.valueOf(json.get(prefix + "nat_mapping").getAsString());
+            Filtering filtering = json.has(prefix + "nat_filtering")
+                    ? Filtering.valueOf(json.get(prefix + "nat_filtering").getAsString())
+                    : Filtering.UNKNOWN;
+            int delta = json.has(prefix + "port_delta") ? json.get(prefix + "port_delta").getAsInt() : 0;
+            return new NatBehavior(mapping, filtering, delta, null);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * One binding test: a server's answer to a binding request, optionally
+     * sent back from its alternate IP and/or port.
+     */
+    @FunctionalInterface
+    public interface BindingTest {
+        /**
+         * @return The answer, completed exceptionally if none came
+         */
+        CompletableFuture<Answer> send(InetSocketAddress server, boolean changeIp, boolean changePort);
+    }
+
+    /**
+     * @param mapped Our mapping as the server saw it
+     * @param other  The server's OTHER-ADDRESS, null if it has none
+     */
+    public record Answer(InetSocketAddress mapped, InetSocketAddress other) {
+    }
+
+    /**
+     * Classifies the NAT in front of a UDP transport, see
+     * {@link #classify(BindingTest, List, String, InetSocketAddress)}.
+     *
+     * @param udp       Transport whose socket is classified
+     * @param localIp   Local LAN IP, to detect hosts with no NAT at all
+     * @param mapped    Mapping already discovered by the STUN client, or null
+     * @param mappedVia Server that reported that mapping
+     * @return The classified behavior (never completes exceptionally)
+     */
+    public static CompletableFuture<NatBehavior> classify(ReliableUdp udp, String localIp,
+            InetSocketAddress mapped, InetSocketAddress mappedVia) {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String[] server : NetworkUtils.STUN_SERVERS) {
+            try {
+                InetSocketAddress addr = new InetSocketAddress(server[0], Integer.parseInt(server[1]));
+                if (!addr.isUnresolved() && !addr.equals(mappedVia)) {
+                    servers.add(addr);
+                }
+            } catch (Exception ignored) {
+            }
+        }
+
+        BindingTest test = (server, changeIp, changePort) -> udp
+                .exchangeStun(server, StunCodec.bindingRequest(changeIp, changePort), TEST_TIMEOUT_MS)
+                .thenApply(NatBehavior::readAnswer);
+        return classify(test, servers, localIp, mapped);
+    }
+
+    /**
+     * Classifies the NAT the binding tests go through.
+     *
+     * Uses the RFC 5780 tests when a server advertises OTHER-ADDRESS.
+     * Otherwise mapping is estimated by comparing the mapping seen by a
+     * second server and filtering is left unknown. Test I goes to every
+     * server at once and the tests after it run in pairs, so a server
+     * that drops change requests costs one timeout, not one per test.
+     *
+     * @param test    Sends the binding requests
+     * @param servers Servers other than the one that reported the mapping
+     * @param localIp Local LAN IP, to detect hosts with no NAT at all
+     * @param mapped  Mapping already discovered, or null
+     * @return The classified behavior (never completes exceptionally)
+     */
+    public static CompletableFuture<NatBehavior> classify(BindingTest test, List<InetSocketAddress> servers,
+            String localIp, InetSocketAddress mapped) {
+        if (mapped == null) {
+            return CompletableFuture.completedFuture(new NatBehavior(Mapping.UNKNOWN, Filtering.UNKNOWN, 0, null));
+        }
+
+        if (mapped.getAddress().getHostAddress().equals(localIp)) {
+            NatBehavior open = new NatBehavior(Mapping.NO_NAT, Filtering.ENDPOINT_INDEPENDENT, 0, mapped);
+            LOGGER.info("[DirectConnect] NAT behavior: {}", open);
+            return CompletableFuture.completedFuture(open);
+        }
+
+        return firstWithOther(test, servers).thenCompose(first -> {
+            if (first == null) {
+                return CompletableFuture.completedFuture(new NatBehavior(Mapping.UNKNOWN, Filtering.UNKNOWN, 0,
+                        mapped));
+            }
+            Answer answer = first.answer;
+            if (answer.other == null) {
+                // No OTHER-ADDRESS anywhere: compare with a second server
+                if (answer.mapped.equals(mapped)) {
+                    return CompletableFuture.completedFuture(new NatBehavior(Mapping.ENDPOINT_INDEPENDENT,
+                            Filtering.UNKNOWN, 0, mapped));
+                }
+                return CompletableFuture.completedFuture(new NatBehavior(Mapping.ADDRESS_AND_PORT_DEPENDENT,
+                        Filtering.UNKNOWN, answer.mapped.getPort() - mapped.getPort(), mapped));
+            }
+
+            // Filtering tests first: tests II and III open the filter
+            // towards the alternate address the answers would come from
+            InetSocketAddress primary = first.server;
+            CompletableFuture<InetSocketAddress> changeBoth = mappedBy(test.send(primary, true, true));
+            CompletableFuture<InetSocketAddress> changePort = mappedBy(test.send(primary, false, true));
+            return changeBoth.thenCombine(changePort, (both, port) -> both != null
+                    ? Filtering.ENDPOINT_INDEPENDENT
+                    : port != null ? Filtering.ADDRESS_DEPENDENT : Filtering.ADDRESS_AND_PORT_DEPENDENT)
+                    .thenCompose(filtering -> {
+                        // Test II: same port, alternate IP; test III: alternate IP and port
+                        CompletableFuture<InetSocketAddress> test2 = mappedBy(test.send(
+                                new InetSocketAddress(answer.other.getAddress(), primary.getPort()), false, false));
+                        CompletableFuture<InetSocketAddress> test3 = mappedBy(test.send(answer.other, false, false));
+                        return test2.thenCombine(test3, (mapped2, mapped3) -> {
+                            InetSocketAddress mapped1 = answer.mapped;
+                            if (mapped2 == null) {
+                                return new NatBehavior(Mapping.UNKNOWN, filtering, 0, mapped);
+                            }
+                            if (mapped2.equals(mapped1) && mapped1.equals(mapped)) {
+                                return new NatBehavior(Mapping.ENDPOINT_INDEPENDENT, filtering, 0, mapped);
+                            }
+                            Mapping mapping = mapped2.equals(mapped3)
+                                    ? Mapping.ADDRESS_DEPENDENT
+                                    : Mapping.ADDRESS_AND_PORT_DEPENDENT;
+                            int delta = mapped2.getPort() != mapped1.getPort()
+                                    ? mapped2.getPort() - mapped1.getPort()
+                                    : mapped1.getPort() - mapped.getPort();
+                            return new NatBehavior(mapping, filtering, delta, mapped);
+                        });
+                    });
+        }).thenApply(behavior -> {
+            LOGGER.info("[DirectConnect] NAT behavior: {}", behavior);
+            return behavior;
+        });
+    }
+
+    private record Tested(InetSocketAddress server, Answer answer) {
+    }
+
+    /**
+     * Test I against every server at once. Completes with the first answer
+     * carrying OTHER-ADDRESS, else with the first answer once all are in,
+     * or null if none answered.
+     */
+    private static CompletableFuture<Tested> firstWithOther(BindingTest test, List<InetSocketAddress> servers) {
+        CompletableFuture<Tested> result = new CompletableFuture<>();
+        AtomicReference<Tested> firstAnswer = new AtomicReference<>();
+        AtomicInteger pending = new AtomicInteger(servers.size());
+        if (servers.isEmpty()) {
+            result.complete(null);
+        }
+        for (InetSocketAddress server : servers) {
+            test.send(server, false, false).whenComplete((answer, e) -> {
+                if (answer != null && answer.mapped != null) {
+                    Tested tested = new Tested(server, answer);
+                    firstAnswer.compareAndSet(null, tested);
+                    if (answer.other != null) {
+                        result.complete(tested);
+                    }
+                }
+                if (pending.decrementAndGet() == 0) {
+                    result.complete(firstAnswer.get());
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * The mapping an answer carries, or null if the test got no answer.
+     */
+    private static CompletableFuture<InetSocketAddress> mappedBy(CompletableFuture<Answer> answer) {
+        return answer.handle((a, e) -> a != null ? a.mapped : null);
+    }
+
+    private static Answer readAnswer(byte[] response) {
+        return new Answer(StunCodec.readMappedAddress(Unpooled.wrappedBuffer(response)),
+                StunCodec.readAddress(Unpooled.wrappedBuffer(response), StunCodec.ATTR_OTHER_ADDRESS));
+    }
+
+    @Override
+    public String toString() {
+        return "mapping=" + mapping + ", filtering=" + filtering + ", delta=" + portDelta;
+    }
+}
@@ -1,5 +1,6 @@
 package calibur.directconnect.network;
 
+import calibur.directconnect.network.RegistryClient.Endpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,6 +16,14 @@ import java.util.List;
 public class NetworkUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
 
+    // List of public STUN servers
+    public static final String[][] STUN_SERVERS = {
+            { "stun.l.google.com", "19302" },
+            { "stun1.l.google.com", "19302" },
+            { "stun.cloudflare.com", "3478" },
+            { "stun.stunprotocol.org", "3478" }
+    };
+
     /**
      * Detects the local LAN IP address.
      * Prefers non-loopback IPv4 addresses.
@@ -64,137 +73,22 @@ public class NetworkUtils {
     }
 
     /**
-     * Gets the public WAN IP address using STUN.
-     * Works even behind CGNAT.
-     * 
-     * @param localSocket The local UDP socket to use for STUN
-     * @return The public IP and port, or null on failure
-     */
-    public static InetSocketAddress getPublicAddress(DatagramSocket localSocket) {
-        // List of public STUN servers
-        String[][] stunServers = {
-                { "stun.l.google.com", "19302" },
-                { "stun1.l.google.com", "19302" },
-                { "stun.cloudflare.com", "3478" },
-                { "stun.stunprotocol.org", "3478" }
-        };
-
-        for (String[] server : stunServers) {
-            try {
-                InetSocketAddress stunAddr = new InetSocketAddress(server[0], Integer.parseInt(server[1]));
-                InetSocketAddress result = performStunRequest(localSocket, stunAddr);
-                if (result != null) {
-                    LOGGER.info("[DirectConnect] STUN detected public address: {}", result);
-                    return result;
-                }
-            } catch (Exception e) {
-                LOGGER.debug("[DirectConnect] STUN server {} failed: {}", server[0], e.getMessage());
-            }
-        }
-
-        LOGGER.warn("[DirectConnect] All STUN servers failed, cannot detect public IP");
-        return null;
-    }
-
-    /**
-     * Performs a STUN Binding Request and parses the response.
-     * Implements RFC 5389 basics.
+     * Gets all local IP addresses (for multi-homed hosts).
      */
-    private static InetSocketAddress performStunRequest(DatagramSocket socket, InetSocketAddress stunServer)
-            throws Exception {
-        // STUN Binding Request
-        // Header: Type (2) + Length (2) + Magic Cookie (4) + Transaction ID (12) = 20
-        // bytes
-        byte[] request = new byte[20];
-
-        // Binding Request type: 0x0001
-        request[0] = 0x00;
-        request[1] = 0x01;
-
-        // Message length: 0 (no attributes)
-        request[2] = 0x00;
-        request[3] = 0x00;
-
-        // Magic cookie: 0x2112A442
-        request[4] = 0x21;
-        request[5] = 0x12;
-        request[6] = (byte) 0xA4;
-        request[7] = 0x42;
-
-        // Transaction ID: random 12 bytes
-        java.util.Random random = new java.util.Random();
-        for (int i = 8; i < 20; i++) {
-            request[i] = (byte) random.nextInt(256);
-        }
-
-        // Send request
-        DatagramPacket sendPacket = new DatagramPacket(request, request.length, stunServer);
-        socket.setSoTimeout(3000); // 3 second timeout
-        socket.send(sendPacket);
-
-        // Receive response
-        byte[] response = new byte[256];
-        DatagramPacket recvPacket = new DatagramPacket(response, response.length);
-        socket.receive(recvPacket);
-
-        // Verify it's a STUN Binding Response (0x0101)
-        if (response[0] != 0x01 || response[1] != 0x01) {
-            return null;
-        }
-
-        // Parse message length
-        int msgLength = ((response[2] & 0xFF) << 8) | (response[3] & 0xFF);
-
-        // Parse attributes starting at offset 20
-        int offset = 20;
-        while (offset < 20 + msgLength) {
-            int attrType = ((response[offset] & 0xFF) << 8) | (response[offset + 1] & 0xFF);
-            int attrLength = ((response[offset + 2] & 0xFF) << 8) | (response[offset + 3] & 0xFF);
-            offset += 4;
-
-            // XOR-MAPPED-ADDRESS (0x0020) or MAPPED-ADDRESS (0x0001)
-            if (attrType == 0x0020 || attrType == 0x0001) {
-                // Skip first byte (reserved), second byte is family
-                int family = response[offset + 1] & 0xFF;
-
-                if (family == 0x01) { // IPv4
-                    int port;
-                    byte[] ipBytes = new byte[4];
-
-                    if (attrType == 0x0020) {
-                        // XOR-Mapped: XOR with magic cookie
-                        port = (((response[offset + 2] & 0xFF) ^ 0x21) << 8) |
-                                ((response[offset + 3] & 0xFF) ^ 0x12);
-                        ipBytes[0] = (byte) ((response[offset + 4] & 0xFF) ^ 0x21);
-                        ipBytes[1] = (byte) ((response[offset + 5] & 0xFF) ^ 0x12);
-                        ipBytes[2] = (byte) ((response[offset + 6] & 0xFF) ^ 0xA4);
-                        ipBytes[3] = (byte) ((response[offset + 7] & 0xFF) ^ 0x42);
-                    } else {
-                        // Regular Mapped Address
-                        port = ((response[offset + 2] & 0xFF) << 8) | (response[offset + 3] & 0xFF);
-                        ipBytes[0] = response[offset + 4];
-                        ipBytes[1] = response[offset + 5];
-                        ipBytes[2] = response[offset + 6];
-                        ipBytes[3] = response[offset + 7];
-                    }
-
-                    InetAddress ip = InetAddress.getByAddress(ipBytes);
-                    return new InetSocketAddress(ip, port);
-                }
-            }
-
-            // Move to next attribute (padded to 4-byte boundary)
-            offset += (attrLength + 3) & ~3;
-        }
-
-        return null;
+    public static List<String> getAllLocalIps() {
+        return getAllLocalIps(false);
     }
 
     /**
-     * Gets all local IP addresses (for multi-homed hosts).
+     * Gets all local IP addresses, optionally including IPv6.
+     * IPv6 addresses are limited to global and unique-local ones, since
+     * link-local addresses need a scope ID and cannot be shared with peers.
+     *
+     * @param includeIpv6 Also return usable IPv6 addresses (listed first)
      */
-    public static List<String> getAllLocalIps() {
-        List<String> ips = new ArrayList<>();
+    public static List<String> getAllLocalIps(boolean includeIpv6) {
+        List<String> ipv4 = new ArrayList<>();
+        List<String> ipv6 = new ArrayList<>();
 
         try {
             Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
@@ -210,8 +104,10 @@ public class NetworkUtils {
                     if (addr instanceof Inet4Address) {
                         String ip = addr.getHostAddress();
                         if (!ip.startsWith("127.")) {
-                            ips.add(ip);
+                            ipv4.add(ip);
                         }
+                    } else if (includeIpv6 && isUsableIpv6(addr)) {
+                        ipv6.add(stripScope(addr.getHostAddress()));
                     }
                 }
             }
@@ -219,7 +115,44 @@ public class NetworkUtils {
             LOGGER.error("[DirectConnect] Failed to enumerate IPs: {}", e.getMessage());
         }
 
-        return ips;
+        ipv6.addAll(ipv4);
+        return ipv6;
+    }
+
+    /**
+     * Checks whether an IPv6 address can be handed to a peer: not loopback,
+     * link-local, multicast or an IPv4 transition address.
+     */
+    private static boolean isUsableIpv6(InetAddress addr) {
+        if (!(addr instanceof Inet6Address) || addr.isLoopbackAddress() || addr.isLinkLocalAddress()
+                || addr.isMulticastAddress() || addr.isAnyLocalAddress()) {
+            return false;
+        }
+        byte[] b = addr.getAddress();
+        // Teredo (2001::/32) and 6to4 (2002::/16) rarely work for peer traffic
+        boolean teredo = b[0] == 0x20 && b[1] == 0x01 && b[2] == 0 && b[3] == 0;
+        boolean sixToFour = b[0] == 0x20 && b[1] == 0x02;
+        return !teredo && !sixToFour && !((Inet6Address) addr).isIPv4CompatibleAddress();
+    }
+
+    /**
+     * Checks whether an address is an IPv6 unique local address (fc00::/7),
+     * the IPv6 counterpart of RFC 1918 private ranges.
+     */
+    public static boolean isUniqueLocal(InetAddress addr) {
+        return addr instanceof Inet6Address && (addr.getAddress()[0] & 0xFE) == 0xFC;
+    }
+
+    /**
+     * Checks whether an IP string is an IPv6 literal.
+     */
+    public static boolean isIpv6(String ip) {
+        return ip != null && ip.indexOf(':') >= 0;
+    }
+
+    private static String stripScope(String ip) {
+        int percent = ip.indexOf('%');
+        return percent >= 0 ? ip.substring(0, percent) : ip;
     }
 
     /**
@@ -252,50 +185,86 @@ public class NetworkUtils {
 
     /**
      * Sends dummy UDP packets to punch a hole in the firewall.
+     * Packets go out from the tunnel socket so the hole matches the mapping
+     * registered with the registry.
      * 
-     * @param socket     Local socket to send from
+     * @param udp        Transport to send from
      * @param targetIp   Target IP address
      * @param targetPort Target port
      * @param count      Number of packets to send
      */
-    public static void punchHole(DatagramSocket socket, String targetIp, int targetPort, int count) {
+    public static void punchHole(ReliableUdp udp, String targetIp, int targetPort, int count) {
         try {
-            InetAddress target = InetAddress.getByName(targetIp);
-            byte[] data = new byte[] { 0x00 }; // Minimal packet
-
-            for (int i = 0; i < count; i++) {
-                DatagramPacket packet = new DatagramPacket(data, data.length, target, targetPort);
-                socket.send(packet);
-
-                // Small delay between packets
-                if (i < count - 1) {
-                    Thread.sleep(50);
-                }
-            }
+            udp.punch(new InetSocketAddress(targetIp, targetPort), count);
 
-            LOGGER.debug("[DirectConnect] Sent {} punch packets to {}:{}",
+            LOGGER.debug("[DirectConnect] Sending {} punch packets to {}:{}",
                     count, targetIp, targetPort);
         } catch (Exception e) {
             LOGGER.error("[DirectConnect] Hole punch failed: {}", e.getMessage());
         }
     }
 
+    /**
+     * Punches towards a peer, spraying predicted ports when the peer's NAT
+     * changes its public port per destination.
+     *
+     * @param udp        Transport to send from
+     * @param targetIp   Target IP address
+     * @param targetPort Port reported for the peer
+     * @param peerNat    The peer's NAT behavior, or null if unknown
+     */
+    public static void punchPredicted(ReliableUdp udp, String targetIp, int targetPort, NatBehavior peerNat) {
+        if (peerNat == null || !peerNat.isHard()) {
+            punchHole(udp, targetIp, targetPort, 5);
+            return;
+        }
+
+        List<Integer> ports = peerNat.predictPorts(targetPort);
+        for (int port : ports) {
+            punchHole(udp, targetIp, port, 2);
+        }
+        LOGGER.info("[DirectConnect] Sprayed {} predicted ports on {} ({})", ports.size(), targetIp, peerNat);
+    }
+
     /**
      * Checks if an address is on the local network (LAN).
      */
     public static boolean isLocalNetwork(String ip) {
         try {
             InetAddress addr = InetAddress.getByName(ip);
-            return addr.isSiteLocalAddress() || addr.isLoopbackAddress();
+            return addr.isSiteLocalAddress() || addr.isLoopbackAddress() || isUniqueLocal(addr);
         } catch (Exception e) {
             return false;
         }
     }
 
     /**
-     * Parses a p2p. address into just the share code.
+     * Parses a p2p. address into just the share code. Endpoints carried by
+     * an extended code are dropped, see {@link #parseShareEndpoints}.
+     *
+     * @return The plain share code, or null if the address is not valid or
+     *         its endpoints fail their checksum
      */
     public static String parseShareCode(String input) {
+        String code = normalizeShareCode(input);
+        if (code == null || ShareCodes.decode(code) == null) {
+            return null;
+        }
+        return ShareCodes.baseCode(code);
+    }
+
+    /**
+     * Parses the host endpoints carried by an extended share code.
+     *
+     * @return The endpoints, empty for a plain or invalid code
+     */
+    public static List<Endpoint> parseShareEndpoints(String input) {
+        String code = normalizeShareCode(input);
+        List<Endpoint> endpoints = code != null ? ShareCodes.decode(code) : null;
+        return endpoints != null ? endpoints : List.of();
+    }
+
+    private static String normalizeShareCode(String input) {
         if (input == null)
             return null;
 
@@ -306,8 +275,8 @@ public class NetworkUtils {
             return normalized.substring(4);
         }
 
-        // Check if it looks like a valid share code
-        if (normalized.matches("^[a-z]+-[a-z]+-\\d{2,3}$")) {
+        // Check if it looks like a valid share code, optionally extended
+        if (normalized.matches("^[a-z]+-[a-z]+-\\d{2,3}(\\.[a-z2-7]+)?$")) {
             return normalized;
         }
 
@@ -0,0 +1,212 @@
+package calibur.directconnect.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps probing a connected peer's other candidates and moves the session
+ * to a clearly better path.
+ *
+ * The path chosen at connect time is not always the best one for long: a
+ * late punch may open a direct path while the session runs over a relay, or
+ * a LAN path may answer after the WAN one won the race. Every path,
+ * including the active one, is probed from the session's socket once per
+ * interval, and the session migrates when another path has a much lower
+ * RTT or loss. Migration keeps the stream running (see
+ * {@link ReliableUdp#migrate}).
+ */
+public class PathProber {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    private static final int PROBE_SIZE = 13;
+    private static final long PROBE_TIMEOUT_MS = 2000;
+    private static final int MIN_SAMPLES = 5;
+    private static final long MIGRATION_HOLDDOWN_MS = 15_000;
+
+    // A path must beat the active one by this much to take over
+    private static final double RTT_IMPROVEMENT = 0.75;
+    private static final double RTT_MARGIN_MS = 2.0;
+    private static final double LOSSY = 0.10;
+    private static final double LOSS_IMPROVEMENT = 0.5;
+    // Leaving a relay frees shared capacity, so accept a slightly slower path
+    private static final double RELAY_EXIT_RTT = 1.1;
+
+    private final ReliableUdp udp;
+    private final Set<InetSocketAddress> relayPaths;
+    private final Map<InetSocketAddress, SessionStats> paths = new LinkedHashMap<>();
+    private final Map<Integer, Probe> outstanding = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> task;
+    private int nextSeq = 1;
+    private long lastMigration = System.currentTimeMillis();
+    private volatile boolean migrating = false;
+    private BiConsumer<InetSocketAddress, InetSocketAddress> onMigrate;
+
+    private record Probe(InetSocketAddress path, long sentAt) {
+    }
+
+    /**
+     * @param udp        Connected client transport
+     * @param candidates All known addresses of the peer, including the active one
+     * @param relayPaths Those of the candidates that go through a relay
+     */
+    public PathProber(ReliableUdp udp, List<InetSocketAddress> candidates, Set<InetSocketAddress> relayPaths) {
+        this.udp = udp;
+        this.relayPaths = relayPaths;
+        for (InetSocketAddress candidate : candidates) {
+            paths.put(candidate, new SessionStats(candidate));
+        }
+    }
+
+    /**
+     * Starts probing.
+     *
+     * @param intervalMs Time between probe rounds
+     */
+    public void start(long intervalMs) {
+        if (paths.size() < 2) {
+            return; // Nothing to migrate to
+        }
+        udp.setOnProbeAck(this::onProbeAck);
+        task = udp.scheduleAtFixedRate(this::round, intervalMs, intervalMs);
+        LOGGER.info("[DirectConnect] Probing {} alternate paths", paths.size() - 1);
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        udp.setOnProbeAck(null);
+    }
+
+    /**
+     * Called with (old, new) after the session moved to another path.
+     */
+    public void setOnMigrate(BiConsumer<InetSocketAddress, InetSocketAddress> handler) {
+        this.onMigrate = handler;
+    }
+
+    /**
+     * Probe statistics for every known path.
+     */
+    public Map<InetSocketAddress, SessionStats> getPathStats() {
+        synchronized (paths) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(paths));
+        }
+    }
+
+    // Runs on the transport's event loop
+    private void round() {
+        long now = System.nanoTime();
+
+        // Expire unanswered probes
+        outstanding.values().removeIf(probe -> {
+            if (now - probe.sentAt > PROBE_TIMEOUT_MS * 1_000_000) {
+                SessionStats stats = paths.get(probe.path);
+                if (stats != null) {
+                    stats.onDrop(PROBE_SIZE);
+                }
+                return true;
+            }
+            return false;
+        });
+
+        synchronized (paths) {
+            for (Map.Entry<InetSocketAddress, SessionStats> entry : paths.entrySet()) {
+                int seq = nextSeq++;
+                outstanding.put(seq, new Probe(entry.getKey(), now));
+                entry.getValue().onSend(PROBE_SIZE);
+                udp.probe(entry.getKey(), seq);
+            }
+        }
+
+        maybeMigrate();
+    }
+
+    private void onProbeAck(InetSocketAddress sender, int seq) {
+        Probe probe = outstanding.remove(seq);
+        if (probe == null) {
+            return;
+        }
+        // Answers come back from the probed address (or its relay port)
+        SessionStats stats = paths.get(probe.path);
+        if (stats != null) {
+            stats.onAck(PROBE_SIZE, System.nanoTime() - probe.sentAt);
+        }
+    }
+
+    private void maybeMigrate() {
+        InetSocketAddress active = udp.getRemoteAddress();
+        if (migrating || active == null || System.currentTimeMillis() - lastMigration < MIGRATION_HOLDDOWN_MS) {
+            return;
+        }
+
+        SessionStats current = paths.get(active);
+        if (current == null) {
+            return;
+        }
+
+        InetSocketAddress best = null;
+        double bestRtt = Double.MAX_VALUE;
+        for (Map.Entry<InetSocketAddress, SessionStats> entry : paths.entrySet()) {
+            SessionStats stats = entry.getValue();
+            if (!entry.getKey().equals(active) && stats.getPacketsSent() >= MIN_SAMPLES
+                    && stats.getSmoothedRttMs() >= 0 && isBetter(entry.getKey(), stats, active, current)
+                    && stats.getSmoothedRttMs() < bestRtt) {
+                best = entry.getKey();
+                bestRtt = stats.getSmoothedRttMs();
+            }
+        }
+        if (best == null) {
+            return;
+        }
+
+        InetSocketAddress target = best;
+        SessionStats targetStats = paths.get(target);
+        LOGGER.info("[DirectConnect] Migrating session: {} -> {}", current, targetStats);
+        migrating = true;
+        udp.migrate(target).whenComplete((ok, e) -> {
+            migrating = false;
+            lastMigration = System.currentTimeMillis();
+            if (Boolean.TRUE.equals(ok)) {
+                if (onMigrate != null) {
+                    onMigrate.accept(active, target);
+                }
+            } else {
+                LOGGER.warn("[DirectConnect] Migration to {} was not confirmed, staying on {}", target, active);
+            }
+        });
+    }
+
+    private boolean isBetter(InetSocketAddress path, SessionStats candidate, InetSocketAddress active,
+            SessionStats current) {
+        double rtt = candidate.getSmoothedRttMs();
+        double loss = candidate.getLossRate();
+
+        if (current.getSmoothedRttMs() < 0 || current.getLossRate() > LOSSY) {
+            // Active path is failing: any path with clearly less loss will do
+            return current.getPacketsSent() >= MIN_SAMPLES && loss <= current.getLossRate() * LOSS_IMPROVEMENT;
+        }
+        if (loss > current.getLossRate() + 0.02) {
+            return false;
+        }
+        if (relayPaths.contains(active) && !relayPaths.contains(path)) {
+            return rtt <= current.getSmoothedRttMs() * RELAY_EXIT_RTT;
+        }
+        if (!relayPaths.contains(active) && relayPaths.contains(path)) {
+            return false; // Never move onto a relay while a direct path works
+        }
+        return rtt < current.getSmoothedRttMs() * RTT_IMPROVEMENT - RTT_MARGIN_MS;
+    }
+}
@@ -0,0 +1,254 @@
+package calibur.directconnect.network;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The paths a multipath session uses at once, each with its own congestion
+ * window and statistics.
+ *
+ * Packets go to the lowest-RTT path that still has room in its window, so
+ * traffic stays on the fastest path and spills over to the others only when
+ * it is full. A path is down after two retransmission timeouts in a row or
+ * three seconds without hearing from the peer on it; its traffic then moves
+ * to the remaining paths at once.
+ */
+class PathSet {
+    private static final double INITIAL_CWND = 32;
+    private static final double MIN_CWND = 4;
+    private static final double MAX_CWND = 4096;
+    private static final int DOWN_AFTER_TIMEOUTS = 2;
+    static final long PATH_TIMEOUT_MS = 3000;
+
+    /**
+     * Congestion state of one path.
+     */
+    static class Path {
+        final InetSocketAddress address;
+        final SessionStats stats;
+        boolean validated;
+        int inflight = 0;
+        double cwnd = INITIAL_CWND;
+        double ssthresh = MAX_CWND;
+        int timeouts = 0;
+        boolean up;
+        volatile long lastHeard = System.currentTimeMillis();
+
+        Path(InetSocketAddress address, boolean validated) {
+            this.address = address;
+            this.stats = new SessionStats(address);
+            this.validated = validated;
+            this.up = validated;
+        }
+
+        boolean isUp(long now) {
+            return validated && timeouts < DOWN_AFTER_TIMEOUTS && now - lastHeard < PATH_TIMEOUT_MS;
+        }
+
+        double rttMs() {
+            double rtt = stats.getSmoothedRttMs();
+            return rtt >= 0 ? rtt : PATH_TIMEOUT_MS;
+        }
+    }
+
+    private final Map<InetSocketAddress, Path> paths = new LinkedHashMap<>();
+
+    /**
+     * @param primary The session's current address, in use from the start
+     */
+    PathSet(InetSocketAddress primary) {
+        paths.put(primary, new Path(primary, true));
+    }
+
+    /**
+     * Adds a path. Unvalidated paths carry no data until the peer answers
+     * on them.
+     */
+    synchronized Path add(InetSocketAddress address, boolean validated) {
+        Path path = paths.computeIfAbsent(address, a -> new Path(a, validated));
+        if (validated && !path.validated) {
+            path.validated = true;
+            path.lastHeard = System.currentTimeMillis();
+        }
+        return path;
+    }
+
+    synchronized Path get(InetSocketAddress address) {
+        return paths.get(address);
+    }
+
+    synchronized List<Path> all() {
+        return new ArrayList<>(paths.values());
+    }
+
+    /**
+     * Re-keys a path after the session migrated.
+     */
+    synchronized void rekey(InetSocketAddress from, InetSocketAddress to) {
+        Path path = paths.remove(from);
+        if (path != null && !paths.containsKey(to)) {
+            add(to, true);
+        }
+    }
+
+    /**
+     * Records that the peer was heard on a path.
+     */
+    void heard(InetSocketAddress address) {
+        Path path = get(address);
+        if (path != null) {
+            path.lastHeard = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Picks the path for the next packet.
+     *
+     * @param exclude Path that must not be picked (for a duplicate), or null
+     * @return The lowest-RTT live path with room in its window, else the
+     *         least loaded live path; null only when a second path was asked
+     *         for and there is none. With no live path at all, the one heard
+     *         from last, so sending never stalls on bookkeeping.
+     */
+    synchronized Path select(Path exclude) {
+        long now = System.currentTimeMillis();
+        Path best = null;
+        Path leastLoaded = null;
+        Path lastHeard = null;
+        for (Path path : paths.values()) {
+            if (path == exclude) {
+                continue;
+            }
+            if (path.validated && (lastHeard == null || path.lastHeard > lastHeard.lastHeard)) {
+                lastHeard = path;
+            }
+            if (!path.isUp(now)) {
+                continue;
+            }
+            if (path.inflight < path.cwnd && (best == null || path.rttMs() < best.rttMs())) {
+                best = path;
+            }
+            if (leastLoaded == null || path.inflight / path.cwnd < leastLoaded.inflight / leastLoaded.cwnd) {
+                leastLoaded = path;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        if (leastLoaded != null) {
+            return leastLoaded;
+        }
+        return exclude == null ? lastHeard : null;
+    }
+
+    synchronized void onSend(Path path, int bytes) {
+        path.inflight++;
+        path.stats.onSend(bytes);
+    }
+
+    /**
+     * Releases a packet's slot on a path without judging the path.
+     */
+    synchronized void release(InetSocketAddress address) {
+        Path path = paths.get(address);
+        if (path != null && path.inflight > 0) {
+            path.inflight--;
+        }
+    }
+
+    /**
+     * Records an acknowledgment that arrived on {@code via} for a packet sent
+     * on {@code sentOn} (and {@code duplicateOn}, if it was duplicated).
+     */
+    synchronized void onAck(InetSocketAddress via, InetSocketAddress sentOn, InetSocketAddress duplicateOn,
+            int bytes, long rttNanos) {
+        release(sentOn);
+        if (duplicateOn != null) {
+            release(duplicateOn);
+        }
+
+        Path path = paths.get(via);
+        if (path == null) {
+            return;
+        }
+        path.timeouts = 0;
+        path.lastHeard = System.currentTimeMillis();
+        path.cwnd = Math.min(MAX_CWND, path.cwnd + (path.cwnd < path.ssthresh ? 1 : 1 / path.cwnd));
+        path.stats.onAck(bytes, via.equals(sentOn) || via.equals(duplicateOn) ? rttNanos : -1);
+    }
+
+    /**
+     * Records a heartbeat exchanged on a path, which also brings back a path
+     * that went down on timeouts.
+     *
+     * @param rttNanos Round trip of the heartbeat, or -1 if not measured
+     */
+    synchronized void onHeartbeat(InetSocketAddress via, long rttNanos) {
+        Path path = paths.get(via);
+        if (path != null) {
+            path.validated = true;
+            path.timeouts = 0;
+            path.lastHeard = System.currentTimeMillis();
+            if (rttNanos >= 0) {
+                path.stats.onAck(0, rttNanos);
+            }
+        }
+    }
+
+    /**
+     * Records a retransmission timeout on a path.
+     *
+     * @return true if this took the path down
+     */
+    synchronized boolean onTimeout(InetSocketAddress address) {
+        Path path = paths.get(address);
+        if (path == null) {
+            return false;
+        }
+        if (path.inflight > 0) {
+            path.inflight--;
+        }
+        path.stats.onRetransmit();
+        path.ssthresh = Math.max(MIN_CWND, path.cwnd / 2);
+        path.cwnd = path.ssthresh;
+        path.timeouts++;
+        if (path.timeouts == DOWN_AFTER_TIMEOUTS && path.up) {
+            path.up = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Re-evaluates which paths are up.
+     *
+     * @param cameUp Receives the paths that came up since the last call
+     * @return Paths that went down since the last call
+     */
+    synchronized List<Path> update(List<Path> cameUp) {
+        long now = System.currentTimeMillis();
+        List<Path> wentDown = new ArrayList<>();
+        for (Path path : paths.values()) {
+            boolean up = path.isUp(now);
+            if (path.up && !up) {
+                wentDown.add(path);
+            } else if (!path.up && up) {
+                cameUp.add(path);
+            }
+            path.up = up;
+        }
+        return wentDown;
+    }
+
+    /**
+     * Statistics for every path.
+     */
+    synchronized Map<InetSocketAddress, SessionStats> getStats() {
+        Map<InetSocketAddress, SessionStats> result = new LinkedHashMap<>();
+        paths.forEach((address, path) -> result.put(address, path.stats));
+        return result;
+    }
+}
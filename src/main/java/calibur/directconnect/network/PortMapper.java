@@ -0,0 +1,725 @@
+package calibur.directconnect.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Asks the host's router to forward the tunnel port.
+ *
+ * UPnP-IGD, NAT-PMP (RFC 6886) and PCP (RFC 6887) are tried in parallel and
+ * the first mapping granted is kept; any later ones are released. With a
+ * mapping, joiners reach the host directly without hole punching. Leases
+ * are renewed at half their lifetime and the mapping is deleted on stop.
+ */
+public class PortMapper {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    public enum Protocol {
+        UPNP, NAT_PMP, PCP
+    }
+
+    private static final int PMP_PORT = 5351; // Shared by NAT-PMP and PCP
+    private static final int LIFETIME_SECONDS = 3600;
+    private static final long RENEW_RETRY_MS = 60_000;
+
+    // RFC 6886 section 3.1: 250ms initial timeout, doubling
+    private static final int[] RETRANSMIT_TIMEOUTS_MS = { 250, 500, 1000 };
+
+    // NAT-PMP
+    private static final int PMP_VERSION = 0;
+    private static final int PMP_OP_EXTERNAL_ADDRESS = 0;
+    private static final int PMP_OP_MAP_UDP = 1;
+
+    // PCP
+    private static final int PCP_VERSION = 2;
+    private static final int PCP_OP_MAP = 1;
+    private static final int PCP_REQUEST_SIZE = 60;
+    private static final int PCP_RESPONSE_SIZE = 60;
+    private static final int IPPROTO_UDP = 17;
+
+    // UPnP
+    private static final InetSocketAddress SSDP_ADDRESS = new InetSocketAddress("239.255.255.250", 1900);
+    private static final int SSDP_TIMEOUT_MS = 2000;
+    private static final String[] IGD_DEVICES = {
+            "urn:schemas-upnp-org:device:InternetGatewayDevice:2",
+            "urn:schemas-upnp-org:device:InternetGatewayDevice:1"
+    };
+    private static final String[] WAN_SERVICES = {
+            "urn:schemas-upnp-org:service:WANIPConnection:2",
+            "urn:schemas-upnp-org:service:WANIPConnection:1",
+            "urn:schemas-upnp-org:service:WANPPPConnection:1"
+    };
+    private static final int UPNP_CONFLICT = 718;
+    private static final int UPNP_ONLY_PERMANENT_LEASES = 725;
+    private static final String DESCRIPTION = "DirectConnect";
+
+    private static final Pattern LOCATION = Pattern.compile("(?im)^location:\\s*(\\S+)\\s*$");
+    private static final Pattern SERVICE = Pattern.compile("(?s)<service>(.*?)</service>");
+    private static final Pattern ERROR_CODE = Pattern.compile("<errorCode>\\s*(\\d+)\\s*</errorCode>");
+
+    /**
+     * A granted mapping and what is needed to renew or delete it.
+     */
+    public static class Mapping {
+        public final Protocol protocol;
+        public final InetSocketAddress external;
+        final int lifetimeSeconds; // 0 for a permanent UPnP lease
+        final byte[] nonce; // PCP only
+        final String controlUrl; // UPnP only
+        final String serviceType; // UPnP only
+
+        Mapping(Protocol protocol, InetSocketAddress external, int lifetimeSeconds, byte[] nonce,
+                String controlUrl, String serviceType) {
+            this.protocol = protocol;
+            this.external = external;
+            this.lifetimeSeconds = lifetimeSeconds;
+            this.nonce = nonce;
+            this.controlUrl = controlUrl;
+            this.serviceType = serviceType;
+        }
+
+        @Override
+        public String toString() {
+            return protocol + " " + external;
+        }
+    }
+
+    private final int internalPort;
+    private final String localIp;
+    private final InetAddress fixedGateway; // Null to look up the default route
+    private final int gatewayPort;
+    private final InetSocketAddress ssdp; // Where to search for an IGD
+    private final int lifetimeSeconds; // Requested for every mapping
+    private final HttpClient http;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile Mapping mapping;
+    private volatile boolean stopped = false;
+    private ScheduledFuture<?> renewTask;
+
+    /**
+     * @param internalPort Local UDP port to forward
+     * @param localIp      Local IPv4 address the router should forward to
+     */
+    public PortMapper(int internalPort, String localIp) {
+        this(internalPort, localIp, null);
+    }
+
+    /**
+     * @param gateway NAT-PMP/PCP server to use instead of the default
+     *                gateway on port 5351, or null to find it
+     */
+    PortMapper(int internalPort, String localIp, InetSocketAddress gateway) {
+        this(internalPort, localIp, gateway, SSDP_ADDRESS, LIFETIME_SECONDS);
+    }
+
+    /**
+     * @param ssdp            Where to send SSDP searches instead of the
+     *                        multicast group
+     * @param lifetimeSeconds Lease to ask for, renewed halfway through
+     */
+    PortMapper(int internalPort, String localIp, InetSocketAddress gateway, InetSocketAddress ssdp,
+            int lifetimeSeconds) {
+        this.internalPort = internalPort;
+        this.localIp = localIp;
+        this.fixedGateway = gateway != null ? gateway.getAddress() : null;
+        this.gatewayPort = gateway != null ? gateway.getPort() : PMP_PORT;
+        this.ssdp = ssdp;
+        this.lifetimeSeconds = lifetimeSeconds;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "DirectConnect-PortMap");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DirectConnect-PortMap-Renew");
+            t.setDaemon(true);
+            return t;
+        });
+        this.http = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(2))
+                .build();
+    }
+
+    /**
+     * Tries all protocols at once.
+     *
+     * @param timeoutMs How long to wait for a router to answer
+     * @return Future with the external endpoint, or null if no protocol
+     *         produced a publicly reachable mapping
+     */
+    public CompletableFuture<InetSocketAddress> start(long timeoutMs) {
+        CompletableFuture<Mapping> winner = new CompletableFuture<>();
+        InetAddress gateway = gateway();
+        LOGGER.debug("[DirectConnect] Port mapping via gateway {}", gateway);
+
+        List<CompletableFuture<Mapping>> attempts = new ArrayList<>();
+        if (gateway != null) {
+            attempts.add(CompletableFuture.supplyAsync(() -> mapPcp(gateway, internalPort, newNonce()), executor));
+            attempts.add(CompletableFuture.supplyAsync(() -> mapNatPmp(gateway, internalPort), executor));
+        }
+        attempts.add(CompletableFuture.supplyAsync(() -> mapUpnp(internalPort), executor));
+
+        AtomicInteger remaining = new AtomicInteger(attempts.size());
+        for (CompletableFuture<Mapping> attempt : attempts) {
+            attempt.exceptionally(e -> null).thenAccept(m -> {
+                if (m != null && !isPublic(m.external.getAddress())) {
+                    LOGGER.info("[DirectConnect] {} mapping has non-public address (double NAT?), ignoring", m);
+                    delete(m);
+                    m = null;
+                }
+                if (m != null && (stopped || !winner.complete(m))) {
+                    delete(m); // Another protocol won, or we gave up waiting
+                } else if (m == null && remaining.decrementAndGet() == 0) {
+                    winner.complete(null);
+                }
+            });
+        }
+
+        return winner.completeOnTimeout(null, timeoutMs, TimeUnit.MILLISECONDS).thenApply(m -> {
+            if (m == null) {
+                LOGGER.info("[DirectConnect] No router port mapping available");
+                return null;
+            }
+            if (stopped) {
+                delete(m);
+                return null;
+            }
+            mapping = m;
+            LOGGER.info("[DirectConnect] Router mapped port {} -> {} ({})", internalPort, m.external, m.protocol);
+            scheduleRenewal(m);
+            return m.external;
+        });
+    }
+
+    /**
+     * Stops renewing and deletes the mapping in the background.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (renewTask != null) {
+            renewTask.cancel(false);
+            renewTask = null;
+        }
+
+        Mapping m = mapping;
+        mapping = null;
+        if (m != null) {
+            executor.execute(() -> {
+                delete(m);
+                LOGGER.info("[DirectConnect] Removed port mapping {}", m);
+            });
+        }
+        scheduler.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * The active mapping, or null.
+     */
+    public Mapping getMapping() {
+        return mapping;
+    }
+
+    private synchronized void scheduleRenewal(Mapping m) {
+        if (stopped || m.lifetimeSeconds <= 0) {
+            return;
+        }
+        renewTask = scheduler.schedule(() -> renew(m), m.lifetimeSeconds * 500L, TimeUnit.MILLISECONDS);
+    }
+
+    private void renew(Mapping old) {
+        if (stopped || mapping != old) {
+            return;
+        }
+
+        Mapping renewed = switch (old.protocol) {
+            case PCP -> mapPcp(gateway(), old.external.getPort(), old.nonce);
+            case NAT_PMP -> mapNatPmp(gateway(), old.external.getPort());
+            case UPNP -> addUpnpMapping(old.controlUrl, old.serviceType, old.external.getPort(), old.lifetimeSeconds);
+        };
+
+        synchronized (this) {
+            if (stopped) {
+                if (renewed != null) {
+                    delete(renewed);
+                }
+                return;
+            }
+            if (renewed == null) {
+                LOGGER.warn("[DirectConnect] Failed to renew port mapping {}, retrying", old);
+                renewTask = scheduler.schedule(() -> renew(old), RENEW_RETRY_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (!renewed.external.equals(old.external)) {
+                LOGGER.warn("[DirectConnect] Router moved port mapping {} -> {}", old.external, renewed.external);
+            }
+            mapping = renewed;
+        }
+        scheduleRenewal(renewed);
+    }
+
+    private void delete(Mapping m) {
+        try {
+            switch (m.protocol) {
+                case PCP -> pcpRequest(gateway(), m.external.getPort(), m.nonce, 0);
+                case NAT_PMP -> natPmpRequest(gateway(), 0, 0);
+                case UPNP -> soap(m.controlUrl, m.serviceType, "DeletePortMapping",
+                        "<NewRemoteHost></NewRemoteHost>"
+                                + "<NewExternalPort>" + m.external.getPort() + "</NewExternalPort>"
+                                + "<NewProtocol>UDP</NewProtocol>");
+            }
+        } catch (Exception e) {
+            LOGGER.debug("[DirectConnect] Failed to delete port mapping {}: {}", m, e.getMessage());
+        }
+    }
+
+    private InetAddress gateway() {
+        return fixedGateway != null ? fixedGateway : findGateway(localIp);
+    }
+
+    // ==================== PCP ====================
+
+    private Mapping mapPcp(InetAddress gateway, int suggestedPort, byte[] nonce) {
+        if (gateway == null) {
+            return null;
+        }
+        return parsePcpMap(pcpRequest(gateway, suggestedPort, nonce, lifetimeSeconds), nonce);
+    }
+
+    /**
+     * Parses a PCP MAP response.
+     *
+     * @param nonce Nonce sent in the request, which the response must echo
+     * @return The granted mapping, or null if refused or malformed
+     */
+    static Mapping parsePcpMap(byte[] response, byte[] nonce) {
+        if (response == null || response.length < PCP_RESPONSE_SIZE) {
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(response);
+        int version = buf.get(0) & 0xFF;
+        int opcode = buf.get(1) & 0xFF;
+        int result = buf.get(3) & 0xFF;
+        if (version != PCP_VERSION || opcode != (0x80 | PCP_OP_MAP) || result != 0) {
+            LOGGER.debug("[DirectConnect] PCP MAP refused (version {}, result {})", version, result);
+            return null;
+        }
+        for (int i = 0; i < nonce.length; i++) {
+            if (response[24 + i] != nonce[i]) {
+                return null;
+            }
+        }
+
+        int lifetime = buf.getInt(4);
+        int externalPort = buf.getShort(42) & 0xFFFF;
+        InetAddress externalIp = readMappedIpv4(response, 44);
+        if (externalIp == null) {
+            return null;
+        }
+        return new Mapping(Protocol.PCP, new InetSocketAddress(externalIp, externalPort), lifetime, nonce, null, null);
+    }
+
+    private byte[] pcpRequest(InetAddress gateway, int suggestedPort, byte[] nonce, int lifetime) {
+        return exchange(gateway, pcpMapRequest(localIp, internalPort, suggestedPort, nonce, lifetime),
+                PCP_OP_MAP | 0x80);
+    }
+
+    /**
+     * Builds a PCP MAP request for UDP. A lifetime of 0 deletes the mapping.
+     */
+    static byte[] pcpMapRequest(String localIp, int internalPort, int suggestedPort, byte[] nonce, int lifetime) {
+        ByteBuffer req = ByteBuffer.allocate(PCP_REQUEST_SIZE);
+        req.put((byte) PCP_VERSION);
+        req.put((byte) PCP_OP_MAP);
+        req.putShort((short) 0);
+        req.putInt(lifetime);
+        putMappedIpv4(req, localIp);
+
+        // MAP opcode data
+        req.put(nonce);
+        req.put((byte) IPPROTO_UDP);
+        req.put(new byte[3]);
+        req.putShort((short) internalPort);
+        req.putShort((short) suggestedPort);
+        putMappedIpv4(req, "0.0.0.0"); // No preferred external address
+        return req.array();
+    }
+
+    private static byte[] newNonce() {
+        byte[] nonce = new byte[12];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        return nonce;
+    }
+
+    private static void putMappedIpv4(ByteBuffer buf, String ipv4) {
+        buf.put(new byte[10]);
+        buf.putShort((short) 0xFFFF);
+        try {
+            buf.put(InetAddress.getByName(ipv4).getAddress());
+        } catch (Exception e) {
+            buf.put(new byte[4]);
+        }
+    }
+
+    /**
+     * Reads an IPv4-mapped IPv6 address (::ffff:a.b.c.d).
+     *
+     * @return The IPv4 address, or null if the address is native IPv6
+     */
+    private static InetAddress readMappedIpv4(byte[] data, int offset) {
+        for (int i = 0; i < 12; i++) {
+            if (data[offset + i] != (i < 10 ? 0 : (byte) 0xFF)) {
+                return null;
+            }
+        }
+        try {
+            byte[] ip = new byte[4];
+            System.arraycopy(data, offset + 12, ip, 0, 4);
+            return InetAddress.getByAddress(ip);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // ==================== NAT-PMP ====================
+
+    private Mapping mapNatPmp(InetAddress gateway, int suggestedPort) {
+        if (gateway == null) {
+            return null;
+        }
+
+        InetAddress externalIp = parseNatPmpExternalAddress(exchange(gateway,
+                new byte[] { PMP_VERSION, PMP_OP_EXTERNAL_ADDRESS }, 0x80 | PMP_OP_EXTERNAL_ADDRESS));
+        if (externalIp == null) {
+            return null;
+        }
+        return parseNatPmpMap(natPmpRequest(gateway, suggestedPort, lifetimeSeconds), externalIp);
+    }
+
+    /**
+     * Parses a NAT-PMP external address response.
+     *
+     * @return The router's external IPv4 address, or null on error
+     */
+    static InetAddress parseNatPmpExternalAddress(byte[] addr) {
+        if (addr == null || addr.length < 12 || addr[0] != PMP_VERSION
+                || (addr[1] & 0xFF) != (0x80 | PMP_OP_EXTERNAL_ADDRESS)
+                || ((addr[2] & 0xFF) << 8 | (addr[3] & 0xFF)) != 0) {
+            return null;
+        }
+        try {
+            byte[] ip = new byte[4];
+            System.arraycopy(addr, 8, ip, 0, 4);
+            return InetAddress.getByAddress(ip);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a NAT-PMP UDP mapping response.
+     *
+     * @param externalIp Address from the external address response
+     * @return The granted mapping, or null if refused or malformed
+     */
+    static Mapping parseNatPmpMap(byte[] map, InetAddress externalIp) {
+        if (map == null || map.length < 16 || map[0] != PMP_VERSION || (map[1] & 0xFF) != (0x80 | PMP_OP_MAP_UDP)) {
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(map);
+        int result = buf.getShort(2) & 0xFFFF;
+        if (result != 0) {
+            LOGGER.debug("[DirectConnect] NAT-PMP mapping refused (result {})", result);
+            return null;
+        }
+
+        int externalPort = buf.getShort(10) & 0xFFFF;
+        int lifetime = buf.getInt(12);
+        return new Mapping(Protocol.NAT_PMP, new InetSocketAddress(externalIp, externalPort),
+                lifetime, null, null, null);
+    }
+
+    private byte[] natPmpRequest(InetAddress gateway, int suggestedPort, int lifetime) {
+        return exchange(gateway, natPmpMapRequest(internalPort, suggestedPort, lifetime), 0x80 | PMP_OP_MAP_UDP);
+    }
+
+    /**
+     * Builds a NAT-PMP UDP mapping request. A lifetime of 0 deletes it.
+     */
+    static byte[] natPmpMapRequest(int internalPort, int suggestedPort, int lifetime) {
+        ByteBuffer req = ByteBuffer.allocate(12);
+        req.put((byte) PMP_VERSION);
+        req.put((byte) PMP_OP_MAP_UDP);
+        req.putShort((short) 0);
+        req.putShort((short) internalPort);
+        req.putShort((short) suggestedPort);
+        req.putInt(lifetime);
+        return req.array();
+    }
+
+    /**
+     * Sends a NAT-PMP/PCP request to the gateway with retransmission.
+     *
+     * @return The response, or null if the gateway never answered
+     */
+    private byte[] exchange(InetAddress gateway, byte[] request, int responseOpcode) {
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(localIp, 0))) {
+            byte[] buffer = new byte[1100]; // PCP maximum message size
+            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+
+            for (int timeout : RETRANSMIT_TIMEOUTS_MS) {
+                socket.send(new DatagramPacket(request, request.length, gateway, gatewayPort));
+                socket.setSoTimeout(timeout);
+                try {
+                    while (true) {
+                        socket.receive(response);
+                        // Either protocol may answer with the other's version
+                        // and an unsupported-version error
+                        if (response.getAddress().equals(gateway) && response.getPort() == gatewayPort
+                                && response.getLength() >= 4) {
+                            int opcode = buffer[1] & 0xFF;
+                            if (opcode == responseOpcode || buffer[0] != request[0]) {
+                                byte[] data = new byte[response.getLength()];
+                                System.arraycopy(buffer, 0, data, 0, data.length);
+                                return data;
+                            }
+                        }
+                    }
+                } catch (SocketTimeoutException ignored) {
+                    // Retransmit
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.debug("[DirectConnect] Gateway request failed: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    // ==================== UPnP-IGD ====================
+
+    private Mapping mapUpnp(int port) {
+        String location = discoverIgd();
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            String description = http.send(HttpRequest.newBuilder(URI.create(location))
+                    .timeout(Duration.ofSeconds(2)).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+
+            for (String serviceType : WAN_SERVICES) {
+                Matcher service = SERVICE.matcher(description);
+                while (service.find()) {
+                    String block = service.group(1);
+                    if (!serviceType.equals(tag(block, "serviceType"))) {
+                        continue;
+                    }
+                    String controlUrl = URI.create(location).resolve(tag(block, "controlURL")).toString();
+                    return addUpnpMapping(controlUrl, serviceType, port, lifetimeSeconds);
+                }
+            }
+            LOGGER.debug("[DirectConnect] IGD at {} has no WAN connection service", location);
+        } catch (Exception e) {
+            LOGGER.debug("[DirectConnect] UPnP description fetch failed: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Adds (or refreshes) a UPnP mapping, falling back to a permanent lease
+     * on routers that reject timed ones and to nearby ports on conflicts.
+     */
+    private Mapping addUpnpMapping(String controlUrl, String serviceType, int externalPort, int lease) {
+        try {
+            String ipResponse = soap(controlUrl, serviceType, "GetExternalIPAddress", "");
+            String externalIp = tag(ipResponse, "NewExternalIPAddress");
+            if (externalIp == null || externalIp.isEmpty()) {
+                return null;
+            }
+
+            for (int attempt = 0; attempt < 4; attempt++) {
+                int port = externalPort + attempt;
+                String response = soap(controlUrl, serviceType, "AddPortMapping",
+                        "<NewRemoteHost></NewRemoteHost>"
+                                + "<NewExternalPort>" + port + "</NewExternalPort>"
+                                + "<NewProtocol>UDP</NewProtocol>"
+                                + "<NewInternalPort>" + internalPort + "</NewInternalPort>"
+                                + "<NewInternalClient>" + localIp + "</NewInternalClient>"
+                                + "<NewEnabled>1</NewEnabled>"
+                                + "<NewPortMappingDescription>" + DESCRIPTION + "</NewPortMappingDescription>"
+                                + "<NewLeaseDuration>" + lease + "</NewLeaseDuration>");
+
+                int error = errorCode(response);
+                if (error == UPNP_ONLY_PERMANENT_LEASES && lease != 0) {
+                    lease = 0;
+                    attempt--;
+                    continue;
+                }
+                if (error == UPNP_CONFLICT) {
+                    continue;
+                }
+                if (error != 0) {
+                    LOGGER.debug("[DirectConnect] UPnP AddPortMapping failed with error {}", error);
+                    return null;
+                }
+                return new Mapping(Protocol.UPNP, new InetSocketAddress(externalIp, port), lease, null,
+                        controlUrl, serviceType);
+            }
+        } catch (Exception e) {
+            LOGGER.debug("[DirectConnect] UPnP mapping failed: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Finds an Internet Gateway Device with SSDP.
+     *
+     * @return URL of its device description, or null
+     */
+    private String discoverIgd() {
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(localIp, 0))) {
+            for (String device : IGD_DEVICES) {
+                byte[] search = ("M-SEARCH * HTTP/1.1\r\n"
+                        + "HOST: 239.255.255.250:1900\r\n"
+                        + "MAN: \"ssdp:discover\"\r\n"
+                        + "MX: 1\r\n"
+                        + "ST: " + device + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                socket.send(new DatagramPacket(search, search.length, ssdp));
+            }
+
+            byte[] buffer = new byte[2048];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            long deadline = System.currentTimeMillis() + SSDP_TIMEOUT_MS;
+            while (!stopped) {
+                int remaining = (int) (deadline - System.currentTimeMillis());
+                if (remaining <= 0) {
+                    break;
+                }
+                socket.setSoTimeout(remaining);
+                socket.receive(packet);
+                Matcher m = LOCATION.matcher(new String(buffer, 0, packet.getLength(), StandardCharsets.US_ASCII));
+                if (m.find()) {
+                    LOGGER.debug("[DirectConnect] Found IGD at {}", m.group(1));
+                    return m.group(1);
+                }
+            }
+        } catch (SocketTimeoutException ignored) {
+        } catch (Exception e) {
+            LOGGER.debug("[DirectConnect] SSDP discovery failed: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    private String soap(String controlUrl, String serviceType, String action, String args) throws Exception {
+        String body = "<?xml version=\"1.0\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+                + "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+                + "<s:Body><u:" + action + " xmlns:u=\"" + serviceType + "\">" + args + "</u:" + action + ">"
+                + "</s:Body></s:Envelope>";
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(controlUrl))
+                .timeout(Duration.ofSeconds(3))
+                .header("Content-Type", "text/xml; charset=\"utf-8\"")
+                .header("SOAPAction", "\"" + serviceType + "#" + action + "\"")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return http.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+    private static int errorCode(String response) {
+        Matcher m = ERROR_CODE.matcher(response);
+        return m.find() ? Integer.parseInt(m.group(1)) : 0;
+    }
+
+    /**
+     * Extracts the text of the first element with the given local name,
+     * ignoring any namespace prefix.
+     */
+    private static String tag(String xml, String name) {
+        Matcher m = Pattern.compile("<(?:\\w+:)?" + name + ">\\s*(.*?)\\s*</(?:\\w+:)?" + name + ">",
+                Pattern.DOTALL).matcher(xml);
+        return m.find() ? m.group(1) : null;
+    }
+
+    // ==================== Helpers ====================
+
+    /**
+     * Finds the default IPv4 gateway. Reads the routing table on Linux and
+     * otherwise assumes the router is at .1 of the local subnet, which holds
+     * for nearly all home networks.
+     */
+    private static InetAddress findGateway(String localIp) {
+        Path routes = Path.of("/proc/net/route");
+        if (Files.isReadable(routes)) {
+            try (BufferedReader reader = Files.newBufferedReader(routes)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length > 2 && fields[1].equals("00000000") && !fields[2].equals("00000000")) {
+                        int gw = Integer.reverseBytes((int) Long.parseLong(fields[2], 16));
+                        return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(gw).array());
+                    }
+                }
+            } catch (Exception ignored) {
+            }
+        }
+
+        try {
+            byte[] ip = InetAddress.getByName(localIp).getAddress();
+            if (ip.length == 4 && !InetAddress.getByAddress(ip).isLoopbackAddress()) {
+                ip[3] = 1;
+                return InetAddress.getByAddress(ip);
+            }
+        } catch (Exception ignored) {
+        }
+        return null;
+    }
+
+    /**
+     * Whether an IPv4 address is reachable from the internet (not private,
+     * shared CGNAT space, loopback or link-local).
+     */
+    private static boolean isPublic(InetAddress addr) {
+        if (!(addr instanceof Inet4Address) || addr.isSiteLocalAddress() || addr.isLoopbackAddress()
+                || addr.isLinkLocalAddress() || addr.isAnyLocalAddress()) {
+            return false;
+        }
+        byte[] b = addr.getAddress();
+        boolean cgnat = (b[0] & 0xFF) == 100 && (b[1] & 0xC0) == 64; // 100.64.0.0/10
+        return !cgnat;
+    }
+}
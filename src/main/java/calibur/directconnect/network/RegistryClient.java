@@ -7,34 +7,85 @@ import com.google.gson.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
  * Client for communicating with the P2P Registry server.
  * Handles both HTTP (lookup) and WebSocket (registration) connections.
+ *
+ * Lookups go to the fastest configured registry and fail over to the
+ * others (see {@link RegistrySet}). A registration is with one registry; a
+ * host registers with several by using a client per registry, all but one
+ * as mirrors that follow the share code the first one assigned.
  */
 public class RegistryClient {
     private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
     private static final Gson GSON = new Gson();
+    private static final int MAX_BATCH = 50; // Codes per batch lookup request
+    private static final String BATCH_PATH = "/lookup/batch";
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 60_000;
+    private static final long CLOSE_TIMEOUT_MS = 5000; // For the registry to answer our close
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "DirectConnect-Registry");
+        t.setDaemon(true);
+        return t;
+    });
+    // Shared by every instance, so the connection opened for the host or by
+    // warmUp() serves lookups too. HTTP/2 multiplexes them over it.
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
 
     private final HttpClient httpClient;
     private final ModConfig config;
 
-    private WebSocket webSocket;
-    private boolean connected = false;
+    private volatile WebSocket webSocket;
+    private volatile CompletableFuture<Void> webSocketClosed; // Completed when the registry closed it
+    private volatile boolean reregistering = false;
+    private volatile boolean connected = false;
+    private final boolean mirror;
+    private volatile String url; // Registry registered with
+    private volatile Supplier<String> selector;
+    private volatile Registration registration; // Last one sent, for re-registering
+    private volatile Function<Registration, CompletableFuture<Registration>> refresher;
+    private volatile boolean closing = false;
+    private volatile int reconnectAttempts = 0;
+    private ScheduledFuture<?> reconnectTask;
+    private volatile ScheduledFuture<?> heartbeatTask;
+    private volatile long lastPongAt;
     private Consumer<PunchRequest> onPunchRequest;
     private Consumer<String> onCodeAssigned;
     private Consumer<String> onDisconnect;
+    // Registries found to have no batch lookup, shared like the connection
+    private static final Set<String> BATCH_UNSUPPORTED = ConcurrentHashMap.newKeySet();
 
     /**
      * Represents an endpoint returned from lookup.
@@ -42,38 +93,158 @@ public class RegistryClient {
     public static class Endpoint {
         public final String ip;
         public final int port;
-        public final String type; // "WAN" or "LAN"
+        public final String type; // "WAN", "LAN" or "RELAY"
+        public final NatBehavior nat; // Host NAT behavior, null if unknown
+        public final int priority; // ICE candidate priority
 
         public Endpoint(String ip, int port, String type) {
+            this(ip, port, type, null);
+        }
+
+        public Endpoint(String ip, int port, String type, NatBehavior nat) {
+            this(ip, port, type, nat, Candidates.defaultPriority(type));
+        }
+
+        public Endpoint(String ip, int port, String type, NatBehavior nat, int priority) {
             this.ip = ip;
             this.port = port;
             this.type = type;
+            this.nat = nat;
+            this.priority = priority;
         }
 
         @Override
         public String toString() {
-            return type + ":" + ip + ":" + port;
+            return type + ":" + (NetworkUtils.isIpv6(ip) ? "[" + ip + "]" : ip) + ":" + port;
         }
     }
 
+    /**
+     * Outcome of a lookup.
+     *
+     * @param endpoints The host's endpoints, empty if none were found
+     * @param notFound  True if the registry answered that it does not know
+     *                  the code, as opposed to a failed request
+     */
+    public record Lookup(List<Endpoint> endpoints, boolean notFound) {
+    }
+
     /**
      * Represents a punch request from a client.
      */
     public static class PunchRequest {
         public final String clientIp;
         public final int clientPort;
+        public final NatBehavior clientNat; // Null if the client did not report it
+        public final List<Endpoint> clientCandidates; // Empty if the client sent none
 
-        public PunchRequest(String clientIp, int clientPort) {
+        public PunchRequest(String clientIp, int clientPort, NatBehavior clientNat, List<Endpoint> clientCandidates) {
             this.clientIp = clientIp;
             this.clientPort = clientPort;
+            this.clientNat = clientNat;
+            this.clientCandidates = clientCandidates;
         }
     }
 
     public RegistryClient() {
+        this(false);
+    }
+
+    /**
+     * @param mirror Whether registrations of this client only mirror the
+     *               share code: it is requested from the registry but never
+     *               changed by its answers
+     */
+    public RegistryClient(boolean mirror) {
         this.config = ModConfig.getInstance();
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(10))
+        this.httpClient = HTTP_CLIENT;
+        this.mirror = mirror;
+    }
+
+    /**
+     * Opens a connection to every registry ahead of the first lookup, so
+     * DNS, TCP, TLS and the HTTP/2 upgrade are already done by then, and
+     * measures their round trips to rank them.
+     *
+     * @return Future completed once every registry answered or failed
+     */
+    public CompletableFuture<Void> warmUp() {
+        List<CompletableFuture<Void>> probes = new ArrayList<>();
+        for (String registry : config.getRegistryUrls()) {
+            // The first request pays for the connection; time the second
+            probes.add(probe(registry).thenCompose(ok -> ok ? probe(registry) : CompletableFuture.completedFuture(false))
+                    .thenApply(ok -> null));
+        }
+        return CompletableFuture.allOf(probes.toArray(new CompletableFuture[0]))
+                .whenComplete((v, e) -> LOGGER.info("[DirectConnect] Registries: {}", RegistrySet.getInstance()));
+    }
+
+    private CompletableFuture<Boolean> probe(String registry) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(registry + "/"))
+                .timeout(Duration.ofSeconds(10))
+                .GET()
                 .build();
+        long start = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, e) -> {
+                    if (e != null || response.statusCode() >= 500) {
+                        LOGGER.debug("[DirectConnect] Registry {} unreachable: {}", registry,
+                                e != null ? e.getMessage() : response.statusCode());
+                        RegistrySet.getInstance().onFailure(registry);
+                        return false;
+                    }
+                    RegistrySet.getInstance().onSuccess(registry, (System.nanoTime() - start) / 1_000_000);
+                    return true;
+                });
+    }
+
+    /**
+     * Sends a request to the best registry, failing over to the next one
+     * when a registry cannot be reached or answers with a server error.
+     *
+     * @param build  Builds the request for a registry base URL
+     * @param usable Whether an answer settles the request; other answers
+     *               (e.g. an unknown code, which another registry may know)
+     *               move on to the next registry and are returned only if
+     *               none does better
+     * @return Future with the response, failed if no registry answered
+     */
+    private CompletableFuture<HttpResponse<String>> sendWithFailover(Function<String, HttpRequest> build,
+            Predicate<HttpResponse<String>> usable) {
+        return sendWithFailover(RegistrySet.getInstance().ordered(), 0, build, usable, null, null);
+    }
+
+    private CompletableFuture<HttpResponse<String>> sendWithFailover(List<String> registries, int index,
+            Function<String, HttpRequest> build, Predicate<HttpResponse<String>> usable,
+            HttpResponse<String> fallback, Throwable lastError) {
+        if (index >= registries.size()) {
+            if (fallback != null) {
+                return CompletableFuture.completedFuture(fallback);
+            }
+            return CompletableFuture.failedFuture(lastError != null ? lastError
+                    : new IllegalStateException("No registry configured"));
+        }
+        String registry = registries.get(index);
+        long start = System.nanoTime();
+        return httpClient.sendAsync(build.apply(registry), HttpResponse.BodyHandlers.ofString())
+                .handle((response, e) -> {
+                    if (e == null && response.statusCode() < 500) {
+                        RegistrySet.getInstance().onSuccess(registry, (System.nanoTime() - start) / 1_000_000);
+                        if (usable.test(response)) {
+                            return CompletableFuture.completedFuture(response);
+                        }
+                        return sendWithFailover(registries, index + 1, build, usable, response, lastError);
+                    }
+                    RegistrySet.getInstance().onFailure(registry);
+                    Throwable error = e != null ? e : new IOException("Registry answered " + response.statusCode());
+                    if (index + 1 < registries.size()) {
+                        LOGGER.warn("[DirectConnect] Registry {} failed ({}), trying {}", registry,
+                                error.getMessage(), registries.get(index + 1));
+                    }
+                    return sendWithFailover(registries, index + 1, build, usable, fallback, error);
+                })
+                .thenCompose(next -> next);
     }
 
     // --- HTTP Methods ---
@@ -86,110 +257,400 @@ public class RegistryClient {
      * @return List of endpoints to try
      */
     public CompletableFuture<List<Endpoint>> lookup(String shareCode, int clientPort) {
-        // Strip p2p. prefix if present
-        String code = shareCode.toLowerCase().trim();
-        if (code.startsWith("p2p.")) {
-            code = code.substring(4);
-        }
+        return resolve(shareCode, clientPort).thenApply(Lookup::endpoints);
+    }
 
-        String requestBody = GSON.toJson(new LookupRequest(code, clientPort));
+    /**
+     * Looks up a share code, telling a code the registry does not know apart
+     * from a failed request.
+     *
+     * @param shareCode  The share code (with or without p2p. prefix)
+     * @param clientPort Client's UDP port for hole punching
+     * @return Future with the outcome, never failed
+     */
+    public CompletableFuture<Lookup> resolve(String shareCode, int clientPort) {
+        return resolve(shareCode, clientPort, null, List.of());
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(config.getRegistryUrl() + "/lookup"))
+    /**
+     * Looks up a share code, passing the joiner's NAT and candidates on to
+     * the host so it can punch towards each of them, spraying predicted
+     * ports when the joiner's NAT is hard.
+     *
+     * @param shareCode        The share code (with or without p2p. prefix)
+     * @param clientPort       Client's public UDP port for hole punching
+     * @param clientNat        Client's NAT behavior, or null if unknown
+     * @param clientCandidates Client's gathered candidates, can be empty
+     * @return Future with the outcome, never failed
+     */
+    public CompletableFuture<Lookup> resolve(String shareCode, int clientPort, NatBehavior clientNat,
+            List<Endpoint> clientCandidates) {
+        String code = normalizeCode(shareCode);
+        JsonObject request = GSON.toJsonTree(new LookupRequest(code, clientPort)).getAsJsonObject();
+        if (clientNat != null) {
+            clientNat.writeTo(request, "client_");
+        }
+        if (!clientCandidates.isEmpty()) {
+            request.add("client_candidates", Candidates.toJson(clientCandidates));
+        }
+        String requestBody = GSON.toJson(request);
+
+        return sendWithFailover(registry -> HttpRequest.newBuilder()
+                .uri(URI.create(registry + "/lookup"))
                 .header("Content-Type", "application/json")
                 .POST(HttpRequest.BodyPublishers.ofString(requestBody))
                 .timeout(Duration.ofSeconds(10))
-                .build();
-
-        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .build(), response -> response.statusCode() != 404)
                 .thenApply(response -> {
                     if (response.statusCode() == 200) {
-                        return parseEndpoints(response.body());
+                        return new Lookup(parseEndpoints(response.body()), false);
                     } else if (response.statusCode() == 404) {
                         LOGGER.warn("[DirectConnect] Share code not found: {}", shareCode);
-                        return new ArrayList<Endpoint>();
+                        return new Lookup(new ArrayList<>(), true);
                     } else {
                         LOGGER.error("[DirectConnect] Lookup failed: {} - {}",
                                 response.statusCode(), response.body());
-                        return new ArrayList<Endpoint>();
+                        return new Lookup(new ArrayList<>(), false);
                     }
                 })
-                .<List<Endpoint>>thenApply(list -> list)
                 .exceptionally(e -> {
                     LOGGER.error("[DirectConnect] Lookup error: {}", e.getMessage());
-                    return new ArrayList<Endpoint>();
+                    return new Lookup(new ArrayList<>(), false);
                 });
     }
 
-    private List<Endpoint> parseEndpoints(String json) {
-        List<Endpoint> endpoints = new ArrayList<>();
+    /**
+     * Looks up many share codes in one request, e.g. to refresh the server
+     * list. Unlike {@link #resolve}, this does not ask hosts to punch.
+     *
+     * Registries without the batch endpoint are remembered and skipped,
+     * failing over to the next one like any other request. Only when none
+     * has it are the codes looked up one by one.
+     *
+     * @param shareCodes Share codes (with or without p2p. prefix)
+     * @return Future with a lookup per code, keyed without the prefix; never
+     *         failed
+     */
+    public CompletableFuture<Map<String, Lookup>> lookupBatch(Collection<String> shareCodes) {
+        List<String> codes = shareCodes.stream().map(RegistryClient::normalizeCode).distinct().toList();
+        List<String> registries = RegistrySet.getInstance().ordered().stream()
+                .filter(registry -> !BATCH_UNSUPPORTED.contains(registry))
+                .toList();
+        if (registries.isEmpty()) {
+            return lookupEach(codes);
+        }
+
+        List<CompletableFuture<Map<String, Lookup>>> requests = new ArrayList<>();
+        for (int i = 0; i < codes.size(); i += MAX_BATCH) {
+            requests.add(lookupChunk(registries, codes.subList(i, Math.min(codes.size(), i + MAX_BATCH))));
+        }
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<String, Lookup> results = new LinkedHashMap<>();
+            requests.forEach(request -> results.putAll(request.join()));
+            return results;
+        });
+    }
+
+    private CompletableFuture<Map<String, Lookup>> lookupChunk(List<String> registries, List<String> codes) {
+        JsonObject body = new JsonObject();
+        JsonArray arr = new JsonArray();
+        codes.forEach(arr::add);
+        body.add("share_codes", arr);
+
+        String requestBody = GSON.toJson(body);
+        return sendWithFailover(registries, 0, registry -> HttpRequest.newBuilder()
+                .uri(URI.create(registry + BATCH_PATH))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                .timeout(Duration.ofSeconds(10))
+                .build(), response -> {
+                    if (!isBatchUnsupported(response)) {
+                        return true;
+                    }
+                    String url = response.request().uri().toString();
+                    String registry = url.substring(0, url.length() - BATCH_PATH.length());
+                    LOGGER.info("[DirectConnect] Registry {} has no batch lookup, skipping it for batches", registry);
+                    BATCH_UNSUPPORTED.add(registry);
+                    return false;
+                }, null, null)
+                .thenCompose(response -> {
+                    if (response.statusCode() == 200) {
+                        return CompletableFuture.completedFuture(parseBatch(response.body(), codes));
+                    }
+                    if (isBatchUnsupported(response)) {
+                        LOGGER.info("[DirectConnect] No registry has batch lookup, looking codes up one by one");
+                        return lookupEach(codes);
+                    }
+                    LOGGER.error("[DirectConnect] Batch lookup failed: {} - {}",
+                            response.statusCode(), response.body());
+                    return CompletableFuture.completedFuture(failedLookups(codes));
+                })
+                .exceptionally(e -> {
+                    LOGGER.error("[DirectConnect] Batch lookup error: {}", e.getMessage());
+                    return failedLookups(codes);
+                });
+    }
+
+    private static boolean isBatchUnsupported(HttpResponse<String> response) {
+        return response.statusCode() == 404 || response.statusCode() == 405;
+    }
+
+    private CompletableFuture<Map<String, Lookup>> lookupEach(List<String> codes) {
+        Map<String, CompletableFuture<Lookup>> lookups = new LinkedHashMap<>();
+        for (String code : codes) {
+            lookups.put(code, resolve(code, 0));
+        }
+        return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<String, Lookup> results = new LinkedHashMap<>();
+            lookups.forEach((code, lookup) -> results.put(code, lookup.join()));
+            return results;
+        });
+    }
+
+    /**
+     * Reads a batch response: {"hosts": {"code": {"online": bool, ...}}}.
+     * Codes missing from the response or not online are not found.
+     */
+    private Map<String, Lookup> parseBatch(String json, List<String> codes) {
+        Map<String, Lookup> results = new LinkedHashMap<>();
         try {
-            JsonObject obj = GSON.fromJson(json, JsonObject.class);
-            JsonArray arr = obj.getAsJsonArray("endpoints");
-
-            for (int i = 0; i < arr.size(); i++) {
-                JsonObject ep = arr.get(i).getAsJsonObject();
-                endpoints.add(new Endpoint(
-                        ep.get("ip").getAsString(),
-                        ep.get("port").getAsInt(),
-                        ep.get("type").getAsString()));
+            JsonObject hosts = GSON.fromJson(json, JsonObject.class).getAsJsonObject("hosts");
+            for (String code : codes) {
+                JsonObject host = hosts != null && hosts.has(code) ? hosts.getAsJsonObject(code) : null;
+                boolean online = host != null && (!host.has("online") || host.get("online").getAsBoolean());
+                results.put(code, online ? new Lookup(parseEndpoints(host), false)
+                        : new Lookup(new ArrayList<>(), true));
             }
+        } catch (Exception e) {
+            LOGGER.error("[DirectConnect] Failed to parse batch lookup: {}", e.getMessage());
+            return failedLookups(codes);
+        }
+        return results;
+    }
+
+    private static Map<String, Lookup> failedLookups(List<String> codes) {
+        Map<String, Lookup> results = new LinkedHashMap<>();
+        codes.forEach(code -> results.put(code, new Lookup(new ArrayList<>(), false)));
+        return results;
+    }
+
+    private static String normalizeCode(String shareCode) {
+        // Strip p2p. prefix if present
+        String code = shareCode.toLowerCase().trim();
+        return code.startsWith("p2p.") ? code.substring(4) : code;
+    }
+
+    private List<Endpoint> parseEndpoints(String json) {
+        try {
+            return parseEndpoints(GSON.fromJson(json, JsonObject.class));
+        } catch (Exception e) {
+            LOGGER.error("[DirectConnect] Failed to parse endpoints: {}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    private List<Endpoint> parseEndpoints(JsonObject obj) {
+        try {
+            // Prefer the full candidate list when the registry relays it
+            JsonArray arr = obj.has("candidates") ? obj.getAsJsonArray("candidates")
+                    : obj.getAsJsonArray("endpoints");
+            return Candidates.fromJson(arr, NatBehavior.readFrom(obj, ""));
         } catch (Exception e) {
             LOGGER.error("[DirectConnect] Failed to parse endpoints: {}", e.getMessage());
+            return new ArrayList<>();
         }
-        return endpoints;
     }
 
     // --- WebSocket Methods (for Host Registration) ---
 
     /**
-     * Registers as a host with the registry.
+     * What a host registers with: its addresses and gathered candidates.
+     * The share code is not part of it, the current one is always sent.
+     *
+     * @param wanIp      Public WAN IP (from STUN), can be null
+     * @param wanPort    Public WAN port (from STUN), can be 0
+     * @param nat        Classified NAT behavior, can be null
+     * @param candidates All gathered candidates, can be empty
+     */
+    public record Registration(String localIp, int port, String wanIp, int wanPort, NatBehavior nat,
+            List<Endpoint> candidates) {
+    }
+
+    /**
+     * Registers as a host with the registry. If the connection drops later,
+     * or cannot be opened now, it is reopened with jittered exponential
+     * backoff and the host registered again under its current share code,
+     * until {@link #disconnect} is called.
      * 
      * @param localIp       Local LAN IP
      * @param port          UDP port
      * @param requestedCode Requested share code (for persistence)
      * @param wanIp         Public WAN IP (from STUN), can be null
      * @param wanPort       Public WAN port (from STUN), can be 0
+     * @param nat           Classified NAT behavior, can be null
+     * @param candidates    All gathered candidates, can be empty
+     * @return Future with whether the first attempt registered
      */
     public CompletableFuture<Boolean> register(String localIp, int port, String requestedCode,
-            String wanIp, int wanPort) {
-        String wsUrl = config.getRegistryUrl()
+            String wanIp, int wanPort, NatBehavior nat, List<Endpoint> candidates) {
+        synchronized (this) {
+            // A retry replaces the reconnect the failed attempt scheduled
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
+            }
+        }
+        registration = new Registration(localIp, port, wanIp, wanPort, nat, candidates);
+        closing = false;
+        reconnectAttempts = 0;
+        url = selectRegistry();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        connect(requestedCode, result, false);
+        return result;
+    }
+
+    /**
+     * Changes what is registered, e.g. once the NAT is classified, and
+     * registers again with it. While the connection is down the next
+     * attempt sends it.
+     */
+    public void update(UnaryOperator<Registration> change) {
+        synchronized (this) {
+            if (closing || registration == null) {
+                return;
+            }
+            registration = change.apply(registration);
+            if (!connected) {
+                return;
+            }
+        }
+        reregister();
+    }
+
+    /**
+     * Sets how a registration is refreshed before registering again after a
+     * reconnect, e.g. with a new STUN mapping. Gets the last registration;
+     * without a refresher it is sent again as it was.
+     */
+    public void setRegistrationRefresher(Function<Registration, CompletableFuture<Registration>> refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * Sets how the registry to register with is picked, on the first attempt
+     * and on every reconnect. Without a selector the best one is used.
+     */
+    public void setRegistrySelector(Supplier<String> selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * The registry this client registers with, null before registering.
+     */
+    public String getRegistryUrl() {
+        return url;
+    }
+
+    /**
+     * Registers again right away, e.g. so a mirror follows a new share code.
+     */
+    public void reregister() {
+        Registration reg = registration;
+        WebSocket ws;
+        CompletableFuture<Void> closed;
+        synchronized (this) {
+            if (closing || reg == null || reregistering) {
+                return; // A pending one sends the latest registration anyway
+            }
+            stopHeartbeat();
+            ws = webSocket;
+            closed = webSocketClosed;
+            webSocket = null; // Its close is not a connection loss
+            connected = false;
+            reregistering = ws != null;
+        }
+        if (ws == null) {
+            connect(config.getShareCode(), new CompletableFuture<>(), true);
+            return;
+        }
+
+        // The registry frees the code once it has our close; registering
+        // again before that finds the code held by our own old registration
+        ws.sendClose(1000, "Re-registering");
+        closed.completeOnTimeout(null, CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS).thenRun(() -> {
+            ws.abort(); // In case the registry never answered
+            reregistering = false;
+            if (!closing) {
+                connect(config.getShareCode(), new CompletableFuture<>(), true);
+            }
+        });
+    }
+
+    private String selectRegistry() {
+        Supplier<String> select = selector;
+        String chosen = select != null ? select.get() : null;
+        return chosen != null ? chosen : RegistrySet.getInstance().best();
+    }
+
+    /**
+     * @param again Whether this registers a host already registered under
+     *              requestedCode, after a reconnect or to update it
+     */
+    private void connect(String requestedCode, CompletableFuture<Boolean> result, boolean again) {
+        String registry = url;
+        if (registry == null) {
+            connectionLost(null, "no registry configured", result);
+            return;
+        }
+        String wsUrl = registry
                 .replace("http://", "ws://")
                 .replace("https://", "wss://")
                 + "/ws/register";
 
         LOGGER.info("[DirectConnect] Connecting to registry: {}", wsUrl);
 
-        CompletableFuture<Boolean> result = new CompletableFuture<>();
-
         try {
             httpClient.newWebSocketBuilder()
                     .connectTimeout(Duration.ofSeconds(10))
                     .buildAsync(URI.create(wsUrl), new WebSocket.Listener() {
                         private StringBuilder messageBuffer = new StringBuilder();
+                        private final CompletableFuture<Void> closed = new CompletableFuture<>();
 
                         @Override
                         public void onOpen(WebSocket ws) {
-                            webSocket = ws;
-                            connected = true;
+                            // The latest registration, it may have changed while connecting
+                            Registration reg;
+                            synchronized (RegistryClient.this) {
+                                webSocket = ws;
+                                webSocketClosed = closed;
+                                connected = true;
+                                reg = registration;
+                            }
 
                             // Send registration payload with STUN-detected WAN IP
                             JsonObject payload = new JsonObject();
-                            payload.addProperty("local_ip", localIp);
-                            payload.addProperty("port", port);
+                            payload.addProperty("local_ip", reg.localIp());
+                            payload.addProperty("port", reg.port());
                             if (requestedCode != null && !requestedCode.isEmpty()) {
                                 payload.addProperty("requested_code", requestedCode);
                             }
-                            if (wanIp != null) {
-                                payload.addProperty("wan_ip", wanIp);
-                                payload.addProperty("wan_port", wanPort);
+                            if (reg.wanIp() != null) {
+                                payload.addProperty("wan_ip", reg.wanIp());
+                                payload.addProperty("wan_port", reg.wanPort());
+                            }
+                            if (reg.nat() != null) {
+                                reg.nat().writeTo(payload, "");
+                            }
+                            if (!reg.candidates().isEmpty()) {
+                                payload.add("candidates", Candidates.toJson(reg.candidates()));
                             }
 
                             ws.sendText(GSON.toJson(payload), true);
                             ws.request(1);
+                            startHeartbeat(ws);
 
                             LOGGER.info("[DirectConnect] Sent registration: LAN={}:{}, WAN={}:{}",
-                                    localIp, port, wanIp, wanPort);
+                                    reg.localIp(), reg.port(), reg.wanIp(), reg.wanPort());
                         }
 
                         @Override
@@ -197,7 +658,7 @@ public class RegistryClient {
                             messageBuffer.append(data);
 
                             if (last) {
-                                handleMessage(messageBuffer.toString(), result);
+                                handleMessage(ws, messageBuffer.toString(), result, again);
                                 messageBuffer = new StringBuilder();
                             }
 
@@ -205,34 +666,136 @@ public class RegistryClient {
                             return null;
                         }
 
+                        @Override
+                        public CompletionStage<?> onPong(WebSocket ws, ByteBuffer message) {
+                            lastPongAt = System.currentTimeMillis();
+                            ws.request(1);
+                            return null;
+                        }
+
                         @Override
                         public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
                             LOGGER.info("[DirectConnect] Registry connection closed: {}", reason);
-                            connected = false;
-                            if (onDisconnect != null) {
-                                onDisconnect.accept(reason);
-                            }
+                            closed.complete(null);
+                            connectionLost(ws, reason, result);
                             return null;
                         }
 
                         @Override
                         public void onError(WebSocket ws, Throwable error) {
                             LOGGER.error("[DirectConnect] Registry error: {}", error.getMessage());
-                            connected = false;
-                            if (!result.isDone()) {
-                                result.complete(false);
-                            }
+                            closed.complete(null);
+                            connectionLost(ws, error.getMessage(), result);
+                        }
+                    })
+                    .whenComplete((ws, e) -> {
+                        // Unreachable registry (e.g. no internet)
+                        if (e != null) {
+                            LOGGER.error("[DirectConnect] Failed to connect to registry: {}", e.getMessage());
+                            RegistrySet.getInstance().onFailure(registry);
+                            connectionLost(null, e.getMessage(), result);
                         }
                     });
         } catch (Exception e) {
             LOGGER.error("[DirectConnect] Failed to connect to registry: {}", e.getMessage());
+            connectionLost(null, e.getMessage(), result);
+        }
+    }
+
+    /**
+     * Pings the registry every heartbeat interval and drops the connection
+     * if no pong came back since the last ping, so a dead connection (e.g.
+     * a NAT or proxy that silently forgot it) is noticed within two
+     * intervals instead of on the next TCP timeout.
+     */
+    private void startHeartbeat(WebSocket ws) {
+        stopHeartbeat();
+        long interval = config.getHeartbeatInterval();
+        if (interval <= 0) {
+            return;
+        }
+        lastPongAt = System.currentTimeMillis();
+        heartbeatTask = SCHEDULER.scheduleAtFixedRate(() -> {
+            if (webSocket != ws) {
+                return;
+            }
+            if (System.currentTimeMillis() - lastPongAt > 2 * interval) {
+                LOGGER.warn("[DirectConnect] No heartbeat from registry, reconnecting");
+                ws.abort(); // onError is not called for abort
+                connectionLost(ws, "heartbeat timeout", null);
+                return;
+            }
+            ws.sendPing(ByteBuffer.allocate(0));
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopHeartbeat() {
+        ScheduledFuture<?> task = heartbeatTask;
+        if (task != null) {
+            task.cancel(false);
+            heartbeatTask = null;
+        }
+    }
+
+    /**
+     * Handles a closed, failed or dead connection once, then schedules a
+     * reconnect unless the host is shutting down.
+     *
+     * @param ws     The connection lost, or null if it never opened
+     * @param result Registration future of the attempt, if still pending
+     */
+    private synchronized void connectionLost(WebSocket ws, String reason, CompletableFuture<Boolean> result) {
+        if (ws != null && webSocket != ws) {
+            return; // Already handled
+        }
+        webSocket = null;
+        connected = false;
+        stopHeartbeat();
+        if (result != null && !result.isDone()) {
             result.complete(false);
         }
+        if (onDisconnect != null) {
+            onDisconnect.accept(reason);
+        }
+        if (closing || registration == null || reconnectTask != null || url == null) {
+            return;
+        }
 
-        return result;
+        // Equal jitter: half the backoff fixed, half random, so hosts
+        // dropped together by a registry restart do not return in a burst
+        long backoff = Math.min(MAX_RECONNECT_DELAY_MS, MIN_RECONNECT_DELAY_MS << Math.min(reconnectAttempts, 10));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        reconnectAttempts++;
+        LOGGER.info("[DirectConnect] Reconnecting to registry in {} ms (attempt {})", delay, reconnectAttempts);
+        reconnectTask = SCHEDULER.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            reconnectTask = null;
+            if (closing) {
+                return;
+            }
+        }
+        Registration last = registration;
+        Function<Registration, CompletableFuture<Registration>> refresh = refresher;
+        CompletableFuture<Registration> next = refresh != null
+                ? refresh.apply(last).exceptionally(e -> last)
+                : CompletableFuture.completedFuture(last);
+        next.thenAccept(reg -> {
+            if (closing) {
+                return;
+            }
+            registration = reg;
+            // May fail over to another registry if this one stays down
+            url = selectRegistry();
+            // Keeps the code the registry gave us, so shared links still work
+            connect(config.getShareCode(), new CompletableFuture<>(), true);
+        });
     }
 
-    private void handleMessage(String json, CompletableFuture<Boolean> registrationResult) {
+    private void handleMessage(WebSocket ws, String json, CompletableFuture<Boolean> registrationResult,
+            boolean again) {
         try {
             JsonObject msg = GSON.fromJson(json, JsonObject.class);
             String type = msg.get("type").getAsString();
@@ -240,7 +803,13 @@ public class RegistryClient {
             switch (type) {
                 case "REGISTERED":
                     String code = msg.get("code").getAsString();
-                    LOGGER.info("[DirectConnect] Registered with code: {}", code);
+                    LOGGER.info("[DirectConnect] Registered with code: {} ({})", code, url);
+                    reconnectAttempts = 0;
+                    if (mirror) {
+                        checkMirroredCode(code);
+                        registrationResult.complete(true);
+                        break;
+                    }
 
                     // Update config with assigned code
                     config.setShareCode(code);
@@ -256,7 +825,22 @@ public class RegistryClient {
 
                 case "CODE_CONFLICT":
                     String assigned = msg.get("assigned").getAsString();
+                    if (again) {
+                        // Most likely our own registration from before the
+                        // reconnect, not yet timed out. Taking the new code
+                        // would break every link already shared, so give it
+                        // back and try for ours again with backoff.
+                        LOGGER.warn("[DirectConnect] Code {} still held at {}, retrying", config.getShareCode(), url);
+                        ws.sendClose(1000, "Code still held");
+                        break;
+                    }
                     LOGGER.warn("[DirectConnect] Code conflict, assigned: {}", assigned);
+                    reconnectAttempts = 0;
+                    if (mirror) {
+                        checkMirroredCode(assigned);
+                        registrationResult.complete(true);
+                        break;
+                    }
                     config.setShareCode(assigned);
 
                     if (onCodeAssigned != null) {
@@ -271,11 +855,16 @@ public class RegistryClient {
                 case "PUNCH_REQUEST":
                     String clientIp = msg.get("client_ip").getAsString();
                     int clientPort = msg.has("client_port") ? msg.get("client_port").getAsInt() : 0;
+                    NatBehavior clientNat = NatBehavior.readFrom(msg, "client_");
+                    List<Endpoint> clientCandidates = msg.has("client_candidates")
+                            ? Candidates.fromJson(msg.getAsJsonArray("client_candidates"), clientNat)
+                            : List.of();
 
-                    LOGGER.info("[DirectConnect] Punch request from: {}:{}", clientIp, clientPort);
+                    LOGGER.info("[DirectConnect] Punch request from: {}:{} ({} candidates)", clientIp, clientPort,
+                            clientCandidates.size());
 
                     if (onPunchRequest != null) {
-                        onPunchRequest.accept(new PunchRequest(clientIp, clientPort));
+                        onPunchRequest.accept(new PunchRequest(clientIp, clientPort, clientNat, clientCandidates));
                     }
                     break;
 
@@ -291,6 +880,10 @@ public class RegistryClient {
                 case "CODE_REGENERATED":
                     String newCode = msg.get("new_code").getAsString();
                     LOGGER.info("[DirectConnect] Code regenerated: {}", newCode);
+                    if (mirror) {
+                        checkMirroredCode(newCode);
+                        break;
+                    }
                     config.setShareCode(newCode);
 
                     if (onCodeAssigned != null) {
@@ -306,6 +899,13 @@ public class RegistryClient {
         }
     }
 
+    private void checkMirroredCode(String code) {
+        if (!code.equals(config.getShareCode())) {
+            LOGGER.warn("[DirectConnect] Registry {} gave p2p.{} instead of p2p.{}; joiners using it fail over",
+                    url, code, config.getShareCode());
+        }
+    }
+
     /**
      * Requests a new share code from the registry.
      */
@@ -319,13 +919,24 @@ public class RegistryClient {
     }
 
     /**
-     * Closes the WebSocket connection.
+     * Closes the WebSocket connection and stops reconnecting.
      */
     public void disconnect() {
-        if (webSocket != null) {
-            webSocket.sendClose(1000, "Client closing");
+        WebSocket ws;
+        synchronized (this) {
+            closing = true;
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
+            }
+            stopHeartbeat();
+            ws = webSocket;
+            webSocket = null;
             connected = false;
         }
+        if (ws != null) {
+            ws.sendClose(1000, "Client closing");
+        }
     }
 
     // --- Event Handlers ---
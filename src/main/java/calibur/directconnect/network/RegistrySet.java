@@ -0,0 +1,100 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.config.ModConfig;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The configured registries, ranked by how fast they answer.
+ *
+ * Round trips are measured by probes at startup and by every request, and
+ * smoothed per registry. A registry that fails is moved to the back for a
+ * while, so requests fail over to the next one without waiting on it again.
+ * Registries not measured yet keep their configured order, after the
+ * measured ones.
+ */
+public class RegistrySet {
+    private static final double RTT_ALPHA = 0.3; // Weight of a new sample
+    private static final long FAILURE_PENALTY_MS = 30_000;
+
+    private static RegistrySet instance;
+
+    private final ModConfig config;
+    private final Map<String, Double> rttMs = new ConcurrentHashMap<>();
+    private final Map<String, Long> failedUntil = new ConcurrentHashMap<>();
+
+    private RegistrySet() {
+        this.config = ModConfig.getInstance();
+    }
+
+    public static synchronized RegistrySet getInstance() {
+        if (instance == null) {
+            instance = new RegistrySet();
+        }
+        return instance;
+    }
+
+    /**
+     * All configured registries, best first.
+     */
+    public List<String> ordered() {
+        List<String> urls = new ArrayList<>(config.getRegistryUrls());
+        long now = System.currentTimeMillis();
+        // Stable sort: ties keep the configured order
+        urls.sort(Comparator.<String>comparingInt(url -> failedUntil.getOrDefault(url, 0L) > now ? 1 : 0)
+                .thenComparingDouble(url -> rttMs.getOrDefault(url, Double.MAX_VALUE)));
+        return urls;
+    }
+
+    /**
+     * The best registry, or null if none is configured.
+     */
+    public String best() {
+        List<String> urls = ordered();
+        return urls.isEmpty() ? null : urls.get(0);
+    }
+
+    /**
+     * Records an answer from a registry.
+     *
+     * @param rtt Milliseconds the request took
+     */
+    public void onSuccess(String url, long rtt) {
+        failedUntil.remove(url);
+        rttMs.merge(url, (double) rtt, (old, sample) -> old + RTT_ALPHA * (sample - old));
+    }
+
+    /**
+     * Records a registry that could not be reached or failed.
+     */
+    public void onFailure(String url) {
+        failedUntil.put(url, System.currentTimeMillis() + FAILURE_PENALTY_MS);
+    }
+
+    /**
+     * Smoothed round trip to a registry.
+     *
+     * @return Milliseconds, or -1 if not measured
+     */
+    public long getRttMs(String url) {
+        Double rtt = rttMs.get(url);
+        return rtt != null ? Math.round(rtt) : -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String url : ordered()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            long rtt = getRttMs(url);
+            sb.append(url).append(rtt >= 0 ? " " + rtt + "ms" : " ?");
+        }
+        return sb.toString();
+    }
+}
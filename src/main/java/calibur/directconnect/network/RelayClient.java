@@ -0,0 +1,221 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Allocates and keeps alive relay ports for a host.
+ *
+ * Runs on the host's tunnel socket, so the relay sees the same NAT mapping
+ * that carries tunnel traffic. Each allocated port is registered as a
+ * relayed candidate; joiners that cannot punch through reach the host there.
+ */
+public class RelayClient {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    private static final long[] RETRANSMIT_AT_MS = { 250, 750, 1750 };
+
+    private final ReliableUdp udp;
+    private final Map<ByteBuffer, Attempt> pending = new ConcurrentHashMap<>();
+    private final List<ScheduledFuture<?>> refreshTasks = new ArrayList<>();
+    private final List<InetSocketAddress> allocated = new ArrayList<>(); // Guarded by refreshTasks
+
+    /**
+     * An allocation in flight. The relay challenges the first ALLOCATE; the
+     * cookie it sends is echoed in every ALLOCATE after that.
+     */
+    private class Attempt {
+        final InetSocketAddress relay;
+        final byte[] txid;
+        final CompletableFuture<InetSocketAddress> result = new CompletableFuture<>();
+        volatile byte[] cookie = new byte[RelayProtocol.COOKIE_SIZE];
+
+        Attempt(InetSocketAddress relay, byte[] txid) {
+            this.relay = relay;
+            this.txid = txid;
+        }
+
+        void send() {
+            if (!result.isDone()) {
+                ByteBuf request = Unpooled.buffer(RelayProtocol.ALLOCATE_SIZE);
+                request.writeByte(RelayProtocol.MSG_ALLOCATE);
+                request.writeBytes(txid);
+                request.writeBytes(cookie);
+                udp.sendRaw(relay, request);
+            }
+        }
+    }
+
+    public RelayClient(ReliableUdp udp) {
+        this.udp = udp;
+    }
+
+    /**
+     * Allocates a port on each relay.
+     *
+     * @param relays    Relay control addresses as "host:port"
+     * @param timeoutMs How long to wait for the relays to answer
+     * @return Future with the allocated relay addresses (possibly empty)
+     */
+    public CompletableFuture<List<InetSocketAddress>> allocateAll(List<String> relays, long timeoutMs) {
+        if (relays.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        udp.setOnRelay(this::handleResponse);
+
+        List<CompletableFuture<InetSocketAddress>> futures = new ArrayList<>();
+        for (String relay : relays) {
+            futures.add(CompletableFuture.supplyAsync(() -> parse(relay))
+                    .thenCompose(address -> address != null ? allocate(address, timeoutMs)
+                            : CompletableFuture.completedFuture(null))
+                    .exceptionally(e -> null));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<InetSocketAddress> allocated = new ArrayList<>();
+            for (CompletableFuture<InetSocketAddress> future : futures) {
+                InetSocketAddress address = future.join();
+                if (address != null) {
+                    allocated.add(address);
+                }
+            }
+            return allocated;
+        });
+    }
+
+    /**
+     * Stops refreshing; the relays drop the allocations when they expire.
+     */
+    public void stop() {
+        synchronized (refreshTasks) {
+            refreshTasks.forEach(task -> task.cancel(false));
+            refreshTasks.clear();
+            allocated.forEach(udp::removeRelay);
+            allocated.clear();
+        }
+        pending.clear();
+        udp.setOnRelay(null);
+    }
+
+    private CompletableFuture<InetSocketAddress> allocate(InetSocketAddress relay, long timeoutMs) {
+        byte[] txid = new byte[RelayProtocol.TXID_SIZE];
+        ThreadLocalRandom.current().nextBytes(txid);
+        ByteBuffer key = ByteBuffer.wrap(txid);
+
+        Attempt attempt = new Attempt(relay, txid);
+        pending.put(key, attempt);
+
+        udp.execute(attempt::send);
+        for (long delay : RETRANSMIT_AT_MS) {
+            udp.schedule(attempt::send, delay);
+        }
+        udp.schedule(() -> {
+            if (pending.remove(key) != null && attempt.result.complete(null)) {
+                LOGGER.warn("[DirectConnect] Relay {} did not answer", relay);
+            }
+        }, timeoutMs);
+
+        return attempt.result.thenApply(allocated -> {
+            if (allocated != null) {
+                startRefresh(allocated);
+            }
+            return allocated;
+        });
+    }
+
+    /**
+     * Refreshes an allocation at a third of its lifetime. This also keeps our
+     * NAT's mapping towards the relay port open for joiner traffic. Joiners
+     * are only taken from the relay port from now on.
+     */
+    private void startRefresh(InetSocketAddress relayed) {
+        Runnable refresh = () -> {
+            ByteBuf msg = Unpooled.buffer(1);
+            msg.writeByte(RelayProtocol.MSG_REFRESH);
+            udp.sendRaw(relayed, msg);
+        };
+        udp.addRelay(relayed);
+        udp.execute(refresh);
+        synchronized (refreshTasks) {
+            allocated.add(relayed);
+            refreshTasks.add(udp.scheduleAtFixedRate(refresh, 20_000, 20_000));
+        }
+    }
+
+    private boolean handleResponse(InetSocketAddress sender, ByteBuf msg) {
+        int type = msg.getByte(msg.readerIndex());
+        if (type == RelayProtocol.MSG_REFRESH) {
+            return true; // Echo of our keepalive
+        }
+        if ((type != RelayProtocol.MSG_ALLOCATED && type != RelayProtocol.MSG_ALLOCATE_ERROR
+                && type != RelayProtocol.MSG_CHALLENGE)
+                || msg.readableBytes() < 1 + RelayProtocol.TXID_SIZE + 1) {
+            return false;
+        }
+
+        byte[] txid = new byte[RelayProtocol.TXID_SIZE];
+        msg.getBytes(msg.readerIndex() + 1, txid);
+        ByteBuffer key = ByteBuffer.wrap(txid);
+        Attempt attempt = pending.get(key);
+        if (attempt == null) {
+            return false;
+        }
+
+        if (type == RelayProtocol.MSG_CHALLENGE) {
+            if (msg.readableBytes() >= RelayProtocol.CHALLENGE_SIZE) {
+                byte[] cookie = new byte[RelayProtocol.COOKIE_SIZE];
+                msg.getBytes(msg.readerIndex() + 1 + RelayProtocol.TXID_SIZE, cookie);
+                attempt.cookie = cookie;
+                attempt.send(); // Right away; retransmits carry it too
+            }
+            return true;
+        }
+        pending.remove(key, attempt);
+        CompletableFuture<InetSocketAddress> result = attempt.result;
+
+        if (type == RelayProtocol.MSG_ALLOCATE_ERROR) {
+            LOGGER.warn("[DirectConnect] Relay {} refused allocation (code {})", sender,
+                    msg.getUnsignedByte(msg.readerIndex() + 1 + RelayProtocol.TXID_SIZE));
+            result.complete(null);
+            return true;
+        }
+        if (msg.readableBytes() < RelayProtocol.ALLOCATED_SIZE) {
+            result.complete(null);
+            return true;
+        }
+
+        int port = msg.getUnsignedShort(msg.readerIndex() + 1 + RelayProtocol.TXID_SIZE);
+        InetSocketAddress allocated = new InetSocketAddress(sender.getAddress(), port);
+        LOGGER.info("[DirectConnect] Relay allocated {}", allocated);
+        result.complete(allocated);
+        return true;
+    }
+
+    private static InetSocketAddress parse(String relay) {
+        int colon = relay.lastIndexOf(':');
+        if (colon <= 0) {
+            LOGGER.warn("[DirectConnect] Invalid relay address '{}', expected host:port", relay);
+            return null;
+        }
+        try {
+            String host = relay.substring(0, colon).replace("[", "").replace("]", "");
+            InetSocketAddress address = new InetSocketAddress(host, Integer.parseInt(relay.substring(colon + 1)));
+            return address.isUnresolved() ? null : address;
+        } catch (Exception e) {
+            LOGGER.warn("[DirectConnect] Invalid relay address '{}': {}", relay, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Wire format shared by the relay and the hosts using it.
+ *
+ * A host sends ALLOCATE to the relay's control port and gets back a
+ * CHALLENGE carrying a cookie bound to its address; it proves it receives
+ * there by echoing the cookie in a second ALLOCATE, and only then gets a
+ * port dedicated to it. The first ALLOCATE is padded to the size of the
+ * challenge, so the relay never answers with more than it was sent. Joiners send to that port as if it were the host; the
+ * relay prefixes each datagram with the joiner's address (RELAYED) before
+ * passing it on, and the host prefixes its replies the same way so the relay
+ * knows where to send them. Payloads are never touched, so the relay
+ * forwards them without copying.
+ *
+ * Type bytes sit in 0x70-0x7F, clear of the tunnel messages (0x00-0x0F) and
+ * of STUN, whose first two bits are zero.
+ */
+public final class RelayProtocol {
+    public static final byte MSG_ALLOCATE = 0x70; // [type][txid 8][cookie 16], zeros until challenged
+    public static final byte MSG_ALLOCATED = 0x71; // [type][txid 8][port 2][lifetime s 2]
+    public static final byte MSG_REFRESH = 0x72; // [type], echoed by the relay
+    public static final byte MSG_ALLOCATE_ERROR = 0x73; // [type][txid 8][code 1]
+    public static final byte MSG_CHALLENGE = 0x74; // [type][txid 8][cookie 16]
+    public static final byte MSG_RELAYED = 0x7E; // [type][family 1][port 2][addr 4|16][payload]
+
+    public static final int TXID_SIZE = 8;
+    public static final int COOKIE_SIZE = 16;
+    public static final int ALLOCATE_SIZE = 1 + TXID_SIZE + COOKIE_SIZE;
+    public static final int CHALLENGE_SIZE = 1 + TXID_SIZE + COOKIE_SIZE;
+    public static final int ALLOCATED_SIZE = 1 + TXID_SIZE + 4;
+
+    public static final int ERROR_FULL = 1;
+    public static final int ERROR_DISABLED = 2;
+    public static final int ERROR_RATE_LIMITED = 3;
+
+    private static final int FAMILY_IPV4 = 4;
+    private static final int FAMILY_IPV6 = 6;
+
+    private RelayProtocol() {
+    }
+
+    /**
+     * Checks whether a datagram is a relay control or framing message.
+     */
+    public static boolean isRelayMessage(ByteBuf buf) {
+        if (!buf.isReadable()) {
+            return false;
+        }
+        int type = buf.getByte(buf.readerIndex());
+        return type >= MSG_ALLOCATE && type <= MSG_RELAYED;
+    }
+
+    /**
+     * Size of the RELAYED header for a peer address.
+     */
+    public static int headerSize(InetSocketAddress peer) {
+        return 4 + peer.getAddress().getAddress().length;
+    }
+
+    /**
+     * Writes a RELAYED header naming a peer.
+     */
+    public static void writeHeader(ByteBuf out, InetSocketAddress peer) {
+        byte[] addr = peer.getAddress().getAddress();
+        out.writeByte(MSG_RELAYED);
+        out.writeByte(addr.length == 4 ? FAMILY_IPV4 : FAMILY_IPV6);
+        out.writeShort(peer.getPort());
+        out.writeBytes(addr);
+    }
+
+    /**
+     * Reads a RELAYED header, leaving the reader index at the payload.
+     *
+     * @return The peer address, or null if the header is malformed
+     */
+    public static InetSocketAddress readHeader(ByteBuf buf) {
+        if (buf.readableBytes() < 4 || buf.readByte() != MSG_RELAYED) {
+            return null;
+        }
+        int family = buf.readUnsignedByte();
+        int port = buf.readUnsignedShort();
+        int length = family == FAMILY_IPV4 ? 4 : family == FAMILY_IPV6 ? 16 : -1;
+        if (length < 0 || buf.readableBytes() < length) {
+            return null;
+        }
+
+        byte[] addr = new byte[length];
+        buf.readBytes(addr);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(addr), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+}
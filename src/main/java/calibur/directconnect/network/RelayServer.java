@@ -0,0 +1,474 @@
+package calibur.directconnect.network;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relay for peers whose NATs cannot be punched (e.g. both symmetric).
+ *
+ * Any dedicated server running the mod can enable it. Hosts allocate a
+ * relay port on the control port; datagrams from joiners on that port are
+ * passed to the host behind a RELAYED header and the host's replies are
+ * unwrapped and sent back (see {@link RelayProtocol}). Forwarding never
+ * copies the payload: the header goes in a separate buffer composed with
+ * the received one, and replies are sent as slices of it. Uses native epoll
+ * when available.
+ *
+ * A port is only allocated to a sender that echoed a cookie sent to its
+ * address, so spoofed datagrams cannot take ports, and each source IP may
+ * hold and create only a few.
+ */
+public class RelayServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    private static final int LIFETIME_SECONDS = 60;
+    private static final long PERMISSION_TIMEOUT_MS = 120_000;
+    private static final long SWEEP_INTERVAL_MS = 10_000;
+    private static final long COOKIE_PERIOD_MS = 30_000; // A cookie is accepted for one to two periods
+    private static final int MAX_PER_IP = 4; // Allocations one source IP may hold
+    private static final int IP_BURST = 4; // Allocations one source IP may create at once,
+    private static final long IP_REFILL_MS = 15_000; // then one per this long
+
+    private static RelayServer instance;
+
+    private EventLoopGroup group;
+    private Channel control;
+    private ScheduledFuture<?> sweepTask;
+    private boolean epoll;
+    private int maxAllocations;
+    private TokenBucket bandwidth;
+    private long hostBytesPerSecond;
+
+    private final ConcurrentHashMap<InetSocketAddress, Allocation> allocations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetAddress, SourceBudget> sourceBudgets = new ConcurrentHashMap<>();
+
+    private final AtomicLong bytesForwarded = new AtomicLong();
+    private final AtomicLong packetsForwarded = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+
+    /**
+     * A relay port dedicated to one host.
+     */
+    private class Allocation {
+        final InetSocketAddress owner;
+        final ConcurrentHashMap<InetSocketAddress, Long> permissions = new ConcurrentHashMap<>();
+        // This host's own budget, so one busy host cannot use up the shared
+        // one and starve the others; null if unlimited
+        final TokenBucket bandwidth;
+        volatile Channel channel;
+        volatile long lastRefresh = System.currentTimeMillis();
+
+        Allocation(InetSocketAddress owner) {
+            this.owner = owner;
+            this.bandwidth = hostBytesPerSecond > 0 ? new TokenBucket(hostBytesPerSecond) : null;
+        }
+
+        int port() {
+            return ((InetSocketAddress) channel.localAddress()).getPort();
+        }
+    }
+
+    /**
+     * Send budget, shared by all allocations or for one of them.
+     */
+    static class TokenBucket {
+        private final double bytesPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond) {
+            this.bytesPerNano = bytesPerSecond / 1e9;
+            this.capacity = Math.max(bytesPerSecond / 4, 64 * 1024); // 250ms burst
+            this.tokens = capacity;
+        }
+
+        boolean tryConsume(int bytes) {
+            return tryConsume(bytes, System.nanoTime());
+        }
+
+        synchronized boolean tryConsume(int bytes, long now) {
+            // In doubles: elapsed nanoseconds times bytes per second
+            // overflows a long after a few ms idle at high rates
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerNano);
+            lastRefill = now;
+            if (tokens < bytes) {
+                return false;
+            }
+            tokens -= bytes;
+            return true;
+        }
+    }
+
+    /**
+     * New allocations a source IP may still create. Only used on the control
+     * port's event loop.
+     */
+    static class SourceBudget {
+        private double tokens = IP_BURST;
+        private long lastRefill;
+
+        SourceBudget(long now) {
+            this.lastRefill = now;
+        }
+
+        boolean tryTake(long now) {
+            refill(now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        boolean isFull(long now) {
+            refill(now);
+            return tokens >= IP_BURST;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(IP_BURST, tokens + (double) (now - lastRefill) / IP_REFILL_MS);
+            lastRefill = now;
+        }
+    }
+
+    private RelayServer() {
+    }
+
+    public static synchronized RelayServer getInstance() {
+        if (instance == null) {
+            instance = new RelayServer();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts the relay.
+     *
+     * @param port           Control port hosts allocate on
+     * @param maxAllocations   Maximum number of hosts served at once
+     * @param bandwidthKiB     Total forwarding budget in KiB/s, 0 for unlimited
+     * @param hostBandwidthKiB Forwarding budget of each host in KiB/s, 0 for
+     *                         unlimited
+     * @return true if started
+     */
+    public synchronized boolean start(int port, int maxAllocations, int bandwidthKiB, int hostBandwidthKiB) {
+        if (control != null) {
+            return true;
+        }
+
+        try {
+            epoll = Epoll.isAvailable();
+            group = epoll ? new EpollEventLoopGroup() : new NioEventLoopGroup();
+            this.maxAllocations = maxAllocations;
+            this.bandwidth = bandwidthKiB > 0 ? new TokenBucket(bandwidthKiB * 1024L) : null;
+            this.hostBytesPerSecond = hostBandwidthKiB * 1024L;
+
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            control = bootstrap(new ControlHandler(secret)).bind(port).sync().channel();
+            sweepTask = control.eventLoop().scheduleAtFixedRate(this::sweep,
+                    SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            LOGGER.info("[DirectConnect] Relay started on port {} ({}, max {} hosts, {}, {})", port,
+                    epoll ? "epoll" : "nio", maxAllocations,
+                    bandwidthKiB > 0 ? bandwidthKiB + " KiB/s" : "no bandwidth cap",
+                    hostBandwidthKiB > 0 ? hostBandwidthKiB + " KiB/s per host" : "no per-host cap");
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("[DirectConnect] Failed to start relay: {}", e.getMessage());
+            stop();
+            return false;
+        }
+    }
+
+    public synchronized void stop() {
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
+            sweepTask = null;
+        }
+        allocations.values().forEach(a -> {
+            if (a.channel != null) {
+                a.channel.close();
+            }
+        });
+        allocations.clear();
+        sourceBudgets.clear();
+
+        if (control != null) {
+            control.close();
+            control = null;
+            LOGGER.info("[DirectConnect] Relay stopped: {}", getSummary());
+        }
+        if (group != null) {
+            group.shutdownGracefully();
+            group = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return control != null;
+    }
+
+    /**
+     * One-line traffic summary.
+     */
+    public String getSummary() {
+        return String.format("%d hosts, %d packets / %d KiB forwarded, %d dropped",
+                allocations.size(), packetsForwarded.get(), bytesForwarded.get() / 1024, packetsDropped.get());
+    }
+
+    private Bootstrap bootstrap(SimpleChannelInboundHandler<DatagramPacket> handler) {
+        return new Bootstrap()
+                .group(group)
+                .channel(epoll ? EpollDatagramChannel.class : NioDatagramChannel.class)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(DatagramChannel ch) {
+                        ch.pipeline().addLast(handler);
+                    }
+                });
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        allocations.values().removeIf(a -> {
+            if (now - a.lastRefresh > LIFETIME_SECONDS * 1000L) {
+                LOGGER.info("[DirectConnect] Relay allocation for {} expired", a.owner);
+                if (a.channel != null) {
+                    a.channel.close();
+                }
+                return true;
+            }
+            a.permissions.values().removeIf(seen -> now - seen > PERMISSION_TIMEOUT_MS);
+            return false;
+        });
+        sourceBudgets.values().removeIf(budget -> budget.isFull(now));
+    }
+
+    /**
+     * Charges a datagram to its host's budget and then to the shared one.
+     */
+    private boolean admit(Allocation allocation, int bytes) {
+        if ((allocation.bandwidth != null && !allocation.bandwidth.tryConsume(bytes))
+                || (bandwidth != null && !bandwidth.tryConsume(bytes))) {
+            packetsDropped.incrementAndGet();
+            return false;
+        }
+        packetsForwarded.incrementAndGet();
+        bytesForwarded.addAndGet(bytes);
+        return true;
+    }
+
+    // --- Control port ---
+
+    private class ControlHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        private final Mac mac; // Keyed with a secret drawn at start
+
+        ControlHandler(byte[] secret) throws GeneralSecurityException {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            ByteBuf buf = packet.content();
+            InetSocketAddress owner = packet.sender();
+            if (buf.readableBytes() < RelayProtocol.ALLOCATE_SIZE
+                    || buf.getByte(buf.readerIndex()) != RelayProtocol.MSG_ALLOCATE) {
+                return;
+            }
+            int txidAt = buf.readerIndex() + 1;
+
+            // Stateless return-routability check: only a sender receiving at
+            // its source address learns the cookie to echo
+            byte[] echoed = new byte[RelayProtocol.COOKIE_SIZE];
+            buf.getBytes(txidAt + RelayProtocol.TXID_SIZE, echoed);
+            long period = System.currentTimeMillis() / COOKIE_PERIOD_MS;
+            byte[] cookie = cookie(owner, period);
+            if (!MessageDigest.isEqual(echoed, cookie) && !MessageDigest.isEqual(echoed, cookie(owner, period - 1))) {
+                ByteBuf challenge = ctx.alloc().buffer(RelayProtocol.CHALLENGE_SIZE);
+                challenge.writeByte(RelayProtocol.MSG_CHALLENGE);
+                challenge.writeBytes(buf, txidAt, RelayProtocol.TXID_SIZE);
+                challenge.writeBytes(cookie);
+                ctx.writeAndFlush(new DatagramPacket(challenge, owner));
+                return;
+            }
+            ByteBuf txid = buf.retainedSlice(txidAt, RelayProtocol.TXID_SIZE);
+
+            // Retransmitted ALLOCATE: answer with the existing port
+            Allocation existing = allocations.get(owner);
+            if (existing != null && existing.channel == null) {
+                txid.release(); // Still binding; that will answer
+                return;
+            }
+            if (existing != null) {
+                existing.lastRefresh = System.currentTimeMillis();
+                sendAllocated(ctx, owner, txid, existing.port());
+                return;
+            }
+
+            if (allocations.size() >= maxAllocations) {
+                LOGGER.warn("[DirectConnect] Relay full, refusing {}", owner);
+                sendError(ctx, owner, txid, RelayProtocol.ERROR_FULL);
+                return;
+            }
+            if (!admitSource(owner.getAddress())) {
+                LOGGER.warn("[DirectConnect] Too many relay allocations from {}, refusing", owner.getAddress());
+                sendError(ctx, owner, txid, RelayProtocol.ERROR_RATE_LIMITED);
+                return;
+            }
+
+            Allocation allocation = new Allocation(owner);
+            if (allocations.putIfAbsent(owner, allocation) != null) {
+                txid.release();
+                return;
+            }
+            ChannelFuture bind = bootstrap(new AllocationHandler(allocation)).bind(0);
+            bind.addListener(f -> {
+                if (!f.isSuccess()) {
+                    allocations.remove(owner, allocation);
+                    txid.release();
+                    return;
+                }
+                allocation.channel = bind.channel();
+                LOGGER.info("[DirectConnect] Relay allocated port {} for {}", allocation.port(), owner);
+                sendAllocated(ctx, owner, txid, allocation.port());
+            });
+        }
+
+        /**
+         * Cookie for a source address, valid while the period lasts.
+         */
+        private byte[] cookie(InetSocketAddress source, long period) {
+            mac.update(source.getAddress().getAddress());
+            mac.update(ByteBuffer.allocate(Short.BYTES + Long.BYTES)
+                    .putShort((short) source.getPort())
+                    .putLong(period)
+                    .flip());
+            return Arrays.copyOf(mac.doFinal(), RelayProtocol.COOKIE_SIZE);
+        }
+
+        /**
+         * Whether a source IP may create one more allocation, and charges
+         * it if so.
+         */
+        private boolean admitSource(InetAddress source) {
+            long held = allocations.keySet().stream().filter(a -> a.getAddress().equals(source)).count();
+            if (held >= MAX_PER_IP) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            return sourceBudgets.computeIfAbsent(source, ip -> new SourceBudget(now)).tryTake(now);
+        }
+
+        private void sendError(ChannelHandlerContext ctx, InetSocketAddress owner, ByteBuf txid, int code) {
+            ByteBuf error = ctx.alloc().buffer(2 + RelayProtocol.TXID_SIZE);
+            error.writeByte(RelayProtocol.MSG_ALLOCATE_ERROR);
+            error.writeBytes(txid);
+            error.writeByte(code);
+            txid.release();
+            ctx.writeAndFlush(new DatagramPacket(error, owner));
+        }
+
+        private void sendAllocated(ChannelHandlerContext ctx, InetSocketAddress owner, ByteBuf txid, int port) {
+            ByteBuf reply = ctx.alloc().buffer(RelayProtocol.ALLOCATED_SIZE);
+            reply.writeByte(RelayProtocol.MSG_ALLOCATED);
+            reply.writeBytes(txid);
+            reply.writeShort(port);
+            reply.writeShort(LIFETIME_SECONDS);
+            txid.release();
+            ctx.writeAndFlush(new DatagramPacket(reply, owner));
+        }
+    }
+
+    // --- Allocated ports ---
+
+    private class AllocationHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        private final Allocation allocation;
+
+        AllocationHandler(Allocation allocation) {
+            this.allocation = allocation;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            ByteBuf buf = packet.content();
+            InetSocketAddress sender = packet.sender();
+
+            if (sender.equals(allocation.owner)) {
+                fromOwner(ctx, buf);
+            } else {
+                fromPeer(ctx, buf, sender);
+            }
+        }
+
+        /**
+         * Host to joiner: strip the header and send the rest as a slice.
+         */
+        private void fromOwner(ChannelHandlerContext ctx, ByteBuf buf) {
+            allocation.lastRefresh = System.currentTimeMillis();
+
+            if (buf.isReadable() && buf.getByte(buf.readerIndex()) == RelayProtocol.MSG_REFRESH) {
+                ctx.writeAndFlush(new DatagramPacket(buf.retainedSlice(), allocation.owner));
+                return;
+            }
+
+            InetSocketAddress peer = RelayProtocol.readHeader(buf);
+            // Only to peers that contacted this port first, so a relay cannot
+            // be used to send traffic anywhere
+            if (peer == null || !allocation.permissions.containsKey(peer)) {
+                return;
+            }
+            int length = buf.readableBytes();
+            if (admit(allocation, length)) {
+                ctx.writeAndFlush(new DatagramPacket(buf.retainedSlice(buf.readerIndex(), length), peer));
+            }
+        }
+
+        /**
+         * Joiner to host: prepend the header without copying the payload.
+         */
+        private void fromPeer(ChannelHandlerContext ctx, ByteBuf buf, InetSocketAddress peer) {
+            allocation.permissions.put(peer, System.currentTimeMillis());
+
+            int length = buf.readableBytes();
+            if (!admit(allocation, length)) {
+                return;
+            }
+            ByteBuf header = ctx.alloc().directBuffer(RelayProtocol.headerSize(peer));
+            RelayProtocol.writeHeader(header, peer);
+            ctx.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(header, buf.retain()), allocation.owner));
+        }
+    }
+}
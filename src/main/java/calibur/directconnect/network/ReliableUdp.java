@@ -11,11 +11,22 @@ import io.netty.bootstrap.Bootstrap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.Inet6Address;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 
 /**
@@ -31,28 +42,198 @@ public class ReliableUdp {
     // Protocol constants
     private static final byte MSG_DATA = 0x01; // Regular data packet
     private static final byte MSG_ACK = 0x02; // Acknowledgment
-    private static final byte MSG_HELLO = 0x03; // Connection handshake
-    private static final byte MSG_HELLO_ACK = 0x04; // Handshake response
+    private static final byte MSG_HELLO = 0x03; // Handshake: [version 1][features 4][timestamp 8]
+    // Handshake response: [token 8][tcpPort 2][version 1][features 4][echoed timestamp 8]
+    private static final byte MSG_HELLO_ACK = 0x04;
     private static final byte MSG_CLOSE = 0x05; // Connection close
+    private static final byte MSG_PROBE = 0x06; // Path probe: [token 8][seq 4]
+    private static final byte MSG_PROBE_ACK = 0x07; // Probe echo: [seq 4]
+    private static final byte MSG_MIGRATE = 0x08; // Move session to this path: [token 8]
+    private static final byte MSG_MIGRATE_ACK = 0x09; // Migration confirmed: [token 8]
+    private static final byte MSG_PATH = 0x0A; // Add or keep alive a multipath path: [token 8][timestamp 8]
+    private static final byte MSG_PATH_ACK = 0x0B; // Path heartbeat echo: [timestamp 8]
+    private static final byte MSG_CONTROL = 0x0C; // Unreliable out-of-band message: [payload]
+
+    private static final byte MSG_PUNCH = 0x00; // Hole punch, ignored on receipt
+
+    private static final int PUNCH_INTERVAL_MS = 50;
+
+    /**
+     * Transport protocol version. Peers use the lower of the two versions;
+     * one that sends a bare HELLO is version 0 with no features. Version 2
+     * sends DATA and ACK with the {@link CompactHeader}. Version 3 numbers
+     * packets per session, so the receiver delivers them in order.
+     */
+    public static final int PROTOCOL_VERSION = 3;
+    private static final int COMPACT_VERSION = 2;
+    private static final int ORDERED_VERSION = 3;
+    // Optional features, offered in the handshake and used only when both
+    // peers offer them
+    public static final int FEATURE_MIGRATION = 1; // MIGRATE and PROBE
+    public static final int FEATURE_MULTIPATH = 1 << 1; // PATH
+    public static final int FEATURE_TCP_PUNCH = 1 << 2; // CONTROL carrying TCP punch offers
+    public static final int ALL_FEATURES = FEATURE_MIGRATION | FEATURE_MULTIPATH | FEATURE_TCP_PUNCH;
+    private static final long HELLO_INITIAL_RTO_MS = 250;
 
     private static final int MAX_RETRIES = 5;
     private static final int RETRY_DELAY_MS = 200;
+    // Ordered sessions cannot skip a packet, so they keep retransmitting,
+    // backing off to this many retry ticks apart (2 s), until TIMEOUT_MS
+    private static final int MAX_RETRY_BACKOFF = 10;
     private static final int TIMEOUT_MS = 10000;
+    private static final int MIGRATE_ATTEMPTS = 5;
+    // How long packets still arriving on the path a session left count as
+    // the session's: by then every retransmission sent there is answered or
+    // has given up
+    private static final int MIGRATION_DRAIN_MS = MAX_RETRIES * RETRY_DELAY_MS;
+    private static final int PATH_HEARTBEAT_MS = 1000;
+    // Packets up to this size (input, movement, keepalives) are sent on two
+    // paths when duplication is on; bulk chunk data is not worth doubling
+    private static final int DUPLICATE_MAX_SIZE = 256;
+    // Paths of a multipath session differ in delay, so hundreds of packets
+    // can overtake one; two-byte packet numbers still decode after that on
+    // unordered sessions, which decode against the highest number seen
+    private static final long MULTIPATH_PN_RANGE = 0x7FFF;
+
+    // One event loop group for every transport: checks open a socket per
+    // candidate pair, and a group per socket would mean a thread pool each
+    private static EventLoopGroup sharedGroup;
+    // Retransmissions of every instance; stop() cancels its own, the thread
+    // stays up for the next session
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "DirectConnect-Retry");
+        t.setDaemon(true);
+        return t;
+    });
 
     private EventLoopGroup group;
     private Channel channel;
-    private InetSocketAddress remoteAddress;
+    private volatile InetSocketAddress remoteAddress;
     private volatile boolean connected = false;
     private volatile boolean isServer = false;
 
-    private final AtomicInteger sequenceNumber = new AtomicInteger(0);
-    private final ConcurrentHashMap<Integer, PendingPacket> pendingAcks = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // Packet numbers run per session, so each receiver sees them without
+    // gaps and can put them back in order
+    private final ConcurrentHashMap<InetSocketAddress, SendSequence> sendSequences = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PendingKey, PendingPacket> pendingAcks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, SessionStats> stats = new ConcurrentHashMap<>();
+    // Keyed by transaction ID, since responses to a CHANGE-REQUEST arrive
+    // from a different address than the one the request went to
+    private final ConcurrentHashMap<ByteBuffer, CompletableFuture<byte[]>> pendingStun = new ConcurrentHashMap<>();
+    // Session tokens handed out in HELLO_ACK (server side). A client proves
+    // it owns a session with its token when moving it to another path.
+    private final ConcurrentHashMap<Long, InetSocketAddress> sessionsByToken = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, Long> tokensByPeer = new ConcurrentHashMap<>();
+    private volatile long sessionToken; // Client side, 0 until connected
+    // TCP port the game can be reached on directly from the LAN, sent in
+    // HELLO_ACK (0 = none), and the one the peer sent us
+    private volatile int advertisedTcpPort = 0;
+    private volatile int peerTcpPort = 0;
+
+    // Features we offer, and what the handshake agreed on: client side for
+    // the one host, server side per client
+    private volatile int localFeatures = ALL_FEATURES;
+    private volatile Handshake peerHandshake = Handshake.LEGACY;
+    private final ConcurrentHashMap<InetSocketAddress, Handshake> clientHandshakes = new ConcurrentHashMap<>();
+
+    // Compact header state: acks waiting to go out per address, and the
+    // highest packet number each session has acknowledged
+    private final ConcurrentHashMap<InetSocketAddress, AckQueue> ackQueues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, Integer> largestAcked = new ConcurrentHashMap<>();
+
+    // Connectivity checks from one socket to several remotes: every answer
+    // is recorded and reported instead of latching onto the first one
+    private volatile boolean checking = false;
+    private final ConcurrentHashMap<InetSocketAddress, HelloAck> helloAcks = new ConcurrentHashMap<>();
+    private volatile BiConsumer<InetSocketAddress, Long> onHelloAck;
+
+    private record HelloAck(long token, int tcpPort, Handshake handshake) {
+    }
+
+    /**
+     * Version and features agreed with a peer.
+     */
+    private record Handshake(int version, int features) {
+        static final Handshake LEGACY = new Handshake(0, 0);
+
+        /**
+         * Reads the peer's offer and keeps what both sides support.
+         */
+        static Handshake negotiate(ByteBuf buf, int localFeatures) {
+            if (buf.readableBytes() < 5) {
+                return LEGACY;
+            }
+            int version = buf.readUnsignedByte();
+            int features = buf.readInt();
+            return new Handshake(Math.min(version, PROTOCOL_VERSION), features & localFeatures);
+        }
+    }
+    private volatile CompletableFuture<Boolean> pendingMigration;
+    private volatile InetSocketAddress migrationTarget;
+
+    // Multipath: the paths of each session, keyed by the session's address,
+    // and the extra path addresses mapped back to that address
+    private final ConcurrentHashMap<InetSocketAddress, PathSet> pathSets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, InetSocketAddress> pathAliases = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, ReceiveWindow> receiveWindows = new ConcurrentHashMap<>();
+    private volatile boolean duplicateSmall = false;
+    private ScheduledFuture<?> pathTask;
+
+    // Peers reached through a relay, mapped to the relay port they came from,
+    // and the relay ports allocated for us: RELAYED frames from anywhere
+    // else are dropped, or anyone could redirect a peer's traffic to itself
+    private final ConcurrentHashMap<InetSocketAddress, InetSocketAddress> relayRoutes = new ConcurrentHashMap<>();
+    private final Set<InetSocketAddress> relays = ConcurrentHashMap.newKeySet();
 
     // Callbacks
     private BiConsumer<InetSocketAddress, byte[]> onData;
+    private volatile BiPredicate<InetSocketAddress, ByteBuf> onStun;
+    private volatile BiPredicate<InetSocketAddress, ByteBuf> onRelay;
     private Consumer<InetSocketAddress> onConnect;
     private Consumer<InetSocketAddress> onDisconnect;
+    private volatile BiConsumer<InetSocketAddress, InetSocketAddress> onMigrate;
+    private volatile BiConsumer<InetSocketAddress, Integer> onProbeAck;
+    private volatile BiConsumer<InetSocketAddress, byte[]> onControl;
+
+    /**
+     * Packet numbers handed out to one session, and the lowest one not yet
+     * acknowledged. Ordered sessions size compact packet numbers from it:
+     * the receiver decodes against the next number it expects, which is
+     * never below it, so numbers decode however far packets reorder.
+     */
+    private static class SendSequence {
+        private int last = 0;
+        private int lowestUnacked = 1;
+        private final Set<Integer> ackedAbove = new HashSet<>();
+
+        synchronized int next() {
+            return ++last;
+        }
+
+        synchronized int last() {
+            return last;
+        }
+
+        synchronized int lowestUnacked() {
+            return lowestUnacked;
+        }
+
+        synchronized void acked(int seq) {
+            if (seq != lowestUnacked) {
+                ackedAbove.add(seq);
+                return;
+            }
+            do {
+                lowestUnacked++;
+            } while (ackedAbove.remove(lowestUnacked));
+        }
+    }
+
+    /**
+     * A packet waiting for acknowledgment, by session and packet number.
+     */
+    private record PendingKey(InetSocketAddress session, int seqNum) {
+    }
 
     /**
      * Represents a packet waiting for acknowledgment.
@@ -60,15 +241,180 @@ public class ReliableUdp {
     private static class PendingPacket {
         final int seqNum;
         final byte[] data;
-        final InetSocketAddress target;
+        volatile InetSocketAddress target; // Updated when the session migrates
+        volatile InetSocketAddress path; // Address last sent to; differs from target on multipath
+        InetSocketAddress duplicatePath; // Second path of a duplicated packet
+        final long sentAt = System.nanoTime();
+        boolean appLimited; // Sent with less than a pipe's worth in flight
         int retries = 0;
+        int backoff; // Retry ticks left before the next retransmission
         ScheduledFuture<?> retryFuture;
 
         PendingPacket(int seqNum, byte[] data, InetSocketAddress target) {
             this.seqNum = seqNum;
             this.data = data;
             this.target = target;
+            this.path = target;
+        }
+
+        PendingKey key() {
+            return new PendingKey(target, seqNum);
+        }
+    }
+
+    /**
+     * Sequence numbers recently delivered from one peer, so retransmissions
+     * whose ACK was lost and packets duplicated across paths are delivered
+     * only once.
+     *
+     * With peers that number packets per session, it also puts them back in
+     * order: packets that overtook a lost or slower one (on another path, or
+     * retransmitted after a migration) are held until the gap is filled.
+     */
+    private static class ReceiveWindow {
+        private static final int SIZE = 8192;
+
+        private final BitSet seen = new BitSet(SIZE);
+        private int highest = 0;
+        // Ordered mode: the next packet number to deliver, and the payloads
+        // that arrived ahead of it
+        private int next = 1;
+        private final Map<Integer, byte[]> held = new HashMap<>();
+
+        /**
+         * Takes a packet of an ordered session.
+         *
+         * @return The payloads now deliverable, in order: empty if the packet
+         *         was delivered before or is held; null if it is too far
+         *         ahead to hold, in which case it must not be acknowledged
+         */
+        synchronized List<byte[]> acceptInOrder(int seq, byte[] data) {
+            int ahead = seq - next;
+            if (ahead < 0) {
+                return List.of();
+            }
+            if (ahead >= SIZE) {
+                return null;
+            }
+            if (seq - highest > 0) {
+                highest = seq;
+            }
+            if (ahead > 0) {
+                held.putIfAbsent(seq, data);
+                return List.of();
+            }
+
+            List<byte[]> ready = new ArrayList<>();
+            ready.add(data);
+            next++;
+            for (byte[] waiting; (waiting = held.remove(next)) != null; next++) {
+                ready.add(waiting);
+            }
+            return ready;
+        }
+
+        synchronized boolean accept(int seq) {
+            if (seq - highest > 0) {
+                if (seq - highest >= SIZE) {
+                    seen.clear();
+                } else {
+                    for (int s = highest + 1; s != seq; s++) {
+                        seen.clear(s & (SIZE - 1));
+                    }
+                }
+                highest = seq;
+                seen.set(seq & (SIZE - 1));
+                return true;
+            }
+            if (highest - seq >= SIZE || seen.get(seq & (SIZE - 1))) {
+                return false;
+            }
+            seen.set(seq & (SIZE - 1));
+            return true;
+        }
+
+        synchronized int highest() {
+            return highest;
+        }
+
+        /**
+         * The last packet number delivered in order (ordered mode).
+         */
+        synchronized int delivered() {
+            return next - 1;
+        }
+    }
+
+    /**
+     * Acks waiting to go out to one address with the compact header. They
+     * are flushed at the end of each read batch, or earlier on a data packet
+     * going the same way.
+     */
+    private static class AckQueue {
+        private final int[] acks = new int[CompactHeader.MAX_ACKS];
+        private final int[] sorted = new int[CompactHeader.MAX_ACKS];
+        private int count = 0;
+
+        /**
+         * @return true if the queue is full and should be flushed now
+         */
+        synchronized boolean add(int seq) {
+            if (count < acks.length) {
+                acks[count++] = seq;
+            }
+            return count == acks.length;
+        }
+
+        /**
+         * Writes the queued acks as an ack block and clears the queue.
+         *
+         * @return false if there was nothing to write
+         */
+        synchronized boolean drainTo(ByteBuf buf) {
+            if (count == 0) {
+                return false;
+            }
+            // Sort by distance from the first ack rather than by value, so
+            // numbers on both sides of a wrap stay in serial order
+            int base = acks[0];
+            for (int i = 0; i < count; i++) {
+                acks[i] -= base;
+            }
+            Arrays.sort(acks, 0, count);
+            int n = 0;
+            for (int i = count - 1; i >= 0; i--) {
+                int ack = acks[i] + base;
+                if (n == 0 || sorted[n - 1] != ack) {
+                    sorted[n++] = ack;
+                }
+            }
+            CompactHeader.writeAcks(buf, sorted, n);
+            count = 0;
+            return true;
+        }
+
+        synchronized boolean isEmpty() {
+            return count == 0;
+        }
+    }
+
+    private static synchronized EventLoopGroup sharedGroup() {
+        if (sharedGroup == null) {
+            AtomicInteger threads = new AtomicInteger();
+            sharedGroup = new NioEventLoopGroup(0, r -> {
+                Thread t = new Thread(r, "DirectConnect-UDP-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
         }
+        return sharedGroup;
+    }
+
+    /**
+     * Starts the shared event loops ahead of the first socket.
+     */
+    public static void warmUp() {
+        sharedGroup();
     }
 
     /**
@@ -79,7 +425,7 @@ public class ReliableUdp {
      */
     public boolean startServer(int port) {
         try {
-            group = new NioEventLoopGroup();
+            group = sharedGroup();
             isServer = true;
 
             Bootstrap bootstrap = new Bootstrap();
@@ -96,7 +442,8 @@ public class ReliableUdp {
             channel = bootstrap.bind(port).sync().channel();
             connected = true;
 
-            LOGGER.info("[DirectConnect] UDP server started on port {}", port);
+            LOGGER.info("[DirectConnect] UDP server started on port {} ({})", port,
+                    isDualStack() ? "IPv4 + IPv6" : "IPv4 only");
             return true;
         } catch (Exception e) {
             LOGGER.error("[DirectConnect] Failed to start UDP server: {}", e.getMessage());
@@ -113,10 +460,149 @@ public class ReliableUdp {
      * @return true if connected successfully
      */
     public boolean connect(String host, int port) {
+        return connect(new InetSocketAddress(0), new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Connects to a remote UDP endpoint from a specific local address.
+     * 
+     * @param local  Local address to bind (port 0 for any)
+     * @param remote Remote endpoint
+     * @return true if the HELLO was sent
+     */
+    public boolean connect(InetSocketAddress local, InetSocketAddress remote) {
+        remoteAddress = remote;
+        if (!bind(local)) {
+            return false;
+        }
+
+        // Send HELLO to initiate connection, retransmitted until answered
+        sendHello(remoteAddress);
+        retransmitHello(remote, HELLO_INITIAL_RTO_MS, System.currentTimeMillis() + TIMEOUT_MS);
+        LOGGER.info("[DirectConnect] Connecting to {} from {}", remote, channel.localAddress());
+        return true;
+    }
+
+    /**
+     * Ends the session with the host but keeps the socket open, so its NAT
+     * mappings stay warm for a later {@link #reconnect} (client side).
+     */
+    public void closeSession() {
+        InetSocketAddress remote = remoteAddress;
+        Channel ch = channel;
+        if (isServer || !connected || remote == null || ch == null || !ch.isActive()) {
+            return;
+        }
+        connected = false;
+        ByteBuf close = Unpooled.buffer(1);
+        close.writeByte(MSG_CLOSE);
+        write(close, remote);
+
+        for (PendingPacket pending : pendingAcks.values()) {
+            if (pending.retryFuture != null) {
+                pending.retryFuture.cancel(false);
+            }
+        }
+        pendingAcks.clear();
+        // The next session starts with fresh packet number state on the host
+        largestAcked.remove(remote);
+        sendSequences.remove(remote);
+        ackQueues.clear();
+        receiveWindows.remove(remote);
+        sessionToken = 0;
+    }
+
+    /**
+     * Opens a new session to the same host on this socket after
+     * {@link #closeSession}. The HELLO is retransmitted until answered and
+     * the {@link #setOnConnect} handler runs once it is.
+     *
+     * @return true if the HELLO was sent
+     */
+    public boolean reconnect() {
+        InetSocketAddress remote = remoteAddress;
+        Channel ch = channel;
+        if (isServer || connected || remote == null || ch == null || !ch.isActive()) {
+            return false;
+        }
+        sendHello(remote);
+        retransmitHello(remote, HELLO_INITIAL_RTO_MS, System.currentTimeMillis() + TIMEOUT_MS);
+        return true;
+    }
+
+    /**
+     * Resends an unanswered HELLO with exponential backoff, so one lost
+     * datagram costs a few hundred milliseconds instead of the whole
+     * connection timeout.
+     */
+    private void retransmitHello(InetSocketAddress target, long delayMs, long deadline) {
+        Channel ch = channel;
+        if (ch == null) {
+            return;
+        }
+        ch.eventLoop().schedule(() -> {
+            if (connected || channel != ch || !ch.isActive()) {
+                return;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                LOGGER.warn("[DirectConnect] No answer from {} after {} ms", target, TIMEOUT_MS);
+                return;
+            }
+            sendHello(target);
+            retransmitHello(target, Math.min(delayMs * 2, TIMEOUT_MS / 4), deadline);
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a client socket for connectivity checks against several remotes
+     * at once. HELLOs are sent with {@link #sprayHello}; each answer is
+     * reported to the {@link #setOnHelloAck} handler and the session starts
+     * once one of them is chosen with {@link #select}.
+     *
+     * @param local Local address to bind (port 0 for any)
+     * @return true if the socket is open
+     */
+    public boolean openForChecks(InetSocketAddress local) {
+        checking = true;
+        return bind(local);
+    }
+
+    /**
+     * Starts the session with a remote that answered a check. Other remotes
+     * that answered are told to drop the sessions they opened for us.
+     */
+    public void select(InetSocketAddress remote) {
+        HelloAck chosen = helloAcks.get(remote);
+        if (chosen == null) {
+            return;
+        }
+        checking = false;
+        remoteAddress = remote;
+        sessionToken = chosen.token;
+        peerTcpPort = chosen.tcpPort;
+        peerHandshake = chosen.handshake;
+        connected = true;
+
+        helloAcks.forEach((other, ack) -> {
+            if (!other.equals(remote)) {
+                stats.remove(other); // Only the handshake RTT
+            }
+            // Same token: the host sees both paths as one session
+            if (!other.equals(remote) && ack.token != chosen.token) {
+                ByteBuf close = Unpooled.buffer(1);
+                close.writeByte(MSG_CLOSE);
+                write(close, other);
+            }
+        });
+        helloAcks.clear();
+        LOGGER.info("[DirectConnect] Connected to server {} (protocol v{}, features {})", remote,
+                chosen.handshake.version, chosen.handshake.features);
+    }
+
+    private boolean bind(InetSocketAddress local) {
         try {
-            group = new NioEventLoopGroup();
+            group = sharedGroup();
             isServer = false;
-            remoteAddress = new InetSocketAddress(host, port);
 
             Bootstrap bootstrap = new Bootstrap();
             bootstrap.group(group)
@@ -128,12 +614,7 @@ public class ReliableUdp {
                         }
                     });
 
-            channel = bootstrap.bind(0).sync().channel();
-
-            // Send HELLO to initiate connection
-            sendHello(remoteAddress);
-
-            LOGGER.info("[DirectConnect] Connecting to {}:{}", host, port);
+            channel = bootstrap.bind(local).sync().channel();
             return true;
         } catch (Exception e) {
             LOGGER.error("[DirectConnect] Failed to connect: {}", e.getMessage());
@@ -165,140 +646,1002 @@ public class ReliableUdp {
         if (channel == null || !channel.isActive())
             return;
 
-        int seqNum = sequenceNumber.incrementAndGet();
+        int seqNum = sendSequences.computeIfAbsent(target, t -> new SendSequence()).next();
+        PendingPacket pending = new PendingPacket(seqNum, data, target);
 
-        // Create packet: [MSG_DATA][seqNum (4 bytes)][data]
-        ByteBuf buf = Unpooled.buffer(5 + data.length);
-        buf.writeByte(MSG_DATA);
-        buf.writeInt(seqNum);
-        buf.writeBytes(data);
+        PathSet paths = pathSets.get(target);
+        PathSet.Path path = paths != null ? paths.select(null) : null;
+        PathSet.Path second = null;
+        if (path != null) {
+            pending.path = path.address;
+            paths.onSend(path, data.length);
+            second = duplicateSmall && data.length <= DUPLICATE_MAX_SIZE ? paths.select(path) : null;
+            if (second != null) {
+                pending.duplicatePath = second.address;
+                paths.onSend(second, data.length);
+            }
+        }
 
-        DatagramPacket packet = new DatagramPacket(buf, target);
-        channel.writeAndFlush(packet);
+        ByteBuf buf = dataPacket(pending);
+        pending.appLimited = statsFor(target).onSend(data.length);
+        statsFor(target).onWire(buf.readableBytes() * (second != null ? 2 : 1));
+        if (second != null) {
+            write(buf.retainedDuplicate(), second.address);
+        }
+        write(buf, pending.path);
 
         // Schedule retransmission
-        PendingPacket pending = new PendingPacket(seqNum, data, target);
-        pending.retryFuture = scheduler.scheduleAtFixedRate(() -> {
+        pending.retryFuture = SCHEDULER.scheduleAtFixedRate(() -> {
             retryPacket(pending);
         }, RETRY_DELAY_MS, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
 
-        pendingAcks.put(seqNum, pending);
+        pendingAcks.put(pending.key(), pending);
     }
 
     /**
      * Retries sending a packet that hasn't been acknowledged.
      */
     private void retryPacket(PendingPacket pending) {
-        if (pending.retries >= MAX_RETRIES) {
-            LOGGER.warn("[DirectConnect] Packet {} dropped after {} retries", pending.seqNum, MAX_RETRIES);
+        boolean ordered = isOrdered(pending.target);
+        boolean giveUp = ordered
+                ? System.nanoTime() - pending.sentAt >= TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS)
+                : pending.retries >= MAX_RETRIES;
+        if (giveUp) {
+            LOGGER.warn("[DirectConnect] Packet {} dropped after {} retries", pending.seqNum, pending.retries);
             pending.retryFuture.cancel(false);
-            pendingAcks.remove(pending.seqNum);
+            pendingAcks.remove(pending.key(), pending);
+            statsFor(pending.target).onDrop(pending.data.length);
+            PathSet paths = pathSets.get(pending.target);
+            if (paths != null) {
+                paths.release(pending.path);
+                releaseDuplicate(paths, pending);
+            }
+            if (ordered) {
+                // The receiver holds everything after the hole forever
+                dropSession(pending.target);
+            }
+            return;
+        }
+        if (pending.backoff > 0 && --pending.backoff > 0) {
             return;
         }
 
         pending.retries++;
+        if (ordered) {
+            pending.backoff = Math.min(1 << Math.min(pending.retries, 4), MAX_RETRY_BACKOFF);
+        }
+        statsFor(pending.target).onRetransmit();
 
-        ByteBuf buf = Unpooled.buffer(5 + pending.data.length);
-        buf.writeByte(MSG_DATA);
-        buf.writeInt(pending.seqNum);
-        buf.writeBytes(pending.data);
+        // On multipath, a timeout counts against the path and the
+        // retransmission goes to whichever path is best now
+        PathSet paths = pathSets.get(pending.target);
+        if (paths != null) {
+            releaseDuplicate(paths, pending);
+            InetSocketAddress failed = pending.path;
+            boolean down = paths.onTimeout(failed);
+            resend(pending, paths);
+            if (down) {
+                pathDown(pending.target, paths, failed);
+            }
+            return;
+        }
 
-        DatagramPacket packet = new DatagramPacket(buf, pending.target);
-        channel.writeAndFlush(packet);
+        writeData(pending);
     }
 
     /**
-     * Sends a HELLO packet to initiate connection.
+     * Ends an ordered session whose peer stopped acknowledging, and tells
+     * the peer so, since its receive window cannot get past the hole.
      */
-    private void sendHello(InetSocketAddress target) {
-        ByteBuf buf = Unpooled.buffer(1);
-        buf.writeByte(MSG_HELLO);
-        channel.writeAndFlush(new DatagramPacket(buf, target));
+    private void dropSession(InetSocketAddress session) {
+        boolean known = isServer ? tokensByPeer.containsKey(session) : connected && session.equals(remoteAddress);
+        if (!known) {
+            return;
+        }
+        LOGGER.warn("[DirectConnect] Peer {} stopped answering, dropping the session", session);
+        for (PendingPacket pending : pendingAcks.values()) {
+            if (pending.target.equals(session) && pendingAcks.remove(pending.key(), pending)
+                    && pending.retryFuture != null) {
+                pending.retryFuture.cancel(false);
+            }
+        }
+        Channel ch = channel;
+        if (ch != null && ch.isActive()) {
+            ByteBuf close = Unpooled.buffer(1);
+            close.writeByte(MSG_CLOSE);
+            write(close, session);
+        }
+        if (!isServer) {
+            connected = false;
+        }
+        forget(session);
+        if (onDisconnect != null) {
+            onDisconnect.accept(session);
+        }
     }
 
     /**
-     * Sends ACK for a received packet.
+     * Builds a DATA packet in the format agreed with the peer: the v1
+     * [MSG_DATA][seqNum 4][data], or the compact header carrying any acks
+     * queued for the path it goes out on.
      */
-    private void sendAck(InetSocketAddress target, int seqNum) {
-        ByteBuf buf = Unpooled.buffer(5);
-        buf.writeByte(MSG_ACK);
-        buf.writeInt(seqNum);
-        channel.writeAndFlush(new DatagramPacket(buf, target));
+    private ByteBuf dataPacket(PendingPacket pending) {
+        if (!isCompact(pending.target)) {
+            ByteBuf buf = Unpooled.buffer(5 + pending.data.length);
+            buf.writeByte(MSG_DATA);
+            buf.writeInt(pending.seqNum);
+            buf.writeBytes(pending.data);
+            return buf;
+        }
+
+        SendSequence sequence = sendSequences.get(pending.target);
+        int sent = sequence != null ? sequence.last() : pending.seqNum;
+        long range;
+        if (isOrdered(pending.target)) {
+            // The receiver expects a number between our lowest unacknowledged
+            // one and the last we sent
+            int lowest = sequence != null ? sequence.lowestUnacked() : pending.seqNum;
+            range = Math.max((long) (pending.seqNum - lowest), (long) (sent - pending.seqNum)) + 1;
+        } else {
+            // The receiver's highest packet number is somewhere between what
+            // it has acknowledged and what we have sent
+            int acked = largestAcked.getOrDefault(pending.target, 0);
+            range = Math.max(Math.abs((long) (pending.seqNum - acked)), (long) (sent - pending.seqNum)) + 1;
+            if (pathSets.containsKey(pending.target)) {
+                range = Math.max(range, MULTIPATH_PN_RANGE);
+            }
+        }
+        int length = CompactHeader.packetNumberLength(range);
+
+        ByteBuf buf = Unpooled.buffer(CompactHeader.MAX_HEADER_SIZE + pending.data.length);
+        int flags = CompactHeader.MARKER | CompactHeader.FLAG_DATA | (length - 1);
+        buf.writeByte(flags);
+        CompactHeader.writePacketNumber(buf, pending.seqNum, length);
+        AckQueue acks = ackQueues.get(pending.path);
+        if (acks != null && acks.drainTo(buf)) {
+            buf.setByte(0, flags | CompactHeader.FLAG_ACK);
+        }
+        buf.writeBytes(pending.data);
+        return buf;
+    }
+
+    private void writeData(PendingPacket pending) {
+        ByteBuf buf = dataPacket(pending);
+        statsFor(pending.target).onWire(buf.readableBytes());
+        write(buf, pending.path);
+    }
+
+    private boolean isCompact(InetSocketAddress session) {
+        Handshake handshake = isServer ? clientHandshakes.get(session) : peerHandshake;
+        return handshake != null && handshake.version >= COMPACT_VERSION;
+    }
+
+    private boolean isOrdered(InetSocketAddress session) {
+        Handshake handshake = isServer ? clientHandshakes.get(session) : peerHandshake;
+        return handshake != null && handshake.version >= ORDERED_VERSION;
     }
 
     /**
-     * Stops the UDP connection.
+     * Sends a pending packet again on the best path of its session.
      */
-    public void stop() {
-        connected = false;
+    private void resend(PendingPacket pending, PathSet paths) {
+        PathSet.Path path = paths.select(null);
+        if (path != null) {
+            pending.path = path.address;
+            paths.onSend(path, pending.data.length);
+        }
+        writeData(pending);
+    }
 
-        // Cancel all pending retries
+    private void releaseDuplicate(PathSet paths, PendingPacket pending) {
+        if (pending.duplicatePath != null) {
+            paths.release(pending.duplicatePath);
+            pending.duplicatePath = null;
+        }
+    }
+
+    /**
+     * Moves everything in flight on a failed path to the others right away,
+     * instead of waiting for each packet's own retransmission timer.
+     */
+    private void pathDown(InetSocketAddress session, PathSet paths, InetSocketAddress failed) {
+        LOGGER.info("[DirectConnect] Path {} to {} is down", failed, session);
+        PathSet.Path next = paths.select(null);
+        if (next == null || next.address.equals(failed)) {
+            return; // Nowhere better to go
+        }
         for (PendingPacket pending : pendingAcks.values()) {
-            if (pending.retryFuture != null) {
-                pending.retryFuture.cancel(false);
+            if (pending.target.equals(session) && failed.equals(pending.path)) {
+                paths.release(failed);
+                resend(pending, paths);
             }
         }
-        pendingAcks.clear();
+    }
 
-        if (channel != null) {
-            channel.close();
-            channel = null;
+    /**
+     * Uses several paths to the connected peer at once (client side). Each
+     * path is validated and kept alive with heartbeats; data goes to the
+     * fastest path with room and moves off a path as soon as it fails.
+     *
+     * @param paths Other addresses of the peer to use besides the current one
+     */
+    public void enableMultipath(Collection<InetSocketAddress> paths) {
+        InetSocketAddress session = remoteAddress;
+        if (isServer || sessionToken == 0 || session == null) {
+            return;
         }
-        if (group != null) {
-            group.shutdownGracefully();
-            group = null;
+
+        PathSet set = pathSetFor(session);
+        for (InetSocketAddress path : paths) {
+            if (!path.equals(session)) {
+                set.add(path, false);
+                pathAliases.put(path, session);
+            }
         }
+        LOGGER.info("[DirectConnect] Multipath enabled with {} paths", set.all().size());
+        startPathTask();
+    }
 
-        scheduler.shutdown();
-        LOGGER.info("[DirectConnect] UDP stopped");
+    /**
+     * Sends small packets on the two best paths at once when multipath is in
+     * use, so a loss on one path costs no retransmission delay.
+     */
+    public void setDuplicateSmall(boolean duplicate) {
+        this.duplicateSmall = duplicate;
     }
 
-    // --- Event Handlers ---
+    private PathSet pathSetFor(InetSocketAddress session) {
+        return pathSets.computeIfAbsent(session, PathSet::new);
+    }
 
-    public void setOnData(BiConsumer<InetSocketAddress, byte[]> handler) {
-        this.onData = handler;
+    private synchronized void startPathTask() {
+        if (pathTask == null && channel != null) {
+            pathTask = channel.eventLoop().scheduleAtFixedRate(this::maintainPaths,
+                    PATH_HEARTBEAT_MS, PATH_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        }
     }
 
-    public void setOnConnect(Consumer<InetSocketAddress> handler) {
-        this.onConnect = handler;
+    /**
+     * Sends heartbeats on every path (client side) and reroutes traffic off
+     * paths that stopped answering.
+     */
+    private void maintainPaths() {
+        if (channel == null || !channel.isActive()) {
+            return;
+        }
+        pathSets.forEach((session, paths) -> {
+            if (!isServer) {
+                for (PathSet.Path path : paths.all()) {
+                    ByteBuf buf = Unpooled.buffer(17);
+                    buf.writeByte(MSG_PATH);
+                    buf.writeLong(sessionToken);
+                    buf.writeLong(System.nanoTime());
+                    write(buf, path.address);
+                }
+            }
+
+            List<PathSet.Path> cameUp = new ArrayList<>();
+            for (PathSet.Path down : paths.update(cameUp)) {
+                pathDown(session, paths, down.address);
+            }
+            for (PathSet.Path up : cameUp) {
+                LOGGER.info("[DirectConnect] Path {} to {} is up", up.address, session);
+            }
+        });
     }
 
-    public void setOnDisconnect(Consumer<InetSocketAddress> handler) {
-        this.onDisconnect = handler;
+    /**
+     * Per-path statistics of the connected peer's multipath session, empty
+     * when multipath is not in use (client side).
+     */
+    public Map<InetSocketAddress, SessionStats> getPathStats() {
+        InetSocketAddress session = remoteAddress;
+        PathSet paths = session != null ? pathSets.get(session) : null;
+        return paths != null ? paths.getStats() : Map.of();
     }
 
-    public boolean isConnected() {
-        return connected;
+    /**
+     * Sends a HELLO packet to initiate connection.
+     */
+    private void sendHello(InetSocketAddress target) {
+        ByteBuf buf = Unpooled.buffer(14);
+        buf.writeByte(MSG_HELLO);
+        buf.writeByte(PROTOCOL_VERSION);
+        buf.writeInt(localFeatures);
+        buf.writeLong(System.nanoTime()); // Echoed back, so every answer gives an exact RTT
+        write(buf, target);
     }
 
-    public int getLocalPort() {
-        if (channel != null && channel.localAddress() instanceof InetSocketAddress) {
-            return ((InetSocketAddress) channel.localAddress()).getPort();
+    /**
+     * Sends hole punch packets from this socket, so the NAT mapping opened
+     * is the same one that carries tunnel data.
+     *
+     * @param target Address to punch towards
+     * @param count  Number of packets, spaced 50ms apart
+     */
+    public void punch(InetSocketAddress target, int count) {
+        if (channel == null || !channel.isActive())
+            return;
+
+        for (int i = 0; i < count; i++) {
+            channel.eventLoop().schedule(() -> {
+                if (channel != null && channel.isActive()) {
+                    ByteBuf buf = Unpooled.buffer(1);
+                    buf.writeByte(MSG_PUNCH);
+                    write(buf, target);
+                }
+            }, (long) i * PUNCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
         }
-        return -1;
     }
 
-    // --- Packet Handler ---
+    /**
+     * Sends HELLO to several candidate addresses at once. Used when the peer
+     * sits behind a NAT whose port has to be predicted; the connection
+     * latches onto whichever address answers.
+     */
+    public void sprayHello(Iterable<InetSocketAddress> targets) {
+        if (channel == null || !channel.isActive())
+            return;
 
-    private class PacketHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        for (InetSocketAddress target : targets) {
+            sendHello(target);
+        }
+    }
+
+    /**
+     * Sends a STUN request from this socket and waits for the response with
+     * the same transaction ID, so the discovered mapping belongs to the
+     * tunnel socket.
+     *
+     * @param server    STUN server address
+     * @param request   Encoded STUN request
+     * @param timeoutMs How long to wait for a response
+     * @return Future with the raw STUN response
+     */
+    public CompletableFuture<byte[]> exchangeStun(InetSocketAddress server, byte[] request, long timeoutMs) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (channel == null || !channel.isActive()) {
+            future.completeExceptionally(new IllegalStateException("UDP channel not open"));
+            return future;
+        }
+
+        ByteBuffer txid = ByteBuffer.wrap(request, StunCodec.TXID_OFFSET, StunCodec.TXID_SIZE).slice();
+        pendingStun.put(txid, future);
+
+        channel.eventLoop().schedule(() -> {
+            if (pendingStun.remove(txid, future)) {
+                future.completeExceptionally(new TimeoutException("STUN timeout from " + server));
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        channel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(request), server));
+        return future;
+    }
+
+    /**
+     * Sends a raw datagram (not part of the tunnel protocol) from this socket.
+     * The buffer is released once written.
+     */
+    public void sendRaw(InetSocketAddress target, ByteBuf buf) {
+        if (channel == null || !channel.isActive()) {
+            buf.release();
+            return;
+        }
+        channel.writeAndFlush(new DatagramPacket(buf, target));
+    }
+
+    /**
+     * Runs a task on this transport's event loop.
+     */
+    public void execute(Runnable task) {
+        Channel ch = channel;
+        if (ch != null) {
+            ch.eventLoop().execute(task);
+        }
+    }
+
+    /**
+     * Schedules a task on this transport's event loop.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return channel.eventLoop().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a repeating task on this transport's event loop.
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+        return channel.eventLoop().scheduleAtFixedRate(task, initialDelayMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends ACK for a received packet.
+     */
+    private void sendAck(InetSocketAddress target, int seqNum) {
+        ByteBuf buf = Unpooled.buffer(5);
+        buf.writeByte(MSG_ACK);
+        buf.writeInt(seqNum);
+        statsFor(pathAliases.getOrDefault(target, target)).onWire(5);
+        write(buf, target);
+    }
+
+    /**
+     * Queues an ack for a compact DATA packet, flushing at once if the queue
+     * is full.
+     */
+    private void queueAck(InetSocketAddress target, int seqNum) {
+        if (ackQueues.computeIfAbsent(target, t -> new AckQueue()).add(seqNum)) {
+            flushAcks(target);
+        }
+    }
+
+    /**
+     * Sends the acks queued for an address in one compact ACK packet.
+     */
+    private void flushAcks(InetSocketAddress target) {
+        AckQueue acks = ackQueues.get(target);
+        Channel ch = channel;
+        if (acks == null || acks.isEmpty() || ch == null || !ch.isActive()) {
+            return;
+        }
+        ByteBuf buf = Unpooled.buffer(CompactHeader.MAX_HEADER_SIZE);
+        buf.writeByte(CompactHeader.MARKER | CompactHeader.FLAG_ACK);
+        if (acks.drainTo(buf)) {
+            statsFor(pathAliases.getOrDefault(target, target)).onWire(buf.readableBytes());
+            write(buf, target);
+        } else {
+            buf.release();
+        }
+    }
+
+    /**
+     * Sends an out-of-band control message, kept apart from the data stream.
+     * Not retransmitted; callers repeat it if it matters.
+     */
+    public void sendControl(InetSocketAddress target, byte[] payload) {
+        if (channel == null || !channel.isActive())
+            return;
+
+        ByteBuf buf = Unpooled.buffer(1 + payload.length);
+        buf.writeByte(MSG_CONTROL);
+        buf.writeBytes(payload);
+        write(buf, target);
+    }
+
+    /**
+     * Sends a path probe from this socket (client side). The answer is
+     * reported to the {@link #setOnProbeAck} handler.
+     *
+     * @param path Candidate address of the connected peer
+     * @param seq  Probe number, echoed back
+     */
+    public void probe(InetSocketAddress path, int seq) {
+        if (channel == null || !channel.isActive() || sessionToken == 0)
+            return;
+
+        ByteBuf buf = Unpooled.buffer(13);
+        buf.writeByte(MSG_PROBE);
+        buf.writeLong(sessionToken);
+        buf.writeInt(seq);
+        write(buf, path);
+    }
+
+    /**
+     * Moves the session to another path to the same peer (client side).
+     * Data keeps flowing on the current path until the peer confirms, so the
+     * stream is not interrupted.
+     *
+     * @param path New address of the peer
+     * @return Future completing with true once the peer has switched
+     */
+    public CompletableFuture<Boolean> migrate(InetSocketAddress path) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (channel == null || !channel.isActive() || sessionToken == 0 || isServer) {
+            result.complete(false);
+            return result;
+        }
+        CompletableFuture<Boolean> previous = pendingMigration;
+        if (previous != null && !previous.isDone()) {
+            result.complete(false);
+            return result;
+        }
+
+        pendingMigration = result;
+        migrationTarget = path;
+        // The host switches first, so data can come from the new path before
+        // MIGRATE_ACK does; it belongs to the session all the same
+        InetSocketAddress session = remoteAddress;
+        boolean aliased = pathAliases.putIfAbsent(path, session) == null;
+        result.thenAccept(switched -> {
+            if (!switched && aliased) {
+                pathAliases.remove(path, session);
+            }
+        });
+        for (int i = 0; i < MIGRATE_ATTEMPTS; i++) {
+            channel.eventLoop().schedule(() -> {
+                if (!result.isDone() && channel != null && channel.isActive()) {
+                    ByteBuf buf = Unpooled.buffer(9);
+                    buf.writeByte(MSG_MIGRATE);
+                    buf.writeLong(sessionToken);
+                    write(buf, path);
+                }
+            }, (long) i * RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+        channel.eventLoop().schedule(() -> result.complete(false),
+                (long) MIGRATE_ATTEMPTS * RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Forgets a peer's session (server side), so a later HELLO from the same
+     * address opens a new one.
+     */
+    public void forget(InetSocketAddress peer) {
+        logWireUsage(peer);
+        stats.remove(peer);
+        Long token = tokensByPeer.remove(peer);
+        if (token != null) {
+            sessionsByToken.remove(token, peer);
+        }
+        clientHandshakes.remove(peer);
+        largestAcked.remove(peer);
+        ackQueues.remove(peer);
+        relayRoutes.remove(peer);
+        receiveWindows.remove(peer);
+        sendSequences.remove(peer);
+        pathSets.remove(peer);
+        pathAliases.values().removeIf(peer::equals);
+    }
+
+    /**
+     * Logs how many bytes a session put on the wire for its payload, so the
+     * header formats can be compared over real play sessions.
+     */
+    private void logWireUsage(InetSocketAddress peer) {
+        SessionStats s = stats.get(peer);
+        if (s != null && s.getWireBytesSent() > 0) {
+            LOGGER.info("[DirectConnect] Sent {} payload bytes to {} in {} bytes on the wire ({} header, {}% overhead)",
+                    s.getBytesSent(), peer, s.getWireBytesSent(), isCompact(peer) ? "compact" : "v1",
+                    String.format("%.1f", s.getOverhead() * 100));
+        }
+    }
+
+    /**
+     * Points the session at a new address: retransmissions follow it and
+     * statistics start over for the new path.
+     */
+    private void switchPath(InetSocketAddress from, InetSocketAddress to) {
+        for (PendingPacket pending : pendingAcks.values()) {
+            if (pending.target.equals(from) && pendingAcks.remove(pending.key(), pending)) {
+                pending.target = to;
+                if (from.equals(pending.path)) {
+                    pending.path = to; // Retransmit on the new path
+                }
+                pendingAcks.put(pending.key(), pending);
+            }
+        }
+        SendSequence sequence = sendSequences.remove(from);
+        if (sequence != null) {
+            sendSequences.put(to, sequence);
+        }
+        stats.remove(from);
+        Handshake handshake = clientHandshakes.remove(from);
+        if (handshake != null) {
+            clientHandshakes.put(to, handshake);
+        }
+        Integer acked = largestAcked.remove(from);
+        if (acked != null) {
+            largestAcked.put(to, acked);
+        }
+        ReceiveWindow window = receiveWindows.remove(from);
+        if (window != null) {
+            receiveWindows.put(to, window);
+        }
+        PathSet paths = pathSets.remove(from);
+        if (paths != null) {
+            paths.rekey(from, to);
+            pathSets.put(to, paths);
+        }
+        // Packets still in flight on the old path go into the session's
+        // reorder buffer along with their retransmissions on the new one
+        pathAliases.remove(to);
+        pathAliases.replaceAll((alias, session) -> session.equals(from) ? to : session);
+        pathAliases.put(from, to);
+        channel.eventLoop().schedule(() -> pathAliases.remove(from, to), MIGRATION_DRAIN_MS, TimeUnit.MILLISECONDS);
+        if (from.equals(remoteAddress)) {
+            remoteAddress = to;
+        }
+
+        LOGGER.info("[DirectConnect] Session migrated from {} to {}", from, to);
+        BiConsumer<InetSocketAddress, InetSocketAddress> handler = onMigrate;
+        if (handler != null) {
+            handler.accept(from, to);
+        }
+    }
+
+    /**
+     * Writes a tunnel datagram, framing it for the relay if the peer is only
+     * reachable through one. The payload buffer is composed, not copied.
+     */
+    private void write(ByteBuf buf, InetSocketAddress target) {
+        InetSocketAddress relay = relayRoutes.get(target);
+        if (relay == null) {
+            channel.writeAndFlush(new DatagramPacket(buf, target));
+            return;
+        }
+
+        ByteBuf header = channel.alloc().buffer(RelayProtocol.headerSize(target));
+        RelayProtocol.writeHeader(header, target);
+        channel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(header, buf), relay));
+    }
+
+    /**
+     * Accepts peers relayed from a port allocated for us on a relay.
+     */
+    public void addRelay(InetSocketAddress relay) {
+        relays.add(relay);
+    }
+
+    /**
+     * Stops accepting peers relayed from a port, e.g. once the allocation
+     * is given up.
+     */
+    public void removeRelay(InetSocketAddress relay) {
+        relays.remove(relay);
+        relayRoutes.values().removeIf(relay::equals);
+    }
+
+    /**
+     * Whether a peer is currently reached through a relay.
+     */
+    public boolean isRelayed(InetSocketAddress peer) {
+        return relayRoutes.containsKey(peer);
+    }
+
+    /**
+     * Stops the UDP connection.
+     */
+    public void stop() {
+        // Let the host release the session now rather than on timeout
+        Channel ch = channel;
+        InetSocketAddress remote = remoteAddress;
+        if (!isServer && connected && remote != null && ch != null && ch.isActive()) {
+            logWireUsage(remote);
+            ByteBuf close = Unpooled.buffer(1);
+            close.writeByte(MSG_CLOSE);
+            write(close, remote); // Queued ahead of the close below
+        } else if (checking && ch != null && ch.isActive()) {
+            // Abandoned checks: release the sessions the answers opened
+            for (InetSocketAddress answered : helloAcks.keySet()) {
+                ByteBuf close = Unpooled.buffer(1);
+                close.writeByte(MSG_CLOSE);
+                write(close, answered);
+            }
+        }
+        connected = false;
+
+        // Cancel all pending retries
+        for (PendingPacket pending : pendingAcks.values()) {
+            if (pending.retryFuture != null) {
+                pending.retryFuture.cancel(false);
+            }
+        }
+        pendingAcks.clear();
+        stats.clear();
+        if (pathTask != null) {
+            pathTask.cancel(false);
+            pathTask = null;
+        }
+        pathSets.clear();
+        pathAliases.clear();
+        receiveWindows.clear();
+
+        pendingStun.values().forEach(f -> f.cancel(false));
+        pendingStun.clear();
+        relayRoutes.clear();
+        relays.clear();
+        sessionsByToken.clear();
+        tokensByPeer.clear();
+        sessionToken = 0;
+        helloAcks.clear();
+        clientHandshakes.clear();
+        peerHandshake = Handshake.LEGACY;
+        ackQueues.clear();
+        largestAcked.clear();
+        sendSequences.clear();
+
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        group = null; // Shared, stays up
+        LOGGER.info("[DirectConnect] UDP stopped");
+    }
+
+    // --- Event Handlers ---
+
+    public void setOnData(BiConsumer<InetSocketAddress, byte[]> handler) {
+        this.onData = handler;
+    }
+
+    public void setOnConnect(Consumer<InetSocketAddress> handler) {
+        this.onConnect = handler;
+    }
+
+    public void setOnDisconnect(Consumer<InetSocketAddress> handler) {
+        this.onDisconnect = handler;
+    }
+
+    /**
+     * Called with the answering address and the handshake RTT in nanoseconds
+     * (-1 if the peer did not echo our timestamp) for each remote that
+     * answers a check on a socket opened with {@link #openForChecks}.
+     */
+    public void setOnHelloAck(BiConsumer<InetSocketAddress, Long> handler) {
+        this.onHelloAck = handler;
+    }
+
+    /**
+     * Handles STUN messages before transaction-ID matching for
+     * {@link #exchangeStun}. The handler returns true if it consumed the
+     * message; it must not retain the buffer.
+     */
+    public void setOnStun(BiPredicate<InetSocketAddress, ByteBuf> handler) {
+        this.onStun = handler;
+    }
+
+    /**
+     * Called with (old, new) address when a session moves to another path,
+     * on either side.
+     */
+    public void setOnMigrate(BiConsumer<InetSocketAddress, InetSocketAddress> handler) {
+        this.onMigrate = handler;
+    }
+
+    /**
+     * Called with (path, seq) when a probe sent with {@link #probe} is
+     * answered.
+     */
+    public void setOnProbeAck(BiConsumer<InetSocketAddress, Integer> handler) {
+        this.onProbeAck = handler;
+    }
+
+    /**
+     * Called with (session, payload) for control messages sent with
+     * {@link #sendControl}.
+     */
+    public void setOnControl(BiConsumer<InetSocketAddress, byte[]> handler) {
+        this.onControl = handler;
+    }
+
+    /**
+     * Handles relay control messages (allocation answers, refresh echoes).
+     * Same contract as {@link #setOnStun}.
+     */
+    public void setOnRelay(BiPredicate<InetSocketAddress, ByteBuf> handler) {
+        this.onRelay = handler;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Whether the socket can carry IPv6 as well as IPv4. Sockets bound to the
+     * wildcard address are dual-stack unless the JVM prefers the IPv4 stack.
+     */
+    public boolean isDualStack() {
+        Channel ch = channel;
+        return ch != null && ch.localAddress() instanceof InetSocketAddress local
+                && local.getAddress() instanceof Inet6Address;
+    }
+
+    /**
+     * Whether the underlying socket is bound and open.
+     */
+    public boolean isOpen() {
+        Channel ch = channel;
+        return ch != null && ch.isActive();
+    }
+
+    /**
+     * Gets transport statistics for the connected remote (client side).
+     */
+    public SessionStats getStats() {
+        return remoteAddress != null ? getStats(remoteAddress) : null;
+    }
+
+    /**
+     * Gets transport statistics for a specific peer, or null if nothing has
+     * been exchanged with it yet.
+     */
+    public SessionStats getStats(InetSocketAddress peer) {
+        return stats.get(peer);
+    }
+
+    private SessionStats statsFor(InetSocketAddress peer) {
+        return stats.computeIfAbsent(peer, SessionStats::new);
+    }
+
+    /**
+     * Sets the TCP port on which the game accepts LAN connections directly,
+     * advertised to peers in HELLO_ACK (server side, 0 for none).
+     */
+    public void setAdvertisedTcpPort(int port) {
+        this.advertisedTcpPort = port;
+    }
+
+    /**
+     * Sets the optional features offered in the handshake. Must be called
+     * before connecting or serving.
+     */
+    public void setFeatures(int features) {
+        this.localFeatures = features & ALL_FEATURES;
+    }
+
+    /**
+     * Protocol version agreed with the connected host (client side).
+     */
+    public int getPeerVersion() {
+        return peerHandshake.version;
+    }
+
+    /**
+     * Whether both sides offered a feature (client side).
+     */
+    public boolean peerSupports(int feature) {
+        return (peerHandshake.features & feature) == feature;
+    }
+
+    /**
+     * Whether both sides offered a feature: on the server side with a
+     * joiner, on the client side with a host that answered a check or the
+     * connected one.
+     */
+    public boolean peerSupports(InetSocketAddress peer, int feature) {
+        Handshake handshake;
+        if (isServer) {
+            handshake = clientHandshakes.get(peer);
+        } else {
+            HelloAck answered = helloAcks.get(peer);
+            handshake = answered != null ? answered.handshake
+                    : peer.equals(remoteAddress) ? peerHandshake : null;
+        }
+        return handshake != null && (handshake.features & feature) == feature;
+    }
+
+    /**
+     * TCP port the connected host advertised for direct LAN connections, 0
+     * if none (client side).
+     */
+    public int getPeerTcpPort() {
+        return peerTcpPort;
+    }
+
+    /**
+     * The peer address the session currently uses (client side).
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public int getLocalPort() {
+        if (channel != null && channel.localAddress() instanceof InetSocketAddress) {
+            return ((InetSocketAddress) channel.localAddress()).getPort();
+        }
+        return -1;
+    }
+
+    // --- Packet Handler ---
+
+    private class PacketHandler extends SimpleChannelInboundHandler<DatagramPacket> {
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
-            ByteBuf buf = packet.content();
-            InetSocketAddress sender = packet.sender();
+            handle(packet.content(), packet.sender(), false);
+        }
 
+        private void handle(ByteBuf buf, InetSocketAddress sender, boolean relayed) {
             if (buf.readableBytes() < 1)
                 return;
 
+            // Relay framing: unwrap and handle as if sent by the peer itself
+            if (!relayed && RelayProtocol.isRelayMessage(buf)) {
+                if (buf.getByte(buf.readerIndex()) == RelayProtocol.MSG_RELAYED) {
+                    if (!relays.contains(sender)) {
+                        return;
+                    }
+                    InetSocketAddress peer = RelayProtocol.readHeader(buf);
+                    if (peer != null) {
+                        relayRoutes.put(peer, sender);
+                        handle(buf, peer, true);
+                    }
+                } else {
+                    BiPredicate<InetSocketAddress, ByteBuf> relayHandler = onRelay;
+                    if (relayHandler != null) {
+                        relayHandler.test(sender, buf);
+                    }
+                }
+                return;
+            }
+
+            // Demultiplex STUN; never let it reach the tunnel protocol
+            if (StunCodec.isStunMessage(buf)) {
+                BiPredicate<InetSocketAddress, ByteBuf> stunHandler = onStun;
+                if (stunHandler != null && stunHandler.test(sender, buf)) {
+                    return;
+                }
+
+                byte[] txid = new byte[StunCodec.TXID_SIZE];
+                buf.getBytes(buf.readerIndex() + StunCodec.TXID_OFFSET, txid);
+                CompletableFuture<byte[]> stun = pendingStun.remove(ByteBuffer.wrap(txid));
+                if (stun != null) {
+                    byte[] response = new byte[buf.readableBytes()];
+                    buf.readBytes(response);
+                    stun.complete(response);
+                }
+                return;
+            }
+
             byte msgType = buf.readByte();
 
+            // Extra paths of a multipath session report as the session itself
+            InetSocketAddress session = pathAliases.getOrDefault(sender, sender);
+            PathSet paths = pathSets.get(session);
+            if (paths != null) {
+                paths.heard(sender);
+            }
+
+            // The peer reached us directly, so stop relaying to it
+            if (!relayed && msgType != MSG_PUNCH && relayRoutes.remove(sender) != null) {
+                LOGGER.info("[DirectConnect] Direct path to relayed peer {} now works", sender);
+            }
+
+            if (CompactHeader.isCompact(msgType)) {
+                handleCompact(msgType, buf, sender, session, paths);
+                return;
+            }
+
             switch (msgType) {
-                case MSG_HELLO:
-                    // Respond with HELLO_ACK
-                    ByteBuf ack = Unpooled.buffer(1);
+                case MSG_HELLO: {
+                    // Respond with HELLO_ACK, carrying the session token.
+                    // Retransmitted HELLOs get the same token and do not
+                    // open a second session.
+                    long token = 0;
+                    boolean isNew = false;
+                    if (isServer) {
+                        Long existing = tokensByPeer.get(sender);
+                        if (existing == null) {
+                            long fresh = ThreadLocalRandom.current().nextLong() | 1;
+                            existing = tokensByPeer.putIfAbsent(sender, fresh);
+                            if (existing == null) {
+                                existing = fresh;
+                                isNew = true;
+                                sessionsByToken.put(fresh, sender);
+                            }
+                        }
+                        token = existing;
+                    }
+
+                    Handshake offer = Handshake.negotiate(buf, localFeatures);
+                    long echo = buf.readableBytes() >= 8 ? buf.readLong() : 0;
+
+                    ByteBuf ack = Unpooled.buffer(24);
                     ack.writeByte(MSG_HELLO_ACK);
-                    ctx.writeAndFlush(new DatagramPacket(ack, sender));
+                    ack.writeLong(token);
+                    ack.writeShort(advertisedTcpPort);
+                    ack.writeByte(offer.version);
+                    ack.writeInt(offer.features);
+                    ack.writeLong(echo);
+                    write(ack, sender);
 
                     if (isServer) {
+                        clientHandshakes.put(sender, offer);
+                    }
+
+                    if (isNew) {
+                        receiveWindows.remove(sender);
+                        sendSequences.remove(sender);
+                        pathAliases.remove(sender); // Left behind by a migrated session
                         remoteAddress = sender;
                         connected = true;
                         LOGGER.info("[DirectConnect] Client connected from {}", sender);
@@ -307,10 +1650,41 @@ public class ReliableUdp {
                         }
                     }
                     break;
+                }
 
                 case MSG_HELLO_ACK:
+                    if (isServer || connected) {
+                        // Duplicate answer (e.g. to a sprayed HELLO)
+                        break;
+                    }
+                    long ackToken = buf.readableBytes() >= 8 ? buf.readLong() : 0;
+                    int ackTcpPort = buf.readableBytes() >= 2 ? buf.readUnsignedShort() : 0;
+                    Handshake agreed = Handshake.negotiate(buf, localFeatures);
+                    long helloRtt = -1;
+                    long sentAt = buf.readableBytes() >= 8 ? buf.readLong() : 0;
+                    if (sentAt != 0) {
+                        helloRtt = System.nanoTime() - sentAt;
+                        statsFor(sender).onAck(0, helloRtt);
+                    }
+
+                    if (checking) {
+                        if (helloAcks.putIfAbsent(sender, new HelloAck(ackToken, ackTcpPort, agreed)) == null) {
+                            BiConsumer<InetSocketAddress, Long> ackHandler = onHelloAck;
+                            if (ackHandler != null) {
+                                ackHandler.accept(sender, helloRtt);
+                            }
+                        }
+                        break;
+                    }
+                    // Latch onto the address that answered (may be a
+                    // predicted port rather than the one we dialled)
+                    remoteAddress = sender;
+                    sessionToken = ackToken;
+                    peerTcpPort = ackTcpPort;
+                    peerHandshake = agreed;
                     connected = true;
-                    LOGGER.info("[DirectConnect] Connected to server {}", sender);
+                    LOGGER.info("[DirectConnect] Connected to server {} (protocol v{}, features {})", sender,
+                            agreed.version, agreed.features);
                     if (onConnect != null) {
                         onConnect.accept(sender);
                     }
@@ -321,38 +1695,222 @@ public class ReliableUdp {
                         return;
                     int seqNum = buf.readInt();
 
-                    // Send ACK
-                    sendAck(sender, seqNum);
-
-                    // Extract data
-                    byte[] data = new byte[buf.readableBytes()];
-                    buf.readBytes(data);
-
-                    if (onData != null) {
-                        onData.accept(sender, data);
+                    // Send ACK on the path the packet came in on
+                    if (receive(session, receiveWindows.computeIfAbsent(session, s -> new ReceiveWindow()), seqNum,
+                            buf)) {
+                        sendAck(sender, seqNum);
                     }
                     break;
 
                 case MSG_ACK:
                     if (buf.readableBytes() < 4)
                         return;
-                    int ackSeq = buf.readInt();
+                    onAck(buf.readInt(), session, sender, paths);
+                    break;
 
-                    PendingPacket pending = pendingAcks.remove(ackSeq);
-                    if (pending != null && pending.retryFuture != null) {
-                        pending.retryFuture.cancel(false);
+                case MSG_PROBE: {
+                    if (!isServer || buf.readableBytes() < 12)
+                        return;
+                    long token = buf.readLong();
+                    if (!sessionsByToken.containsKey(token))
+                        return;
+                    ByteBuf echo = Unpooled.buffer(5);
+                    echo.writeByte(MSG_PROBE_ACK);
+                    echo.writeInt(buf.readInt());
+                    write(echo, sender);
+                    break;
+                }
+
+                case MSG_PROBE_ACK: {
+                    if (buf.readableBytes() < 4)
+                        return;
+                    BiConsumer<InetSocketAddress, Integer> probeHandler = onProbeAck;
+                    if (probeHandler != null) {
+                        probeHandler.accept(sender, buf.readInt());
                     }
                     break;
+                }
+
+                case MSG_MIGRATE: {
+                    if (!isServer || buf.readableBytes() < 8)
+                        return;
+                    long token = buf.readLong();
+                    InetSocketAddress old = sessionsByToken.get(token);
+                    if (old == null)
+                        return;
+
+                    if (!old.equals(sender)) {
+                        sessionsByToken.put(token, sender);
+                        tokensByPeer.remove(old);
+                        tokensByPeer.put(sender, token);
+                        relayRoutes.remove(old);
+                        switchPath(old, sender);
+                    }
+
+                    ByteBuf confirm = Unpooled.buffer(9);
+                    confirm.writeByte(MSG_MIGRATE_ACK);
+                    confirm.writeLong(token);
+                    write(confirm, sender);
+                    break;
+                }
+
+                case MSG_MIGRATE_ACK: {
+                    CompletableFuture<Boolean> migration = pendingMigration;
+                    if (isServer || migration == null || migration.isDone() || buf.readableBytes() < 8
+                            || buf.readLong() != sessionToken || !sender.equals(migrationTarget))
+                        return;
+                    InetSocketAddress old = remoteAddress;
+                    if (!sender.equals(old)) {
+                        switchPath(old, sender);
+                    }
+                    migration.complete(true);
+                    break;
+                }
+
+                case MSG_PATH: {
+                    if (!isServer || buf.readableBytes() < 16)
+                        return;
+                    InetSocketAddress owner = sessionsByToken.get(buf.readLong());
+                    if (owner == null)
+                        return;
+                    if (!sender.equals(owner) && pathAliases.put(sender, owner) == null) {
+                        LOGGER.info("[DirectConnect] Added path {} to {}", sender, owner);
+                    }
+                    PathSet ownerPaths = pathSetFor(owner);
+                    ownerPaths.add(sender, true);
+                    ownerPaths.onHeartbeat(sender, -1);
+                    startPathTask();
+
+                    ByteBuf echo = Unpooled.buffer(9);
+                    echo.writeByte(MSG_PATH_ACK);
+                    echo.writeLong(buf.readLong());
+                    write(echo, sender);
+                    break;
+                }
+
+                case MSG_PATH_ACK:
+                    if (isServer || paths == null || buf.readableBytes() < 8)
+                        return;
+                    paths.onHeartbeat(sender, System.nanoTime() - buf.readLong());
+                    break;
+
+                case MSG_CONTROL: {
+                    BiConsumer<InetSocketAddress, byte[]> controlHandler = onControl;
+                    if (controlHandler != null) {
+                        byte[] payload = new byte[buf.readableBytes()];
+                        buf.readBytes(payload);
+                        controlHandler.accept(session, payload);
+                    }
+                    break;
+                }
 
                 case MSG_CLOSE:
-                    LOGGER.info("[DirectConnect] Remote closed connection: {}", sender);
+                    LOGGER.info("[DirectConnect] Remote closed connection: {}", session);
+                    forget(session);
                     if (onDisconnect != null) {
-                        onDisconnect.accept(sender);
+                        onDisconnect.accept(session);
                     }
                     break;
             }
         }
 
+        /**
+         * Handles a DATA and/or ACK packet with the compact header.
+         */
+        private void handleCompact(byte flags, ByteBuf buf, InetSocketAddress sender, InetSocketAddress session,
+                PathSet paths) {
+            if ((flags & CompactHeader.FLAG_CONNECTION_ID) != 0) {
+                if (buf.readableBytes() < CompactHeader.CONNECTION_ID_SIZE)
+                    return;
+                buf.skipBytes(CompactHeader.CONNECTION_ID_SIZE);
+            }
+
+            boolean hasData = (flags & CompactHeader.FLAG_DATA) != 0;
+            int seqNum = 0;
+            ReceiveWindow window = null;
+            if (hasData) {
+                int length = (flags & CompactHeader.PN_LENGTH_MASK) + 1;
+                if (buf.readableBytes() < length)
+                    return;
+                window = receiveWindows.computeIfAbsent(session, s -> new ReceiveWindow());
+                int base = isOrdered(session) ? window.delivered() : window.highest();
+                seqNum = CompactHeader.decodePacketNumber(base, CompactHeader.readPacketNumber(buf, length), length);
+            }
+
+            if ((flags & CompactHeader.FLAG_ACK) != 0
+                    && !CompactHeader.readAcks(buf, ack -> onAck(ack, session, sender, paths))) {
+                return;
+            }
+
+            if (hasData && receive(session, window, seqNum, buf)) {
+                queueAck(sender, seqNum); // Goes back on the path the packet came in on
+            }
+        }
+
+        /**
+         * Delivers a data packet's payload once. On ordered sessions it is
+         * held back until every packet before it was delivered.
+         *
+         * @return false if the packet was neither delivered nor held, so it
+         *         must not be acknowledged
+         */
+        private boolean receive(InetSocketAddress session, ReceiveWindow window, int seqNum, ByteBuf buf) {
+            byte[] data = new byte[buf.readableBytes()];
+            buf.readBytes(data);
+            if (!isOrdered(session)) {
+                if (window.accept(seqNum)) {
+                    deliver(session, data);
+                }
+                return true;
+            }
+
+            List<byte[]> ready = window.acceptInOrder(seqNum, data);
+            if (ready == null) {
+                return false;
+            }
+            for (byte[] payload : ready) {
+                deliver(session, payload);
+            }
+            return true;
+        }
+
+        private void deliver(InetSocketAddress session, byte[] data) {
+            statsFor(session).onReceive(data.length);
+
+            if (onData != null) {
+                onData.accept(session, data);
+            }
+        }
+
+        private void onAck(int ackSeq, InetSocketAddress session, InetSocketAddress sender, PathSet paths) {
+            PendingPacket pending = pendingAcks.remove(new PendingKey(session, ackSeq));
+            if (pending == null) {
+                return;
+            }
+            if (pending.retryFuture != null) {
+                pending.retryFuture.cancel(false);
+            }
+            largestAcked.merge(pending.target, ackSeq, Math::max);
+            SendSequence sequence = sendSequences.get(pending.target);
+            if (sequence != null) {
+                sequence.acked(ackSeq);
+            }
+            // Only sample RTT from packets sent once (Karn's algorithm)
+            long rtt = pending.retries == 0 ? System.nanoTime() - pending.sentAt : -1;
+            statsFor(pending.target).onAck(pending.data.length, rtt, pending.appLimited);
+            if (paths != null) {
+                paths.onAck(sender, pending.path, pending.duplicatePath, pending.data.length, rtt);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            // One ACK packet per address for everything read in this batch
+            for (InetSocketAddress target : ackQueues.keySet()) {
+                flushAcks(target);
+            }
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             LOGGER.error("[DirectConnect] UDP error: {}", cause.getMessage());
@@ -0,0 +1,341 @@
+package calibur.directconnect.network;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Live transport statistics for one ReliableUdp peer.
+ * Tracks smoothed RTT (RFC 6298), retransmissions and delivery rate so that
+ * the host can size game traffic to what the tunnel can actually carry.
+ */
+public class SessionStats {
+    /**
+     * Rough classification of the network path to a peer.
+     */
+    public enum PathType {
+        LOOPBACK, LAN, WAN
+    }
+
+    private static final double RTT_ALPHA = 0.125;
+    private static final double RTT_BETA = 0.25;
+
+    // Delivery rate is sampled in fixed slots and the estimate is the max over
+    // the recent slots, so idle periods do not drag the capacity estimate down.
+    // Slots where every packet was sent with less than a pipe's worth in
+    // flight only show how much the game had to send (app-limited, as in
+    // BBR); they count only if they beat the estimate, and with nothing
+    // else to go on the last estimate is kept.
+    private static final long RATE_SLOT_NANOS = 250_000_000L; // 250ms
+    private static final int RATE_SLOTS = 16; // ~4 seconds of history
+
+    private final InetSocketAddress peer;
+    private final PathType pathType;
+    private final long createdAt;
+
+    private double srttMs = -1;
+    private double rttVarMs = 0;
+    private double minRttMs = Double.MAX_VALUE;
+
+    private long bytesSent = 0;
+    private long bytesAcked = 0;
+    private long bytesReceived = 0;
+    private long wireBytesSent = 0;
+    private long packetsSent = 0;
+    private long retransmits = 0;
+    private long dropped = 0;
+    private long bytesInFlight = 0;
+
+    private final double[] rateSlots = new double[RATE_SLOTS];
+    private int rateSlotIndex = 0;
+    private long slotStart;
+    private long slotBytes = 0;
+    private boolean slotAppLimited = true;
+    private double maxRate = 0; // Highest of rateSlots, kept up to date as slots roll over
+    private double heldRate = 0; // Last estimate, kept while only app-limited samples come in
+
+    public SessionStats(InetSocketAddress peer) {
+        this(peer, System.nanoTime());
+    }
+
+    SessionStats(InetSocketAddress peer, long now) {
+        this.peer = peer;
+        this.pathType = classify(peer);
+        this.createdAt = now;
+        this.slotStart = now;
+    }
+
+    private static PathType classify(InetSocketAddress peer) {
+        if (peer.getAddress() == null) {
+            return PathType.WAN;
+        }
+        if (peer.getAddress().isLoopbackAddress()) {
+            return PathType.LOOPBACK;
+        }
+        if (peer.getAddress().isSiteLocalAddress() || peer.getAddress().isLinkLocalAddress()
+                || NetworkUtils.isUniqueLocal(peer.getAddress())) {
+            return PathType.LAN;
+        }
+        return PathType.WAN;
+    }
+
+    // --- Recording (called from the transport) ---
+
+    /**
+     * Records a packet sent for the first time.
+     *
+     * @return true if it went out app-limited: with less than the estimated
+     *         bandwidth-delay product in flight, so its ack says little
+     *         about capacity
+     */
+    synchronized boolean onSend(int bytes) {
+        // The estimate as of the last ack; acks keep it current while sending
+        double rate = heldRate;
+        boolean appLimited = rate > 0 && minRttMs != Double.MAX_VALUE
+                && bytesInFlight < rate * minRttMs / 1000;
+        bytesSent += bytes;
+        bytesInFlight += bytes;
+        packetsSent++;
+        return appLimited;
+    }
+
+    /**
+     * Records the full size of a DATA or ACK datagram sent, headers included.
+     */
+    synchronized void onWire(int bytes) {
+        wireBytesSent += bytes;
+    }
+
+    synchronized void onRetransmit() {
+        retransmits++;
+    }
+
+    /**
+     * Records a packet given up on.
+     *
+     * @param bytes Its payload size
+     */
+    synchronized void onDrop(int bytes) {
+        dropped++;
+        bytesInFlight = Math.max(0, bytesInFlight - bytes);
+    }
+
+    synchronized void onReceive(int bytes) {
+        bytesReceived += bytes;
+    }
+
+    /**
+     * Records an acknowledged packet.
+     *
+     * @param bytes    Payload size of the acknowledged packet
+     * @param rttNanos RTT sample, or -1 if the packet was retransmitted (Karn)
+     */
+    synchronized void onAck(int bytes, long rttNanos) {
+        onAck(bytes, rttNanos, false);
+    }
+
+    /**
+     * Records an acknowledged packet.
+     *
+     * @param bytes      Payload size of the acknowledged packet
+     * @param rttNanos   RTT sample, or -1 if the packet was retransmitted (Karn)
+     * @param appLimited Whether {@link #onSend} reported it as app-limited
+     */
+    void onAck(int bytes, long rttNanos, boolean appLimited) {
+        onAck(bytes, rttNanos, appLimited, System.nanoTime());
+    }
+
+    synchronized void onAck(int bytes, long rttNanos, boolean appLimited, long now) {
+        bytesAcked += bytes;
+        bytesInFlight = Math.max(0, bytesInFlight - bytes);
+
+        if (rttNanos >= 0) {
+            double sample = rttNanos / 1_000_000.0;
+            minRttMs = Math.min(minRttMs, sample);
+            if (srttMs < 0) {
+                srttMs = sample;
+                rttVarMs = sample / 2;
+            } else {
+                rttVarMs = (1 - RTT_BETA) * rttVarMs + RTT_BETA * Math.abs(srttMs - sample);
+                srttMs = (1 - RTT_ALPHA) * srttMs + RTT_ALPHA * sample;
+            }
+        }
+
+        advanceRateSlots(now);
+        slotBytes += bytes;
+        if (!appLimited && bytes > 0) {
+            slotAppLimited = false;
+        }
+    }
+
+    private void advanceRateSlots(long now) {
+        if (now - slotStart < RATE_SLOT_NANOS) {
+            return;
+        }
+        while (now - slotStart >= RATE_SLOT_NANOS) {
+            double rate = slotBytes * (1_000_000_000.0 / RATE_SLOT_NANOS);
+            if (slotAppLimited && rate <= heldRate) {
+                rate = 0;
+            }
+            double evicted = rateSlots[rateSlotIndex];
+            rateSlots[rateSlotIndex] = rate;
+            if (rate >= maxRate) {
+                maxRate = rate;
+            } else if (evicted >= maxRate) {
+                maxRate = maxRateSlot(); // The highest slot aged out
+            }
+            rateSlotIndex = (rateSlotIndex + 1) % RATE_SLOTS;
+            slotStart += RATE_SLOT_NANOS;
+            slotBytes = 0;
+            slotAppLimited = true;
+
+            // After a long idle gap, skip straight to now instead of looping
+            if (now - slotStart > RATE_SLOT_NANOS * RATE_SLOTS) {
+                Arrays.fill(rateSlots, 0);
+                maxRate = 0;
+                slotStart = now;
+            }
+        }
+        if (maxRate > 0) {
+            heldRate = maxRate;
+        }
+    }
+
+    // --- Queries ---
+
+    public InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    public PathType getPathType() {
+        return pathType;
+    }
+
+    /**
+     * Smoothed RTT in milliseconds, or -1 if no sample has been taken yet.
+     */
+    public synchronized double getSmoothedRttMs() {
+        return srttMs;
+    }
+
+    public synchronized double getRttVarMs() {
+        return rttVarMs;
+    }
+
+    /**
+     * Lowest RTT seen, or -1 if no sample has been taken yet.
+     */
+    public synchronized double getMinRttMs() {
+        return minRttMs == Double.MAX_VALUE ? -1 : minRttMs;
+    }
+
+    private double maxRateSlot() {
+        double max = 0;
+        for (double rate : rateSlots) {
+            max = Math.max(max, rate);
+        }
+        return max;
+    }
+
+    /**
+     * Estimated tunnel capacity in bytes/second: the highest delivery rate
+     * observed over the last few seconds, ignoring app-limited samples. An
+     * idle or lightly used tunnel keeps its last estimate. Returns 0 until
+     * data has been acked.
+     */
+    public double getDeliveryRate() {
+        return getDeliveryRate(System.nanoTime());
+    }
+
+    synchronized double getDeliveryRate(long now) {
+        advanceRateSlots(now);
+        return heldRate;
+    }
+
+    /**
+     * Payload bytes sent and not yet acknowledged or given up on.
+     */
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    /**
+     * Average goodput since the session started, in bytes/second.
+     */
+    public synchronized double getAverageGoodput() {
+        double seconds = (System.nanoTime() - createdAt) / 1_000_000_000.0;
+        return seconds > 0 ? bytesAcked / seconds : 0;
+    }
+
+    /**
+     * Ratio of current to minimum RTT. Values well above 1 mean packets are
+     * queueing somewhere along the tunnel.
+     */
+    public synchronized double getQueueingFactor() {
+        if (srttMs < 0 || minRttMs == Double.MAX_VALUE || minRttMs <= 0) {
+            return 1.0;
+        }
+        return srttMs / minRttMs;
+    }
+
+    /**
+     * Fraction of sent packets that were never acknowledged.
+     */
+    public synchronized double getLossRate() {
+        return packetsSent > 0 ? (double) dropped / packetsSent : 0;
+    }
+
+    /**
+     * Number of packets sent (probes count as packets).
+     */
+    public synchronized long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * Fraction of sent packets that needed a retransmission.
+     */
+    public synchronized double getRetransmitRate() {
+        return packetsSent > 0 ? (double) retransmits / packetsSent : 0;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized long getBytesAcked() {
+        return bytesAcked;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Bytes of DATA and ACK datagrams sent, headers and retransmissions
+     * included, for comparing wire formats against {@link #getBytesSent}.
+     */
+    public synchronized long getWireBytesSent() {
+        return wireBytesSent;
+    }
+
+    /**
+     * Share of the bytes on the wire that were not payload.
+     */
+    public synchronized double getOverhead() {
+        return wireBytesSent == 0 ? 0 : 1 - (double) bytesSent / wireBytesSent;
+    }
+
+    public synchronized long getRetransmits() {
+        return retransmits;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s %s rtt=%.1fms min=%.1fms rate=%.0fKB/s retx=%d",
+                pathType, peer, srttMs, getMinRttMs(), getDeliveryRate() / 1024, retransmits);
+    }
+}
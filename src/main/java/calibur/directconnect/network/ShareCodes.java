@@ -0,0 +1,184 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.network.RegistryClient.Endpoint;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Extended share codes that carry the host's stable endpoints, so joiners
+ * can connect without asking the registry first.
+ *
+ * <pre>
+ * happy-llama-42.&lt;payload&gt;
+ *
+ * payload (base32, lowercase, no padding):
+ *   [version 4 bits | count 4 bits]
+ *   per endpoint: [family 1: 4 or 6][address 4/16][port 2]
+ *   [crc32 4] over the plain code and everything before it
+ * </pre>
+ *
+ * The checksum makes a mistyped or truncated code fail to parse rather than
+ * send the joiner to a wrong address.
+ */
+public final class ShareCodes {
+    private static final int VERSION = 1;
+    static final int MAX_ENDPOINTS = 4;
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz234567"; // RFC 4648 base32
+
+    private ShareCodes() {
+    }
+
+    /**
+     * Builds an extended share code.
+     *
+     * @param code      Plain share code, e.g. happy-llama-42
+     * @param endpoints Stable endpoints of the host, at most four are kept
+     * @return The extended code, or the plain one if there are no endpoints
+     */
+    public static String encode(String code, List<InetSocketAddress> endpoints) {
+        List<InetSocketAddress> kept = endpoints.stream()
+                .filter(ep -> ep.getAddress() != null)
+                .limit(MAX_ENDPOINTS)
+                .toList();
+        if (kept.isEmpty()) {
+            return code;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((VERSION << 4) | kept.size());
+        for (InetSocketAddress ep : kept) {
+            byte[] ip = ep.getAddress().getAddress();
+            out.write(ip.length == 4 ? 4 : 6);
+            out.writeBytes(ip);
+            out.write(ep.getPort() >> 8);
+            out.write(ep.getPort());
+        }
+        long crc = checksum(code, out.toByteArray());
+        for (int i = 3; i >= 0; i--) {
+            out.write((int) (crc >> (8 * i)));
+        }
+        return code + "." + base32(out.toByteArray());
+    }
+
+    /**
+     * Splits off the plain share code.
+     *
+     * @param code Share code without the p2p. prefix
+     */
+    public static String baseCode(String code) {
+        int dot = code.indexOf('.');
+        return dot < 0 ? code : code.substring(0, dot);
+    }
+
+    /**
+     * Reads the endpoints carried by an extended share code.
+     *
+     * @param code Share code without the p2p. prefix
+     * @return The endpoints, empty for a plain code, or null if the payload
+     *         is malformed or fails its checksum
+     */
+    public static List<Endpoint> decode(String code) {
+        int dot = code.indexOf('.');
+        if (dot < 0) {
+            return List.of();
+        }
+        byte[] data = unbase32(code.substring(dot + 1));
+        if (data == null || data.length < 1 + 4) {
+            return null;
+        }
+
+        int pos = 0;
+        int header = data[pos++] & 0xFF;
+        int count = header & 0x0F;
+        if (header >> 4 != VERSION || count == 0 || count > MAX_ENDPOINTS) {
+            return null;
+        }
+        List<Endpoint> endpoints = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (pos >= data.length) {
+                return null;
+            }
+            int family = data[pos++];
+            int length = family == 4 ? 4 : family == 6 ? 16 : -1;
+            if (length < 0 || pos + length + 2 + 4 > data.length) {
+                return null;
+            }
+            byte[] ip = new byte[length];
+            System.arraycopy(data, pos, ip, 0, length);
+            pos += length;
+            int port = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+            endpoints.add(new Endpoint(address(ip), port, Candidates.TYPE_WAN));
+        }
+        if (pos + 4 != data.length) {
+            return null;
+        }
+
+        long crc = 0;
+        for (int i = 0; i < 4; i++) {
+            crc = (crc << 8) | (data[pos + i] & 0xFF);
+        }
+        byte[] body = new byte[pos];
+        System.arraycopy(data, 0, body, 0, pos);
+        return crc == checksum(code.substring(0, dot), body) ? endpoints : null;
+    }
+
+    private static String address(byte[] ip) {
+        try {
+            return InetAddress.getByAddress(ip).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e); // Only for lengths other than 4 and 16
+        }
+    }
+
+    static long checksum(String code, byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(code.getBytes(StandardCharsets.UTF_8));
+        crc.update(body);
+        return crc.getValue();
+    }
+
+    static String base32(byte[] data) {
+        StringBuilder sb = new StringBuilder((data.length * 8 + 4) / 5);
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : data) {
+            buffer = (buffer << 8) | (b & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                sb.append(ALPHABET.charAt((buffer >> (bits - 5)) & 0x1F));
+                bits -= 5;
+            }
+        }
+        if (bits > 0) {
+            sb.append(ALPHABET.charAt((buffer << (5 - bits)) & 0x1F));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] unbase32(String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int value = ALPHABET.indexOf(text.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                out.write((buffer >> (bits - 8)) & 0xFF);
+                bits -= 8;
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,278 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Asynchronous STUN client running on a ReliableUdp channel.
+ *
+ * Queries every configured server at once and takes the first valid answer,
+ * retransmitting per RFC 5389 until a deadline. Each server has a
+ * preallocated request buffer whose transaction ID is rewritten in place,
+ * so the request itself is never re-encoded. Each query still allocates
+ * its future, retransmit timers, a duplicate view and DatagramPacket per
+ * send, and the address objects parsed from the answer. The mapping is
+ * cached and refreshed periodically, which also keeps the NAT binding
+ * alive.
+ *
+ * Servers are queried over both IPv4 and IPv6 when they resolve for both
+ * families. The IPv4 mapping is the one reported by {@link #discover()};
+ * the IPv6 one (usually the host's own global address, as IPv6 rarely has
+ * NAT) is kept separately.
+ */
+public class StunClient {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    // RFC 5389 section 7.2.1: RTO starting at 500ms, doubling
+    private static final long[] RETRANSMIT_AT_MS = { 500, 1500 };
+    private static final long QUERY_TIMEOUT_MS = 3000;
+
+    private final ReliableUdp udp;
+    private final Server[] servers;
+
+    private volatile InetSocketAddress mapping;
+    private volatile InetSocketAddress mappingServer;
+    private volatile long mappingTime;
+    private volatile InetSocketAddress mapping6;
+
+    // Only touched on the channel's event loop
+    private CompletableFuture<InetSocketAddress> inFlight;
+    private ScheduledFuture<?> refreshTask;
+
+    /**
+     * A STUN server with its reusable request.
+     */
+    private static class Server {
+        final String host;
+        final int port;
+        final byte[] txid = new byte[StunCodec.TXID_SIZE];
+        final ByteBuf request = Unpooled.unreleasableBuffer(Unpooled.directBuffer(StunCodec.HEADER_SIZE));
+        final boolean ipv6;
+        volatile InetSocketAddress address;
+        boolean outstanding;
+
+        Server(String host, int port, boolean ipv6) {
+            this.host = host;
+            this.port = port;
+            this.ipv6 = ipv6;
+        }
+
+        boolean resolve() {
+            if (address == null) {
+                try {
+                    for (InetAddress candidate : InetAddress.getAllByName(host)) {
+                        if ((candidate instanceof Inet6Address) == ipv6) {
+                            address = new InetSocketAddress(candidate, port);
+                            break;
+                        }
+                    }
+                } catch (Exception ignored) {
+                }
+            }
+            return address != null;
+        }
+    }
+
+    /**
+     * @param udp     Transport whose socket should be mapped
+     * @param servers STUN servers as {host, port} pairs
+     */
+    public StunClient(ReliableUdp udp, String[][] servers) {
+        this.udp = udp;
+        this.servers = new Server[servers.length * 2];
+        for (int i = 0; i < servers.length; i++) {
+            int port = Integer.parseInt(servers[i][1]);
+            this.servers[2 * i] = new Server(servers[i][0], port, false);
+            this.servers[2 * i + 1] = new Server(servers[i][0], port, true);
+        }
+    }
+
+    /**
+     * Hooks into the transport and schedules periodic refreshes.
+     *
+     * @param refreshIntervalMs How often to refresh the mapping, 0 to disable
+     */
+    public void start(long refreshIntervalMs) {
+        udp.setOnStun(this::handleResponse);
+        if (refreshIntervalMs > 0) {
+            refreshTask = udp.scheduleAtFixedRate(this::discover, refreshIntervalMs, refreshIntervalMs);
+        }
+    }
+
+    public void stop() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+        udp.setOnStun(null);
+    }
+
+    /**
+     * Queries all servers in parallel. If a query is already running, its
+     * future is returned instead of starting another.
+     *
+     * @return Future with the public mapping; completes exceptionally if no
+     *         server answers in time
+     */
+    public CompletableFuture<InetSocketAddress> discover() {
+        CompletableFuture<InetSocketAddress> result = new CompletableFuture<>();
+        if (!udp.isOpen()) {
+            result.completeExceptionally(new IllegalStateException("UDP channel not open"));
+            return result;
+        }
+
+        udp.execute(() -> {
+            if (inFlight != null && !inFlight.isDone()) {
+                inFlight.whenComplete((addr, e) -> {
+                    if (e != null) result.completeExceptionally(e);
+                    else result.complete(addr);
+                });
+                return;
+            }
+            inFlight = result;
+            for (Server server : servers) {
+                query(server, result);
+            }
+            udp.schedule(() -> {
+                if (result.completeExceptionally(new TimeoutException("No STUN server answered"))) {
+                    LOGGER.warn("[DirectConnect] All STUN servers failed, cannot detect public IP");
+                }
+                if (inFlight == result) {
+                    clearOutstanding(false);
+                    clearOutstanding(true);
+                }
+            }, QUERY_TIMEOUT_MS);
+        });
+        return result;
+    }
+
+    /**
+     * Returns the cached mapping if it is recent enough, otherwise queries.
+     */
+    public CompletableFuture<InetSocketAddress> getMapping(long maxAgeMs) {
+        InetSocketAddress cached = mapping;
+        if (cached != null && System.currentTimeMillis() - mappingTime <= maxAgeMs) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return discover();
+    }
+
+    /**
+     * The last discovered mapping, or null if none yet.
+     */
+    public InetSocketAddress getCachedMapping() {
+        return mapping;
+    }
+
+    /**
+     * The last discovered IPv6 mapping, or null if no server answered over
+     * IPv6.
+     */
+    public InetSocketAddress getCachedMapping6() {
+        return mapping6;
+    }
+
+    /**
+     * The server that answered the last successful query.
+     */
+    public InetSocketAddress getMappingServer() {
+        return mappingServer;
+    }
+
+    private void query(Server server, CompletableFuture<InetSocketAddress> result) {
+        if (server.address != null) {
+            send(server, result);
+            return;
+        }
+
+        // First use: resolve off the event loop, then send from it
+        CompletableFuture.supplyAsync(server::resolve).thenAccept(ok -> {
+            if (ok) {
+                udp.execute(() -> send(server, result));
+            } else {
+                LOGGER.debug("[DirectConnect] STUN server {} did not resolve for IPv{}",
+                        server.host, server.ipv6 ? 6 : 4);
+            }
+        });
+    }
+
+    private void send(Server server, CompletableFuture<InetSocketAddress> result) {
+        // IPv6 queries run to completion even after IPv4 answered
+        if (result.isDone() && !server.ipv6) {
+            return;
+        }
+
+        StunCodec.newTransactionId(server.txid);
+        server.request.clear();
+        StunCodec.writeBindingRequest(server.request, server.txid, false, false);
+        server.outstanding = true;
+        udp.sendRaw(server.address, server.request.duplicate());
+
+        for (long delay : RETRANSMIT_AT_MS) {
+            udp.schedule(() -> {
+                if (server.outstanding && (server.ipv6 || !result.isDone())) {
+                    udp.sendRaw(server.address, server.request.duplicate());
+                }
+            }, delay);
+        }
+    }
+
+    /**
+     * Handles a STUN datagram from the transport (on its event loop).
+     *
+     * @return true if the message answered one of our queries
+     */
+    private boolean handleResponse(InetSocketAddress sender, ByteBuf msg) {
+        for (Server server : servers) {
+            if (!server.outstanding || !StunCodec.transactionIdEquals(msg, server.txid)) {
+                continue;
+            }
+
+            server.outstanding = false;
+            InetSocketAddress mapped = StunCodec.readMappedAddress(msg);
+            if (mapped == null) {
+                LOGGER.debug("[DirectConnect] STUN server {} sent no mapping (error {})",
+                        server.host, StunCodec.readErrorCode(msg));
+                return true;
+            }
+
+            if (server.ipv6) {
+                if (mapping6 == null || !mapping6.equals(mapped)) {
+                    LOGGER.info("[DirectConnect] STUN detected public IPv6 address: {} (via {})", mapped, server.host);
+                }
+                mapping6 = mapped;
+                clearOutstanding(true);
+                return true;
+            }
+
+            CompletableFuture<InetSocketAddress> result = inFlight;
+            if (result != null && !result.isDone()) {
+                mapping = mapped;
+                mappingServer = server.address;
+                mappingTime = System.currentTimeMillis();
+                clearOutstanding(false);
+                LOGGER.info("[DirectConnect] STUN detected public address: {} (via {})", mapped, server.host);
+                result.complete(mapped);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void clearOutstanding(boolean ipv6) {
+        for (Server server : servers) {
+            if (server.ipv6 == ipv6) {
+                server.outstanding = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * STUN message codec (RFC 5389, with the RFC 5780 attributes used for NAT
+ * classification).
+ *
+ * Works on ByteBufs with absolute indices, so parsing never moves the
+ * reader index and a datagram can be inspected before deciding who owns it.
+ */
+public final class StunCodec {
+    public static final int MAGIC_COOKIE = 0x2112A442;
+    public static final int HEADER_SIZE = 20;
+    public static final int TXID_OFFSET = 8;
+    public static final int TXID_SIZE = 12;
+
+    // Message types
+    public static final int BINDING_REQUEST = 0x0001;
+    public static final int BINDING_SUCCESS = 0x0101;
+    public static final int BINDING_ERROR = 0x0111;
+
+    // Attribute types
+    public static final int ATTR_MAPPED_ADDRESS = 0x0001;
+    public static final int ATTR_CHANGE_REQUEST = 0x0003;
+    public static final int ATTR_ERROR_CODE = 0x0009;
+    public static final int ATTR_XOR_MAPPED_ADDRESS = 0x0020;
+    public static final int ATTR_RESPONSE_ORIGIN = 0x802B; // RFC 5780
+    public static final int ATTR_OTHER_ADDRESS = 0x802C; // RFC 5780
+
+    private static final int FAMILY_IPV4 = 0x01;
+    private static final int FAMILY_IPV6 = 0x02;
+
+    private StunCodec() {
+    }
+
+    /**
+     * Checks whether a datagram is a well-formed STUN message: leading zero
+     * bits, magic cookie, and a length that matches the datagram and is a
+     * multiple of four.
+     */
+    public static boolean isStunMessage(ByteBuf buf) {
+        int start = buf.readerIndex();
+        int readable = buf.readableBytes();
+        if (readable < HEADER_SIZE) {
+            return false;
+        }
+
+        int length = buf.getUnsignedShort(start + 2);
+        return (buf.getByte(start) & 0xC0) == 0
+                && buf.getInt(start + 4) == MAGIC_COOKIE
+                && (length & 3) == 0
+                && length + HEADER_SIZE == readable;
+    }
+
+    public static int messageType(ByteBuf msg) {
+        return msg.getUnsignedShort(msg.readerIndex());
+    }
+
+    /**
+     * Fills a transaction ID with random bytes.
+     */
+    public static void newTransactionId(byte[] txid) {
+        ThreadLocalRandom.current().nextBytes(txid);
+    }
+
+    /**
+     * Compares a message's transaction ID with an expected one.
+     */
+    public static boolean transactionIdEquals(ByteBuf msg, byte[] txid) {
+        int base = msg.readerIndex() + TXID_OFFSET;
+        for (int i = 0; i < TXID_SIZE; i++) {
+            if (msg.getByte(base + i) != txid[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a Binding Request, optionally with a CHANGE-REQUEST attribute.
+     *
+     * @param out        Buffer to write to
+     * @param txid       12-byte transaction ID
+     * @param changeIp   Ask the server to answer from its alternate IP
+     * @param changePort Ask the server to answer from its alternate port
+     */
+    public static void writeBindingRequest(ByteBuf out, byte[] txid, boolean changeIp, boolean changePort) {
+        boolean change = changeIp || changePort;
+
+        out.writeShort(BINDING_REQUEST);
+        out.writeShort(change ? 8 : 0);
+        out.writeInt(MAGIC_COOKIE);
+        out.writeBytes(txid, 0, TXID_SIZE);
+
+        if (change) {
+            out.writeShort(ATTR_CHANGE_REQUEST);
+            out.writeShort(4);
+            out.writeInt((changeIp ? 0x04 : 0) | (changePort ? 0x02 : 0));
+        }
+    }
+
+    /**
+     * Builds a Binding Request with a fresh transaction ID as a byte array.
+     */
+    public static byte[] bindingRequest(boolean changeIp, boolean changePort) {
+        boolean change = changeIp || changePort;
+        byte[] txid = new byte[TXID_SIZE];
+        newTransactionId(txid);
+
+        byte[] request = new byte[HEADER_SIZE + (change ? 8 : 0)];
+        request[1] = BINDING_REQUEST;
+        request[3] = (byte) (change ? 8 : 0);
+        request[4] = (byte) (MAGIC_COOKIE >>> 24);
+        request[5] = (byte) (MAGIC_COOKIE >>> 16);
+        request[6] = (byte) (MAGIC_COOKIE >>> 8);
+        request[7] = (byte) MAGIC_COOKIE;
+        System.arraycopy(txid, 0, request, TXID_OFFSET, TXID_SIZE);
+
+        if (change) {
+            request[20] = (byte) (ATTR_CHANGE_REQUEST >> 8);
+            request[21] = (byte) ATTR_CHANGE_REQUEST;
+            request[23] = 4;
+            request[27] = (byte) ((changeIp ? 0x04 : 0) | (changePort ? 0x02 : 0));
+        }
+        return request;
+    }
+
+    /**
+     * Finds an attribute in a STUN message.
+     *
+     * @return Absolute index of the attribute header, or -1 if absent or the
+     *         attribute list is malformed
+     */
+    public static int findAttribute(ByteBuf msg, int wanted) {
+        int start = msg.readerIndex();
+        int end = start + HEADER_SIZE + msg.getUnsignedShort(start + 2);
+        int offset = start + HEADER_SIZE;
+
+        while (offset + 4 <= end) {
+            int type = msg.getUnsignedShort(offset);
+            int length = msg.getUnsignedShort(offset + 2);
+            if (offset + 4 + length > end) {
+                return -1;
+            }
+            if (type == wanted) {
+                return offset;
+            }
+            // Attributes are padded to a 4-byte boundary
+            offset += 4 + ((length + 3) & ~3);
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the mapped address from a Binding Success response, preferring
+     * XOR-MAPPED-ADDRESS over the legacy MAPPED-ADDRESS.
+     *
+     * @return The mapped address, or null if the message has none
+     */
+    public static InetSocketAddress readMappedAddress(ByteBuf msg) {
+        if (messageType(msg) != BINDING_SUCCESS) {
+            return null;
+        }
+        InetSocketAddress mapped = readAddress(msg, ATTR_XOR_MAPPED_ADDRESS);
+        return mapped != null ? mapped : readAddress(msg, ATTR_MAPPED_ADDRESS);
+    }
+
+    /**
+     * Reads an address attribute (IPv4 or IPv6). XOR-MAPPED-ADDRESS is
+     * un-XORed with the magic cookie and, for IPv6, the transaction ID.
+     *
+     * @return The address, or null if the attribute is missing or malformed
+     */
+    public static InetSocketAddress readAddress(ByteBuf msg, int attrType) {
+        int attr = findAttribute(msg, attrType);
+        if (attr < 0) {
+            return null;
+        }
+
+        int length = msg.getUnsignedShort(attr + 2);
+        int value = attr + 4;
+        int family = msg.getUnsignedByte(value + 1);
+        int addrLength = family == FAMILY_IPV4 ? 4 : family == FAMILY_IPV6 ? 16 : -1;
+        if (addrLength < 0 || length < 4 + addrLength) {
+            return null;
+        }
+
+        boolean xor = attrType == ATTR_XOR_MAPPED_ADDRESS;
+        int port = msg.getUnsignedShort(value + 2);
+        byte[] ip = new byte[addrLength];
+        msg.getBytes(value + 4, ip);
+
+        if (xor) {
+            port ^= MAGIC_COOKIE >>> 16;
+            // Key is the magic cookie followed by the transaction ID
+            int keyBase = msg.readerIndex() + 4;
+            for (int i = 0; i < addrLength; i++) {
+                ip[i] ^= msg.getByte(keyBase + i);
+            }
+        }
+
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the error code from a Binding Error response.
+     *
+     * @return The code (e.g. 420), or -1 if absent
+     */
+    public static int readErrorCode(ByteBuf msg) {
+        int attr = findAttribute(msg, ATTR_ERROR_CODE);
+        if (attr < 0 || msg.getUnsignedShort(attr + 2) < 4) {
+            return -1;
+        }
+        int value = attr + 4;
+        return (msg.getUnsignedByte(value + 2) & 0x07) * 100 + msg.getUnsignedByte(value + 3);
+    }
+}
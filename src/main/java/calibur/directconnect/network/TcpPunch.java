@@ -0,0 +1,192 @@
+package calibur.directconnect.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * TCP hole punching by simultaneous open.
+ *
+ * As soon as a UDP check reaches the host, the joiner offers a TCP
+ * connection over it (OFFER with a random nonce), so the punch runs next to
+ * the rest of the checks. Both sides then connect() to each other from
+ * the port number their UDP socket uses, towards the port the peer's UDP
+ * traffic arrives from, so NATs that preserve ports for both protocols see
+ * crossing SYNs and let the connection through. The joiner proves the
+ * connection belongs to its session with the nonce, measures the RTT from
+ * the echo and commits to TCP only if it is at least as fast as the tunnel.
+ * The host refuses once game bytes went over the tunnel.
+ */
+public class TcpPunch {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    public static final byte OFFER = 0x01; // Control message: [OFFER][nonce 8]
+    public static final int NONCE_SIZE = 8;
+
+    private static final int ATTEMPT_TIMEOUT_MS = 200;
+    private static final long RETRY_DELAY_MS = 20;
+    private static final int HANDSHAKE_TIMEOUT_MS = 1000;
+    private static final byte USE_TCP = 1;
+    private static final byte USE_UDP = 0;
+
+    private TcpPunch() {
+    }
+
+    public static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Builds the OFFER control message sent over the tunnel.
+     */
+    public static byte[] offer(byte[] nonce) {
+        byte[] msg = new byte[1 + NONCE_SIZE];
+        msg[0] = OFFER;
+        System.arraycopy(nonce, 0, msg, 1, NONCE_SIZE);
+        return msg;
+    }
+
+    /**
+     * Reads the nonce from an OFFER control message.
+     *
+     * @return The nonce, or null if this is not an OFFER
+     */
+    public static byte[] parseOffer(byte[] msg) {
+        if (msg.length != 1 + NONCE_SIZE || msg[0] != OFFER) {
+            return null;
+        }
+        return Arrays.copyOfRange(msg, 1, msg.length);
+    }
+
+    /**
+     * Connects from a fixed local port until the peer's simultaneous
+     * connect() meets ours or time runs out.
+     *
+     * @param localPort Local port to connect from
+     * @param remote    Peer address
+     * @param timeoutMs Total time to keep trying
+     * @param executor  Runs the blocking connect attempts
+     * @return Future with the connected socket, or null on timeout
+     */
+    public static CompletableFuture<Socket> open(int localPort, InetSocketAddress remote, long timeoutMs,
+            Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            int attempts = 0;
+            while (System.currentTimeMillis() < deadline) {
+                attempts++;
+                Socket socket = new Socket();
+                try {
+                    socket.setReuseAddress(true);
+                    socket.bind(new InetSocketAddress(localPort));
+                    socket.connect(remote, ATTEMPT_TIMEOUT_MS);
+                    socket.setTcpNoDelay(true);
+                    LOGGER.info("[DirectConnect] TCP punched to {} after {} attempts", remote, attempts);
+                    return socket;
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS); // Refused or reset: the peer's NAT is not open yet
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+            }
+            LOGGER.info("[DirectConnect] TCP punch to {} failed after {} attempts", remote, attempts);
+            return null;
+        }, executor);
+    }
+
+    /**
+     * Joiner side: proves the session with the nonce and measures the round
+     * trip of the echo.
+     *
+     * @return RTT in milliseconds
+     */
+    public static long handshake(Socket socket, byte[] nonce) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        long start = System.nanoTime();
+        OutputStream out = socket.getOutputStream();
+        out.write(nonce);
+        out.flush();
+
+        byte[] echo = new byte[NONCE_SIZE];
+        new DataInputStream(socket.getInputStream()).readFully(echo);
+        if (!Arrays.equals(nonce, echo)) {
+            throw new IOException("bad TCP punch echo");
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * Host side: checks the joiner's nonce and echoes it.
+     *
+     * @return true if the nonce matches
+     */
+    public static boolean accept(Socket socket, byte[] nonce) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        byte[] received = new byte[NONCE_SIZE];
+        new DataInputStream(socket.getInputStream()).readFully(received);
+        if (!Arrays.equals(nonce, received)) {
+            return false;
+        }
+        socket.getOutputStream().write(received);
+        socket.getOutputStream().flush();
+        return true;
+    }
+
+    /**
+     * Joiner side: tells the host which transport won. When it is TCP, waits
+     * until the host has moved the session over.
+     *
+     * @return true if the session now runs over this socket
+     */
+    public static boolean commit(Socket socket, boolean useTcp) throws IOException {
+        socket.getOutputStream().write(useTcp ? USE_TCP : USE_UDP);
+        socket.getOutputStream().flush();
+        if (!useTcp) {
+            return false;
+        }
+        boolean confirmed = socket.getInputStream().read() == USE_TCP;
+        socket.setSoTimeout(0);
+        return confirmed;
+    }
+
+    /**
+     * Host side: waits for the joiner's choice.
+     *
+     * @return true if the joiner chose TCP
+     */
+    public static boolean awaitCommit(Socket socket) throws IOException {
+        boolean useTcp = socket.getInputStream().read() == USE_TCP;
+        socket.setSoTimeout(0);
+        return useTcp;
+    }
+
+    /**
+     * Host side: confirms that the session has moved to TCP.
+     */
+    public static void confirm(Socket socket) throws IOException {
+        socket.getOutputStream().write(USE_TCP);
+        socket.getOutputStream().flush();
+    }
+
+    public static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
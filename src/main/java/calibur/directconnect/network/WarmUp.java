@@ -0,0 +1,61 @@
+package calibur.directconnect.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background warm-up at startup, so the first host or join is as fast as
+ * later ones: starts the shared UDP event loops, opens the registry
+ * connection and runs one STUN query, which also loads the classes and
+ * resolves the server names involved.
+ */
+public final class WarmUp {
+    private static final Logger LOGGER = LoggerFactory.getLogger("DirectConnect");
+
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+
+    private WarmUp() {
+    }
+
+    /**
+     * Starts the warm-up on a background thread. Only the first call does
+     * anything.
+     */
+    public static void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(WarmUp::run, "DirectConnect-WarmUp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void run() {
+        long start = System.nanoTime();
+        ReliableUdp.warmUp();
+
+        CompletableFuture<Void> registry = new RegistryClient().warmUp();
+
+        // The mapping is of a throwaway socket; what carries over is the
+        // resolved STUN servers and the loaded code
+        CompletableFuture<Void> stun = CompletableFuture.completedFuture(null);
+        ReliableUdp probe = new ReliableUdp();
+        if (probe.openForChecks(new InetSocketAddress(0))) {
+            StunClient client = new StunClient(probe, NetworkUtils.STUN_SERVERS);
+            client.start(0);
+            stun = client.discover()
+                    .handle((mapping, e) -> {
+                        client.stop();
+                        probe.stop();
+                        return null;
+                    });
+        }
+
+        CompletableFuture.allOf(registry, stun).whenComplete((v, e) -> LOGGER.info(
+                "[DirectConnect] Warm-up done in {} ms", (System.nanoTime() - start) / 1_000_000));
+    }
+}
@@ -0,0 +1,41 @@
+package calibur.directconnect.host;
+
+import calibur.directconnect.network.SessionStats;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Thresholds picked at login, when the new tunnel has carried next to
+ * nothing yet.
+ */
+class CompressionPolicyTest {
+    private static final int SERVER = 256;
+    private static final double SLOW_UPLINK = 200 * 1024;
+    private static final double FAST_UPLINK = 10 * 1024 * 1024;
+
+    private final SessionStats wan = new SessionStats(new InetSocketAddress("203.0.113.5", 51900));
+    private final SessionStats lan = new SessionStats(new InetSocketAddress("192.168.1.30", 51900));
+
+    @Test
+    void slowUplinkCompressesSmallPacketsFromLogin() {
+        assertEquals(64, CompressionPolicy.pickThreshold(wan, SERVER, SLOW_UPLINK));
+        // Never raises a lower server threshold
+        assertEquals(32, CompressionPolicy.pickThreshold(wan, 32, SLOW_UPLINK));
+    }
+
+    @Test
+    void keepsServerThresholdWithoutSlowMeasurement() {
+        assertEquals(SERVER, CompressionPolicy.pickThreshold(wan, SERVER, 0));
+        // A fast uplink does not mean this player's downlink is fast
+        assertEquals(SERVER, CompressionPolicy.pickThreshold(wan, SERVER, FAST_UPLINK));
+    }
+
+    @Test
+    void disablesOnLanAndKeepsServerWideOff() {
+        assertEquals(-1, CompressionPolicy.pickThreshold(lan, SERVER, SLOW_UPLINK));
+        assertEquals(-1, CompressionPolicy.pickThreshold(wan, -1, SLOW_UPLINK));
+    }
+}
@@ -0,0 +1,69 @@
+package calibur.directconnect.host;
+
+import calibur.directconnect.host.TunnelThrottle.ViewCap;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class TunnelThrottleTest {
+    private static final double CHUNK_PER_TICK = 6 * 1024 * 20; // Bytes/second for one average chunk a tick
+    private static final int MIN_DISTANCE = 4;
+    private static final long HOLD_MS = 10_000;
+
+    @Test
+    void capsChunksToMeasuredRate() {
+        // Nothing measured yet: a modest start
+        assertEquals(2.0f, TunnelThrottle.capChunksPerTick(10, 0, 1), 1e-6);
+        assertEquals(1.0f, TunnelThrottle.capChunksPerTick(1, 0, 1), 1e-6);
+
+        // Probes 25% above the rate, never below the minimum, never above the client
+        assertEquals(1.25f, TunnelThrottle.capChunksPerTick(10, CHUNK_PER_TICK, 1), 1e-6);
+        assertEquals(0.5f, TunnelThrottle.capChunksPerTick(10, 1000, 1), 1e-6);
+        assertEquals(3.0f, TunnelThrottle.capChunksPerTick(3, 100 * CHUNK_PER_TICK, 1), 1e-6);
+    }
+
+    @Test
+    void backsOffWhenTunnelQueues() {
+        double rate = 4 * CHUNK_PER_TICK; // A cap of 5
+        assertEquals(5.0f, TunnelThrottle.capChunksPerTick(10, rate, 1.5), 1e-6);
+        assertEquals(2.5f, TunnelThrottle.capChunksPerTick(10, rate, 2.0), 1e-6);
+        assertEquals(0.5f, TunnelThrottle.capChunksPerTick(10, rate, 50), 1e-6);
+    }
+
+    @Test
+    void firstMeasurementSetsViewCap() {
+        assertEquals(8, TunnelThrottle.nextViewCap(null, rateFor(8), MIN_DISTANCE, 0).distance());
+        assertEquals(12, TunnelThrottle.nextViewCap(null, rateFor(12), MIN_DISTANCE, 0).distance());
+        assertEquals(MIN_DISTANCE, TunnelThrottle.nextViewCap(null, 1000, MIN_DISTANCE, 0).distance());
+    }
+
+    @Test
+    void viewCapHoldsBetweenChanges() {
+        ViewCap cap = new ViewCap(8, 0);
+        assertSame(cap, TunnelThrottle.nextViewCap(cap, rateFor(5), MIN_DISTANCE, HOLD_MS - 1));
+
+        ViewCap lowered = TunnelThrottle.nextViewCap(cap, rateFor(5), MIN_DISTANCE, HOLD_MS);
+        assertEquals(new ViewCap(5, HOLD_MS), lowered);
+        assertSame(lowered, TunnelThrottle.nextViewCap(lowered, rateFor(12), MIN_DISTANCE, 2 * HOLD_MS - 1));
+    }
+
+    @Test
+    void viewCapRisesOnlyWithHeadroom() {
+        ViewCap cap = new ViewCap(5, 0);
+        // Just enough for 8: not with 25% to spare
+        assertEquals(7, TunnelThrottle.nextViewCap(cap, rateFor(8), MIN_DISTANCE, HOLD_MS).distance());
+        assertEquals(8, TunnelThrottle.nextViewCap(cap, rateFor(8) * 1.25, MIN_DISTANCE, HOLD_MS).distance());
+        // A little over 5 neither raises nor lowers it
+        assertSame(cap, TunnelThrottle.nextViewCap(cap, rateFor(5) * 1.1, MIN_DISTANCE, HOLD_MS));
+    }
+
+    /**
+     * Rate that loads a view distance in the target ten seconds, with a
+     * little to spare.
+     */
+    private static double rateFor(int distance) {
+        int chunks = (2 * distance + 1) * (2 * distance + 1);
+        return chunks * 6 * 1024 / 10.0 * 1.01;
+    }
+}
@@ -0,0 +1,271 @@
+package calibur.directconnect.join;
+
+import calibur.directconnect.network.Candidates;
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import calibur.directconnect.network.ReliableUdp;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Connectivity checks from real check sockets against hosts on loopback.
+ */
+class ConnectivityCheckerTest {
+    private static final long PACING_MS = 50;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<MockHost> hosts = new ArrayList<>();
+    private ConnectivityChecker checker;
+    private LocalCandidates local;
+
+    @AfterEach
+    void close() {
+        if (checker != null) {
+            checker.cancel();
+        }
+        if (local != null) {
+            local.close();
+        }
+        scheduler.shutdownNow();
+        hosts.forEach(MockHost::close);
+    }
+
+    @Test
+    void checksPairsInPriorityOrderPacedApart() throws Exception {
+        MockHost relay = host();
+        MockHost reflexive = host();
+        MockHost preferred = host();
+        List<Endpoint> candidates = List.of(
+                new Endpoint("127.0.0.1", relay.port(), Candidates.TYPE_RELAY),
+                new Endpoint("127.0.0.1", reflexive.port(), Candidates.TYPE_WAN),
+                new Endpoint("127.0.0.1", preferred.port(), Candidates.TYPE_WAN, null,
+                        Candidates.defaultPriority(Candidates.TYPE_WAN) + 1));
+        checker = new ConnectivityChecker(candidates, scheduler, null);
+        checker.run(TIMEOUT_MS);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (relay.hellos.isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline, "relay pair never checked");
+            Thread.sleep(10);
+        }
+        long first = preferred.hellos.get(0);
+        long second = reflexive.hellos.get(0);
+        long third = relay.hellos.get(0);
+        assertTrue(second - first >= TimeUnit.MILLISECONDS.toNanos(PACING_MS - 5), "no pacing before 2nd pair");
+        assertTrue(third - second >= TimeUnit.MILLISECONDS.toNanos(PACING_MS - 5), "no pacing before 3rd pair");
+    }
+
+    @Test
+    void retransmitsHelloOnSchedule() throws Exception {
+        MockHost host = host().ignoreFirst(2);
+        checker = new ConnectivityChecker(List.of(wan(host)), scheduler, null);
+        long start = System.nanoTime();
+
+        ConnectivityChecker.Result result = checker.run(TIMEOUT_MS).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(host.port(), result.endpoint.port);
+        // Answered the second retry, sent HELLO_RETRY_MS[1] after the first HELLO
+        assertEquals(3, host.hellos.size());
+        long retried = host.hellos.get(2) - start;
+        assertTrue(retried >= TimeUnit.MILLISECONDS.toNanos(ConnectivityChecker.HELLO_RETRY_MS[1] - 5),
+                "retried after " + retried / 1_000_000 + " ms");
+        // The RTT is that of the answered copy, not the time since the first
+        assertTrue(result.rttMs < ConnectivityChecker.HELLO_RETRY_MS[0], "rtt " + result.rttMs);
+    }
+
+    @Test
+    void nominatesFasterPairOverFirstAnswer() throws Exception {
+        // Checked first and answers first, 30 ms late; the next pair starts
+        // one pacing interval later and answers inside the nomination window
+        MockHost slow = host().delay(30);
+        MockHost fast = host();
+        List<Endpoint> candidates = List.of(
+                new Endpoint("127.0.0.1", slow.port(), Candidates.TYPE_WAN, null, 2000),
+                new Endpoint("127.0.0.1", fast.port(), Candidates.TYPE_WAN, null, 1000));
+        checker = new ConnectivityChecker(candidates, scheduler, null);
+
+        ConnectivityChecker.Result result = checker.run(TIMEOUT_MS).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(slow.answers.get(0) < fast.answers.get(0), "slow pair did not answer first");
+        assertEquals(fast.port(), result.endpoint.port);
+        assertTrue(result.rttMs < 30, "rtt " + result.rttMs);
+        assertTrue(result.udp.isConnected());
+        assertEquals(2, result.candidates.size());
+    }
+
+    @Test
+    void cancelIfUnansweredStopsSilentChecks() throws Exception {
+        MockHost silent = host().ignoreFirst(Integer.MAX_VALUE);
+        checker = new ConnectivityChecker(List.of(wan(silent)), scheduler, null);
+        CompletableFuture<ConnectivityChecker.Result> result = checker.run(TIMEOUT_MS);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (silent.hellos.isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline, "never checked");
+            Thread.sleep(10);
+        }
+        assertTrue(checker.cancelIfUnanswered());
+        int sent = silent.hellos.size();
+        Thread.sleep(ConnectivityChecker.HELLO_RETRY_MS[1] + 100);
+        assertEquals(sent, silent.hellos.size()); // No retransmissions
+        assertFalse(result.isDone());
+        assertFalse(checker.cancelIfUnanswered());
+    }
+
+    @Test
+    void cancelIfUnansweredKeepsAnsweredChecks() throws Exception {
+        // 100 ms late, so nomination waits 200 ms after the answer
+        MockHost host = host().delay(100);
+        checker = new ConnectivityChecker(List.of(wan(host)), scheduler, null);
+        CompletableFuture<InetSocketAddress> answered = new CompletableFuture<>();
+        checker.setOnDirectAnswer((udp, from) -> answered.complete(from));
+        CompletableFuture<ConnectivityChecker.Result> result = checker.run(TIMEOUT_MS);
+
+        assertEquals(host.port(), answered.get(2, TimeUnit.SECONDS).getPort());
+        assertFalse(result.isDone());
+        assertFalse(checker.cancelIfUnanswered());
+        assertEquals(host.port(), result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).endpoint.port);
+    }
+
+    @Test
+    void checksRunFromTheSocketOpenedBeforeLookup() throws Exception {
+        // A STUN server that never answers: the lookup waits a moment only
+        DatagramSocket stun = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try {
+            local = LocalCandidates.open(new String[][] { { "127.0.0.1", String.valueOf(stun.getLocalPort()) } });
+            assertSame(local, local.gathered().get(2, TimeUnit.SECONDS));
+            assertTrue(local.port() > 0);
+            assertNull(local.reflexive());
+            assertEquals(local.port(), local.publicPort());
+        } finally {
+            stun.close();
+        }
+
+        MockHost host = host();
+        checker = new ConnectivityChecker(List.of(wan(host)), scheduler, local);
+        assertNull(local.claim()); // Taken over by the checker
+
+        ConnectivityChecker.Result result = checker.run(TIMEOUT_MS).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(local.port(), host.from.getPort());
+        assertEquals(local.port(), result.udp.getLocalPort());
+
+        // Closing the candidates leaves the claimed socket to the session
+        local.close();
+        assertTrue(result.udp.isConnected());
+    }
+
+    @Test
+    void claimHandsSocketOutOnce() throws Exception {
+        DatagramSocket stun = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try {
+            local = LocalCandidates.open(new String[][] { { "127.0.0.1", String.valueOf(stun.getLocalPort()) } });
+            ReliableUdp socket = local.claim();
+            assertNotNull(socket);
+            assertNull(local.claim());
+            socket.stop();
+        } finally {
+            stun.close();
+        }
+    }
+
+    private MockHost host() throws SocketException {
+        MockHost host = new MockHost();
+        hosts.add(host);
+        return host;
+    }
+
+    private static Endpoint wan(MockHost host) {
+        return new Endpoint("127.0.0.1", host.port(), Candidates.TYPE_WAN);
+    }
+
+    /**
+     * Answers HELLOs on an ephemeral loopback port with a HELLO_ACK echoing
+     * the HELLO's timestamp, optionally late or only after some copies.
+     */
+    private static class MockHost {
+        private static final byte MSG_HELLO = 0x03;
+        private static final byte MSG_HELLO_ACK = 0x04;
+
+        final DatagramSocket socket;
+        final List<Long> hellos = new CopyOnWriteArrayList<>(); // Arrival times
+        final List<Long> answers = new CopyOnWriteArrayList<>();
+        volatile InetSocketAddress from;
+        private volatile long delayMs;
+        private volatile int ignore;
+
+        MockHost() throws SocketException {
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[1500];
+                while (!socket.isClosed()) {
+                    try {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        if (packet.getLength() < 1 || buffer[0] != MSG_HELLO) {
+                            continue;
+                        }
+                        hellos.add(System.nanoTime());
+                        from = (InetSocketAddress) packet.getSocketAddress();
+                        if (hellos.size() <= ignore) {
+                            continue;
+                        }
+                        long echo = packet.getLength() >= 14 ? ByteBuffer.wrap(buffer, 6, 8).getLong() : 0;
+                        if (delayMs > 0) {
+                            Thread.sleep(delayMs);
+                        }
+                        ByteBuffer ack = ByteBuffer.allocate(24);
+                        ack.put(MSG_HELLO_ACK);
+                        ack.putLong(socket.getLocalPort() | 1L); // Session token
+                        ack.putShort((short) 0); // No TCP port
+                        ack.put((byte) ReliableUdp.PROTOCOL_VERSION);
+                        ack.putInt(0); // No features
+                        ack.putLong(echo);
+                        answers.add(System.nanoTime());
+                        socket.send(new DatagramPacket(ack.array(), ack.position(), from));
+                    } catch (Exception e) {
+                        return;
+                    }
+                }
+            }, "MockHost");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        MockHost delay(long ms) {
+            delayMs = ms;
+            return this;
+        }
+
+        MockHost ignoreFirst(int count) {
+            ignore = count;
+            return this;
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        void close() {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package calibur.directconnect.join;
+
+import calibur.directconnect.network.Candidates;
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import calibur.directconnect.network.RegistryClient.Lookup;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HostCacheTest {
+    private static final long TTL_MS = 60_000;
+    private static final long NOW = 1_700_000_000_000L;
+    private static final String CODE = "happy-llama-42";
+
+    private static final List<Endpoint> ENDPOINTS = List.of(
+            new Endpoint("192.168.1.20", 25565, Candidates.TYPE_LAN),
+            new Endpoint("203.0.113.7", 41000, Candidates.TYPE_WAN),
+            new Endpoint("198.51.100.3", 3479, Candidates.TYPE_RELAY));
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void foundHostsExpireAfterTtl() {
+        HostCache cache = cache();
+        cache.update(Map.of(CODE, found()), NOW);
+
+        assertEquals(describe(ENDPOINTS), describe(cache.get(CODE, NOW + TTL_MS - 1)));
+        assertEquals(describe(ENDPOINTS), describe(cache.get("Happy-Llama-42", NOW)));
+        assertNull(cache.get(CODE, NOW + TTL_MS));
+        assertNull(cache.get("quiet-otter-7", NOW));
+    }
+
+    @Test
+    void notFoundIsRememberedBriefly() {
+        HostCache cache = cache();
+        cache.update(Map.of(CODE, new Lookup(List.of(), true)), NOW);
+
+        assertEquals(List.of(), cache.get(CODE, NOW + HostCache.NOT_FOUND_TTL_MS - 1));
+        assertNull(cache.get(CODE, NOW + HostCache.NOT_FOUND_TTL_MS));
+    }
+
+    @Test
+    void notFoundReplacesFoundAndFailuresAreIgnored() {
+        HostCache cache = cache();
+        cache.update(Map.of(CODE, found()), NOW);
+
+        // A failed request says nothing about the host
+        cache.update(Map.of(CODE, new Lookup(List.of(), false)), NOW + 1);
+        assertEquals(describe(ENDPOINTS), describe(cache.get(CODE, NOW + 2)));
+
+        cache.update(Map.of(CODE, new Lookup(List.of(), true)), NOW + 3);
+        assertEquals(List.of(), cache.get(CODE, NOW + 4));
+    }
+
+    @Test
+    void evictsLeastRecentlyFoundBeyondMaxEntries() {
+        HostCache cache = cache();
+        Map<String, Lookup> lookups = new LinkedHashMap<>();
+        for (int i = 0; i < HostCache.MAX_ENTRIES; i++) {
+            lookups.put(code(i), found());
+        }
+        cache.update(lookups, NOW);
+
+        // Found again: now the newest, so code 1 goes first
+        cache.update(Map.of(code(0), found()), NOW + 1);
+        cache.update(Map.of(code(HostCache.MAX_ENTRIES), found()), NOW + 2);
+
+        assertNotNull(cache.get(code(0), NOW + 3));
+        assertNull(cache.get(code(1), NOW + 3));
+        assertNotNull(cache.get(code(2), NOW + 3));
+        assertNotNull(cache.get(code(HostCache.MAX_ENTRIES), NOW + 3));
+    }
+
+    @Test
+    void persistsFoundHostsAcrossRestarts() {
+        HostCache cache = cache();
+        cache.update(Map.of(CODE, found(), "quiet-otter-7", new Lookup(List.of(), true)), NOW);
+        assertTrue(Files.exists(dir.resolve("hosts.json")));
+
+        HostCache restarted = cache();
+        List<Endpoint> loaded = restarted.get(CODE, NOW + 1);
+        assertEquals(describe(ENDPOINTS), describe(loaded));
+        assertEquals(ENDPOINTS.get(1).priority, loaded.get(1).priority);
+        // Not found is kept in memory only
+        assertNull(restarted.get("quiet-otter-7", NOW + 1));
+
+        // Entries that expired while the game was closed are not loaded
+        assertNull(cache().get(CODE, NOW + TTL_MS));
+    }
+
+    @Test
+    void disabledWithZeroTtl() {
+        HostCache cache = new HostCache(0, dir.resolve("hosts.json"));
+        cache.update(Map.of(CODE, found()), NOW);
+
+        assertNull(cache.get(CODE, NOW));
+        assertFalse(Files.exists(dir.resolve("hosts.json")));
+    }
+
+    private HostCache cache() {
+        return new HostCache(TTL_MS, dir.resolve("hosts.json"));
+    }
+
+    private static Lookup found() {
+        return new Lookup(ENDPOINTS, false);
+    }
+
+    private static String code(int i) {
+        return "host-number-" + (100 + i);
+    }
+
+    private static List<String> describe(List<Endpoint> endpoints) {
+        return endpoints.stream().map(Endpoint::toString).toList();
+    }
+}
@@ -0,0 +1,405 @@
+package calibur.directconnect.join;
+
+import calibur.directconnect.network.NatBehavior;
+import calibur.directconnect.network.NatBehavior.Filtering;
+import calibur.directconnect.network.NatBehavior.Mapping;
+import calibur.directconnect.network.NetworkUtils;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hole punching between two NATs, simulated in process.
+ *
+ * The NATs follow the RFC 4787 mapping and filtering behaviors, with
+ * sequential or random port allocation. Both sides classify their NAT
+ * with {@link NatBehavior#classify}, whose binding tests go through the
+ * simulated NAT, then replay what the mod does on a first join: the
+ * joiner maps its check socket through STUN and
+ * looks the host up, the host punches the joiner's reported port or sprays
+ * {@link NatBehavior#predictPorts} when it was told the joiner's NAT is
+ * hard (as {@link NetworkUtils#punchPredicted}), and the joiner sends HELLO
+ * to the host on {@link ConnectivityChecker}'s schedule, spraying predicted
+ * ports of a host behind a hard NAT on every attempt.
+ *
+ * Prints the success rate and time to connect for every pair of NAT types,
+ * with and without the joiner's NAT in the lookup.
+ */
+class NatTraversalSimulationTest {
+    private static final int TRIALS = 400;
+    private static final double LOSS = 0.01;
+
+    // Mirror of the punch interval in ReliableUdp
+    private static final long PUNCH_INTERVAL_MS = 50;
+    private static final long GIVE_UP_MS = 10_000;
+
+    private static final String HOST_IP = "203.0.113.10";
+    private static final String JOINER_IP = "198.51.100.20";
+    private static final String STUN_IP = "192.0.2.1";
+    private static final String STUN_ALT_IP = "192.0.2.2"; // RFC 5780 server, answers from STUN_OTHER_IP too
+    private static final String STUN_OTHER_IP = "192.0.2.3";
+    private static final int STUN_PORT = 3478;
+    private static final int STUN_OTHER_PORT = 3479;
+    private static final int HOST_PORT = 25565;
+    private static final int JOINER_PORT = 50000;
+    private static final int CLASSIFY_PORT = 50001;
+
+    private record Profile(String name, Mapping mapping, Filtering filtering, boolean randomPorts) {
+        boolean isCone() {
+            return mapping == Mapping.NO_NAT || mapping == Mapping.ENDPOINT_INDEPENDENT;
+        }
+    }
+
+    private static final Profile OPEN = new Profile("open", Mapping.NO_NAT, Filtering.ENDPOINT_INDEPENDENT, false);
+    private static final Profile FULL_CONE = new Profile("full cone", Mapping.ENDPOINT_INDEPENDENT,
+            Filtering.ENDPOINT_INDEPENDENT, false);
+    private static final Profile RESTRICTED = new Profile("restricted", Mapping.ENDPOINT_INDEPENDENT,
+            Filtering.ADDRESS_DEPENDENT, false);
+    private static final Profile PORT_RESTRICTED = new Profile("port restricted", Mapping.ENDPOINT_INDEPENDENT,
+            Filtering.ADDRESS_AND_PORT_DEPENDENT, false);
+    private static final Profile SYMMETRIC_SEQ = new Profile("symmetric seq", Mapping.ADDRESS_AND_PORT_DEPENDENT,
+            Filtering.ADDRESS_AND_PORT_DEPENDENT, false);
+    private static final Profile SYMMETRIC_RANDOM = new Profile("symmetric rand",
+            Mapping.ADDRESS_AND_PORT_DEPENDENT, Filtering.ADDRESS_AND_PORT_DEPENDENT, true);
+
+    private static final Profile[] PROFILES = {
+            OPEN, FULL_CONE, RESTRICTED, PORT_RESTRICTED, SYMMETRIC_SEQ, SYMMETRIC_RANDOM
+    };
+
+    private record Outcome(double successRate, long medianMs, long p90Ms) {
+    }
+
+    private static final Map<String, Outcome> WITH_NAT = new HashMap<>();
+    private static final Map<String, Outcome> WITHOUT_NAT = new HashMap<>();
+
+    @BeforeAll
+    static void simulate() {
+        System.out.printf("[DirectConnect] %-16s %-16s %14s %14s %8s %8s%n", "host", "joiner",
+                "ok (nat sent)", "ok (no nat)", "p50 ms", "p90 ms");
+        for (Profile host : PROFILES) {
+            for (Profile joiner : PROFILES) {
+                Outcome with = run(host, joiner, true);
+                Outcome without = run(host, joiner, false);
+                WITH_NAT.put(key(host, joiner), with);
+                WITHOUT_NAT.put(key(host, joiner), without);
+                System.out.printf("[DirectConnect] %-16s %-16s %13.1f%% %13.1f%% %8s %8s%n", host.name,
+                        joiner.name, with.successRate * 100, without.successRate * 100,
+                        with.medianMs < 0 ? "-" : with.medianMs, with.p90Ms < 0 ? "-" : with.p90Ms);
+            }
+        }
+    }
+
+    @Test
+    void classifierSeesSimulatedNat() {
+        for (Profile profile : PROFILES) {
+            NatBehavior behavior = new SimNat(HOST_IP, profile, new Random(1)).classify(HOST_PORT);
+            assertEquals(profile.mapping, behavior.mapping, profile.name);
+            assertEquals(profile.filtering, behavior.filtering, profile.name);
+            if (profile.mapping == Mapping.ADDRESS_AND_PORT_DEPENDENT && !profile.randomPorts) {
+                // The step towards a new destination is what prediction covers
+                assertTrue(behavior.portDelta >= 1 && behavior.portDelta <= 3, profile.name);
+            }
+        }
+    }
+
+    @Test
+    void conesAlwaysConnect() {
+        for (Profile host : PROFILES) {
+            for (Profile joiner : PROFILES) {
+                if (host.isCone() && joiner.isCone()) {
+                    assertTrue(WITH_NAT.get(key(host, joiner)).successRate >= 0.98, key(host, joiner));
+                }
+            }
+        }
+    }
+
+    /**
+     * A joiner behind a sequential symmetric NAT is only reachable through
+     * a port restricted host NAT when the host knows to spray.
+     */
+    @Test
+    void joinerNatLetsHostPunchSymmetricJoiner() {
+        String key = key(PORT_RESTRICTED, SYMMETRIC_SEQ);
+        assertTrue(WITH_NAT.get(key).successRate >= 0.9, key);
+        assertTrue(WITHOUT_NAT.get(key).successRate <= 0.1, key);
+    }
+
+    @Test
+    void symmetricHostReachableFromCone() {
+        for (Profile joiner : new Profile[] { OPEN, FULL_CONE, RESTRICTED, PORT_RESTRICTED }) {
+            String key = key(SYMMETRIC_SEQ, joiner);
+            assertTrue(WITH_NAT.get(key).successRate >= 0.98, key);
+        }
+    }
+
+    @Test
+    void sendingNatNeverHurts() {
+        for (String key : WITH_NAT.keySet()) {
+            assertTrue(WITH_NAT.get(key).successRate + 0.03 >= WITHOUT_NAT.get(key).successRate, key);
+        }
+    }
+
+    private static String key(Profile host, Profile joiner) {
+        return host.name + " -> " + joiner.name;
+    }
+
+    private static Outcome run(Profile host, Profile joiner, boolean sendJoinerNat) {
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < TRIALS; i++) {
+            long t = new Trial(new Random(i * 7919L + 17), host, joiner, sendJoinerNat).run();
+            if (t >= 0) {
+                times.add(t);
+            }
+        }
+        long[] sorted = times.stream().mapToLong(Long::longValue).sorted().toArray();
+        return new Outcome((double) sorted.length / TRIALS,
+                sorted.length == 0 ? -1 : sorted[sorted.length / 2],
+                sorted.length == 0 ? -1 : sorted[sorted.length * 9 / 10]);
+    }
+
+    /**
+     * A NAT with one public IP.
+     */
+    private static final class SimNat {
+        final String ip;
+        final Profile profile;
+        final Random random;
+        final Map<String, Integer> bindings = new HashMap<>();
+        final Map<Integer, Integer> internalPorts = new HashMap<>();
+        final Set<String> permissions = new HashSet<>();
+        int nextPort;
+
+        SimNat(String ip, Profile profile, Random random) {
+            this.ip = ip;
+            this.profile = profile;
+            this.random = random;
+            this.nextPort = 20000 + random.nextInt(20000);
+        }
+
+        /**
+         * Maps an outgoing packet and opens the filter for answers.
+         *
+         * @return The public source port
+         */
+        int outbound(int internalPort, String dstIp, int dstPort) {
+            if (profile.mapping == Mapping.NO_NAT) {
+                return internalPort;
+            }
+            String key = switch (profile.mapping) {
+                case ADDRESS_DEPENDENT -> internalPort + "/" + dstIp;
+                case ADDRESS_AND_PORT_DEPENDENT -> internalPort + "/" + dstIp + ":" + dstPort;
+                default -> String.valueOf(internalPort);
+            };
+            int publicPort = bindings.computeIfAbsent(key, k -> allocate());
+            internalPorts.put(publicPort, internalPort);
+            permissions.add(publicPort + "/" + dstIp);
+            permissions.add(publicPort + "/" + dstIp + ":" + dstPort);
+            return publicPort;
+        }
+
+        /**
+         * @return The internal port a packet is let through to, or -1 if
+         *         dropped
+         */
+        int inbound(int publicPort, String srcIp, int srcPort) {
+            if (profile.mapping == Mapping.NO_NAT) {
+                return publicPort;
+            }
+            Integer internal = internalPorts.get(publicPort);
+            if (internal == null) {
+                return -1;
+            }
+            boolean allowed = switch (profile.filtering) {
+                case ENDPOINT_INDEPENDENT -> true;
+                case ADDRESS_DEPENDENT -> permissions.contains(publicPort + "/" + srcIp);
+                default -> permissions.contains(publicPort + "/" + srcIp + ":" + srcPort);
+            };
+            return allowed ? internal : -1;
+        }
+
+        /**
+         * Runs {@link NatBehavior#classify} from an internal port. The STUN
+         * client's mapping comes from the first server; the binding tests
+         * go to an RFC 5780 server through this NAT like any datagram, and
+         * are answered only if the filter lets the answer in.
+         */
+        NatBehavior classify(int internalPort) {
+            // Behind no NAT the local IP is the public one
+            String localIp = profile.mapping == Mapping.NO_NAT ? ip : "10.0.0.2";
+            InetSocketAddress mapped = new InetSocketAddress(ip, outbound(internalPort, STUN_IP, STUN_PORT));
+            InetSocketAddress other = new InetSocketAddress(STUN_OTHER_IP, STUN_OTHER_PORT);
+
+            NatBehavior.BindingTest test = (server, changeIp, changePort) -> {
+                String serverIp = server.getAddress().getHostAddress();
+                int publicPort = outbound(internalPort, serverIp, server.getPort());
+                String fromIp = changeIp ? (serverIp.equals(STUN_OTHER_IP) ? STUN_ALT_IP : STUN_OTHER_IP) : serverIp;
+                int fromPort = changePort ? (server.getPort() == STUN_OTHER_PORT ? STUN_PORT : STUN_OTHER_PORT)
+                        : server.getPort();
+                if (inbound(publicPort, fromIp, fromPort) != internalPort) {
+                    return CompletableFuture.failedFuture(new TimeoutException("STUN timeout from " + server));
+                }
+                return CompletableFuture.completedFuture(
+                        new NatBehavior.Answer(new InetSocketAddress(ip, publicPort), other));
+            };
+            return NatBehavior.classify(test, List.of(new InetSocketAddress(STUN_ALT_IP, STUN_PORT)), localIp,
+                    mapped).join();
+        }
+
+        private int allocate() {
+            if (profile.randomPorts) {
+                int port;
+                do {
+                    port = 1024 + random.nextInt(65536 - 1024);
+                } while (internalPorts.containsKey(port));
+                return port;
+            }
+            // Other devices behind the NAT take ports now and then
+            nextPort += 1 + (random.nextInt(4) == 0 ? random.nextInt(3) : 0);
+            return nextPort;
+        }
+    }
+
+    private enum Kind {
+        PUNCH, HELLO, HELLO_ACK
+    }
+
+    private record Event(long time, long order, Runnable action) {
+    }
+
+    /**
+     * One join, from the joiner's first STUN query until it hears a
+     * HELLO_ACK or gives up.
+     */
+    private static final class Trial {
+        final Random random;
+        final SimNat hostNat;
+        final SimNat joinerNat;
+        final boolean sendJoinerNat;
+        final PriorityQueue<Event> events = new PriorityQueue<>(
+                (a, b) -> a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.order, b.order));
+        final long peerDelayMs;
+        long now;
+        long order;
+        long connectedAt = -1;
+
+        Trial(Random random, Profile host, Profile joiner, boolean sendJoinerNat) {
+            this.random = random;
+            this.hostNat = new SimNat(HOST_IP, host, random);
+            this.joinerNat = new SimNat(JOINER_IP, joiner, random);
+            this.sendJoinerNat = sendJoinerNat;
+            this.peerDelayMs = 10 + random.nextInt(30);
+        }
+
+        /**
+         * @return Time to connect in ms, or -1 if the join failed
+         */
+        long run() {
+            // Both sides classified ahead: the host at startup on its
+            // server socket, the joiner on a socket of its own
+            int hostPort = hostNat.outbound(HOST_PORT, STUN_IP, STUN_PORT);
+            NatBehavior hostBehavior = hostNat.classify(HOST_PORT);
+            NatBehavior joinerBehavior = joinerNat.classify(CLASSIFY_PORT);
+
+            // The joiner maps its check socket, then looks the host up
+            int joinerPort = joinerNat.outbound(JOINER_PORT, STUN_IP, STUN_PORT);
+            long lookupAt = 2 * delay(20, 30) + delay(20, 30);
+            long punchAt = lookupAt + delay(20, 30);
+            long checksAt = lookupAt + delay(20, 30);
+
+            NatBehavior reported = sendJoinerNat ? joinerBehavior : null;
+            at(punchAt, () -> punch(joinerPort, reported));
+            at(checksAt, () -> hello(hostPort, hostBehavior));
+            for (long retry : ConnectivityChecker.HELLO_RETRY_MS) {
+                at(checksAt + retry, () -> hello(hostPort, hostBehavior));
+            }
+
+            while (!events.isEmpty() && connectedAt < 0) {
+                Event event = events.poll();
+                if (event.time > GIVE_UP_MS) {
+                    break;
+                }
+                now = event.time;
+                event.action.run();
+            }
+            return connectedAt;
+        }
+
+        /**
+         * The host's answer to a punch request, as NetworkUtils.punchPredicted.
+         */
+        void punch(int joinerPort, NatBehavior joinerNat) {
+            boolean spray = joinerNat != null && joinerNat.isHard();
+            List<Integer> ports = spray ? joinerNat.predictPorts(joinerPort) : List.of(joinerPort);
+            int count = spray ? 2 : 5;
+            for (int i = 0; i < count; i++) {
+                at(now + i * PUNCH_INTERVAL_MS, () -> {
+                    for (int port : ports) {
+                        fromHost(JOINER_IP, port, Kind.PUNCH);
+                    }
+                });
+            }
+        }
+
+        /**
+         * A connectivity check: HELLO to the host's port, plus its predicted
+         * ports if its NAT is hard.
+         */
+        void hello(int hostPort, NatBehavior hostBehavior) {
+            List<Integer> ports = hostBehavior.isHard() ? hostBehavior.predictPorts(hostPort) : List.of(hostPort);
+            for (int port : ports) {
+                fromJoiner(HOST_IP, port, Kind.HELLO);
+            }
+        }
+
+        void fromHost(String dstIp, int dstPort, Kind kind) {
+            int srcPort = hostNat.outbound(HOST_PORT, dstIp, dstPort);
+            deliver(HOST_IP, srcPort, dstIp, dstPort, kind);
+        }
+
+        void fromJoiner(String dstIp, int dstPort, Kind kind) {
+            int srcPort = joinerNat.outbound(JOINER_PORT, dstIp, dstPort);
+            deliver(JOINER_IP, srcPort, dstIp, dstPort, kind);
+        }
+
+        void deliver(String srcIp, int srcPort, String dstIp, int dstPort, Kind kind) {
+            if (random.nextDouble() < LOSS) {
+                return;
+            }
+            at(now + peerDelayMs + random.nextInt(5), () -> {
+                if (dstIp.equals(HOST_IP)) {
+                    int internal = hostNat.inbound(dstPort, srcIp, srcPort);
+                    if (internal == HOST_PORT && kind == Kind.HELLO) {
+                        fromHost(srcIp, srcPort, Kind.HELLO_ACK);
+                    }
+                } else {
+                    int internal = joinerNat.inbound(dstPort, srcIp, srcPort);
+                    if (internal == JOINER_PORT && kind == Kind.HELLO_ACK && connectedAt < 0) {
+                        connectedAt = now;
+                    }
+                }
+            });
+        }
+
+        void at(long time, Runnable action) {
+            events.add(new Event(time, order++, action));
+        }
+
+        long delay(int min, int spread) {
+            return min + random.nextInt(spread);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Microbenchmarks for the compact header against the v1 DATA/ACK framing,
+ * and bytes on the wire for both over play sessions: a synthetic one
+ * generated here, and any captured traces in the directory given as
+ * {@code -Ptraces=<dir>}. Run with {@code gradlew benchmark}; numbers go
+ * to stdout.
+ */
+@Tag("benchmark")
+class CompactHeaderBenchmark {
+    private static final int WARMUP = 200_000;
+    private static final int ITERATIONS = 2_000_000;
+    private static final int ACKS_PER_PACKET = 8;
+
+    // Replay conditions
+    private static final long ONE_WAY_US = 20_000; // 40 ms round trip
+    private static final long READ_BATCH_US = 100; // Datagrams closer than this are read in one batch
+    private static final int UDP_IP_OVERHEAD = 28; // IPv4 and UDP headers of every datagram
+
+    // Synthetic session
+    private static final long SEED = 2026;
+    private static final long SESSION_US = 120_000_000; // Two minutes
+    private static final long TICK_US = 50_000; // 20 Hz
+    private static final int BRIDGE_READ = 4096; // What one read of the host's bridge socket returns at most
+    private static final int SPAWN_CHUNK_READS = 600;
+
+    private long sink;
+
+    @Test
+    void encodeAndDecode() {
+        ByteBuf buf = Unpooled.buffer(CompactHeader.MAX_HEADER_SIZE + 16);
+        int[] acks = new int[ACKS_PER_PACKET];
+
+        report("v1 data header encode", time(buf, acks, this::encodeV1));
+        report("compact data+acks encode", time(buf, acks, this::encodeCompact));
+        report("compact data+acks decode", time(buf, acks, this::roundTripCompact));
+
+        buf.clear();
+        encodeV1(buf, acks, 1_000_000);
+        int v1Bytes = buf.readableBytes() + ACKS_PER_PACKET * 5;
+        buf.clear();
+        encodeCompact(buf, acks, 1_000_000);
+        int compactBytes = buf.readableBytes();
+        System.out.printf("[DirectConnect] header bytes for 1 data + %d acks: v1 %d, compact %d%n",
+                ACKS_PER_PACKET, v1Bytes, compactBytes);
+        assertTrue(compactBytes < v1Bytes);
+        assertTrue(sink != 42);
+    }
+
+    /**
+     * Replays each session as the transport frames it. v1 sends every DATA
+     * with a 5-byte header and answers each with its own 5-byte ACK. The
+     * compact header truncates packet numbers to what is in flight, and the
+     * receiver queues acks for one read batch, then sends them on its own
+     * data or in one ACK packet.
+     */
+    @Test
+    void replaySessions() throws IOException {
+        replay("synthetic survival session", syntheticSession(new Random(SEED)));
+        for (Path trace : traces()) {
+            replay(trace.getFileName().toString(), readTrace(trace));
+        }
+    }
+
+    private static void replay(String name, List<Packet> packets) {
+        assertFalse(packets.isEmpty(), name);
+        Totals v1 = replayV1(packets);
+        Totals compact = replayCompact(packets);
+        System.out.printf("[DirectConnect] %s: %d data packets, %d KiB payload%n", name, packets.size(),
+                v1.payload / 1024);
+        v1.print("v1");
+        compact.print("compact");
+        assertTrue(compact.wire() < v1.wire(), name);
+    }
+
+    /**
+     * A data packet of a session.
+     *
+     * @param fromHost True if the host sent it, false if the joiner did
+     */
+    private record Packet(long sentAtUs, boolean fromHost, int bytes) {
+    }
+
+    /**
+     * What one framing put on the wire over a session.
+     */
+    private static final class Totals {
+        long payload;
+        long headers;
+        long datagrams;
+        long ackDatagrams;
+
+        long wire() {
+            return payload + headers + datagrams * UDP_IP_OVERHEAD;
+        }
+
+        void print(String framing) {
+            System.out.printf("[DirectConnect]   %-8s %7d datagrams (%6d ack only), %8d header bytes, "
+                    + "%9d bytes with UDP/IP, %4.1f%% overhead%n", framing, datagrams, ackDatagrams, headers,
+                    wire(), 100.0 * (wire() - payload) / wire());
+        }
+    }
+
+    /**
+     * One player on a survival host, shaped like what the bridge reads:
+     * login, a burst of full reads for the spawn chunks, then a tick of
+     * entity updates each 50 ms with chunk loads now and then while
+     * walking, against the joiner's movement and the odd action.
+     */
+    private static List<Packet> syntheticSession(Random random) {
+        List<Packet> packets = new ArrayList<>();
+        long at = 0;
+        for (int i = 0; i < 6; i++) { // Handshake, login and configuration
+            packets.add(new Packet(at, false, 20 + random.nextInt(300)));
+            at += 1500;
+            packets.add(new Packet(at, true, 50 + random.nextInt(500)));
+            at += 1500;
+        }
+        for (int i = 0; i < SPAWN_CHUNK_READS; i++) {
+            at += 150 + random.nextInt(300);
+            packets.add(new Packet(at, true, BRIDGE_READ - random.nextInt(16)));
+            if (i % 50 == 0) {
+                packets.add(new Packet(at + 100, false, 10 + random.nextInt(30)));
+            }
+        }
+        for (long tick = at - at % TICK_US + TICK_US; tick < SESSION_US; tick += TICK_US) {
+            long sent = tick + random.nextInt(2000);
+            for (int i = 1 + random.nextInt(3); i > 0; i--) { // Entity and block updates
+                packets.add(new Packet(sent, true, 30 + random.nextInt(700)));
+                sent += 100 + random.nextInt(400);
+            }
+            if (random.nextInt(8) == 0) { // A chunk row while walking
+                for (int i = 2 + random.nextInt(6); i > 0; i--) {
+                    sent += 150 + random.nextInt(300);
+                    packets.add(new Packet(sent, true, BRIDGE_READ - random.nextInt(16)));
+                }
+            }
+            long moved = tick + 10_000 + random.nextInt(30_000);
+            packets.add(new Packet(moved, false, 20 + random.nextInt(40)));
+            if (random.nextInt(10) == 0) {
+                packets.add(new Packet(moved + 500 + random.nextInt(5000), false, 10 + random.nextInt(200)));
+            }
+        }
+        packets.sort(Comparator.comparingLong(Packet::sentAtUs));
+        return packets;
+    }
+
+    private static List<Path> traces() throws IOException {
+        List<Path> traces = new ArrayList<>();
+        String dir = System.getProperty("directconnect.traces");
+        if (dir == null || dir.isEmpty()) {
+            return traces;
+        }
+        try (Stream<Path> files = Files.list(Path.of(dir))) {
+            files.filter(f -> f.toString().endsWith(".trace")).sorted().forEach(traces::add);
+        }
+        return traces;
+    }
+
+    /**
+     * Reads a trace captured on the host, one packet per line:
+     * {@code <microseconds> <S sent | R received> <payload bytes>}, with
+     * {@code #} comments. Received packets left the joiner one way delay
+     * before the host logged them.
+     */
+    private static List<Packet> readTrace(Path trace) throws IOException {
+        List<Packet> packets = new ArrayList<>();
+        for (String line : Files.readAllLines(trace)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            long at = Long.parseLong(fields[0]);
+            boolean sent = fields[1].equals("S");
+            packets.add(new Packet(sent ? at : at - ONE_WAY_US, sent, Integer.parseInt(fields[2])));
+        }
+        packets.sort(Comparator.comparingLong(Packet::sentAtUs));
+        return packets;
+    }
+
+    private static Totals replayV1(List<Packet> packets) {
+        Totals totals = new Totals();
+        for (Packet packet : packets) {
+            totals.payload += packet.bytes;
+            totals.headers += 5 + 5; // [DATA][seq 4], then [ACK][seq 4]
+            totals.datagrams += 2;
+            totals.ackDatagrams++;
+        }
+        return totals;
+    }
+
+    private enum Kind {
+        // Order of events at the same instant
+        ACKED, ARRIVE, FLUSH, SEND
+    }
+
+    private record Event(long atUs, Kind kind, long order, int side, int value) {
+    }
+
+    /**
+     * Runs both sides of the session, as ReliableUdp does with ordered
+     * compact sessions.
+     */
+    private static Totals replayCompact(List<Packet> packets) {
+        Totals totals = new Totals();
+        PriorityQueue<Event> events = new PriorityQueue<>(Comparator.comparingLong(Event::atUs)
+                .thenComparing(Event::kind).thenComparingLong(Event::order));
+        long[] order = { 0 };
+
+        // Arrivals per receiving side, to tell where a read batch ends
+        List<List<Long>> arrivals = List.of(new ArrayList<>(), new ArrayList<>());
+        int[] nextSeq = { 1, 1 };
+        for (int i = 0; i < packets.size(); i++) {
+            Packet packet = packets.get(i);
+            int from = packet.fromHost ? 0 : 1;
+            int seq = nextSeq[from]++;
+            events.add(new Event(packet.sentAtUs, Kind.SEND, order[0]++, from, i));
+            events.add(new Event(packet.sentAtUs + ONE_WAY_US, Kind.ARRIVE, order[0]++, 1 - from, seq));
+            arrivals.get(1 - from).add(packet.sentAtUs + ONE_WAY_US);
+        }
+        arrivals.forEach(list -> list.sort(null));
+        int[] arrived = { 0, 0 };
+
+        List<TreeSet<Integer>> unacked = List.of(new TreeSet<>(), new TreeSet<>());
+        List<ArrayDeque<Integer>> ackQueues = List.of(new ArrayDeque<>(), new ArrayDeque<>());
+        int[] sent = { 0, 0 };
+
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            int side = event.side;
+            switch (event.kind) {
+                case ACKED -> unacked.get(side).remove(event.value);
+                case ARRIVE -> {
+                    ArrayDeque<Integer> queue = ackQueues.get(side);
+                    queue.add(event.value);
+                    List<Long> times = arrivals.get(side);
+                    int index = arrived[side]++;
+                    boolean batchEnds = index + 1 >= times.size()
+                            || times.get(index + 1) - event.atUs > READ_BATCH_US;
+                    if (queue.size() == CompactHeader.MAX_ACKS || batchEnds) {
+                        events.add(new Event(event.atUs, Kind.FLUSH, order[0]++, side, 0));
+                    }
+                }
+                case FLUSH -> {
+                    ArrayDeque<Integer> queue = ackQueues.get(side);
+                    if (!queue.isEmpty()) {
+                        totals.headers += 1 + drainAcks(queue, events, event.atUs, 1 - side, order);
+                        totals.datagrams++;
+                        totals.ackDatagrams++;
+                    }
+                }
+                case SEND -> {
+                    Packet packet = packets.get(event.value);
+                    int seq = ++sent[side];
+                    TreeSet<Integer> inFlight = unacked.get(side);
+                    inFlight.add(seq);
+                    int length = CompactHeader.packetNumberLength(seq - inFlight.first() + 1);
+                    totals.payload += packet.bytes;
+                    totals.headers += 1 + length;
+                    totals.datagrams++;
+                    ArrayDeque<Integer> queue = ackQueues.get(side);
+                    if (!queue.isEmpty()) {
+                        totals.headers += drainAcks(queue, events, event.atUs, 1 - side, order);
+                    }
+                }
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Sends the queued acks towards a side.
+     *
+     * @return Size of the ack block
+     */
+    private static int drainAcks(ArrayDeque<Integer> queue, PriorityQueue<Event> events, long nowUs, int to,
+            long[] order) {
+        int[] acks = new int[queue.size()];
+        for (int i = acks.length - 1; i >= 0; i--) {
+            int seq = queue.poll();
+            acks[i] = seq; // Descending, as the ack block wants them
+            events.add(new Event(nowUs + ONE_WAY_US, Kind.ACKED, order[0]++, to, seq));
+        }
+        ByteBuf block = Unpooled.buffer(5 + 5 * acks.length);
+        CompactHeader.writeAcks(block, acks, acks.length);
+        int size = block.readableBytes();
+        block.release();
+        return size;
+    }
+
+    private interface Op {
+        void run(ByteBuf buf, int[] acks, int seq);
+    }
+
+    private long time(ByteBuf buf, int[] acks, Op op) {
+        for (int i = 0; i < WARMUP; i++) {
+            buf.clear();
+            op.run(buf, acks, i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            buf.clear();
+            op.run(buf, acks, WARMUP + i);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void encodeV1(ByteBuf buf, int[] acks, int seq) {
+        buf.writeByte(0x02);
+        buf.writeInt(seq);
+        sink += buf.writerIndex();
+    }
+
+    private void encodeCompact(ByteBuf buf, int[] acks, int seq) {
+        int length = CompactHeader.packetNumberLength(ACKS_PER_PACKET * 2);
+        buf.writeByte(CompactHeader.MARKER | CompactHeader.FLAG_DATA | CompactHeader.FLAG_ACK | (length - 1));
+        CompactHeader.writePacketNumber(buf, seq, length);
+        for (int i = 0; i < acks.length; i++) {
+            acks[i] = seq - 1 - i * 2;
+        }
+        CompactHeader.writeAcks(buf, acks, acks.length);
+        sink += buf.writerIndex();
+    }
+
+    private void roundTripCompact(ByteBuf buf, int[] acks, int seq) {
+        encodeCompact(buf, acks, seq);
+        int flags = buf.readUnsignedByte();
+        int length = (flags & CompactHeader.PN_LENGTH_MASK) + 1;
+        sink += CompactHeader.decodePacketNumber(seq - 1, CompactHeader.readPacketNumber(buf, length), length);
+        CompactHeader.readAcks(buf, ack -> sink += ack);
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.printf("[DirectConnect] %-26s %6.1f ns/op%n", name, (double) nanos / ITERATIONS);
+    }
+}
@@ -0,0 +1,220 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactHeaderTest {
+    private static final int[] HIGHEST = {
+            0, 1, 200, 0x7FFF, 0x12345678,
+            Integer.MAX_VALUE - 1, Integer.MAX_VALUE, Integer.MIN_VALUE,
+            -300, -2, -1
+    };
+
+    @Test
+    void picksShortestPacketNumberLength() {
+        assertEquals(1, CompactHeader.packetNumberLength(1));
+        assertEquals(1, CompactHeader.packetNumberLength(127));
+        assertEquals(2, CompactHeader.packetNumberLength(128));
+        assertEquals(2, CompactHeader.packetNumberLength(0x7FFF));
+        assertEquals(3, CompactHeader.packetNumberLength(0x8000));
+        assertEquals(3, CompactHeader.packetNumberLength(0x7FFFFF));
+        assertEquals(4, CompactHeader.packetNumberLength(0x800000));
+        assertEquals(4, CompactHeader.packetNumberLength(1L << 40));
+    }
+
+    @Test
+    void truncatesPacketNumbers() {
+        ByteBuf buf = Unpooled.buffer();
+        CompactHeader.writePacketNumber(buf, 0xA1B2C3D4, 1);
+        CompactHeader.writePacketNumber(buf, 0xA1B2C3D4, 3);
+        CompactHeader.writePacketNumber(buf, 0xA1B2C3D4, 4);
+
+        assertEquals(8, buf.readableBytes());
+        assertEquals(0xD4, CompactHeader.readPacketNumber(buf, 1));
+        assertEquals(0xB2C3D4, CompactHeader.readPacketNumber(buf, 3));
+        assertEquals(0xA1B2C3D4L, CompactHeader.readPacketNumber(buf, 4));
+    }
+
+    /**
+     * Every number within the window around the next expected one decodes
+     * exactly, including across the 2^31 and 2^32 boundaries.
+     */
+    @Test
+    void decodesAcrossWholeWindow() {
+        for (int length = 1; length <= 2; length++) {
+            int half = 1 << (8 * length - 1);
+            for (int highest : HIGHEST) {
+                for (int d = -half + 2; d <= half + 1; d++) {
+                    assertDecodes(highest, highest + d, length);
+                }
+            }
+        }
+    }
+
+    @Test
+    void decodesAtWindowEdges() {
+        for (int length = 1; length <= 4; length++) {
+            long half = 1L << (8 * length - 1);
+            for (int highest : HIGHEST) {
+                assertDecodes(highest, (int) (highest - half + 2), length);
+                assertDecodes(highest, highest + 1, length);
+                assertDecodes(highest, (int) (highest + half + 1), length);
+            }
+        }
+    }
+
+    @Test
+    void misdecodesJustOutsideWindow() {
+        for (int length = 1; length <= 3; length++) {
+            int half = 1 << (8 * length - 1);
+            for (int highest : HIGHEST) {
+                int below = highest - half + 1;
+                int above = highest + half + 2;
+                assertNotEquals(below, decode(highest, below, length));
+                assertNotEquals(above, decode(highest, above, length));
+            }
+        }
+    }
+
+    /**
+     * The length the sender picks from its range always decodes at a
+     * receiver whose highest lies anywhere between the sender's largest
+     * acked and largest sent.
+     */
+    @Test
+    void senderRangeFitsReceiverWindow() {
+        int[] lags = { 0, 1, 100, 126, 127, 128, 5000, 0x7FFE, 0x7FFF, 0x8000, 3_000_000 };
+        for (int base : HIGHEST) {
+            for (int acked : lags) {
+                for (int ahead : lags) {
+                    int pn = base;
+                    int largestAcked = pn - acked;
+                    int sent = pn + ahead;
+                    long range = Math.max(Math.abs((long) (pn - largestAcked)), (long) (sent - pn)) + 1;
+                    int length = CompactHeader.packetNumberLength(range);
+                    assertDecodes(largestAcked, pn, length);
+                    assertDecodes(sent, pn, length);
+                    assertDecodes(pn - 1, pn, length);
+                }
+            }
+        }
+    }
+
+    @Test
+    void roundTripsAcks() {
+        int[] acks = { 900, 899, 897, 600, 0 };
+        assertEquals(List.of(900, 899, 897, 600, 0), roundTrip(acks, acks.length));
+        assertEquals(List.of(900, 899), roundTrip(acks, 2));
+        assertEquals(List.of(7), roundTrip(new int[] { 7 }, 1));
+    }
+
+    @Test
+    void roundTripsAcksAcrossWrap() {
+        int[] acrossZero = { 2, 0, -1, -40 };
+        assertEquals(List.of(2, 0, -1, -40), roundTrip(acrossZero, acrossZero.length));
+
+        int[] acrossSign = { Integer.MIN_VALUE + 1, Integer.MIN_VALUE, Integer.MAX_VALUE };
+        assertEquals(List.of(Integer.MIN_VALUE + 1, Integer.MIN_VALUE, Integer.MAX_VALUE),
+                roundTrip(acrossSign, acrossSign.length));
+    }
+
+    @Test
+    void acksCostAboutAByteEach() {
+        int[] acks = new int[CompactHeader.MAX_ACKS];
+        for (int i = 0; i < acks.length; i++) {
+            acks[i] = 1_000_000 - i;
+        }
+        ByteBuf buf = Unpooled.buffer();
+        CompactHeader.writeAcks(buf, acks, acks.length);
+        assertEquals(3 + 1 + (acks.length - 1), buf.readableBytes());
+    }
+
+    @Test
+    void rejectsMalformedAcks() {
+        // Too many acks
+        ByteBuf tooMany = Unpooled.buffer();
+        CompactHeader.writeVarint(tooMany, 100);
+        CompactHeader.writeVarint(tooMany, CompactHeader.MAX_ACKS);
+        assertFalse(CompactHeader.readAcks(tooMany, ack -> { }));
+
+        // Zero gap would repeat an ack
+        ByteBuf zeroGap = Unpooled.buffer();
+        CompactHeader.writeVarint(zeroGap, 100);
+        CompactHeader.writeVarint(zeroGap, 1);
+        CompactHeader.writeVarint(zeroGap, 0);
+        assertFalse(CompactHeader.readAcks(zeroGap, ack -> { }));
+
+        // Gap cut off
+        ByteBuf truncated = Unpooled.buffer();
+        CompactHeader.writeVarint(truncated, 100);
+        CompactHeader.writeVarint(truncated, 2);
+        CompactHeader.writeVarint(truncated, 1);
+        assertFalse(CompactHeader.readAcks(truncated, ack -> { }));
+
+        // Largest beyond 32 bits
+        ByteBuf oversized = Unpooled.buffer();
+        CompactHeader.writeVarint(oversized, 1L << 33);
+        CompactHeader.writeVarint(oversized, 0);
+        assertFalse(CompactHeader.readAcks(oversized, ack -> { }));
+    }
+
+    @Test
+    void roundTripsVarints() {
+        long[] values = { 0, 1, 127, 128, 16_383, 16_384, 0xFFFFFFFFL, (1L << 35) - 1 };
+        int[] sizes = { 1, 1, 1, 2, 2, 3, 5, 5 };
+        for (int i = 0; i < values.length; i++) {
+            ByteBuf buf = Unpooled.buffer();
+            CompactHeader.writeVarint(buf, values[i]);
+            assertEquals(sizes[i], buf.readableBytes(), "size of " + values[i]);
+            assertEquals(values[i], CompactHeader.readVarint(buf));
+            assertFalse(buf.isReadable());
+        }
+    }
+
+    @Test
+    void rejectsBadVarints() {
+        assertEquals(-1, CompactHeader.readVarint(Unpooled.buffer()));
+        assertEquals(-1, CompactHeader.readVarint(Unpooled.wrappedBuffer(new byte[] { (byte) 0x80 })));
+
+        byte[] sixBytes = { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 };
+        assertEquals(-1, CompactHeader.readVarint(Unpooled.wrappedBuffer(sixBytes)));
+    }
+
+    @Test
+    void markerNeverMatchesOtherFormats() {
+        assertTrue(CompactHeader.isCompact((byte) (CompactHeader.MARKER | CompactHeader.FLAG_DATA)));
+        assertFalse(CompactHeader.isCompact((byte) RelayProtocol.MSG_RELAYED));
+        // STUN messages start with two zero bits
+        assertFalse(CompactHeader.isCompact((byte) 0x01));
+    }
+
+    private static void assertDecodes(int highest, int packetNumber, int length) {
+        assertEquals(packetNumber, decode(highest, packetNumber, length),
+                "pn " + Integer.toUnsignedString(packetNumber) + " highest "
+                        + Integer.toUnsignedString(highest) + " length " + length);
+    }
+
+    private static int decode(int highest, int packetNumber, int length) {
+        ByteBuf buf = Unpooled.buffer(4);
+        CompactHeader.writePacketNumber(buf, packetNumber, length);
+        return CompactHeader.decodePacketNumber(highest, CompactHeader.readPacketNumber(buf, length), length);
+    }
+
+    private static List<Integer> roundTrip(int[] acks, int count) {
+        ByteBuf buf = Unpooled.buffer();
+        CompactHeader.writeAcks(buf, acks, count);
+        List<Integer> read = new ArrayList<>();
+        assertTrue(CompactHeader.readAcks(buf, read::add));
+        assertFalse(buf.isReadable());
+        return read;
+    }
+}
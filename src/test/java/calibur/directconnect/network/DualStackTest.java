@@ -0,0 +1,121 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * One host socket serving joiners over {@code ::1} and {@code 127.0.0.1},
+ * and IPv6 candidates on their way through the registry.
+ */
+class DualStackTest {
+    private final ReliableUdp server = new ReliableUdp();
+    private final ReliableUdp joiner6 = new ReliableUdp();
+    private final ReliableUdp joiner4 = new ReliableUdp();
+
+    @AfterEach
+    void tearDown() {
+        joiner6.stop();
+        joiner4.stop();
+        server.stop();
+    }
+
+    @Test
+    void hostSocketServesBothFamilies() throws Exception {
+        assumeTrue(hasIpv6Loopback(), "no ::1 on this machine");
+        Map<Class<?>, String> received = new ConcurrentHashMap<>();
+        assertTrue(server.startServer(0));
+        assertTrue(server.isDualStack());
+        server.setOnData((peer, data) -> {
+            received.put(peer.getAddress().getClass(), new String(data));
+            server.sendTo(peer, data);
+        });
+
+        Map<ReliableUdp, String> echoed = new ConcurrentHashMap<>();
+        joiner6.setOnData((peer, data) -> echoed.put(joiner6, new String(data)));
+        joiner4.setOnData((peer, data) -> echoed.put(joiner4, new String(data)));
+        assertTrue(joiner6.connect(new InetSocketAddress("::1", 0), new InetSocketAddress("::1", server.getLocalPort())));
+        assertTrue(joiner4.connect(new InetSocketAddress("127.0.0.1", 0),
+                new InetSocketAddress("127.0.0.1", server.getLocalPort())));
+        await(() -> joiner6.isConnected() && joiner4.isConnected(), 5_000);
+
+        joiner6.send("over six".getBytes());
+        joiner4.send("over four".getBytes());
+        await(() -> echoed.size() == 2, 5_000);
+
+        assertEquals("over six", received.get(Inet6Address.class));
+        assertEquals("over four", received.get(Inet4Address.class));
+        assertEquals("over six", echoed.get(joiner6));
+        assertEquals("over four", echoed.get(joiner4));
+    }
+
+    @Test
+    void ipv6CandidatesRankFirstAndSurviveTheRegistry() {
+        InetSocketAddress mapped = new InetSocketAddress("203.0.113.5", 40000);
+        InetSocketAddress mapped6 = new InetSocketAddress("2001:db8::5", 25565);
+
+        List<Endpoint> candidates = Candidates.gather(25565, null, mapped, mapped6, null, List.of(), null, true);
+        Endpoint wan6 = find(candidates, "2001:db8:0:0:0:0:0:5");
+        assertEquals(Candidates.TYPE_WAN, wan6.type);
+        // IPv6 ahead of IPv4 among host candidates (RFC 8421)
+        boolean seenIpv4 = false;
+        for (Endpoint candidate : candidates) {
+            if (Candidates.TYPE_LAN.equals(candidate.type)) {
+                assertFalse(seenIpv4 && NetworkUtils.isIpv6(candidate.ip), candidate.ip + " after IPv4");
+                seenIpv4 |= !NetworkUtils.isIpv6(candidate.ip);
+            }
+        }
+
+        List<Endpoint> parsed = Candidates.fromJson(Candidates.toJson(candidates), null);
+        assertEquals(candidates.size(), parsed.size());
+        Endpoint back = find(parsed, wan6.ip);
+        assertEquals(25565, back.port);
+        assertEquals(wan6.priority, back.priority);
+
+        // An IPv4-only socket advertises nothing it cannot answer on
+        for (Endpoint candidate : Candidates.gather(25565, null, mapped, mapped6, null, List.of(), null, false)) {
+            assertFalse(NetworkUtils.isIpv6(candidate.ip), candidate.ip);
+        }
+    }
+
+    private static Endpoint find(List<Endpoint> candidates, String ip) {
+        for (Endpoint candidate : candidates) {
+            if (candidate.ip.equals(ip)) {
+                return candidate;
+            }
+        }
+        throw new AssertionError(ip + " not among " + candidates.size() + " candidates");
+    }
+
+    private static boolean hasIpv6Loopback() {
+        try {
+            InetAddress loopback = InetAddress.getByName("::1");
+            return NetworkInterface.getByInetAddress(loopback) != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.config.ModConfig;
+import calibur.directconnect.join.JoinManager;
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Join-time percentiles on loopback, through the client's own join path:
+ * JoinManager looks the host up in a stand-in registry, the connectivity
+ * checker runs its paced and retried checks and nominates a pair, and the
+ * join is timed until the local proxy is ready, as JoinTimings records it.
+ *
+ * The host has a dead candidate, which never answers, and one behind a path
+ * that loses a datagram in five at random, so lost HELLOs show up in the
+ * tail. Every join uses a code of its own, so none is served from the
+ * lookup cache or a tunnel warmed by an earlier one.
+ *
+ * Speculative joins select the entry first, which preconnects through
+ * StatusTunnels, and click Join a moment later; the click should then
+ * only reopen the parked tunnel. The joiner's STUN queries go to the real
+ * servers; without internet access the lookup waits out their gather
+ * timeout. Run with {@code gradlew benchmark}; numbers go to stdout.
+ */
+@Tag("benchmark")
+class JoinTimeBenchmark {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final int JOINS = 100;
+    private static final int CODES = 2 * JOINS; // Enough for both halves of a comparison
+    private static final long REGISTRY_DELAY_MS = 20;
+    private static final double LOSS = 0.2;
+    private static final long SELECT_TO_CLICK_MS = 300; // Time a player takes to click Join
+
+    private final ReliableUdp host = new ReliableUdp();
+    private final List<String> codes = new ArrayList<>();
+    private PathProxy path;
+    private DatagramSocket dead;
+    private StandInRegistry registry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        assertTrue(host.startServer(0));
+        path = new PathProxy(new InetSocketAddress(LOOPBACK, host.getLocalPort())).lose(LOSS);
+        dead = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        registry = new StandInRegistry().delay(REGISTRY_DELAY_MS);
+        List<Endpoint> candidates = List.of(
+                new Endpoint(LOOPBACK.getHostAddress(), dead.getLocalPort(), Candidates.TYPE_LAN),
+                new Endpoint(LOOPBACK.getHostAddress(), path.address().getPort(), Candidates.TYPE_WAN));
+
+        // Fresh per run too: the lookup cache is kept on disk
+        Random random = new Random();
+        StringBuilder run = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            run.append((char) ('a' + random.nextInt(26)));
+        }
+        for (int i = 0; i < CODES; i++) {
+            String code = run + "-heron-" + (100 + i);
+            registry.addHost(code, candidates);
+            codes.add(code);
+        }
+        ModConfig.getInstance().setRegistryUrl(registry.url());
+        ModConfig.getInstance().setRegistryUrls(List.of());
+    }
+
+    @AfterEach
+    void tearDown() {
+        JoinManager.getInstance().disconnect();
+        registry.close();
+        path.close();
+        dead.close();
+        host.stop();
+    }
+
+    @Test
+    void coldJoins() throws Exception {
+        JoinManager joins = JoinManager.getInstance();
+        int recorded = joins.getJoinTimings().getCount();
+        long[] totalMs = new long[JOINS];
+
+        for (int i = 0; i < JOINS; i++) {
+            long start = System.nanoTime();
+            joins.join("p2p." + codes.get(i)).get(15, TimeUnit.SECONDS);
+            totalMs[i] = (System.nanoTime() - start) / 1_000_000;
+            joins.disconnect();
+        }
+
+        assertEquals(JOINS, registry.hits("/lookup"));
+        assertEquals(recorded + JOINS, joins.getJoinTimings().getCount());
+        System.out.printf("[DirectConnect] cold join p50=%dms p90=%dms p99=%dms over %d joins; JoinTimings %s%n",
+                percentile(totalMs, 50), percentile(totalMs, 90), percentile(totalMs, 99), JOINS,
+                joins.getJoinTimings());
+    }
+
+    @Test
+    void clickToProxyWithAndWithoutSpeculation() throws Exception {
+        JoinManager joins = JoinManager.getInstance();
+        int warmRecorded = joins.getWarmJoinTimings().getCount();
+        long[] coldMs = new long[JOINS];
+        long[] warmMs = new long[JOINS];
+
+        for (int i = 0; i < JOINS; i++) {
+            long click = System.nanoTime();
+            joins.join("p2p." + codes.get(i)).get(15, TimeUnit.SECONDS);
+            coldMs[i] = (System.nanoTime() - click) / 1_000_000;
+            joins.disconnect();
+        }
+
+        for (int i = 0; i < JOINS; i++) {
+            String address = "p2p." + codes.get(JOINS + i);
+            int lookups = registry.hits("/lookup");
+            joins.preconnect(address); // On selection
+            Thread.sleep(SELECT_TO_CLICK_MS);
+
+            long click = System.nanoTime();
+            joins.join(address).get(15, TimeUnit.SECONDS);
+            warmMs[i] = (System.nanoTime() - click) / 1_000_000;
+            // Only the preconnect looked the host up: the click reopened its
+            // tunnel rather than racing the candidates again
+            assertEquals(lookups + 1, registry.hits("/lookup"));
+            joins.disconnect();
+        }
+
+        assertEquals(warmRecorded + JOINS, joins.getWarmJoinTimings().getCount());
+        System.out.printf("[DirectConnect] click to proxy without speculation p50=%dms p90=%dms p99=%dms%n",
+                percentile(coldMs, 50), percentile(coldMs, 90), percentile(coldMs, 99));
+        System.out.printf("[DirectConnect] click to proxy with speculation    p50=%dms p90=%dms p99=%dms%n",
+                percentile(warmMs, 50), percentile(warmMs, 90), percentile(warmMs, 99));
+    }
+
+    /**
+     * Nearest-rank percentile, as JoinTimings computes it.
+     */
+    static long percentile(long[] samples, double p) {
+        long[] sorted = Arrays.copyOf(samples, samples.length);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
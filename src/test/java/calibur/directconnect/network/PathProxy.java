@@ -0,0 +1,148 @@
+package calibur.directconnect.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One network path to a server on loopback for tests: forwards datagrams
+ * between a client and the server, can hold some back so they arrive out
+ * of order or lose some, and can be cut like an interface going down.
+ */
+class PathProxy implements AutoCloseable {
+    private final DatagramSocket front; // Faces the client
+    private final DatagramSocket back; // Faces the server
+    private final InetSocketAddress server;
+    private final ScheduledExecutorService delayed = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicInteger forwarded = new AtomicInteger();
+    private final Random random = new Random(42); // Only the pump towards the server draws from it
+    private volatile InetSocketAddress client;
+    private volatile boolean cut;
+    private volatile int holdEvery;
+    private volatile long holdMs;
+    private volatile double loss;
+    private volatile byte[] dropTail;
+    private final AtomicInteger dropCopies = new AtomicInteger();
+
+    PathProxy(InetSocketAddress server) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        this.server = server;
+        this.front = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        this.back = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        pump(front, true);
+        pump(back, false);
+    }
+
+    /**
+     * The address the client sends to.
+     */
+    InetSocketAddress address() {
+        return (InetSocketAddress) front.getLocalSocketAddress();
+    }
+
+    /**
+     * Holds every n-th datagram towards the server back for a while, so the
+     * ones after it overtake it.
+     */
+    PathProxy reorder(int every, long ms) {
+        holdEvery = every;
+        holdMs = ms;
+        return this;
+    }
+
+    /**
+     * Loses a fraction of the datagrams towards the server, at random so the
+     * losses do not line up with a fixed exchange.
+     */
+    PathProxy lose(double fraction) {
+        loss = fraction;
+        return this;
+    }
+
+    /**
+     * Drops the next copies of one message towards the server, recognised by
+     * the datagram ending in its bytes, so its retransmissions are lost too.
+     */
+    PathProxy drop(byte[] payload, int copies) {
+        dropCopies.set(copies);
+        dropTail = payload;
+        return this;
+    }
+
+    /**
+     * Drops everything from now on, both ways.
+     */
+    void cut() {
+        cut = true;
+    }
+
+    private void pump(DatagramSocket from, boolean towardsServer) {
+        Thread thread = new Thread(() -> {
+            byte[] buf = new byte[65536];
+            while (!from.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    from.receive(packet);
+                    if (cut) {
+                        continue;
+                    }
+                    if (towardsServer && loss > 0 && random.nextDouble() < loss) {
+                        continue;
+                    }
+                    if (towardsServer && endsWith(packet, dropTail) && dropCopies.getAndDecrement() > 0) {
+                        continue;
+                    }
+                    byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+                    if (towardsServer) {
+                        client = (InetSocketAddress) packet.getSocketAddress();
+                        int every = holdEvery;
+                        if (every > 0 && forwarded.incrementAndGet() % every == 0) {
+                            delayed.schedule(() -> send(back, data, server), holdMs, TimeUnit.MILLISECONDS);
+                        } else {
+                            send(back, data, server);
+                        }
+                    } else if (client != null) {
+                        send(front, data, client);
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }, "path-proxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static boolean endsWith(DatagramPacket packet, byte[] tail) {
+        int from = packet.getOffset() + packet.getLength() - (tail != null ? tail.length : 0);
+        return tail != null && from >= packet.getOffset()
+                && Arrays.equals(packet.getData(), from, from + tail.length, tail, 0, tail.length);
+    }
+
+    private void send(DatagramSocket socket, byte[] data, InetSocketAddress target) {
+        if (cut) {
+            return;
+        }
+        try {
+            socket.send(new DatagramPacket(data, data.length, target));
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    @Override
+    public void close() {
+        cut = true;
+        front.close();
+        back.close();
+        delayed.shutdownNow();
+    }
+}
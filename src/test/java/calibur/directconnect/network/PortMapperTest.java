@@ -0,0 +1,510 @@
+package calibur.directconnect.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * NAT-PMP and PCP codecs, and full mapping exchanges against a mock
+ * gateway and a mock UPnP IGD on loopback.
+ */
+class PortMapperTest {
+    private static final byte[] NONCE = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 };
+    private static final byte[] EXTERNAL_IP = { (byte) 203, 0, 113, 7 };
+
+    private MockGateway gateway;
+    private MockIgd igd;
+
+    @AfterEach
+    void closeGateway() {
+        if (gateway != null) {
+            gateway.close();
+        }
+        if (igd != null) {
+            igd.close();
+        }
+    }
+
+    // ==================== PCP ====================
+
+    @Test
+    void buildsPcpMapRequest() {
+        ByteBuffer req = ByteBuffer.wrap(PortMapper.pcpMapRequest("192.168.1.20", 25565, 40000, NONCE, 3600));
+
+        assertEquals(60, req.capacity());
+        assertEquals(2, req.get(0));
+        assertEquals(1, req.get(1));
+        assertEquals(3600, req.getInt(4));
+        assertArrayEquals(mappedIpv4(192, 168, 1, 20), Arrays.copyOfRange(req.array(), 8, 24));
+        assertArrayEquals(NONCE, Arrays.copyOfRange(req.array(), 24, 36));
+        assertEquals(17, req.get(36));
+        assertEquals(25565, req.getShort(40) & 0xFFFF);
+        assertEquals(40000, req.getShort(42) & 0xFFFF);
+        assertArrayEquals(mappedIpv4(0, 0, 0, 0), Arrays.copyOfRange(req.array(), 44, 60));
+    }
+
+    @Test
+    void parsesPcpMapResponse() throws Exception {
+        PortMapper.Mapping m = PortMapper.parsePcpMap(pcpResponse(NONCE, 0, 7200, 40001, mappedIpv4(EXTERNAL_IP)), NONCE);
+
+        assertNotNull(m);
+        assertSame(PortMapper.Protocol.PCP, m.protocol);
+        assertEquals(new InetSocketAddress(InetAddress.getByAddress(EXTERNAL_IP), 40001), m.external);
+        assertEquals(7200, m.lifetimeSeconds);
+        assertArrayEquals(NONCE, m.nonce);
+    }
+
+    @Test
+    void rejectsBadPcpResponses() {
+        byte[] otherNonce = NONCE.clone();
+        otherNonce[0] = 99;
+        assertNull(PortMapper.parsePcpMap(pcpResponse(otherNonce, 0, 7200, 40001, mappedIpv4(EXTERNAL_IP)), NONCE));
+
+        // NO_RESOURCES
+        assertNull(PortMapper.parsePcpMap(pcpResponse(NONCE, 8, 0, 0, mappedIpv4(EXTERNAL_IP)), NONCE));
+
+        // A native IPv6 external address is not an IPv4 mapping
+        byte[] ipv6 = new byte[16];
+        ipv6[0] = 0x20;
+        ipv6[1] = 0x01;
+        ipv6[15] = 1;
+        assertNull(PortMapper.parsePcpMap(pcpResponse(NONCE, 0, 7200, 40001, ipv6), NONCE));
+
+        byte[] truncated = Arrays.copyOf(pcpResponse(NONCE, 0, 7200, 40001, mappedIpv4(EXTERNAL_IP)), 59);
+        assertNull(PortMapper.parsePcpMap(truncated, NONCE));
+
+        // A NAT-PMP router's unsupported-version answer
+        assertNull(PortMapper.parsePcpMap(new byte[] { 0, (byte) 0x81, 0, 1, 0, 0, 0, 0 }, NONCE));
+        assertNull(PortMapper.parsePcpMap(null, NONCE));
+    }
+
+    // ==================== NAT-PMP ====================
+
+    @Test
+    void buildsNatPmpMapRequest() {
+        ByteBuffer req = ByteBuffer.wrap(PortMapper.natPmpMapRequest(25565, 40000, 3600));
+
+        assertEquals(12, req.capacity());
+        assertEquals(0, req.get(0));
+        assertEquals(1, req.get(1));
+        assertEquals(0, req.getShort(2));
+        assertEquals(25565, req.getShort(4) & 0xFFFF);
+        assertEquals(40000, req.getShort(6) & 0xFFFF);
+        assertEquals(3600, req.getInt(8));
+    }
+
+    @Test
+    void parsesNatPmpResponses() throws Exception {
+        InetAddress external = PortMapper.parseNatPmpExternalAddress(pmpAddressResponse(0, EXTERNAL_IP));
+        assertEquals(InetAddress.getByAddress(EXTERNAL_IP), external);
+
+        PortMapper.Mapping m = PortMapper.parseNatPmpMap(pmpMapResponse(0, 25565, 40002, 3600), external);
+        assertNotNull(m);
+        assertSame(PortMapper.Protocol.NAT_PMP, m.protocol);
+        assertEquals(new InetSocketAddress(external, 40002), m.external);
+        assertEquals(3600, m.lifetimeSeconds);
+    }
+
+    @Test
+    void rejectsBadNatPmpResponses() throws Exception {
+        // Result codes above 255 must not be mistaken for success
+        assertNull(PortMapper.parseNatPmpExternalAddress(pmpAddressResponse(0x0100, EXTERNAL_IP)));
+        assertNull(PortMapper.parseNatPmpExternalAddress(pmpAddressResponse(3, EXTERNAL_IP)));
+        assertNull(PortMapper.parseNatPmpExternalAddress(Arrays.copyOf(pmpAddressResponse(0, EXTERNAL_IP), 11)));
+        assertNull(PortMapper.parseNatPmpExternalAddress(pmpMapResponse(0, 25565, 40002, 3600)));
+
+        InetAddress external = InetAddress.getByAddress(EXTERNAL_IP);
+        assertNull(PortMapper.parseNatPmpMap(pmpMapResponse(2, 25565, 0, 0), external));
+        assertNull(PortMapper.parseNatPmpMap(Arrays.copyOf(pmpMapResponse(0, 25565, 40002, 3600), 15), external));
+        assertNull(PortMapper.parseNatPmpMap(pmpAddressResponse(0, EXTERNAL_IP), external));
+    }
+
+    // ==================== Mock gateway ====================
+
+    @Test
+    void mapsAndDeletesWithPcp() throws Exception {
+        gateway = new MockGateway(req -> {
+            if (req[0] != 2) {
+                return null;
+            }
+            ByteBuffer in = ByteBuffer.wrap(req);
+            return pcpResponse(Arrays.copyOfRange(req, 24, 36), 0, in.getInt(4), 40001, mappedIpv4(EXTERNAL_IP));
+        });
+        PortMapper mapper = new PortMapper(25565, "127.0.0.1", gateway.address());
+
+        InetSocketAddress external = mapper.start(3000).get(5, TimeUnit.SECONDS);
+        assertEquals(new InetSocketAddress(InetAddress.getByAddress(EXTERNAL_IP), 40001), external);
+        assertSame(PortMapper.Protocol.PCP, mapper.getMapping().protocol);
+
+        byte[] map = gateway.requests.poll(1, TimeUnit.SECONDS);
+        assertNotNull(map);
+        byte[] nonce = Arrays.copyOfRange(map, 24, 36);
+
+        mapper.stop();
+        byte[] delete = gateway.awaitRequest(req -> req[0] == 2 && ByteBuffer.wrap(req).getInt(4) == 0);
+        assertNotNull(delete, "no PCP delete");
+        assertArrayEquals(nonce, Arrays.copyOfRange(delete, 24, 36));
+        assertEquals(40001, ByteBuffer.wrap(delete).getShort(42) & 0xFFFF);
+    }
+
+    @Test
+    void fallsBackToNatPmp() throws Exception {
+        gateway = new MockGateway(req -> {
+            if (req[0] != 0) {
+                // NAT-PMP-only routers answer PCP with UNSUPP_VERSION
+                return new byte[] { 0, (byte) (0x80 | req[1]), 0, 1, 0, 0, 0, 0 };
+            }
+            if (req[1] == 0) {
+                return pmpAddressResponse(0, EXTERNAL_IP);
+            }
+            ByteBuffer in = ByteBuffer.wrap(req);
+            return pmpMapResponse(0, in.getShort(4) & 0xFFFF, 40002, in.getInt(8));
+        });
+        PortMapper mapper = new PortMapper(25565, "127.0.0.1", gateway.address());
+
+        InetSocketAddress external = mapper.start(3000).get(5, TimeUnit.SECONDS);
+        assertEquals(new InetSocketAddress(InetAddress.getByAddress(EXTERNAL_IP), 40002), external);
+        assertSame(PortMapper.Protocol.NAT_PMP, mapper.getMapping().protocol);
+
+        mapper.stop();
+        assertNotNull(gateway.awaitRequest(req -> req.length == 12 && req[0] == 0 && ByteBuffer.wrap(req).getInt(8) == 0),
+                "no NAT-PMP delete");
+    }
+
+    @Test
+    void releasesDoubleNatMapping() throws Exception {
+        gateway = new MockGateway(req -> {
+            if (req[0] != 2) {
+                return null;
+            }
+            ByteBuffer in = ByteBuffer.wrap(req);
+            return pcpResponse(Arrays.copyOfRange(req, 24, 36), 0, in.getInt(4), 40001, mappedIpv4(10, 0, 0, 5));
+        });
+        PortMapper mapper = new PortMapper(25565, "127.0.0.1", gateway.address());
+
+        assertNull(mapper.start(3000).get(5, TimeUnit.SECONDS));
+        assertNotNull(gateway.awaitRequest(req -> req[0] == 2 && ByteBuffer.wrap(req).getInt(4) == 0),
+                "private mapping was not deleted");
+        mapper.stop();
+    }
+
+    @Test
+    void mapsAndRenewsWithUpnp() throws Exception {
+        gateway = new MockGateway(req -> null); // No NAT-PMP or PCP
+        igd = new MockIgd(action -> action.equals("GetExternalIPAddress")
+                ? "<NewExternalIPAddress>203.0.113.7</NewExternalIPAddress>" : "");
+        PortMapper mapper = new PortMapper(25565, "127.0.0.1", gateway.address(), igd.ssdpAddress(), 2);
+
+        InetSocketAddress external = mapper.start(5000).get(10, TimeUnit.SECONDS);
+        assertEquals(new InetSocketAddress(InetAddress.getByAddress(EXTERNAL_IP), 25565), external);
+        assertSame(PortMapper.Protocol.UPNP, mapper.getMapping().protocol);
+
+        String search = igd.searches.poll(1, TimeUnit.SECONDS);
+        assertNotNull(search, "no SSDP search");
+        assertTrue(search.startsWith("M-SEARCH * HTTP/1.1\r\n"));
+        assertTrue(search.contains("ST: urn:schemas-upnp-org:device:InternetGatewayDevice:"));
+        assertEquals(1, igd.descriptionFetches.get());
+
+        String add = igd.awaitCall("AddPortMapping");
+        assertNotNull(add, "no AddPortMapping");
+        assertEquals("25565", tag(add, "NewExternalPort"));
+        assertEquals("25565", tag(add, "NewInternalPort"));
+        assertEquals("127.0.0.1", tag(add, "NewInternalClient"));
+        assertEquals("UDP", tag(add, "NewProtocol"));
+        assertEquals("2", tag(add, "NewLeaseDuration"));
+
+        // Renewed halfway through the lease, on the same port
+        String renewal = igd.awaitCall("AddPortMapping");
+        assertNotNull(renewal, "lease not renewed");
+        assertEquals("25565", tag(renewal, "NewExternalPort"));
+
+        mapper.stop();
+        String delete = igd.awaitCall("DeletePortMapping");
+        assertNotNull(delete, "no DeletePortMapping");
+        assertEquals("25565", tag(delete, "NewExternalPort"));
+    }
+
+    @Test
+    void upnpFallsBackToPermanentLeaseAndNextPort() throws Exception {
+        gateway = new MockGateway(req -> null);
+        AtomicInteger adds = new AtomicInteger();
+        igd = new MockIgd(action -> switch (action) {
+            case "GetExternalIPAddress" -> "<NewExternalIPAddress>203.0.113.7</NewExternalIPAddress>";
+            // OnlyPermanentLeasesSupported, then ConflictInMappingEntry
+            case "AddPortMapping" -> switch (adds.incrementAndGet()) {
+                case 1 -> upnpError(725);
+                case 2 -> upnpError(718);
+                default -> "";
+            };
+            default -> "";
+        });
+        PortMapper mapper = new PortMapper(25565, "127.0.0.1", gateway.address(), igd.ssdpAddress(), 2);
+
+        InetSocketAddress external = mapper.start(5000).get(10, TimeUnit.SECONDS);
+        assertEquals(new InetSocketAddress(InetAddress.getByAddress(EXTERNAL_IP), 25566), external);
+
+        assertEquals("2", tag(igd.awaitCall("AddPortMapping"), "NewLeaseDuration"));
+        String permanent = igd.awaitCall("AddPortMapping");
+        assertEquals("0", tag(permanent, "NewLeaseDuration"));
+        assertEquals("25565", tag(permanent, "NewExternalPort"));
+        String next = igd.awaitCall("AddPortMapping");
+        assertEquals("0", tag(next, "NewLeaseDuration"));
+        assertEquals("25566", tag(next, "NewExternalPort"));
+
+        // A permanent lease is not renewed
+        assertNull(igd.awaitCall("AddPortMapping"));
+        mapper.stop();
+    }
+
+    /**
+     * Answers NAT-PMP/PCP requests on an ephemeral loopback port and keeps
+     * every request it receives.
+     */
+    private static class MockGateway {
+        final DatagramSocket socket;
+        final BlockingQueue<byte[]> requests = new LinkedBlockingQueue<>();
+
+        MockGateway(UnaryOperator<byte[]> responder) throws SocketException {
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[1100];
+                while (!socket.isClosed()) {
+                    try {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        byte[] request = Arrays.copyOf(buffer, packet.getLength());
+                        requests.add(request);
+                        byte[] response = responder.apply(request);
+                        if (response != null) {
+                            socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                        }
+                    } catch (Exception e) {
+                        return;
+                    }
+                }
+            }, "MockGateway");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) socket.getLocalSocketAddress();
+        }
+
+        byte[] awaitRequest(Predicate<byte[]> match) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 3000;
+            while (System.currentTimeMillis() < deadline) {
+                byte[] req = requests.poll(100, TimeUnit.MILLISECONDS);
+                if (req != null && match.test(req)) {
+                    return req;
+                }
+            }
+            return null;
+        }
+
+        void close() {
+            socket.close();
+        }
+    }
+
+    /**
+     * An Internet Gateway Device on loopback: answers SSDP searches with the
+     * URL of its description, serves the description, and answers SOAP
+     * actions on its WANIPConnection control URL. Keeps every search and
+     * action call it receives.
+     */
+    private static class MockIgd {
+        final DatagramSocket ssdp;
+        final HttpServer http;
+        final BlockingQueue<String> searches = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> calls = new LinkedBlockingQueue<>();
+        final AtomicInteger descriptionFetches = new AtomicInteger();
+
+        /**
+         * @param responder Body of the response to an action, by action name
+         */
+        MockIgd(UnaryOperator<String> responder) throws IOException {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            http = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+            String base = "http://127.0.0.1:" + http.getAddress().getPort();
+            http.createContext("/rootDesc.xml", exchange -> {
+                descriptionFetches.incrementAndGet();
+                respond(exchange, 200, DEVICE_DESCRIPTION);
+            });
+            http.createContext("/ctl/IPConn", exchange -> {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                String soapAction = exchange.getRequestHeaders().getFirst("SOAPAction");
+                String action = soapAction.substring(soapAction.indexOf('#') + 1, soapAction.length() - 1);
+                calls.add(action + " " + body);
+                String result = responder.apply(action);
+                boolean fault = result.contains("<errorCode>");
+                respond(exchange, fault ? 500 : 200, "<?xml version=\"1.0\"?>"
+                        + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>"
+                        + (fault ? result : "<u:" + action + "Response xmlns:u=\"" + WAN_IP_SERVICE + "\">"
+                                + result + "</u:" + action + "Response>")
+                        + "</s:Body></s:Envelope>");
+            });
+            http.start();
+
+            ssdp = new DatagramSocket(new InetSocketAddress(loopback, 0));
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[2048];
+                while (!ssdp.isClosed()) {
+                    try {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        ssdp.receive(packet);
+                        searches.add(new String(buffer, 0, packet.getLength(), StandardCharsets.US_ASCII));
+                        byte[] answer = ("HTTP/1.1 200 OK\r\n"
+                                + "CACHE-CONTROL: max-age=120\r\n"
+                                + "ST: urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n"
+                                + "LOCATION: " + base + "/rootDesc.xml\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                        ssdp.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }, "MockIgd");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress ssdpAddress() {
+            return (InetSocketAddress) ssdp.getLocalSocketAddress();
+        }
+
+        /**
+         * The body of the next call of an action, skipping other actions.
+         */
+        String awaitCall(String action) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 3000;
+            while (System.currentTimeMillis() < deadline) {
+                String call = calls.poll(100, TimeUnit.MILLISECONDS);
+                if (call != null && call.startsWith(action + " ")) {
+                    return call;
+                }
+            }
+            return null;
+        }
+
+        void close() {
+            ssdp.close();
+            http.stop(0);
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=\"utf-8\"");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static final String WAN_IP_SERVICE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+    private static final String DEVICE_DESCRIPTION = "<?xml version=\"1.0\"?>"
+            + "<root xmlns=\"urn:schemas-upnp-org:device-1-0\"><device>"
+            + "<deviceType>urn:schemas-upnp-org:device:InternetGatewayDevice:1</deviceType>"
+            + "<deviceList><device>"
+            + "<deviceType>urn:schemas-upnp-org:device:WANDevice:1</deviceType>"
+            + "<deviceList><device>"
+            + "<deviceType>urn:schemas-upnp-org:device:WANConnectionDevice:1</deviceType>"
+            + "<serviceList><service>"
+            + "<serviceType>" + WAN_IP_SERVICE + "</serviceType>"
+            + "<serviceId>urn:upnp-org:serviceId:WANIPConn1</serviceId>"
+            + "<controlURL>/ctl/IPConn</controlURL>"
+            + "<SCPDURL>/WANIPCn.xml</SCPDURL>"
+            + "</service></serviceList>"
+            + "</device></deviceList></device></deviceList></device></root>";
+
+    // ==================== Message builders ====================
+
+    private static String upnpError(int code) {
+        return "<s:Fault><faultcode>s:Client</faultcode><faultstring>UPnPError</faultstring><detail>"
+                + "<UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\"><errorCode>" + code + "</errorCode>"
+                + "</UPnPError></detail></s:Fault>";
+    }
+
+    private static String tag(String xml, String name) {
+        int start = xml.indexOf("<" + name + ">");
+        int end = xml.indexOf("</" + name + ">");
+        return start >= 0 && end > start ? xml.substring(start + name.length() + 2, end) : null;
+    }
+
+    private static byte[] pcpResponse(byte[] nonce, int result, int lifetime, int externalPort, byte[] externalIp) {
+        ByteBuffer buf = ByteBuffer.allocate(60);
+        buf.put((byte) 2);
+        buf.put((byte) 0x81);
+        buf.put((byte) 0);
+        buf.put((byte) result);
+        buf.putInt(lifetime);
+        buf.putInt(12345); // Epoch
+        buf.put(new byte[12]);
+        buf.put(nonce);
+        buf.put((byte) 17);
+        buf.put(new byte[3]);
+        buf.putShort((short) 25565);
+        buf.putShort((short) externalPort);
+        buf.put(externalIp);
+        return buf.array();
+    }
+
+    private static byte[] pmpAddressResponse(int result, byte[] ip) {
+        ByteBuffer buf = ByteBuffer.allocate(12);
+        buf.put((byte) 0);
+        buf.put((byte) 0x80);
+        buf.putShort((short) result);
+        buf.putInt(12345);
+        buf.put(ip);
+        return buf.array();
+    }
+
+    private static byte[] pmpMapResponse(int result, int internalPort, int externalPort, int lifetime) {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.put((byte) 0);
+        buf.put((byte) 0x81);
+        buf.putShort((short) result);
+        buf.putInt(12345);
+        buf.putShort((short) internalPort);
+        buf.putShort((short) externalPort);
+        buf.putInt(lifetime);
+        return buf.array();
+    }
+
+    private static byte[] mappedIpv4(int a, int b, int c, int d) {
+        return mappedIpv4(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d });
+    }
+
+    private static byte[] mappedIpv4(byte[] ip) {
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xFF;
+        mapped[11] = (byte) 0xFF;
+        System.arraycopy(ip, 0, mapped, 12, 4);
+        return mapped;
+    }
+}
@@ -0,0 +1,163 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.config.ModConfig;
+import calibur.directconnect.network.RegistryClient.Lookup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * RegistryClient against stand-in registries on loopback.
+ */
+class RegistryClientTest {
+    private static final List<String> CODES = List.of("p2p.happy-llama-42", "calm-owl-7", "lost-fox-1");
+
+    private StandInRegistry first;
+    private StandInRegistry second;
+
+    @AfterEach
+    void tearDown() {
+        if (first != null) {
+            first.close();
+        }
+        if (second != null) {
+            second.close();
+        }
+    }
+
+    @Test
+    void batchSkipsRegistryWithoutIt() throws Exception {
+        first = withHosts(new StandInRegistry().withoutBatch());
+        second = withHosts(new StandInRegistry());
+        use(first, second);
+        RegistryClient client = new RegistryClient();
+
+        assertFound(client.lookupBatch(CODES).get(10, TimeUnit.SECONDS));
+        assertEquals(1, first.hits("/lookup/batch"));
+        assertEquals(1, second.hits("/lookup/batch"));
+
+        // The first registry is not asked for batches again
+        assertFound(client.lookupBatch(CODES).get(10, TimeUnit.SECONDS));
+        assertEquals(1, first.hits("/lookup/batch"));
+        assertEquals(2, second.hits("/lookup/batch"));
+
+        // Nor is anyone asked code by code
+        assertEquals(0, first.hits("/lookup") + second.hits("/lookup"));
+    }
+
+    @Test
+    void batchFallsBackToSingleLookupsWhenNoRegistryHasIt() throws Exception {
+        first = withHosts(new StandInRegistry().withoutBatch());
+        second = withHosts(new StandInRegistry().withoutBatch());
+        use(first, second);
+
+        assertFound(new RegistryClient().lookupBatch(CODES).get(10, TimeUnit.SECONDS));
+        assertEquals(1, first.hits("/lookup/batch"));
+        assertEquals(1, second.hits("/lookup/batch"));
+        assertTrue(first.hits("/lookup") + second.hits("/lookup") >= CODES.size());
+    }
+
+    @Test
+    void batchIsOneRequestForManyCodes() throws Exception {
+        first = new StandInRegistry();
+        for (int i = 0; i < 40; i++) {
+            first.addHost("host-" + i, "198.51.100." + (i + 1), 25565);
+        }
+        use(first);
+
+        List<String> codes = new java.util.ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            codes.add("p2p.host-" + i);
+        }
+        Map<String, Lookup> lookups = new RegistryClient().lookupBatch(codes).get(10, TimeUnit.SECONDS);
+        assertEquals(40, lookups.size());
+        assertEquals("198.51.100.40", lookups.get("host-39").endpoints().get(0).ip);
+        assertEquals(1, first.hits("/lookup/batch"));
+        assertEquals(0, first.hits("/lookup"));
+    }
+
+    @Test
+    void updateKeepsShareCode() throws Exception {
+        first = new StandInRegistry().release(500);
+        use(first);
+        RegistryClient client = new RegistryClient();
+        List<String> assigned = new CopyOnWriteArrayList<>();
+        client.setOnCodeAssigned(assigned::add);
+        try {
+            assertTrue(client.register("192.168.1.20", 51900, "steady-heron-3", "203.0.113.20", 51900, null,
+                    List.of()).get(10, TimeUnit.SECONDS));
+
+            NatBehavior nat = new NatBehavior(NatBehavior.Mapping.ENDPOINT_INDEPENDENT,
+                    NatBehavior.Filtering.ENDPOINT_INDEPENDENT, 0, null);
+            client.update(reg -> new RegistryClient.Registration(reg.localIp(), reg.port(), reg.wanIp(),
+                    reg.wanPort(), nat, reg.candidates()));
+            await(() -> assigned.size() == 2);
+
+            // Registered again only once the old registration let go of the code
+            assertEquals(List.of("steady-heron-3", "steady-heron-3"), assigned);
+            assertEquals("ENDPOINT_INDEPENDENT", first.registrations().get(1).get("nat_mapping").getAsString());
+            assertTrue(first.hasHost("steady-heron-3"));
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Test
+    void reconnectWaitsForItsOwnCodeWhileTheOldRegistrationHoldsIt() throws Exception {
+        // Still held when the first reconnect comes, at most a second later
+        first = new StandInRegistry().release(1500);
+        use(first);
+        RegistryClient client = new RegistryClient();
+        List<String> assigned = new CopyOnWriteArrayList<>();
+        client.setOnCodeAssigned(assigned::add);
+        try {
+            assertTrue(client.register("192.168.1.21", 51901, "quiet-otter-8", "203.0.113.21", 51901, null,
+                    List.of()).get(10, TimeUnit.SECONDS));
+            first.dropConnections();
+            await(() -> assigned.size() == 2);
+
+            assertEquals(List.of("quiet-otter-8", "quiet-otter-8"), assigned);
+            assertTrue(first.registrations().size() >= 3, "no conflict on the first reconnect");
+            assertTrue(first.hasHost("quiet-otter-8"));
+            assertEquals("quiet-otter-8", ModConfig.getInstance().getShareCode());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private static StandInRegistry withHosts(StandInRegistry registry) {
+        return registry.addHost("happy-llama-42", "203.0.113.10", 51900)
+                .addHost("calm-owl-7", "203.0.113.11", 51901);
+    }
+
+    private static void use(StandInRegistry primary, StandInRegistry... more) {
+        ModConfig config = ModConfig.getInstance();
+        config.setRegistryUrl(primary.url());
+        config.setRegistryUrls(java.util.Arrays.stream(more).map(StandInRegistry::url).toList());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertFound(Map<String, Lookup> lookups) {
+        assertEquals(3, lookups.size());
+        assertEquals(51900, lookups.get("happy-llama-42").endpoints().get(0).port);
+        assertEquals("203.0.113.11", lookups.get("calm-owl-7").endpoints().get(0).ip);
+        assertTrue(lookups.get("lost-fox-1").notFound());
+        assertFalse(lookups.get("happy-llama-42").notFound());
+    }
+}
@@ -0,0 +1,114 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.config.ModConfig;
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import calibur.directconnect.network.RegistryClient.Lookup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Lookups and registrations spread over several stand-in registries, the
+ * way HostManager and JoinManager use them.
+ */
+class RegistryFederationTest {
+    private static final String CODE = "brave-otter-9";
+    private static final Endpoint WAN = new Endpoint("203.0.113.20", 51900, Candidates.TYPE_WAN, null,
+            Candidates.defaultPriority(Candidates.TYPE_WAN));
+
+    private StandInRegistry first;
+    private StandInRegistry second;
+    private RegistryClient primary;
+    private RegistryClient mirror;
+
+    @AfterEach
+    void tearDown() {
+        if (primary != null) {
+            primary.disconnect();
+        }
+        if (mirror != null) {
+            mirror.disconnect();
+        }
+        if (first != null) {
+            first.close();
+        }
+        if (second != null) {
+            second.close();
+        }
+    }
+
+    @Test
+    void lookupsGoToTheFastestRegistry() throws Exception {
+        first = new StandInRegistry().addHost(CODE, WAN.ip, WAN.port).delay(200);
+        second = new StandInRegistry().addHost(CODE, WAN.ip, WAN.port);
+        use(first, second);
+        RegistryClient client = new RegistryClient();
+
+        client.warmUp().get(10, TimeUnit.SECONDS);
+        assertEquals(second.url(), RegistrySet.getInstance().best());
+
+        assertFound(client.resolve("p2p." + CODE, 0).get(10, TimeUnit.SECONDS));
+        assertEquals(1, second.hits("/lookup"));
+        assertEquals(0, first.hits("/lookup"));
+    }
+
+    @Test
+    void hostOnSeveralRegistriesIsFoundWhenOneGoesDown() throws Exception {
+        first = new StandInRegistry();
+        second = new StandInRegistry();
+        use(first, second);
+        ModConfig.getInstance().setShareCode(CODE);
+
+        // As HostManager does: the best registry, then a mirror elsewhere
+        primary = new RegistryClient();
+        primary.setRegistrySelector(first::url);
+        assertTrue(register(primary));
+        mirror = new RegistryClient(true);
+        mirror.setRegistrySelector(second::url);
+        assertTrue(register(mirror));
+        assertTrue(first.hasHost(CODE));
+        assertTrue(second.hasHost(CODE));
+        assertEquals(CODE, second.registrations().get(0).get("requested_code").getAsString());
+
+        first.close();
+        assertFound(new RegistryClient().resolve("p2p." + CODE, 0).get(10, TimeUnit.SECONDS));
+        // Not waited on again until the penalty runs out
+        assertEquals(second.url(), RegistrySet.getInstance().best());
+    }
+
+    @Test
+    void unknownCodeIsAskedEverywhereBeforeGivingUp() throws Exception {
+        first = new StandInRegistry();
+        second = new StandInRegistry();
+        use(first, second);
+
+        Lookup lookup = new RegistryClient().resolve("p2p.lost-fox-1", 0).get(10, TimeUnit.SECONDS);
+        assertTrue(lookup.notFound());
+        assertEquals(1, first.hits("/lookup"));
+        assertEquals(1, second.hits("/lookup"));
+    }
+
+    private static boolean register(RegistryClient client) throws Exception {
+        return client.register("192.168.1.20", WAN.port, ModConfig.getInstance().getShareCode(), WAN.ip, WAN.port,
+                null, List.of(WAN)).get(10, TimeUnit.SECONDS);
+    }
+
+    private static void use(StandInRegistry primary, StandInRegistry... more) {
+        ModConfig config = ModConfig.getInstance();
+        config.setRegistryUrl(primary.url());
+        config.setRegistryUrls(java.util.Arrays.stream(more).map(StandInRegistry::url).toList());
+    }
+
+    private static void assertFound(Lookup lookup) {
+        assertFalse(lookup.notFound());
+        assertEquals(1, lookup.endpoints().size());
+        assertEquals(WAN.ip, lookup.endpoints().get(0).ip);
+        assertEquals(WAN.port, lookup.endpoints().get(0).port);
+    }
+}
@@ -0,0 +1,148 @@
+package calibur.directconnect.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips and throughput through the relay against going direct, on
+ * loopback. Run with {@code gradlew benchmark}; numbers go to stdout.
+ */
+@Tag("benchmark")
+class RelayBenchmark {
+    private static final int PAYLOAD = 1200;
+    private static final int WARMUP = 2_000;
+    private static final int ROUND_TRIPS = 20_000;
+    private static final int WINDOW = 32;
+    private static final long THROUGHPUT_MS = 2_000;
+
+    private DatagramSocket host;
+    private DatagramSocket joiner;
+
+    @AfterEach
+    void tearDown() {
+        if (joiner != null) {
+            joiner.close();
+        }
+        if (host != null) {
+            host.close();
+        }
+        RelayServer.getInstance().stop();
+    }
+
+    @Test
+    void relayAgainstDirect() throws Exception {
+        host = new DatagramSocket(new InetSocketAddress(RelayServerTest.LOOPBACK, 0));
+        joiner = new DatagramSocket(new InetSocketAddress(RelayServerTest.LOOPBACK, 0));
+        joiner.setSoTimeout(200);
+
+        int control;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            control = probe.getLocalPort();
+        }
+        assertTrue(RelayServer.getInstance().start(control, 8, 0, 0));
+        InetSocketAddress relayed = RelayServerTest.allocate(host, control);
+        echo(host);
+
+        InetSocketAddress direct = (InetSocketAddress) host.getLocalSocketAddress();
+        report("direct", direct);
+        report("relay", relayed);
+    }
+
+    private void report(String name, InetSocketAddress target) throws IOException {
+        long[] rtts = roundTrips(target);
+        Arrays.sort(rtts);
+        double mbps = throughput(target);
+        System.out.printf("[DirectConnect] %-6s rtt p50 %6.1f us, p99 %6.1f us, %7.1f MB/s%n", name,
+                rtts[rtts.length / 2] / 1e3, rtts[rtts.length * 99 / 100] / 1e3, mbps);
+        assertTrue(mbps > 0);
+    }
+
+    /**
+     * One datagram in flight at a time.
+     */
+    private long[] roundTrips(InetSocketAddress target) throws IOException {
+        byte[] out = new byte[PAYLOAD];
+        byte[] in = new byte[PAYLOAD + 64];
+        long[] rtts = new long[ROUND_TRIPS];
+        int done = 0;
+        for (int i = -WARMUP; i < ROUND_TRIPS; i++) {
+            long start = System.nanoTime();
+            joiner.send(new DatagramPacket(out, out.length, target));
+            try {
+                joiner.receive(new DatagramPacket(in, in.length));
+            } catch (SocketTimeoutException e) {
+                continue; // Lost, not a sample
+            }
+            if (i >= 0) {
+                rtts[done++] = System.nanoTime() - start;
+            }
+        }
+        return Arrays.copyOf(rtts, Math.max(done, 1));
+    }
+
+    /**
+     * Keeps {@link #WINDOW} datagrams in flight and counts what comes back.
+     */
+    private double throughput(InetSocketAddress target) throws IOException {
+        byte[] out = new byte[PAYLOAD];
+        byte[] in = new byte[PAYLOAD + 64];
+        long bytes = 0;
+        int inFlight = 0;
+        long start = System.nanoTime();
+        long end = start + THROUGHPUT_MS * 1_000_000L;
+        while (System.nanoTime() < end) {
+            while (inFlight < WINDOW) {
+                joiner.send(new DatagramPacket(out, out.length, target));
+                inFlight++;
+            }
+            try {
+                joiner.receive(new DatagramPacket(in, in.length));
+                bytes += PAYLOAD;
+                inFlight--;
+            } catch (SocketTimeoutException e) {
+                inFlight = 0; // The rest were dropped
+            }
+        }
+        // Drain what is still in flight so the next run starts clean
+        try {
+            while (inFlight-- > 0) {
+                joiner.receive(new DatagramPacket(in, in.length));
+            }
+        } catch (SocketTimeoutException e) {
+            // Dropped
+        }
+        return bytes / ((System.nanoTime() - start) / 1e9) / 1e6;
+    }
+
+    /**
+     * Sends every datagram straight back where it came from. Relayed ones
+     * keep their header, which names the joiner the relay should reply to.
+     */
+    private static void echo(DatagramSocket socket) {
+        Thread thread = new Thread(() -> {
+            byte[] buf = new byte[PAYLOAD + 64];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    socket.setSoTimeout(0);
+                    socket.receive(packet);
+                    socket.send(new DatagramPacket(buf, packet.getLength(), packet.getSocketAddress()));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "relay-benchmark-echo");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
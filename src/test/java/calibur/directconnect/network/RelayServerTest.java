@@ -0,0 +1,260 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The relay on loopback, with raw sockets or transports as hosts and joiners.
+ */
+class RelayServerTest {
+    static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final List<AutoCloseable> closeLater = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (AutoCloseable closeable : closeLater) {
+            closeable.close();
+        }
+        RelayServer.getInstance().stop();
+    }
+
+    @Test
+    void bucketRefillsAfterLongIdleAtHighRates() {
+        RelayServer.TokenBucket bucket = new RelayServer.TokenBucket(1_000_000_000L);
+        long now = System.nanoTime();
+        assertTrue(bucket.tryConsume(1500, now));
+        // Ten idle seconds at 1 GB/s: elapsed ns * bytes/s passes 2^63
+        now += TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(bucket.tryConsume(1500, now), "packet " + i);
+        }
+    }
+
+    @Test
+    void bucketHoldsItsRate() throws InterruptedException {
+        RelayServer.TokenBucket bucket = new RelayServer.TokenBucket(64 * 1024);
+        int sent = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500)) {
+            if (bucket.tryConsume(1024)) {
+                sent++;
+            }
+            Thread.sleep(0, 100_000);
+        }
+        // 64 KiB burst plus 32 KiB refilled over half a second
+        assertTrue(sent >= 90 && sent <= 100, "sent " + sent);
+    }
+
+    @Test
+    void oneHostCannotUseAnothersBudget() throws Exception {
+        int control = startRelay(0, 64);
+        DatagramSocket hostA = socket();
+        DatagramSocket hostB = socket();
+        InetSocketAddress relayA = allocate(hostA, control);
+        InetSocketAddress relayB = allocate(hostB, control);
+        AtomicInteger atA = count(hostA);
+        AtomicInteger atB = count(hostB);
+
+        DatagramSocket joinerA = socket();
+        DatagramSocket joinerB = socket();
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < 300; i++) {
+            joinerA.send(new DatagramPacket(payload, payload.length, relayA));
+        }
+        for (int i = 0; i < 30; i++) {
+            joinerB.send(new DatagramPacket(payload, payload.length, relayB));
+        }
+
+        await(() -> atB.get() >= 30, 2_000);
+        Thread.sleep(100);
+        assertEquals(30, atB.get());
+        assertTrue(atA.get() < 100, "host A got " + atA.get());
+    }
+
+    @Test
+    void relayedFramesOnlyFromTheAllocatedRelay() throws Exception {
+        int control = startRelay(0, 0);
+        ReliableUdp host = new ReliableUdp();
+        closeLater.add(host::stop);
+        assertTrue(host.startServer(0));
+        RelayClient relayClient = new RelayClient(host);
+        closeLater.add(relayClient::stop);
+        List<InetSocketAddress> relayed = relayClient.allocateAll(List.of("127.0.0.1:" + control), 2_000)
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(1, relayed.size());
+
+        ReliableUdp joiner = new ReliableUdp();
+        closeLater.add(joiner::stop);
+        List<byte[]> received = new CopyOnWriteArrayList<>();
+        joiner.setOnData((peer, data) -> received.add(data));
+        assertTrue(joiner.connect(new InetSocketAddress(LOOPBACK, 0), relayed.get(0)));
+        await(joiner::isConnected, 5_000);
+        InetSocketAddress joinerAddress = new InetSocketAddress(LOOPBACK, joiner.getLocalPort());
+        assertTrue(host.isRelayed(joinerAddress));
+
+        // Someone else claims to relay the joiner
+        DatagramSocket attacker = socket();
+        AtomicInteger atAttacker = count(attacker);
+        ByteBuf frame = Unpooled.buffer();
+        RelayProtocol.writeHeader(frame, joinerAddress);
+        frame.writeByte(0x00); // PUNCH
+        byte[] bytes = new byte[frame.readableBytes()];
+        frame.readBytes(bytes);
+        attacker.send(new DatagramPacket(bytes, bytes.length,
+                new InetSocketAddress(LOOPBACK, host.getLocalPort())));
+        Thread.sleep(100);
+
+        host.sendTo(joinerAddress, "still here".getBytes());
+        await(() -> !received.isEmpty(), 2_000);
+        assertEquals("still here", new String(received.get(0)));
+        assertEquals(0, atAttacker.get());
+        assertTrue(joiner.isConnected());
+    }
+
+    @Test
+    void allocateNeedsTheCookieSentToTheSender() throws Exception {
+        int control = startRelay(0, 0);
+        DatagramSocket host = socket();
+        DatagramSocket spoofer = socket();
+        byte[] txid = new byte[RelayProtocol.TXID_SIZE];
+
+        // Answered with a challenge no larger than the request
+        byte[] challenge = sendAllocate(host, control, txid, new byte[RelayProtocol.COOKIE_SIZE]);
+        assertEquals(RelayProtocol.MSG_CHALLENGE, challenge[0]);
+        assertTrue(challenge.length <= RelayProtocol.ALLOCATE_SIZE);
+
+        // A cookie only works from the address it was sent to
+        byte[] elsewhere = sendAllocate(spoofer, control, txid, cookieOf(challenge));
+        assertEquals(RelayProtocol.MSG_CHALLENGE, elsewhere[0]);
+        byte[] forged = cookieOf(challenge);
+        forged[0] ^= 1;
+        assertEquals(RelayProtocol.MSG_CHALLENGE, sendAllocate(host, control, txid, forged)[0]);
+        assertTrue(RelayServer.getInstance().getSummary().startsWith("0 hosts"));
+
+        assertEquals(RelayProtocol.MSG_ALLOCATED, sendAllocate(host, control, txid, cookieOf(challenge))[0]);
+        assertTrue(RelayServer.getInstance().getSummary().startsWith("1 hosts"));
+    }
+
+    @Test
+    void allocationsLimitedPerSourceIp() throws Exception {
+        int control = startRelay(0, 0);
+        for (int i = 0; i < 4; i++) {
+            allocate(socket(), control);
+        }
+
+        DatagramSocket fifth = socket();
+        byte[] txid = new byte[RelayProtocol.TXID_SIZE];
+        byte[] challenge = sendAllocate(fifth, control, txid, new byte[RelayProtocol.COOKIE_SIZE]);
+        byte[] reply = sendAllocate(fifth, control, txid, cookieOf(challenge));
+        assertEquals(RelayProtocol.MSG_ALLOCATE_ERROR, reply[0]);
+        assertEquals(RelayProtocol.ERROR_RATE_LIMITED, reply[1 + RelayProtocol.TXID_SIZE]);
+    }
+
+    /**
+     * Starts the relay on a free port.
+     *
+     * @return The control port
+     */
+    int startRelay(int bandwidthKiB, int hostBandwidthKiB) throws IOException {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        assertTrue(RelayServer.getInstance().start(port, 8, bandwidthKiB, hostBandwidthKiB));
+        return port;
+    }
+
+    DatagramSocket socket() throws IOException {
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        closeLater.add(socket);
+        return socket;
+    }
+
+    /**
+     * Allocates a relay port for a raw host socket, answering the challenge.
+     */
+    static InetSocketAddress allocate(DatagramSocket host, int control) throws IOException {
+        byte[] txid = new byte[RelayProtocol.TXID_SIZE];
+        ThreadLocalRandom.current().nextBytes(txid);
+        byte[] challenge = sendAllocate(host, control, txid, new byte[RelayProtocol.COOKIE_SIZE]);
+        assertEquals(RelayProtocol.MSG_CHALLENGE, challenge[0]);
+
+        byte[] reply = sendAllocate(host, control, txid, cookieOf(challenge));
+        assertEquals(RelayProtocol.MSG_ALLOCATED, reply[0]);
+        int port = ByteBuffer.wrap(reply, 1 + RelayProtocol.TXID_SIZE, 2).getShort() & 0xFFFF;
+        return new InetSocketAddress(LOOPBACK, port);
+    }
+
+    /**
+     * Sends one ALLOCATE and returns the relay's answer.
+     */
+    static byte[] sendAllocate(DatagramSocket host, int control, byte[] txid, byte[] cookie) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(RelayProtocol.ALLOCATE_SIZE);
+        request.put(RelayProtocol.MSG_ALLOCATE).put(txid).put(cookie);
+        host.send(new DatagramPacket(request.array(), request.capacity(), new InetSocketAddress(LOOPBACK, control)));
+
+        byte[] reply = new byte[64];
+        DatagramPacket packet = new DatagramPacket(reply, reply.length);
+        host.setSoTimeout(2_000);
+        host.receive(packet);
+        return Arrays.copyOf(reply, packet.getLength());
+    }
+
+    static byte[] cookieOf(byte[] challenge) {
+        int at = 1 + RelayProtocol.TXID_SIZE;
+        return Arrays.copyOfRange(challenge, at, at + RelayProtocol.COOKIE_SIZE);
+    }
+
+    /**
+     * Counts what arrives on a socket from now on.
+     */
+    static AtomicInteger count(DatagramSocket socket) {
+        AtomicInteger count = new AtomicInteger();
+        Thread thread = new Thread(() -> {
+            byte[] buf = new byte[2048];
+            while (!socket.isClosed()) {
+                try {
+                    socket.setSoTimeout(0);
+                    socket.receive(new DatagramPacket(buf, buf.length));
+                    count.incrementAndGet();
+                } catch (SocketTimeoutException e) {
+                    // Keep waiting
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "relay-test-counter");
+        thread.setDaemon(true);
+        thread.start();
+        return count;
+    }
+
+    static void await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package calibur.directconnect.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two transports on loopback talking through {@link PathProxy} paths.
+ */
+class ReliableUdpOrderingTest {
+    private static final int MESSAGES = 2000;
+    private static final int SHORT_RUN = 200;
+    private static final int LOST = 100;
+
+    private final ReliableUdp server = new ReliableUdp();
+    private final ReliableUdp client = new ReliableUdp();
+    private final List<Integer> received = new CopyOnWriteArrayList<>();
+    private PathProxy first;
+    private PathProxy second;
+
+    @AfterEach
+    void tearDown() {
+        client.stop();
+        server.stop();
+        if (first != null) {
+            first.close();
+        }
+        if (second != null) {
+            second.close();
+        }
+    }
+
+    @Test
+    void deliversInOrderWhenPacketsOvertakeEachOther() throws Exception {
+        InetSocketAddress host = startServer();
+        first = new PathProxy(host).reorder(5, 30);
+        connect(first);
+
+        for (int i = 0; i < MESSAGES; i++) {
+            client.send(message(i));
+            if (i % 10 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        await(() -> received.size() >= MESSAGES, 10_000);
+        assertInOrder();
+    }
+
+    @Test
+    void multipathSurvivesInterfaceGoingDown() throws Exception {
+        InetSocketAddress host = startServer();
+        first = new PathProxy(host);
+        second = new PathProxy(host).reorder(3, 15);
+        connect(first);
+        client.setDuplicateSmall(true);
+        client.enableMultipath(List.of(second.address()));
+        await(() -> client.getPathStats().size() == 2, 5_000);
+
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i == MESSAGES / 2) {
+                first.cut(); // The session's own path goes away mid-stream
+            }
+            client.send(message(i));
+            if (i % 100 == 0) {
+                Thread.sleep(20);
+            }
+        }
+        await(() -> received.size() >= MESSAGES, 15_000);
+        assertInOrder();
+        assertTrue(client.isConnected());
+    }
+
+    @Test
+    void migrationKeepsOrder() throws Exception {
+        InetSocketAddress host = startServer();
+        first = new PathProxy(host).reorder(4, 30);
+        second = new PathProxy(host).reorder(7, 10);
+        connect(first);
+
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i == MESSAGES / 2) {
+                assertTrue(client.migrate(second.address()).get(5, TimeUnit.SECONDS));
+                // Whatever is still on the old path now arrives after the
+                // packets sent on the new one, or not at all
+                Thread.sleep(5);
+                first.cut();
+            }
+            client.send(message(i));
+            if (i % 10 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        await(() -> received.size() >= MESSAGES, 10_000);
+        assertInOrder();
+        assertEquals(second.address(), client.getRemoteAddress());
+    }
+
+    @Test
+    void keepsRetransmittingPastMaxRetriesOnOrderedSessions() throws Exception {
+        InetSocketAddress host = startServer();
+        first = new PathProxy(host);
+        connect(first);
+        // Every copy an unordered session sends before giving up
+        first.drop(message(LOST), 6);
+
+        for (int i = 0; i < SHORT_RUN; i++) {
+            client.send(message(i));
+        }
+        await(() -> received.size() >= SHORT_RUN, 15_000);
+        assertInOrder(SHORT_RUN);
+        assertTrue(client.isConnected());
+    }
+
+    @Test
+    void dropsOrderedSessionWhenPacketNeverArrives() throws Exception {
+        InetSocketAddress host = startServer();
+        AtomicBoolean serverSawClose = new AtomicBoolean();
+        AtomicBoolean clientDropped = new AtomicBoolean();
+        server.setOnDisconnect(peer -> serverSawClose.set(true));
+        client.setOnDisconnect(peer -> clientDropped.set(true));
+        first = new PathProxy(host);
+        connect(first);
+        first.drop(message(LOST), Integer.MAX_VALUE);
+
+        for (int i = 0; i < SHORT_RUN; i++) {
+            client.send(message(i));
+        }
+        // Instead of the server holding everything after the hole forever
+        await(() -> clientDropped.get() && serverSawClose.get(), 15_000);
+        assertFalse(client.isConnected());
+        assertEquals(LOST, received.size());
+    }
+
+    private InetSocketAddress startServer() {
+        assertTrue(server.startServer(0));
+        server.setOnData((peer, data) -> received.add(ByteBuffer.wrap(data).getInt()));
+        return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+    }
+
+    private void connect(PathProxy path) throws InterruptedException {
+        assertTrue(client.connect(new InetSocketAddress("127.0.0.1", 0), path.address()));
+        await(client::isConnected, 5_000);
+    }
+
+    private static byte[] message(int i) {
+        return ByteBuffer.allocate(64).putInt(i).array();
+    }
+
+    private void assertInOrder() {
+        assertInOrder(MESSAGES);
+    }
+
+    private void assertInOrder(int messages) {
+        assertEquals(messages, received.size());
+        for (int i = 0; i < messages; i++) {
+            assertEquals(i, received.get(i).intValue(), "message " + i);
+        }
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
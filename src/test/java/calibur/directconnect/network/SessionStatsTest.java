@@ -0,0 +1,113 @@
+package calibur.directconnect.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Delivery rate sampling, driven with explicit times.
+ */
+class SessionStatsTest {
+    private static final long SLOT = 250_000_000L;
+    private static final long MID = SLOT / 2; // Well inside a slot
+    private static final int SLOTS = 16;
+    private static final long RTT = 50_000_000L;
+
+    private static final long START = 1_000_000_000L;
+    private final SessionStats stats = new SessionStats(new InetSocketAddress("203.0.113.5", 51900), START);
+
+    @Test
+    void estimateIsHighestSlot() {
+        assertEquals(0, stats.getDeliveryRate(START + MID));
+
+        ack(0, 100_000, false); // 400 KB/s
+        ack(1, 50_000, false);
+        assertEquals(400_000, stats.getDeliveryRate(at(2)));
+        ack(2, 150_000, false);
+        assertEquals(600_000, stats.getDeliveryRate(at(3)));
+    }
+
+    @Test
+    void highestSlotAgesOutAfterSixteenSlots() {
+        ack(0, 100_000, false);
+        for (int slot = 1; slot <= SLOTS; slot++) {
+            ack(slot, 25_000, false);
+        }
+        // Slot 0 still counts until slot 16 has closed over it
+        assertEquals(400_000, stats.getDeliveryRate(at(SLOTS)));
+        assertEquals(100_000, stats.getDeliveryRate(at(SLOTS + 1)));
+    }
+
+    @Test
+    void appLimitedSlotsCountOnlyWhenHigher() {
+        ack(0, 100_000, false);
+        assertEquals(400_000, stats.getDeliveryRate(at(1)));
+
+        // The game had little to send: these say nothing about capacity
+        for (int slot = 1; slot <= 2 * SLOTS; slot++) {
+            ack(slot, 5_000, true);
+        }
+        assertEquals(400_000, stats.getDeliveryRate(at(2 * SLOTS + 1)));
+
+        // But a burst above the estimate is a real measurement
+        ack(2 * SLOTS + 1, 200_000, true);
+        assertEquals(800_000, stats.getDeliveryRate(at(2 * SLOTS + 2)));
+    }
+
+    @Test
+    void oneFullSendMakesSlotCount() {
+        ack(0, 100_000, false);
+        ack(1, 5_000, true);
+        ack(1, 1_000, false);
+        // Mostly app-limited, but not only: a real, lower sample
+        for (int slot = 2; slot <= SLOTS + 1; slot++) {
+            ack(slot, 0, true);
+        }
+        assertEquals(24_000, stats.getDeliveryRate(at(SLOTS + 2)));
+    }
+
+    @Test
+    void idleTunnelKeepsEstimate() {
+        ack(0, 100_000, false);
+        assertEquals(400_000, stats.getDeliveryRate(at(1)));
+        // Far longer than the window, with nothing acked
+        assertEquals(400_000, stats.getDeliveryRate(at(10 * SLOTS)));
+        assertEquals(400_000, stats.getDeliveryRate(START + 3_600_000_000_000L));
+    }
+
+    @Test
+    void sendIsAppLimitedBelowBandwidthDelayProduct() {
+        // Unknown rate: nothing is app-limited yet
+        assertFalse(stats.onSend(1000));
+        stats.onAck(1000, RTT, false, at(0));
+
+        ack(0, 99_000, false);
+        stats.getDeliveryRate(at(1)); // 400 KB/s over a 50 ms RTT: 20 KB in flight fill the pipe
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(stats.onSend(1000), "packet " + i);
+        }
+        assertEquals(20_000, stats.getBytesInFlight());
+        assertFalse(stats.onSend(1000));
+
+        stats.onAck(1000, RTT, true, at(1));
+        stats.onDrop(1000);
+        assertEquals(19_000, stats.getBytesInFlight());
+        assertTrue(stats.onSend(1000));
+    }
+
+    /**
+     * Acks some bytes in the middle of a slot, as one packet.
+     */
+    private void ack(int slot, int bytes, boolean appLimited) {
+        stats.onAck(bytes, -1, appLimited, at(slot));
+    }
+
+    private static long at(int slot) {
+        return START + slot * SLOT + MID;
+    }
+}
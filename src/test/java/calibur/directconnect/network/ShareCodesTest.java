@@ -0,0 +1,121 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShareCodesTest {
+    private static final String CODE = "happy-llama-42";
+    private static final List<InetSocketAddress> ENDPOINTS = List.of(
+            new InetSocketAddress("203.0.113.7", 25565),
+            new InetSocketAddress("2001:db8::1:2", 40001));
+
+    @Test
+    void roundTripsIpv4AndIpv6() {
+        String extended = ShareCodes.encode(CODE, ENDPOINTS);
+        assertTrue(extended.startsWith(CODE + "."));
+        assertTrue(extended.matches("[a-z0-9-]+\\.[a-z2-7]+"), extended);
+
+        List<Endpoint> endpoints = ShareCodes.decode(extended);
+        assertEquals(2, endpoints.size());
+        assertEquals("203.0.113.7", endpoints.get(0).ip);
+        assertEquals(25565, endpoints.get(0).port);
+        assertEquals("2001:db8:0:0:0:0:1:2", endpoints.get(1).ip);
+        assertEquals(40001, endpoints.get(1).port);
+        assertEquals(CODE, ShareCodes.baseCode(extended));
+    }
+
+    @Test
+    void keepsPlainCodeWithoutEndpoints() {
+        assertEquals(CODE, ShareCodes.encode(CODE, List.of()));
+        assertEquals(List.of(), ShareCodes.decode(CODE));
+    }
+
+    @Test
+    void keepsAtMostFourEndpoints() {
+        List<InetSocketAddress> many = List.of(
+                new InetSocketAddress("203.0.113.1", 1), new InetSocketAddress("203.0.113.2", 2),
+                new InetSocketAddress("203.0.113.3", 3), new InetSocketAddress("203.0.113.4", 4),
+                new InetSocketAddress("203.0.113.5", 5));
+        assertEquals(ShareCodes.MAX_ENDPOINTS, ShareCodes.decode(ShareCodes.encode(CODE, many)).size());
+    }
+
+    @Test
+    void flippedCharacterFailsChecksum() {
+        String extended = ShareCodes.encode(CODE, ENDPOINTS);
+        int dot = extended.indexOf('.');
+        // Every character but the last, whose low bits may be padding
+        for (int i = dot + 1; i < extended.length() - 1; i++) {
+            char flipped = extended.charAt(i) == 'a' ? 'b' : 'a';
+            String mistyped = extended.substring(0, i) + flipped + extended.substring(i + 1);
+            assertNull(ShareCodes.decode(mistyped), mistyped);
+        }
+        // The plain code is covered too
+        assertNull(ShareCodes.decode("happy-llama-43" + extended.substring(dot)));
+    }
+
+    @Test
+    void truncatedPayloadFails() {
+        String extended = ShareCodes.encode(CODE, ENDPOINTS);
+        for (int end = extended.indexOf('.') + 1; end < extended.length(); end++) {
+            assertNull(ShareCodes.decode(extended.substring(0, end)), extended.substring(0, end));
+        }
+    }
+
+    @Test
+    void rejectsMoreEndpointsThanAllowed() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((1 << 4) | (ShareCodes.MAX_ENDPOINTS + 1));
+        for (int i = 0; i <= ShareCodes.MAX_ENDPOINTS; i++) {
+            out.writeBytes(new byte[] { 4, (byte) 203, 0, 113, (byte) i, 0x63, (byte) 0xDD });
+        }
+        long crc = ShareCodes.checksum(CODE, out.toByteArray());
+        for (int i = 3; i >= 0; i--) {
+            out.write((int) (crc >> (8 * i)));
+        }
+        assertNull(ShareCodes.decode(CODE + "." + ShareCodes.base32(out.toByteArray())));
+    }
+
+    @Test
+    void rejectsUnknownVersionAndFamily() {
+        assertNull(ShareCodes.decode(CODE + "." + payload(2, new byte[] { 4, 1, 2, 3, 4, 0, 80 })));
+        assertNull(ShareCodes.decode(CODE + "." + payload(1, new byte[] { 5, 1, 2, 3, 4, 0, 80 })));
+        assertEquals(1, ShareCodes.decode(CODE + "." + payload(1, new byte[] { 4, 1, 2, 3, 4, 0, 80 })).size());
+    }
+
+    @Test
+    void parseShareCodeRejectsBadExtension() {
+        String extended = ShareCodes.encode(CODE, ENDPOINTS);
+        assertEquals(CODE, NetworkUtils.parseShareCode(extended));
+        assertEquals(CODE, NetworkUtils.parseShareCode("p2p." + extended.toUpperCase()));
+        assertEquals(2, NetworkUtils.parseShareEndpoints(extended).size());
+
+        String bad = extended.substring(0, extended.length() - 3);
+        assertNull(NetworkUtils.parseShareCode(bad));
+        assertNull(NetworkUtils.parseShareCode(CODE + ".abc"));
+        assertNull(NetworkUtils.parseShareCode(CODE + ".ab1"));
+        assertEquals(List.of(), NetworkUtils.parseShareEndpoints(bad));
+        assertEquals(CODE, NetworkUtils.parseShareCode(CODE));
+    }
+
+    /**
+     * One endpoint with a valid checksum.
+     */
+    private static String payload(int version, byte[] endpoint) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((version << 4) | 1);
+        out.writeBytes(endpoint);
+        long crc = ShareCodes.checksum(CODE, out.toByteArray());
+        for (int i = 3; i >= 0; i--) {
+            out.write((int) (crc >> (8 * i)));
+        }
+        return ShareCodes.base32(out.toByteArray());
+    }
+}
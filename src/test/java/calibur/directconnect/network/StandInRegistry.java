@@ -0,0 +1,431 @@
+package calibur.directconnect.network;
+
+import calibur.directconnect.network.RegistryClient.Endpoint;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A registry on a loopback port for tests. Answers lookups from a table of
+ * hosts, takes registrations over {@code /ws/register} and counts requests
+ * per path. Batch lookup can be switched off to stand in for older
+ * registries, answers can be slowed down, and the registry can go down
+ * with its connections.
+ *
+ * Speaks just enough HTTP/1.1 and WebSocket for RegistryClient, over plain
+ * sockets: the JDK's HttpServer cannot hand a connection over to a
+ * WebSocket.
+ */
+class StandInRegistry implements AutoCloseable {
+    private static final Gson GSON = new Gson();
+    private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final ServerSocket server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "stand-in-registry");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Map<String, JsonObject> hosts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    private final List<JsonObject> lookups = new CopyOnWriteArrayList<>();
+    private final List<JsonObject> registrations = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextCode = new AtomicInteger();
+    private volatile boolean batch = true;
+    private volatile long delayMs;
+    private volatile long releaseMs;
+
+    StandInRegistry() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getLocalPort();
+    }
+
+    StandInRegistry withoutBatch() {
+        batch = false;
+        return this;
+    }
+
+    /**
+     * Holds every HTTP answer back, to stand in for a registry far away.
+     */
+    StandInRegistry delay(long ms) {
+        delayMs = ms;
+        return this;
+    }
+
+    /**
+     * Takes this long to let go of a host's code once its connection is
+     * closed or drops, like a registry busy with other hosts.
+     */
+    StandInRegistry release(long ms) {
+        releaseMs = ms;
+        return this;
+    }
+
+    /**
+     * Registers a host with a single WAN candidate.
+     */
+    StandInRegistry addHost(String code, String ip, int port) {
+        return addHost(code, List.of(new Endpoint(ip, port, Candidates.TYPE_WAN)));
+    }
+
+    /**
+     * Registers a host with its candidates, in the order given.
+     */
+    StandInRegistry addHost(String code, List<Endpoint> candidates) {
+        JsonObject host = new JsonObject();
+        host.add("candidates", Candidates.toJson(candidates));
+        hosts.put(code, host);
+        return this;
+    }
+
+    /**
+     * Whether a host is registered under a code.
+     */
+    boolean hasHost(String code) {
+        return hosts.containsKey(code);
+    }
+
+    /**
+     * Requests received on a path, e.g. "/lookup".
+     */
+    int hits(String path) {
+        AtomicInteger count = hits.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Bodies of the single lookups received, oldest first.
+     */
+    List<JsonObject> lookups() {
+        return lookups;
+    }
+
+    /**
+     * Registration payloads received over WebSocket, oldest first.
+     */
+    List<JsonObject> registrations() {
+        return registrations;
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.add(socket);
+                // Accepted while going down: close() may have missed it
+                if (server.isClosed()) {
+                    socket.close();
+                    return;
+                }
+                try {
+                    executor.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    socket.close();
+                    return;
+                }
+            } catch (IOException e) {
+                return; // Closed
+            }
+        }
+    }
+
+    /**
+     * Answers requests on a kept-alive connection until the client closes
+     * it or upgrades it to a WebSocket.
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                Map<String, String> headers = new HashMap<>();
+                for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                String path = requestLine.split(" ")[1];
+                int query = path.indexOf('?');
+                if (query >= 0) {
+                    path = path.substring(0, query);
+                }
+                hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+
+                if ("websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                    webSocket(in, out, headers.get("sec-websocket-key"));
+                    return;
+                }
+
+                byte[] body = in.readNBytes(Integer.parseInt(headers.getOrDefault("content-length", "0")));
+                Answer answer = handle(path, new String(body, StandardCharsets.UTF_8));
+                if (delayMs > 0) {
+                    Thread.sleep(delayMs);
+                }
+                byte[] bytes = answer.body().getBytes(StandardCharsets.UTF_8);
+                out.write(("HTTP/1.1 " + answer.status() + " " + (answer.status() == 200 ? "OK" : "Not Found")
+                        + "\r\nContent-Type: application/json\r\nContent-Length: " + bytes.length + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.write(bytes);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closed
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private record Answer(int status, String body) {
+    }
+
+    private Answer handle(String path, String body) {
+        switch (path) {
+            case "/":
+                return new Answer(200, "{}");
+            case "/lookup": {
+                JsonObject request = GSON.fromJson(body, JsonObject.class);
+                lookups.add(request);
+                JsonObject host = hosts.get(request.get("share_code").getAsString());
+                return host != null ? new Answer(200, GSON.toJson(host)) : new Answer(404, "{}");
+            }
+            case "/lookup/batch": {
+                if (!batch) {
+                    return new Answer(404, "{}");
+                }
+                JsonObject found = new JsonObject();
+                for (var code : GSON.fromJson(body, JsonObject.class).getAsJsonArray("share_codes")) {
+                    JsonObject host = hosts.get(code.getAsString());
+                    if (host != null) {
+                        JsonObject online = host.deepCopy();
+                        online.addProperty("online", true);
+                        found.add(code.getAsString(), online);
+                    }
+                }
+                JsonObject response = new JsonObject();
+                response.add("hosts", found);
+                return new Answer(200, GSON.toJson(response));
+            }
+            default:
+                return new Answer(404, "{}");
+        }
+    }
+
+    /**
+     * A host's registration: each text message registers it (again), and it
+     * is forgotten when the connection goes.
+     */
+    private void webSocket(DataInputStream in, OutputStream out, String key) throws IOException {
+        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        String code = null;
+        try {
+            while (true) {
+                int first = in.readUnsignedByte();
+                int second = in.readUnsignedByte();
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] mask = (second & 0x80) != 0 ? in.readNBytes(4) : null;
+                byte[] payload = in.readNBytes((int) length);
+                for (int i = 0; mask != null && i < payload.length; i++) {
+                    payload[i] ^= mask[i % 4];
+                }
+
+                switch (first & 0x0F) {
+                    case 0x1 -> {
+                        JsonObject message = GSON.fromJson(new String(payload, StandardCharsets.UTF_8), JsonObject.class);
+                        if (message.has("type")) {
+                            continue; // REGENERATE and the like are not needed here
+                        }
+                        if (code != null) {
+                            hosts.remove(code);
+                        }
+                        String requested = message.has("requested_code")
+                                ? message.get("requested_code").getAsString() : null;
+                        code = register(message);
+                        JsonObject reply = new JsonObject();
+                        if (requested == null || requested.equals(code)) {
+                            reply.addProperty("type", "REGISTERED");
+                            reply.addProperty("code", code);
+                        } else {
+                            reply.addProperty("type", "CODE_CONFLICT");
+                            reply.addProperty("assigned", code);
+                        }
+                        writeFrame(out, 0x1, GSON.toJson(reply).getBytes(StandardCharsets.UTF_8));
+                    }
+                    case 0x8 -> {
+                        // The code is free by the time the client has our close
+                        release(code);
+                        code = null;
+                        writeFrame(out, 0x8, payload);
+                        return;
+                    }
+                    case 0x9 -> writeFrame(out, 0xA, payload);
+                    default -> {
+                        // Pongs and continuations are not needed here
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // Connection gone
+        } finally {
+            release(code);
+        }
+    }
+
+    private void release(String code) {
+        if (code == null) {
+            return;
+        }
+        try {
+            Thread.sleep(releaseMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        hosts.remove(code);
+    }
+
+    private String register(JsonObject registration) {
+        registrations.add(registration);
+        String code = registration.has("requested_code") ? registration.get("requested_code").getAsString() : null;
+        if (code == null || hosts.containsKey(code)) {
+            code = "stand-in-" + nextCode.incrementAndGet();
+        }
+
+        JsonArray candidates = registration.has("candidates") ? registration.getAsJsonArray("candidates") : null;
+        if (candidates == null || candidates.isEmpty()) {
+            candidates = new JsonArray();
+            JsonObject lan = new JsonObject();
+            lan.addProperty("ip", registration.get("local_ip").getAsString());
+            lan.addProperty("port", registration.get("port").getAsInt());
+            lan.addProperty("type", Candidates.TYPE_LAN);
+            candidates.add(lan);
+        }
+        JsonObject host = new JsonObject();
+        host.add("candidates", candidates);
+        hosts.put(code, host);
+        return code;
+    }
+
+    private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        out.write(0x80 | opcode);
+        if (payload.length < 126) {
+            out.write(payload.length);
+        } else {
+            out.write(126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length & 0xFF);
+        }
+        out.write(payload);
+        out.flush();
+    }
+
+    private static String accept(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((key + WS_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a CRLF-terminated header line.
+     *
+     * @return The line without its terminator, or null at end of stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.size();
+                byte[] bytes = line.toByteArray();
+                return new String(bytes, 0, length > 0 && bytes[length - 1] == '\r' ? length - 1 : length,
+                        StandardCharsets.US_ASCII);
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? line.toString(StandardCharsets.US_ASCII) : null;
+    }
+
+    /**
+     * Drops every open connection but keeps listening, like a registry
+     * behind a proxy that restarted. Registrations go after the release
+     * delay, as with a close.
+     */
+    void dropConnections() {
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Goes down: stops listening and drops every open connection, like a
+     * registry that crashed.
+     */
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,236 @@
+package calibur.directconnect.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * StunClient on a real transport against STUN servers on loopback.
+ */
+class StunClientTest {
+    private static final InetSocketAddress FAST_MAPPING = new InetSocketAddress("203.0.113.10", 40001);
+    private static final InetSocketAddress SLOW_MAPPING = new InetSocketAddress("203.0.113.11", 40002);
+
+    private final ReliableUdp udp = new ReliableUdp();
+    private final List<MockStunServer> stunServers = new ArrayList<>();
+    private StunClient client;
+
+    @BeforeEach
+    void open() {
+        assertTrue(udp.startServer(0));
+    }
+
+    @AfterEach
+    void close() {
+        if (client != null) {
+            client.stop();
+        }
+        udp.stop();
+        stunServers.forEach(MockStunServer::close);
+    }
+
+    @Test
+    void firstValidAnswerWins() throws Exception {
+        MockStunServer slow = server(SLOW_MAPPING).delay(300);
+        MockStunServer fast = server(FAST_MAPPING);
+        client = start(slow, fast);
+
+        // Asked at the same time, so this is well before the slow answer
+        assertEquals(FAST_MAPPING, client.discover().get(250, TimeUnit.MILLISECONDS));
+        assertEquals(fast.address(), client.getMappingServer());
+
+        // The slow answer to the same query changes nothing
+        Thread.sleep(400);
+        assertEquals(FAST_MAPPING, client.getCachedMapping());
+        assertEquals(1, slow.requests.get());
+    }
+
+    @Test
+    void waitsForSlowServerThroughRetransmissions() throws Exception {
+        // Answers only the third copy, sent 1.5 s in
+        MockStunServer slow = server(SLOW_MAPPING).ignoreFirst(2);
+        client = start(slow);
+
+        assertEquals(SLOW_MAPPING, client.discover().get(5, TimeUnit.SECONDS));
+        assertEquals(3, slow.requests.get());
+    }
+
+    @Test
+    void rejectsAnswerToAnotherTransaction() throws Exception {
+        MockStunServer forged = server(FAST_MAPPING).wrongTransaction();
+        MockStunServer honest = server(SLOW_MAPPING).delay(200);
+        client = start(forged, honest);
+
+        assertEquals(SLOW_MAPPING, client.discover().get(5, TimeUnit.SECONDS));
+        assertEquals(honest.address(), client.getMappingServer());
+    }
+
+    @Test
+    void failsWhenOnlyForgedAnswersCome() throws Exception {
+        client = start(server(FAST_MAPPING).wrongTransaction());
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> client.discover().get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        assertNull(client.getCachedMapping());
+    }
+
+    @Test
+    void cachesMappingAndRefreshes() throws Exception {
+        MockStunServer server = server(FAST_MAPPING);
+        client = start(server);
+
+        assertEquals(FAST_MAPPING, client.getMapping(60_000).get(5, TimeUnit.SECONDS));
+        assertEquals(1, server.requests.get());
+
+        // Recent enough: answered from the cache
+        assertEquals(FAST_MAPPING, client.getMapping(60_000).get(5, TimeUnit.SECONDS));
+        assertEquals(1, server.requests.get());
+
+        // The NAT moved us; a caller wanting a fresh mapping asks again
+        server.mapping = SLOW_MAPPING;
+        Thread.sleep(5);
+        assertEquals(SLOW_MAPPING, client.getMapping(0).get(5, TimeUnit.SECONDS));
+        assertEquals(2, server.requests.get());
+        assertEquals(SLOW_MAPPING, client.getCachedMapping());
+    }
+
+    @Test
+    void periodicRefreshFollowsMapping() throws Exception {
+        MockStunServer server = server(FAST_MAPPING);
+        client = new StunClient(udp, new String[][] { server.config() });
+        client.start(200);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!FAST_MAPPING.equals(client.getCachedMapping())) {
+            assertTrue(System.currentTimeMillis() < deadline, "no refresh");
+            Thread.sleep(10);
+        }
+        server.mapping = SLOW_MAPPING;
+        while (!SLOW_MAPPING.equals(client.getCachedMapping())) {
+            assertTrue(System.currentTimeMillis() < deadline, "refresh missed the new mapping");
+            Thread.sleep(10);
+        }
+        assertTrue(server.requests.get() >= 2);
+    }
+
+    private MockStunServer server(InetSocketAddress mapping) throws SocketException {
+        MockStunServer server = new MockStunServer(mapping);
+        stunServers.add(server);
+        return server;
+    }
+
+    private StunClient start(MockStunServer... servers) {
+        StunClient stun = new StunClient(udp, Arrays.stream(servers).map(MockStunServer::config)
+                .toArray(String[][]::new));
+        stun.start(0);
+        return stun;
+    }
+
+    /**
+     * Answers binding requests on an ephemeral loopback port with a fixed
+     * XOR-MAPPED-ADDRESS, optionally late, only after some retransmissions,
+     * or with another transaction ID.
+     */
+    private static class MockStunServer {
+        final DatagramSocket socket;
+        final AtomicInteger requests = new AtomicInteger();
+        volatile InetSocketAddress mapping;
+        private volatile long delayMs;
+        private volatile int ignore;
+        private volatile boolean wrongTransaction;
+
+        MockStunServer(InetSocketAddress mapping) throws SocketException {
+            this.mapping = mapping;
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[1500];
+                while (!socket.isClosed()) {
+                    try {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        if (requests.incrementAndGet() <= ignore) {
+                            continue;
+                        }
+                        byte[] txid = Arrays.copyOfRange(buffer, StunCodec.TXID_OFFSET,
+                                StunCodec.TXID_OFFSET + StunCodec.TXID_SIZE);
+                        if (wrongTransaction) {
+                            txid[0] ^= 1;
+                        }
+                        byte[] response = bindingSuccess(txid, this.mapping);
+                        if (delayMs > 0) {
+                            Thread.sleep(delayMs);
+                        }
+                        socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                    } catch (Exception e) {
+                        return;
+                    }
+                }
+            }, "MockStunServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        MockStunServer delay(long ms) {
+            delayMs = ms;
+            return this;
+        }
+
+        MockStunServer ignoreFirst(int count) {
+            ignore = count;
+            return this;
+        }
+
+        MockStunServer wrongTransaction() {
+            wrongTransaction = true;
+            return this;
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) socket.getLocalSocketAddress();
+        }
+
+        String[] config() {
+            return new String[] { "127.0.0.1", String.valueOf(socket.getLocalPort()) };
+        }
+
+        void close() {
+            socket.close();
+        }
+    }
+
+    private static byte[] bindingSuccess(byte[] txid, InetSocketAddress mapped) {
+        ByteBuffer buf = ByteBuffer.allocate(StunCodec.HEADER_SIZE + 12);
+        buf.putShort((short) StunCodec.BINDING_SUCCESS);
+        buf.putShort((short) 12);
+        buf.putInt(StunCodec.MAGIC_COOKIE);
+        buf.put(txid);
+        buf.putShort((short) StunCodec.ATTR_XOR_MAPPED_ADDRESS);
+        buf.putShort((short) 8);
+        buf.put((byte) 0);
+        buf.put((byte) 0x01);
+        buf.putShort((short) (mapped.getPort() ^ (StunCodec.MAGIC_COOKIE >>> 16)));
+        buf.putInt(ByteBuffer.wrap(mapped.getAddress().getAddress()).getInt() ^ StunCodec.MAGIC_COOKIE);
+        return buf.array();
+    }
+}
@@ -0,0 +1,280 @@
+package calibur.directconnect.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * StunCodec against hand-built messages. The XOR-MAPPED-ADDRESS values are
+ * the RFC 5769 test vectors.
+ */
+class StunCodecTest {
+    // RFC 5769 sections 2.2 and 2.3
+    private static final byte[] TXID = hex("b7e7a701bc34d686fa87dfae");
+    private static final byte[] XOR_V4 = hex("0001a147e112a643");
+    private static final byte[] XOR_V6 = hex("0002a1470113a9faa5d3f179bc25f4b5bed2b9d9");
+
+    @Test
+    void writesPlainBindingRequest() {
+        ByteBuf out = Unpooled.buffer();
+        StunCodec.writeBindingRequest(out, TXID, false, false);
+
+        assertEquals(StunCodec.HEADER_SIZE, out.readableBytes());
+        assertTrue(StunCodec.isStunMessage(out));
+        assertEquals(StunCodec.BINDING_REQUEST, StunCodec.messageType(out));
+        assertEquals(0, out.getUnsignedShort(2));
+        assertEquals(StunCodec.MAGIC_COOKIE, out.getInt(4));
+        assertTrue(StunCodec.transactionIdEquals(out, TXID));
+    }
+
+    @Test
+    void writesChangeRequest() {
+        ByteBuf out = Unpooled.buffer();
+        StunCodec.writeBindingRequest(out, TXID, true, true);
+
+        assertTrue(StunCodec.isStunMessage(out));
+        int attr = StunCodec.findAttribute(out, StunCodec.ATTR_CHANGE_REQUEST);
+        assertEquals(StunCodec.HEADER_SIZE, attr);
+        assertEquals(4, out.getUnsignedShort(attr + 2));
+        assertEquals(0x06, out.getInt(attr + 4));
+    }
+
+    @Test
+    void byteArrayRequestMatchesBufferRequest() {
+        byte[] request = StunCodec.bindingRequest(false, true);
+        byte[] txid = new byte[StunCodec.TXID_SIZE];
+        System.arraycopy(request, StunCodec.TXID_OFFSET, txid, 0, txid.length);
+
+        ByteBuf expected = Unpooled.buffer();
+        StunCodec.writeBindingRequest(expected, txid, false, true);
+        byte[] written = new byte[expected.readableBytes()];
+        expected.readBytes(written);
+        assertArrayEquals(written, request);
+    }
+
+    @Test
+    void rejectsNonStunDatagrams() {
+        ByteBuf good = Unpooled.buffer();
+        StunCodec.writeBindingRequest(good, TXID, false, false);
+
+        ByteBuf badCookie = good.copy();
+        badCookie.setInt(4, 0x2112A443);
+        assertFalse(StunCodec.isStunMessage(badCookie));
+
+        ByteBuf leadingBits = good.copy();
+        leadingBits.setByte(0, 0x40);
+        assertFalse(StunCodec.isStunMessage(leadingBits));
+
+        ByteBuf badLength = good.copy();
+        badLength.setShort(2, 4);
+        assertFalse(StunCodec.isStunMessage(badLength));
+
+        assertFalse(StunCodec.isStunMessage(Unpooled.wrappedBuffer(new byte[StunCodec.HEADER_SIZE - 1])));
+    }
+
+    @Test
+    void comparesTransactionIds() {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS);
+        assertTrue(StunCodec.transactionIdEquals(msg, TXID));
+
+        byte[] other = TXID.clone();
+        other[11] ^= 1;
+        assertFalse(StunCodec.transactionIdEquals(msg, other));
+    }
+
+    @Test
+    void decodesXorMappedIpv4() throws Exception {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(0x8022, "test vector".getBytes()),
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, XOR_V4));
+
+        assertTrue(StunCodec.isStunMessage(msg));
+        assertEquals(new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 32853),
+                StunCodec.readMappedAddress(msg));
+    }
+
+    @Test
+    void decodesXorMappedIpv6() throws Exception {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, XOR_V6));
+
+        assertEquals(new InetSocketAddress(InetAddress.getByName("2001:db8:1234:5678:11:2233:4455:6677"), 32853),
+                StunCodec.readMappedAddress(msg));
+    }
+
+    @Test
+    void honoursReaderIndex() throws Exception {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, XOR_V6));
+        ByteBuf shifted = Unpooled.buffer();
+        shifted.writeBytes(new byte[] { 1, 2, 3 });
+        shifted.writeBytes(msg);
+        shifted.readerIndex(3);
+
+        assertTrue(StunCodec.isStunMessage(shifted));
+        assertEquals(new InetSocketAddress(InetAddress.getByName("2001:db8:1234:5678:11:2233:4455:6677"), 32853),
+                StunCodec.readMappedAddress(shifted));
+        assertEquals(3, shifted.readerIndex());
+    }
+
+    @Test
+    void prefersXorMappedOverLegacy() throws Exception {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_MAPPED_ADDRESS, hex("00010050c0000263")),
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, XOR_V4));
+
+        assertEquals(new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 32853),
+                StunCodec.readMappedAddress(msg));
+    }
+
+    @Test
+    void fallsBackToLegacyMapped() throws Exception {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_MAPPED_ADDRESS, hex("00010050c0000263")));
+
+        assertEquals(new InetSocketAddress(InetAddress.getByName("192.0.2.99"), 80),
+                StunCodec.readMappedAddress(msg));
+    }
+
+    @Test
+    void readsOtherAddressUnxored() throws Exception {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_OTHER_ADDRESS, hex("00010d96c6336401")));
+
+        assertEquals(new InetSocketAddress(InetAddress.getByName("198.51.100.1"), 3478),
+                StunCodec.readAddress(msg, StunCodec.ATTR_OTHER_ADDRESS));
+    }
+
+    @Test
+    void ignoresAddressOnErrorResponse() {
+        ByteBuf msg = message(StunCodec.BINDING_ERROR,
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, XOR_V4));
+        assertNull(StunCodec.readMappedAddress(msg));
+    }
+
+    @Test
+    void rejectsAttributeOverrunningMessage() {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, XOR_V4));
+        // Claim 12 value bytes where only 8 remain
+        msg.setShort(StunCodec.HEADER_SIZE + 2, 12);
+
+        assertEquals(-1, StunCodec.findAttribute(msg, StunCodec.ATTR_XOR_MAPPED_ADDRESS));
+        assertNull(StunCodec.readMappedAddress(msg));
+    }
+
+    @Test
+    void stopsAtMalformedEarlierAttribute() {
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(0x8022, new byte[4]),
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, XOR_V4));
+        // The first attribute's length now jumps past the end of the message
+        msg.setShort(StunCodec.HEADER_SIZE + 2, 200);
+
+        assertEquals(-1, StunCodec.findAttribute(msg, StunCodec.ATTR_XOR_MAPPED_ADDRESS));
+    }
+
+    @Test
+    void rejectsTruncatedAddressValue() {
+        // IPv6 family with only an IPv4-sized address
+        byte[] value = XOR_V4.clone();
+        value[1] = 0x02;
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, value));
+        assertNull(StunCodec.readMappedAddress(msg));
+
+        ByteBuf empty = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, hex("0001a147")));
+        assertNull(StunCodec.readMappedAddress(empty));
+    }
+
+    @Test
+    void rejectsUnknownAddressFamily() {
+        byte[] value = XOR_V4.clone();
+        value[1] = 0x03;
+        ByteBuf msg = message(StunCodec.BINDING_SUCCESS,
+                attribute(StunCodec.ATTR_XOR_MAPPED_ADDRESS, value));
+        assertNull(StunCodec.readMappedAddress(msg));
+    }
+
+    @Test
+    void readsErrorCodes() {
+        assertEquals(420, StunCodec.readErrorCode(message(StunCodec.BINDING_ERROR,
+                attribute(StunCodec.ATTR_ERROR_CODE, errorCode(4, 20, "Unknown Attribute")))));
+        assertEquals(300, StunCodec.readErrorCode(message(StunCodec.BINDING_ERROR,
+                attribute(StunCodec.ATTR_ERROR_CODE, errorCode(3, 0, "Try Alternate")))));
+        assertEquals(699, StunCodec.readErrorCode(message(StunCodec.BINDING_ERROR,
+                attribute(StunCodec.ATTR_ERROR_CODE, errorCode(6, 99, "")))));
+    }
+
+    @Test
+    void ignoresReservedErrorClassBits() {
+        byte[] value = errorCode(4, 1, "Bad");
+        value[2] |= (byte) 0xF8;
+        assertEquals(401, StunCodec.readErrorCode(message(StunCodec.BINDING_ERROR,
+                attribute(StunCodec.ATTR_ERROR_CODE, value))));
+    }
+
+    @Test
+    void rejectsMissingOrShortErrorCode() {
+        assertEquals(-1, StunCodec.readErrorCode(message(StunCodec.BINDING_ERROR)));
+        assertEquals(-1, StunCodec.readErrorCode(message(StunCodec.BINDING_ERROR,
+                attribute(StunCodec.ATTR_ERROR_CODE, new byte[] { 0, 0, 4 }))));
+    }
+
+    private static byte[] errorCode(int errorClass, int number, String reason) {
+        byte[] text = reason.getBytes();
+        byte[] value = new byte[4 + text.length];
+        value[2] = (byte) errorClass;
+        value[3] = (byte) number;
+        System.arraycopy(text, 0, value, 4, text.length);
+        return value;
+    }
+
+    /**
+     * Encodes an attribute with its padding.
+     */
+    private static byte[] attribute(int type, byte[] value) {
+        byte[] attr = new byte[4 + ((value.length + 3) & ~3)];
+        attr[0] = (byte) (type >> 8);
+        attr[1] = (byte) type;
+        attr[2] = (byte) (value.length >> 8);
+        attr[3] = (byte) value.length;
+        System.arraycopy(value, 0, attr, 4, value.length);
+        return attr;
+    }
+
+    private static ByteBuf message(int type, byte[]... attributes) {
+        int length = 0;
+        for (byte[] attr : attributes) {
+            length += attr.length;
+        }
+
+        ByteBuf msg = Unpooled.buffer();
+        msg.writeShort(type);
+        msg.writeShort(length);
+        msg.writeInt(StunCodec.MAGIC_COOKIE);
+        msg.writeBytes(TXID);
+        for (byte[] attr : attributes) {
+            msg.writeBytes(attr);
+        }
+        return msg;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return out;
+    }
+}